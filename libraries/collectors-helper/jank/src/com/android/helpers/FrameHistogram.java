@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * FrameHistogram records frame durations into fixed log-linear buckets, so percentiles can be
+ * computed on the device and histograms of several tests or iterations can be merged.
+ *
+ * Durations are recorded with microsecond granularity. Each power of two range is split into
+ * {@code 2^SUB_BUCKET_BITS} linear sub-buckets, which bounds the relative error of a reported
+ * percentile to {@code 1 / 2^SUB_BUCKET_BITS} (about 1.6%). Durations above
+ * {@link #MAX_TRACKABLE_MICROS} are recorded into the last bucket; the exact maximum is kept
+ * separately.
+ *
+ * The histogram serializes into a compact byte array holding only the non-empty buckets, see
+ * {@link #toByteArray} and {@link #fromByteArray}.
+ *
+ * Example Usage:
+ * FrameHistogram histogram = new FrameHistogram();
+ * histogram.recordNanos(frameCompleted - intendedVsync);
+ * double p99 = histogram.getPercentileMillis(99);
+ */
+public class FrameHistogram {
+    public static final int SUB_BUCKET_BITS = 6;
+    // Longest duration with a bucket of its own, a little over 71 minutes.
+    public static final long MAX_TRACKABLE_MICROS = (1L << 32) - 1;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS =
+            64 - Long.numberOfLeadingZeros(MAX_TRACKABLE_MICROS);
+    private static final int BUCKET_COUNT =
+            (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    private static final int SERIAL_VERSION = 1;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mMaxNanos;
+
+    /** Records one frame lasting {@code durationNanos}. Negative durations are ignored. */
+    public void recordNanos(long durationNanos) {
+        if (durationNanos < 0) {
+            return;
+        }
+        mCounts[getBucketIndex(durationNanos / NANOS_PER_MICRO)]++;
+        mTotalCount++;
+        mMaxNanos = Math.max(mMaxNanos, durationNanos);
+    }
+
+    /** Adds every frame recorded in {@code other} to this histogram. */
+    public void add(FrameHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMaxNanos = Math.max(mMaxNanos, other.mMaxNanos);
+    }
+
+    /** Removes every recorded frame. */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMaxNanos = 0;
+    }
+
+    /** Returns the number of recorded frames. */
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /** Returns the exact duration of the longest recorded frame in milliseconds. */
+    public double getMaxMillis() {
+        return mMaxNanos / 1e6;
+    }
+
+    /**
+     * Returns the duration in milliseconds that {@code percentile} percent of the recorded frames
+     * do not exceed, or 0 if the histogram is empty. The value is the upper bound of the bucket
+     * holding the frame of that rank, capped to the maximum.
+     *
+     * @param percentile between 0 and 100
+     */
+    public double getPercentileMillis(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                long upperMicros = getBucketLowerBound(i) + getBucketWidth(i) - 1;
+                return Math.min(upperMicros * NANOS_PER_MICRO, mMaxNanos) / 1e6;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * Returns the number of recorded frames longer than {@code thresholdNanos}. Frames in the
+     * bucket holding the threshold itself are counted only if the whole bucket is above it.
+     */
+    public long getCountAbove(long thresholdNanos) {
+        long thresholdMicros = thresholdNanos / NANOS_PER_MICRO;
+        long count = 0;
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (getBucketLowerBound(i) <= thresholdMicros) {
+                break;
+            }
+            count += mCounts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Serializes the histogram. The layout is the format version, the sub-bucket bits, the total
+     * count, the maximum in nanoseconds, the number of non-empty buckets and one (index, count)
+     * pair per non-empty bucket.
+     */
+    public byte[] toByteArray() {
+        int nonEmpty = 0;
+        for (long count : mCounts) {
+            if (count != 0) {
+                nonEmpty++;
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(28 + nonEmpty * 12);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(SERIAL_VERSION);
+            out.writeInt(SUB_BUCKET_BITS);
+            out.writeLong(mTotalCount);
+            out.writeLong(mMaxNanos);
+            out.writeInt(nonEmpty);
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (mCounts[i] != 0) {
+                    out.writeInt(i);
+                    out.writeLong(mCounts[i]);
+                }
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a histogram written by {@link #toByteArray}.
+     *
+     * @throws IllegalArgumentException if {@code data} is not a valid histogram
+     */
+    public static FrameHistogram fromByteArray(byte[] data) {
+        FrameHistogram histogram = new FrameHistogram();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != SERIAL_VERSION || in.readInt() != SUB_BUCKET_BITS) {
+                throw new IllegalArgumentException("Unsupported histogram format");
+            }
+            histogram.mTotalCount = in.readLong();
+            histogram.mMaxNanos = in.readLong();
+            int nonEmpty = in.readInt();
+            long sum = 0;
+            for (int i = 0; i < nonEmpty; i++) {
+                int index = in.readInt();
+                if (index < 0 || index >= BUCKET_COUNT) {
+                    throw new IllegalArgumentException("Invalid histogram bucket " + index);
+                }
+                histogram.mCounts[index] = in.readLong();
+                sum += histogram.mCounts[index];
+            }
+            if (sum != histogram.mTotalCount) {
+                throw new IllegalArgumentException("Histogram counts do not match its total");
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated histogram", e);
+        }
+        return histogram;
+    }
+
+    private static int getBucketIndex(long micros) {
+        long value = Math.min(micros, MAX_TRACKABLE_MICROS);
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Keep the SUB_BUCKET_BITS bits below the highest set bit.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long getBucketLowerBound(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+    }
+
+    private static long getBucketWidth(int index) {
+        return index < 2 * SUB_BUCKET_COUNT ? 1 : 1L << (index / SUB_BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GfxInfoParser reads the output of {@code dumpsys gfxinfo} in a single pass over its lines and
+ * fills one {@link PackageRecord} per "** Graphics info for pid ... **" section.
+ *
+ * Each line is dispatched on its prefix, so the cost is linear in the size of the dump no matter
+ * how many metrics or packages it contains. When a metric line appears more than once in a
+ * section, the last one wins.
+ */
+public class GfxInfoParser {
+    // Metric slots of a package record.
+    public static final int TOTAL_FRAMES = 0;
+    public static final int JANKY_FRAMES_COUNT = 1;
+    public static final int JANKY_FRAMES_PRCNT = 2;
+    public static final int FRAME_TIME_50TH = 3;
+    public static final int FRAME_TIME_90TH = 4;
+    public static final int FRAME_TIME_95TH = 5;
+    public static final int FRAME_TIME_99TH = 6;
+    public static final int NUM_MISSED_VSYNC = 7;
+    public static final int NUM_HIGH_INPUT_LATENCY = 8;
+    public static final int NUM_SLOW_UI_THREAD = 9;
+    public static final int NUM_SLOW_BITMAP_UPLOADS = 10;
+    public static final int NUM_SLOW_DRAW = 11;
+    public static final int NUM_FRAME_DEADLINE_MISSED = 12;
+    public static final int GPU_FRAME_TIME_50TH = 13;
+    public static final int GPU_FRAME_TIME_90TH = 14;
+    public static final int GPU_FRAME_TIME_95TH = 15;
+    public static final int GPU_FRAME_TIME_99TH = 16;
+    public static final int METRIC_COUNT = 17;
+
+    // Example: "** Graphics info for pid 853 [com.google.android.leanbacklauncher] **"
+    private static final String SECTION_START = "**";
+    private static final String HEADER = "Graphics info for pid ";
+    // Example: "Janky frames: 785 (3.85%)"
+    private static final String JANKY_FRAMES = "Janky frames: ";
+    private static final String MILLIS_SUFFIX = "ms";
+    // Delimits the per-frame timestamps printed by "dumpsys gfxinfo <pkg> framestats".
+    private static final String PROFILE_DATA_MARKER = "---PROFILEDATA---";
+    private static final String FLAGS_COLUMN = "Flags";
+    private static final String INTENDED_VSYNC_COLUMN = "IntendedVsync";
+    private static final String FRAME_COMPLETED_COLUMN = "FrameCompleted";
+
+    // Lines holding a single integer value, indexed by metric slot. Null for the slots that are
+    // parsed separately.
+    private static final String[] LINE_PREFIXES = new String[METRIC_COUNT];
+
+    static {
+        // Example: "Total frames rendered: 20391"
+        LINE_PREFIXES[TOTAL_FRAMES] = "Total frames rendered: ";
+        // Example: "50th percentile: 9ms"
+        LINE_PREFIXES[FRAME_TIME_50TH] = "50th percentile: ";
+        LINE_PREFIXES[FRAME_TIME_90TH] = "90th percentile: ";
+        LINE_PREFIXES[FRAME_TIME_95TH] = "95th percentile: ";
+        LINE_PREFIXES[FRAME_TIME_99TH] = "99th percentile: ";
+        // Example: "Number Missed Vsync: 0"
+        LINE_PREFIXES[NUM_MISSED_VSYNC] = "Number Missed Vsync: ";
+        LINE_PREFIXES[NUM_HIGH_INPUT_LATENCY] = "Number High input latency: ";
+        LINE_PREFIXES[NUM_SLOW_UI_THREAD] = "Number Slow UI thread: ";
+        LINE_PREFIXES[NUM_SLOW_BITMAP_UPLOADS] = "Number Slow bitmap uploads: ";
+        LINE_PREFIXES[NUM_SLOW_DRAW] = "Number Slow issue draw commands: ";
+        LINE_PREFIXES[NUM_FRAME_DEADLINE_MISSED] = "Number Frame deadline missed: ";
+        // Example: "50th gpu percentile: 9ms"
+        LINE_PREFIXES[GPU_FRAME_TIME_50TH] = "50th gpu percentile: ";
+        LINE_PREFIXES[GPU_FRAME_TIME_90TH] = "90th gpu percentile: ";
+        LINE_PREFIXES[GPU_FRAME_TIME_95TH] = "95th gpu percentile: ";
+        LINE_PREFIXES[GPU_FRAME_TIME_99TH] = "99th gpu percentile: ";
+    }
+
+    /** Metrics parsed from the section of one package. */
+    public static final class PackageRecord {
+        private final String mPackageName;
+        private final int mPid;
+        private final double[] mValues = new double[METRIC_COUNT];
+        // Bit i is set when metric slot i was found.
+        private int mPresent;
+
+        private PackageRecord(String packageName, int pid) {
+            mPackageName = packageName;
+            mPid = pid;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        /** Returns true if the metric slot was found in the section. */
+        public boolean has(int metric) {
+            return (mPresent & (1 << metric)) != 0;
+        }
+
+        /** Returns the value of the metric slot, or 0 if it was not found. */
+        public double get(int metric) {
+            return mValues[metric];
+        }
+
+        private void set(int metric, double value) {
+            mValues[metric] = value;
+            mPresent |= 1 << metric;
+        }
+    }
+
+    private GfxInfoParser() {}
+
+    /**
+     * Parses every package section of a {@code dumpsys gfxinfo} output.
+     *
+     * @param output output of {@code dumpsys gfxinfo}
+     * @return the package records in the order of the sections
+     * @throws RuntimeException if a section does not start with a valid package header
+     */
+    public static List<PackageRecord> parse(String output) {
+        List<PackageRecord> records = new ArrayList<>();
+        PackageRecord current = null;
+        int length = output.length();
+        int start = 0;
+        while (start < length) {
+            int end = output.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (output.startsWith(SECTION_START, start)) {
+                current = parseHeader(output, start, end);
+                if (current == null) {
+                    throw new RuntimeException("Failed to parse package from gfxinfo output.");
+                }
+                records.add(current);
+            } else if (current != null) {
+                parseLine(current, output, start, end);
+            }
+            start = end + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Returns true if the output contains a package header for {@code pkg}, or any package header
+     * if {@code pkg} is empty.
+     */
+    public static boolean containsHeader(String output, String pkg) {
+        int header = output.indexOf(HEADER);
+        while (header >= 0) {
+            int lineStart = output.lastIndexOf('\n', header) + 1;
+            int lineEnd = output.indexOf('\n', header);
+            if (lineEnd < 0) {
+                lineEnd = output.length();
+            }
+            PackageRecord record = parseHeader(output, lineStart, lineEnd);
+            if (record != null && (pkg.isEmpty() || pkg.equals(record.getPackageName()))) {
+                return true;
+            }
+            header = output.indexOf(HEADER, lineEnd);
+        }
+        return false;
+    }
+
+    /**
+     * Records the duration of every frame of the "---PROFILEDATA---" blocks of a {@code dumpsys
+     * gfxinfo <pkg> framestats} output into {@code histogram}.
+     *
+     * The duration of a frame is FrameCompleted - IntendedVsync. Frames with non-zero flags are
+     * skipped, as are rows that are incomplete or not numeric. Columns are located by the names
+     * of the header row of each block, so the parser does not depend on the column order.
+     *
+     * @return the number of recorded frames
+     */
+    public static int parseFrameStats(String output, FrameHistogram histogram) {
+        int frames = 0;
+        boolean inProfileData = false;
+        int[] columns = null;
+        int length = output.length();
+        int start = 0;
+        while (start < length) {
+            int end = output.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (output.startsWith(PROFILE_DATA_MARKER, start)) {
+                inProfileData = !inProfileData;
+                columns = null;
+            } else if (inProfileData) {
+                if (columns == null) {
+                    columns = parseFrameStatsHeader(output.substring(start, end));
+                } else if (columns.length > 0) {
+                    long duration = parseFrameDuration(output, start, end, columns);
+                    if (duration >= 0) {
+                        histogram.recordNanos(duration);
+                        frames++;
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the indexes of the flags, intended vsync and frame completed columns, or an empty
+     * array if the header lacks one of them.
+     */
+    private static int[] parseFrameStatsHeader(String header) {
+        int[] columns = new int[] {-1, -1, -1};
+        String[] names = header.trim().split(",");
+        for (int i = 0; i < names.length; i++) {
+            if (FLAGS_COLUMN.equals(names[i])) {
+                columns[0] = i;
+            } else if (INTENDED_VSYNC_COLUMN.equals(names[i])) {
+                columns[1] = i;
+            } else if (FRAME_COMPLETED_COLUMN.equals(names[i])) {
+                columns[2] = i;
+            }
+        }
+        for (int column : columns) {
+            if (column < 0) {
+                return new int[0];
+            }
+        }
+        return columns;
+    }
+
+    /** Returns the duration of a framestats row in nanoseconds, or -1 to skip the row. */
+    private static long parseFrameDuration(String output, int start, int end, int[] columns) {
+        long[] values = new long[columns.length];
+        int found = 0;
+        int column = 0;
+        int fieldStart = start;
+        while (fieldStart <= end && found < columns.length) {
+            int fieldEnd = output.indexOf(',', fieldStart);
+            if (fieldEnd < 0 || fieldEnd > end) {
+                fieldEnd = end;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] == column) {
+                    if (fieldEnd == fieldStart
+                            || skipDigits(output, fieldStart, fieldEnd) != fieldEnd) {
+                        return -1;
+                    }
+                    values[i] = parseLong(output, fieldStart, fieldEnd);
+                    found++;
+                }
+            }
+            column++;
+            fieldStart = fieldEnd + 1;
+        }
+        // Non-zero flags mark frames that should be ignored, such as the first frame of a window.
+        if (found < columns.length || values[0] != 0 || values[2] < values[1]) {
+            return -1;
+        }
+        return values[2] - values[1];
+    }
+
+    /** Parses a header line, returns null if it is not a valid header. */
+    private static PackageRecord parseHeader(String output, int start, int end) {
+        int header = output.indexOf(HEADER, start);
+        if (header < 0 || header >= end) {
+            return null;
+        }
+        int pidStart = header + HEADER.length();
+        int pidEnd = skipDigits(output, pidStart, end);
+        int open = output.indexOf(" [", pidEnd);
+        int close = output.lastIndexOf(']', end - 1);
+        if (pidEnd == pidStart || open != pidEnd || close < open + 2) {
+            return null;
+        }
+        return new PackageRecord(
+                output.substring(open + 2, close), (int) parseLong(output, pidStart, pidEnd));
+    }
+
+    /** Dispatches a metric line on its prefix and stores its value. */
+    private static void parseLine(PackageRecord record, String output, int start, int end) {
+        if (start == end) {
+            return;
+        }
+        char first = output.charAt(start);
+        if (first == 'J') {
+            parseJankyFrames(record, output, start, end);
+            return;
+        }
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            String prefix = LINE_PREFIXES[metric];
+            if (prefix == null || prefix.charAt(0) != first || !output.startsWith(prefix, start)) {
+                continue;
+            }
+            int valueStart = start + prefix.length();
+            int valueEnd = skipDigits(output, valueStart, end);
+            if (valueEnd == valueStart) {
+                return;
+            }
+            // Percentile lines must be followed by their unit.
+            if (metric >= FRAME_TIME_50TH && metric <= FRAME_TIME_99TH
+                    || metric >= GPU_FRAME_TIME_50TH) {
+                if (!output.startsWith(MILLIS_SUFFIX, valueEnd)) {
+                    return;
+                }
+            }
+            record.set(metric, parseLong(output, valueStart, valueEnd));
+            return;
+        }
+    }
+
+    /** Parses "Janky frames: 785 (3.85%)" into the count and percent slots. */
+    private static void parseJankyFrames(
+            PackageRecord record, String output, int start, int end) {
+        if (!output.startsWith(JANKY_FRAMES, start)) {
+            return;
+        }
+        int countStart = start + JANKY_FRAMES.length();
+        int countEnd = skipDigits(output, countStart, end);
+        if (countEnd == countStart || !output.startsWith(" (", countEnd)) {
+            return;
+        }
+        int percentEnd = output.lastIndexOf("%)", end - 1);
+        if (percentEnd <= countEnd + 2 || percentEnd + 2 > end) {
+            return;
+        }
+        double percent;
+        try {
+            percent = Double.parseDouble(output.substring(countEnd + 2, percentEnd));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        record.set(JANKY_FRAMES_COUNT, parseLong(output, countStart, countEnd));
+        record.set(JANKY_FRAMES_PRCNT, percent);
+    }
+
+    private static int skipDigits(String output, int start, int end) {
+        int i = start;
+        while (i < end && output.charAt(i) >= '0' && output.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private static long parseLong(String output, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (output.charAt(i) - '0');
+        }
+        return value;
+    }
+}
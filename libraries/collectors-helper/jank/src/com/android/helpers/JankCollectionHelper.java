@@ -18,8 +18,10 @@ package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
+import android.hardware.display.DisplayManager;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
+import android.view.Display;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
@@ -29,6 +31,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -44,108 +47,137 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
     // Shell dump commands to get and reset the tracked gfxinfo metrics.
     @VisibleForTesting static final String GFXINFO_COMMAND_GET = "dumpsys gfxinfo %s";
     @VisibleForTesting static final String GFXINFO_COMMAND_RESET = GFXINFO_COMMAND_GET + " reset";
-    // Pattern matchers and enumerators to verify and pull gfxinfo metrics.
-    // Example: "** Graphics info for pid 853 [com.google.android.leanbacklauncher] **"
-    private static final String GFXINFO_OUTPUT_HEADER = "Graphics info for pid (\\d+) \\[(%s)\\]";
-    // Note: use the [\\s\\S]* multi-line matcher to support String#matches(). Instead of splitting
-    // the larger sections into more granular lines, we can match across all lines for simplicity.
-    private static final String MULTILINE_MATCHER = "[\\s\\S]*%s[\\s\\S]*";
+    // Shell dump command that also prints the timestamps of the most recent frames.
+    @VisibleForTesting
+    static final String GFXINFO_COMMAND_FRAMESTATS = GFXINFO_COMMAND_GET + " framestats";
+    // Metric ids of the values computed from the framestats histogram.
+    @VisibleForTesting static final String FRAMESTATS_TOTAL_FRAMES = "framestats_total_frames";
+    @VisibleForTesting static final String FRAMESTATS_PERCENTILE = "framestats_percentile_%d";
+    @VisibleForTesting static final String FRAMESTATS_JANK_COUNT = "framestats_jank_count";
+    @VisibleForTesting static final String FRAMESTATS_MAX = "framestats_max_frame_time";
+    @VisibleForTesting static final String FRAMESTATS_HISTOGRAM = "framestats_histogram";
+    @VisibleForTesting static final int[] FRAMESTATS_PERCENTILES = new int[] {50, 90, 95, 99};
+    // Vsync period used when the refresh rate of the display cannot be read, that of 60 Hz.
+    @VisibleForTesting static final long DEFAULT_FRAME_DURATION_NS = 16_666_667L;
 
+    /**
+     * The gfxinfo metrics. The patterns describe each metric for reference; the helper reads
+     * them with a single pass of {@link GfxInfoParser} into the matching parser slot.
+     */
     public enum GfxInfoMetric {
         // Example: "Total frames rendered: 20391"
         TOTAL_FRAMES(
                 Pattern.compile(".*Total frames rendered: (\\d+).*", Pattern.DOTALL),
                 1,
-                "total_frames"),
+                "total_frames",
+                GfxInfoParser.TOTAL_FRAMES),
         // Example: "Janky frames: 785 (3.85%)"
         JANKY_FRAMES_COUNT(
                 Pattern.compile(".*Janky frames: (\\d+) \\((.+)\\%\\).*", Pattern.DOTALL),
                 1,
-                "janky_frames_count"),
+                "janky_frames_count",
+                GfxInfoParser.JANKY_FRAMES_COUNT),
         // Example: "Janky frames: 785 (3.85%)"
         JANKY_FRAMES_PRCNT(
                 Pattern.compile(".*Janky frames: (\\d+) \\((.+)\\%\\).*", Pattern.DOTALL),
                 2,
-                "janky_frames_percent"),
+                "janky_frames_percent",
+                GfxInfoParser.JANKY_FRAMES_PRCNT),
         // Example: "50th percentile: 9ms"
         FRAME_TIME_50TH(
                 Pattern.compile(".*50th percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "jank_percentile_50"),
+                "jank_percentile_50",
+                GfxInfoParser.FRAME_TIME_50TH),
         // Example: "90th percentile: 9ms"
         FRAME_TIME_90TH(
                 Pattern.compile(".*90th percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "jank_percentile_90"),
+                "jank_percentile_90",
+                GfxInfoParser.FRAME_TIME_90TH),
         // Example: "95th percentile: 9ms"
         FRAME_TIME_95TH(
                 Pattern.compile(".*95th percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "jank_percentile_95"),
+                "jank_percentile_95",
+                GfxInfoParser.FRAME_TIME_95TH),
         // Example: "99th percentile: 9ms"
         FRAME_TIME_99TH(
                 Pattern.compile(".*99th percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "jank_percentile_99"),
+                "jank_percentile_99",
+                GfxInfoParser.FRAME_TIME_99TH),
         // Example: "Number Missed Vsync: 0"
         NUM_MISSED_VSYNC(
                 Pattern.compile(".*Number Missed Vsync: (\\d+).*", Pattern.DOTALL),
                 1,
-                "missed_vsync"),
+                "missed_vsync",
+                GfxInfoParser.NUM_MISSED_VSYNC),
         // Example: "Number High input latency: 0"
         NUM_HIGH_INPUT_LATENCY(
                 Pattern.compile(".*Number High input latency: (\\d+).*", Pattern.DOTALL),
                 1,
-                "high_input_latency"),
+                "high_input_latency",
+                GfxInfoParser.NUM_HIGH_INPUT_LATENCY),
         // Example: "Number Slow UI thread: 0"
         NUM_SLOW_UI_THREAD(
                 Pattern.compile(".*Number Slow UI thread: (\\d+).*", Pattern.DOTALL),
                 1,
-                "slow_ui_thread"),
+                "slow_ui_thread",
+                GfxInfoParser.NUM_SLOW_UI_THREAD),
         // Example: "Number Slow bitmap uploads: 0"
         NUM_SLOW_BITMAP_UPLOADS(
                 Pattern.compile(".*Number Slow bitmap uploads: (\\d+).*", Pattern.DOTALL),
                 1,
-                "slow_bmp_upload"),
+                "slow_bmp_upload",
+                GfxInfoParser.NUM_SLOW_BITMAP_UPLOADS),
         // Example: "Number Slow issue draw commands: 0"
         NUM_SLOW_DRAW(
                 Pattern.compile(".*Number Slow issue draw commands: (\\d+).*", Pattern.DOTALL),
                 1,
-                "slow_issue_draw_cmds"),
+                "slow_issue_draw_cmds",
+                GfxInfoParser.NUM_SLOW_DRAW),
         // Example: "Number Frame deadline missed: 0"
         NUM_FRAME_DEADLINE_MISSED(
                 Pattern.compile(".*Number Frame deadline missed: (\\d+).*", Pattern.DOTALL),
                 1,
-                "deadline_missed"),
+                "deadline_missed",
+                GfxInfoParser.NUM_FRAME_DEADLINE_MISSED),
         // Example: "50th gpu percentile: 9ms"
         GPU_FRAME_TIME_50TH(
                 Pattern.compile(".*50th gpu percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "gpu_jank_percentile_50"),
+                "gpu_jank_percentile_50",
+                GfxInfoParser.GPU_FRAME_TIME_50TH),
         // Example: "90th gpu percentile: 9ms"
         GPU_FRAME_TIME_90TH(
                 Pattern.compile(".*90th gpu percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "gpu_jank_percentile_90"),
+                "gpu_jank_percentile_90",
+                GfxInfoParser.GPU_FRAME_TIME_90TH),
         // Example: "95th gpu percentile: 9ms"
         GPU_FRAME_TIME_95TH(
                 Pattern.compile(".*95th gpu percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "gpu_jank_percentile_95"),
+                "gpu_jank_percentile_95",
+                GfxInfoParser.GPU_FRAME_TIME_95TH),
         // Example: "99th gpu percentile: 9ms"
         GPU_FRAME_TIME_99TH(
                 Pattern.compile(".*99th gpu percentile: (\\d+)ms.*", Pattern.DOTALL),
                 1,
-                "gpu_jank_percentile_99");
+                "gpu_jank_percentile_99",
+                GfxInfoParser.GPU_FRAME_TIME_99TH);
 
         private Pattern mPattern;
         private int mGroupIndex;
         private String mMetricId;
+        private int mParserSlot;
 
-        GfxInfoMetric(Pattern pattern, int groupIndex, String metricId) {
+        GfxInfoMetric(Pattern pattern, int groupIndex, String metricId, int parserSlot) {
             mPattern = pattern;
             mGroupIndex = groupIndex;
             mMetricId = metricId;
+            mParserSlot = parserSlot;
         }
 
         public Double parse(String lines) {
@@ -160,14 +192,26 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         public String getMetricId() {
             return mMetricId;
         }
+
+        /** Returns the {@link GfxInfoParser} slot holding this metric. */
+        public int getParserSlot() {
+            return mParserSlot;
+        }
     }
 
     private Set<String> mTrackedPackages = new HashSet<>();
     private UiDevice mDevice;
+    private boolean mCollectFrameStats = false;
+    // Frames longer than this are counted as janky, 0 to use the vsync period of the display.
+    private long mJankThresholdNs = 0;
+    // Frame histograms of the current collection and of all collections so far, by package.
+    private Map<String, FrameHistogram> mFrameHistograms = new HashMap<>();
+    private Map<String, FrameHistogram> mMergedFrameHistograms = new HashMap<>();
 
     /** Clear existing jank metrics, unless explicitly configured. */
     @Override
     public boolean startCollecting() {
+        mFrameHistograms.clear();
         if (mTrackedPackages.isEmpty()) {
             clearGfxInfo();
         } else {
@@ -240,6 +284,66 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         Collections.addAll(mTrackedPackages, packages);
     }
 
+    /**
+     * Also collect the per-frame timestamps of the tracked packages with {@code dumpsys gfxinfo
+     * <pkg> framestats}, and report percentiles, jank count and maximum frame time computed from
+     * their histogram. Only applies when packages are tracked. Frames longer than the vsync period
+     * of the default display are counted as janky, see {@link #setFrameStatsJankThreshold}.
+     *
+     * <p>Note: framestats only holds the most recent frames of each window (120 on most
+     * builds), so the histogram covers the end of long tests only.
+     */
+    public void setCollectFrameStats(boolean collectFrameStats) {
+        mCollectFrameStats = collectFrameStats;
+    }
+
+    /**
+     * Counts framestats frames longer than {@code thresholdNs} as janky, instead of frames longer
+     * than the vsync period of the default display.
+     *
+     * @return true on success, false if the threshold is not positive
+     */
+    public boolean setFrameStatsJankThreshold(long thresholdNs) {
+        if (thresholdNs <= 0) {
+            return false;
+        }
+        mJankThresholdNs = thresholdNs;
+        return true;
+    }
+
+    /** Forget the frame histograms merged so far, for example at the start of a new run. */
+    public void clearMergedFrameHistograms() {
+        mMergedFrameHistograms.clear();
+    }
+
+    /**
+     * Returns the serialized frame histogram of each tracked package for the last call to
+     * {@link #getMetrics}, keyed by metric name. Empty unless framestats collection is enabled.
+     */
+    public Map<String, byte[]> getFrameHistogramMetrics() {
+        return getHistogramMetrics(mFrameHistograms);
+    }
+
+    /**
+     * Returns the serialized frame histogram of each tracked package merged over every call to
+     * {@link #getMetrics} so far, keyed by metric name.
+     */
+    public Map<String, byte[]> getMergedFrameHistogramMetrics() {
+        return getHistogramMetrics(mMergedFrameHistograms);
+    }
+
+    /**
+     * Returns the framestats metrics of each tracked package computed from the histograms merged
+     * over every call to {@link #getMetrics} so far.
+     */
+    public Map<String, Double> getMergedFrameStatsMetrics() {
+        Map<String, Double> result = new HashMap<>();
+        for (Map.Entry<String, FrameHistogram> entry : mMergedFrameHistograms.entrySet()) {
+            putFrameStatsMetrics(entry.getKey(), entry.getValue(), result);
+        }
+        return result;
+    }
+
     /** Clear the {@code gfxinfo} for all packages. */
     @VisibleForTesting
     void clearGfxInfo() {
@@ -253,15 +357,19 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         try {
             if (pkg.isEmpty()) {
                 String command = String.format(GFXINFO_COMMAND_RESET, "--");
-                String output = getDevice().executeShellCommand(command);
+                String output = MetricUtility.executeShellCommand(
+                        command, InstrumentationRegistry.getInstrumentation(),
+                        getDevice()::executeShellCommand);
                 // Success if any header (set by passing an empty-string) exists in the output.
-                verifyMatches(output, getHeaderMatcher(""), "No package headers in output.");
+                verifyHeader(output, "", "No package headers in output.");
                 Log.v(LOG_TAG, "Cleared all gfxinfo.");
             } else {
                 String command = String.format(GFXINFO_COMMAND_RESET, pkg);
-                String output = getDevice().executeShellCommand(command);
+                String output = MetricUtility.executeShellCommand(
+                        command, InstrumentationRegistry.getInstrumentation(),
+                        getDevice()::executeShellCommand);
                 // Success if the specified package header exists in the output.
-                verifyMatches(output, getHeaderMatcher(pkg), "No package header in output.");
+                verifyHeader(output, pkg, "No package header in output.");
                 Log.v(LOG_TAG, String.format("Cleared %s gfxinfo.", pkg));
             }
         } catch (IOException e) {
@@ -279,16 +387,29 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
     @VisibleForTesting
     Map<String, Double> getGfxInfoMetrics(String pkg) {
         try {
-            String command = String.format(GFXINFO_COMMAND_GET, pkg);
-            String output = getDevice().executeShellCommand(command);
-            verifyMatches(output, getHeaderMatcher(pkg), "Missing package header.");
-            // Split each new section starting with two asterisks '**', and then query and append
-            // all metrics. This method supports both single-package and multi-package outputs.
-            String[] pkgMetricSections = output.split("\n\\*\\*");
+            boolean frameStats = mCollectFrameStats && !pkg.isEmpty();
+            String command =
+                    String.format(
+                            frameStats ? GFXINFO_COMMAND_FRAMESTATS : GFXINFO_COMMAND_GET, pkg);
+            String output = MetricUtility.executeShellCommand(
+                    command, InstrumentationRegistry.getInstrumentation(),
+                    getDevice()::executeShellCommand);
+            // Parse all package sections in a single pass. This method supports both
+            // single-package and multi-package outputs.
+            List<GfxInfoParser.PackageRecord> records = GfxInfoParser.parse(output);
+            verifyPackage(records, pkg, "Missing package header.");
             Map<String, Double> result = new HashMap<>();
-            // Skip the 1st section, which contains only header information.
-            for (int i = 1; i < pkgMetricSections.length; i++) {
-                result.putAll(parseGfxInfoMetrics(pkgMetricSections[i]));
+            for (GfxInfoParser.PackageRecord record : records) {
+                putGfxInfoMetrics(record, result);
+            }
+            if (frameStats) {
+                FrameHistogram histogram = new FrameHistogram();
+                GfxInfoParser.parseFrameStats(output, histogram);
+                mFrameHistograms.put(pkg, histogram);
+                mMergedFrameHistograms
+                        .computeIfAbsent(pkg, key -> new FrameHistogram())
+                        .add(histogram);
+                putFrameStatsMetrics(pkg, histogram, result);
             }
             return result;
         } catch (IOException e) {
@@ -296,45 +417,104 @@ public class JankCollectionHelper implements ICollectorHelper<Double> {
         }
     }
 
-    /** Parse the {@code output} of {@code gfxinfo} to a {@code Map<String, Double>} of metrics. */
-    private Map<String, Double> parseGfxInfoMetrics(String output) {
-        Matcher header = Pattern.compile(getHeaderMatcher("")).matcher(output);
-        if (!header.matches()) {
-            throw new RuntimeException("Failed to parse package from gfxinfo output.");
-        }
-        // Package name is the only required field.
-        String packageName = header.group(2);
+    /** Add the metrics of one package {@code record} to {@code results}. */
+    private void putGfxInfoMetrics(
+            GfxInfoParser.PackageRecord record, Map<String, Double> results) {
+        String packageName = record.getPackageName();
         Log.v(LOG_TAG, String.format("Collecting metrics for: %s", packageName));
-        // Parse each metric from the results via a common pattern.
-        Map<String, Double> results = new HashMap<String, Double>();
         for (GfxInfoMetric metric : GfxInfoMetric.values()) {
             String metricKey =
                     constructKey(GFXINFO_METRICS_PREFIX, packageName, metric.getMetricId());
             // Find the metric or log that it's missing.
-            Double value = metric.parse(output);
-            if (value == null) {
+            if (!record.has(metric.getParserSlot())) {
                 Log.d(LOG_TAG, String.format("Did not find %s from %s", metricKey, packageName));
             } else {
-                results.put(metricKey, value);
+                results.put(metricKey, record.get(metric.getParserSlot()));
             }
         }
-        return results;
+    }
+
+    /** Add the metrics computed from the frame {@code histogram} of {@code pkg}. */
+    private void putFrameStatsMetrics(
+            String pkg, FrameHistogram histogram, Map<String, Double> results) {
+        results.put(
+                constructKey(GFXINFO_METRICS_PREFIX, pkg, FRAMESTATS_TOTAL_FRAMES),
+                (double) histogram.getTotalCount());
+        if (histogram.getTotalCount() == 0) {
+            Log.d(LOG_TAG, String.format("Did not find any framestats from %s", pkg));
+            return;
+        }
+        for (int percentile : FRAMESTATS_PERCENTILES) {
+            results.put(
+                    constructKey(
+                            GFXINFO_METRICS_PREFIX,
+                            pkg,
+                            String.format(FRAMESTATS_PERCENTILE, percentile)),
+                    histogram.getPercentileMillis(percentile));
+        }
+        results.put(
+                constructKey(GFXINFO_METRICS_PREFIX, pkg, FRAMESTATS_JANK_COUNT),
+                (double) histogram.getCountAbove(getJankThresholdNs()));
+        results.put(
+                constructKey(GFXINFO_METRICS_PREFIX, pkg, FRAMESTATS_MAX),
+                histogram.getMaxMillis());
+    }
+
+    /** Returns the frame time above which frames are counted as janky. */
+    private long getJankThresholdNs() {
+        return mJankThresholdNs > 0 ? mJankThresholdNs : getDisplayFrameDurationNs();
     }
 
     /**
-     * Returns a matcher {@code String} for {@code pkg}'s {@code gfxinfo} headers.
+     * Returns the vsync period of the default display, or that of 60 Hz if its refresh rate cannot
+     * be read.
+     */
+    @VisibleForTesting
+    long getDisplayFrameDurationNs() {
+        DisplayManager displayManager =
+                InstrumentationRegistry.getInstrumentation()
+                        .getContext()
+                        .getSystemService(DisplayManager.class);
+        Display display =
+                displayManager == null ? null : displayManager.getDisplay(Display.DEFAULT_DISPLAY);
+        if (display == null || display.getRefreshRate() <= 0) {
+            Log.w(LOG_TAG, "Unable to read the display refresh rate, assuming 60 Hz.");
+            return DEFAULT_FRAME_DURATION_NS;
+        }
+        return (long) (1e9 / display.getRefreshRate());
+    }
+
+    /** Serialize each of the {@code histograms}, keyed by metric name. */
+    private Map<String, byte[]> getHistogramMetrics(Map<String, FrameHistogram> histograms) {
+        Map<String, byte[]> result = new HashMap<>();
+        for (Map.Entry<String, FrameHistogram> entry : histograms.entrySet()) {
+            result.put(
+                    constructKey(GFXINFO_METRICS_PREFIX, entry.getKey(), FRAMESTATS_HISTOGRAM),
+                    entry.getValue().toByteArray());
+        }
+        return result;
+    }
+
+    /**
+     * Verify the {@code output} has a header for {@code pkg}, or throw if not.
      *
-     * <p>Note: {@code pkg} may be empty.
+     * <p>Note: {@code pkg} may be empty to accept any package.
      */
-    private String getHeaderMatcher(String pkg) {
-        return String.format(
-                MULTILINE_MATCHER,
-                String.format(GFXINFO_OUTPUT_HEADER, (pkg.isEmpty() ? ".*" : pkg)));
+    private void verifyHeader(String output, String pkg, String message) {
+        Verify.verify(GfxInfoParser.containsHeader(output, pkg), message);
     }
 
-    /** Verify the {@code output} matches {@code match}, or throw if not. */
-    private void verifyMatches(String output, String match, String message, Object... args) {
-        Verify.verify(output.matches(match), message, args);
+    /** Verify one of the parsed {@code records} belongs to {@code pkg}, or throw if not. */
+    private void verifyPackage(
+            List<GfxInfoParser.PackageRecord> records, String pkg, String message) {
+        boolean found = false;
+        for (GfxInfoParser.PackageRecord record : records) {
+            if (pkg.isEmpty() || pkg.equals(record.getPackageName())) {
+                found = true;
+                break;
+            }
+        }
+        Verify.verify(found, message);
     }
 
     /** Returns the {@link UiDevice} under test. */
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Android Unit tests for {@link FrameHistogram} and {@link GfxInfoParser#parseFrameStats}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.FrameHistogramTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameHistogramTest {
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    /** Test the percentiles stay within the bucket resolution of the exact percentiles. */
+    @Test
+    public void testPercentiles_matchSortedValues() {
+        Random random = new Random(42);
+        long[] durations = new long[10000];
+        FrameHistogram histogram = new FrameHistogram();
+        for (int i = 0; i < durations.length; i++) {
+            // Mostly fast frames with a long tail.
+            durations[i] = (long) (4 * NANOS_PER_MILLI * (1 + Math.abs(random.nextGaussian())));
+            if (i % 50 == 0) {
+                durations[i] *= 10;
+            }
+            histogram.recordNanos(durations[i]);
+        }
+        Arrays.sort(durations);
+        for (int percentile : new int[] {1, 50, 90, 95, 99, 100}) {
+            int rank = (int) Math.ceil(percentile / 100.0 * durations.length);
+            double exact = durations[rank - 1] / 1e6;
+            assertThat(histogram.getPercentileMillis(percentile)).isAtLeast(exact - 0.001);
+            assertThat(histogram.getPercentileMillis(percentile)).isAtMost(exact * 1.02);
+        }
+        assertThat(histogram.getMaxMillis()).isEqualTo(durations[durations.length - 1] / 1e6);
+        assertThat(histogram.getTotalCount()).isEqualTo(durations.length);
+    }
+
+    /** Test the count of frames above a threshold. */
+    @Test
+    public void testCountAbove() {
+        FrameHistogram histogram = new FrameHistogram();
+        for (long millis : new long[] {5, 10, 16, 17, 34, 700}) {
+            histogram.recordNanos(millis * NANOS_PER_MILLI);
+        }
+        assertThat(histogram.getCountAbove(16_666_667L)).isEqualTo(3);
+        assertThat(histogram.getCountAbove(0)).isEqualTo(6);
+        assertThat(histogram.getCountAbove(1000 * NANOS_PER_MILLI)).isEqualTo(0);
+    }
+
+    /** Test merging histograms gives the histogram of all the frames. */
+    @Test
+    public void testAdd() {
+        FrameHistogram first = new FrameHistogram();
+        FrameHistogram second = new FrameHistogram();
+        FrameHistogram all = new FrameHistogram();
+        for (long millis = 1; millis <= 100; millis++) {
+            (millis % 2 == 0 ? first : second).recordNanos(millis * NANOS_PER_MILLI);
+            all.recordNanos(millis * NANOS_PER_MILLI);
+        }
+        first.add(second);
+        assertThat(first.toByteArray()).isEqualTo(all.toByteArray());
+        assertThat(first.getPercentileMillis(50)).isEqualTo(all.getPercentileMillis(50));
+    }
+
+    /** Test a histogram reads back from its serialized form. */
+    @Test
+    public void testSerialization_roundTrip() {
+        FrameHistogram histogram = new FrameHistogram();
+        histogram.recordNanos(0);
+        histogram.recordNanos(8 * NANOS_PER_MILLI);
+        histogram.recordNanos(Long.MAX_VALUE);
+        FrameHistogram read = FrameHistogram.fromByteArray(histogram.toByteArray());
+        assertThat(read.getTotalCount()).isEqualTo(3);
+        assertThat(read.getMaxMillis()).isEqualTo(histogram.getMaxMillis());
+        assertThat(read.toByteArray()).isEqualTo(histogram.toByteArray());
+    }
+
+    /** Test invalid serialized histograms are rejected. */
+    @Test
+    public void testSerialization_invalid() {
+        byte[] data = new FrameHistogram().toByteArray();
+        try {
+            FrameHistogram.fromByteArray(Arrays.copyOf(data, data.length - 1));
+            fail("Should have thrown an exception.");
+        } catch (IllegalArgumentException e) {
+            // pass
+        }
+    }
+
+    /** Test framestats rows are located by column name and filtered. */
+    @Test
+    public void testParseFrameStats() {
+        String output =
+                "\n** Graphics info for pid 9999 [pkg1] **"
+                        + "\nTotal frames rendered: 3"
+                        + "\n---PROFILEDATA---"
+                        + "\nFlags,FrameTimelineVsyncId,IntendedVsync,Vsync,FrameCompleted,"
+                        + "\n0,7,1000000,1000000,9000000,"
+                        + "\n4,8,2000000,2000000,90000000,"
+                        + "\n0,9,3000000,3000000,abc,"
+                        + "\n---PROFILEDATA---"
+                        + "\nView hierarchy:"
+                        + "\n---PROFILEDATA---"
+                        + "\nFlags,IntendedVsync,FrameCompleted,"
+                        + "\n0,1000000,21000000,"
+                        + "\n---PROFILEDATA---";
+        FrameHistogram histogram = new FrameHistogram();
+        assertThat(GfxInfoParser.parseFrameStats(output, histogram)).isEqualTo(2);
+        assertThat(histogram.getMaxMillis()).isEqualTo(20.0);
+        assertThat(histogram.getPercentileMillis(50)).isWithin(0.1).of(8.0);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+/** {@code dumpsys gfxinfo} outputs captured from a device, used by the gfxinfo parser tests. */
+final class GfxInfoFixtures {
+    static final String DUMP_HEADER =
+            "Applications Graphics Acceleration Info:\n"
+            + "Uptime: 133892139 Realtime: 262470536\n";
+
+    // CHECKSTYLE:OFF Generated code
+    // Format arguments: pid, package name, total frames, janky frames, janky percent.
+    static final String PACKAGE_SECTION_FORMAT =
+            "\n** Graphics info for pid %1$d [%2$s] **\n"
+            + "\n"
+            + "Stats since: 133871476553ns\n"
+            + "Total frames rendered: %3$d\n"
+            + "Janky frames: %4$d (%5$.2f%%)\n"
+            + "50th percentile: 9ms\n"
+            + "90th percentile: 14ms\n"
+            + "95th percentile: 19ms\n"
+            + "99th percentile: 34ms\n"
+            + "Number Missed Vsync: 120\n"
+            + "Number High input latency: 42\n"
+            + "Number Slow UI thread: 301\n"
+            + "Number Slow bitmap uploads: 7\n"
+            + "Number Slow issue draw commands: 155\n"
+            + "Number Frame deadline missed: 402\n"
+            + "HISTOGRAM: 5ms=1200 6ms=3400 7ms=4100 8ms=2900 9ms=1900 10ms=1200 11ms=900 "
+            + "12ms=700 13ms=500 14ms=420 15ms=380 16ms=310 17ms=240 18ms=200 19ms=150 "
+            + "20ms=120 21ms=90 22ms=80 23ms=60 24ms=50 25ms=40 26ms=30 27ms=20 28ms=18 "
+            + "29ms=16 30ms=14 31ms=12 32ms=10 34ms=9 36ms=8 38ms=7 40ms=6 42ms=5 44ms=4 "
+            + "46ms=4 48ms=3 53ms=3 57ms=2 61ms=2 65ms=2 69ms=1 73ms=1 77ms=1 81ms=1 85ms=1 "
+            + "89ms=0 93ms=0 97ms=0 101ms=0 105ms=0 109ms=0 113ms=0 117ms=0 121ms=0 125ms=0 "
+            + "129ms=0 133ms=0 150ms=0 200ms=0 250ms=0 300ms=0 350ms=0 400ms=0 450ms=0 "
+            + "500ms=0 550ms=0 600ms=0 650ms=0 700ms=0 750ms=0 800ms=0 850ms=0 900ms=0 "
+            + "950ms=0 1000ms=0 1050ms=0 1100ms=0 1150ms=0 1200ms=0 1250ms=0 1300ms=0 "
+            + "1350ms=0 1400ms=0 1450ms=0 1500ms=0 1550ms=0 1600ms=0 1650ms=0 1700ms=0 "
+            + "1750ms=0 1800ms=0 1850ms=0 1900ms=0 1950ms=0 2000ms=0 2050ms=0 2100ms=0 "
+            + "2150ms=0 2200ms=0 2250ms=0 2300ms=0 2350ms=0 2400ms=0 2450ms=0 2500ms=0 "
+            + "2550ms=0 2600ms=0 2650ms=0 2700ms=0 2750ms=0 2800ms=0 2850ms=0 2900ms=0 "
+            + "2950ms=0 3000ms=0 3050ms=0 3100ms=0 3150ms=0 3200ms=0 3250ms=0 3300ms=0 "
+            + "3350ms=0 3400ms=0 3450ms=0 3500ms=0 3550ms=0 3600ms=0 3650ms=0 3700ms=0 "
+            + "3750ms=0 3800ms=0 3850ms=0 3900ms=0 3950ms=0 4000ms=0 4050ms=0 4100ms=0 "
+            + "4150ms=0 4200ms=0 4250ms=0 4300ms=0 4350ms=0 4400ms=0 4450ms=0 4500ms=0 "
+            + "4550ms=0 4600ms=0 4650ms=0 4700ms=0 4750ms=0 4800ms=0 4850ms=0 4900ms=0 "
+            + "4950ms=0\n"
+            + "50th gpu percentile: 4ms\n"
+            + "90th gpu percentile: 6ms\n"
+            + "95th gpu percentile: 8ms\n"
+            + "99th gpu percentile: 12ms\n"
+            + "GPU HISTOGRAM: 1ms=2300 2ms=4100 3ms=5200 4ms=3100 5ms=2000 6ms=1400 7ms=900 "
+            + "8ms=600 9ms=400 10ms=300 11ms=200 12ms=100 13ms=60 14ms=40 15ms=20 16ms=10 "
+            + "17ms=5 18ms=3 19ms=2 20ms=1 21ms=0 22ms=0 23ms=0 24ms=0 25ms=0 4950ms=0\n"
+            + "\n"
+            + "Font Cache (CPU):\n"
+            + "  Size: 420.50 kB \n"
+            + "  Glyph Count: 231 \n"
+            + "CPU Caches:\n"
+            + "GPU Caches:\n"
+            + "  Other:\n"
+            + "    Buffer Object: 48.00 KB (1 entry)\n"
+            + "  Image:\n"
+            + "    Texture: 5.94 MB (29 entries)\n"
+            + "  Scratch:\n"
+            + "    Texture: 4.00 MB (1 entry)\n"
+            + "Other Caches:\n"
+            + "                         Current / Maximum\n"
+            + "  VectorDrawableAtlas      0.00 kB /   0.00 KB (entries = 0)\n"
+            + "  Layers Total             0.00 KB (numLayers = 0)\n"
+            + "Total GPU memory usage:\n"
+            + "  10475520 bytes, 9.99 MB (5.94 MB is purgeable)\n"
+            + "\n"
+            + "Pipeline=Skia (OpenGL)\n"
+            + "\n"
+            + "Profile data in ms:\n"
+            + "\n"
+            + "\t%2$s/android.view.ViewRootImpl@4c1e4c3 (visibility=0)\n"
+            + "View hierarchy:\n"
+            + "\n"
+            + "  %2$s/android.view.ViewRootImpl@4c1e4c3\n"
+            + "  412 views, 528.94 kB of render nodes\n"
+            + "\n"
+            + "\n"
+            + "Total ViewRootImpl: 1\n"
+            + "Total Views:        412\n"
+            + "Total DisplayLists: 0\n";
+    // CHECKSTYLE:ON Generated code
+
+    private GfxInfoFixtures() {}
+
+    /** Builds a {@code dumpsys gfxinfo} output with {@code packageCount} package sections. */
+    static String buildGfxInfoDump(int packageCount) {
+        StringBuilder builder = new StringBuilder(DUMP_HEADER);
+        for (int i = 0; i < packageCount; i++) {
+            int total = 1000 + i * 37;
+            int janky = i * 3;
+            builder.append(String.format(PACKAGE_SECTION_FORMAT, 1000 + i,
+                    "com.android.pkg" + i, total, janky, janky * 100.0 / total));
+        }
+        return builder.toString();
+    }
+}
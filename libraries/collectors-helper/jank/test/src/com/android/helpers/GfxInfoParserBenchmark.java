@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares the per-metric patterns of {@link JankCollectionHelper.GfxInfoMetric} with the
+ * single-pass {@link GfxInfoParser} over multi-package {@code dumpsys gfxinfo} outputs, and checks
+ * that the parser is not the slower of the two. It is built into jank-helper-benchmark, not
+ * jank-helper-test.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GfxInfoParserBenchmark {
+    private static final int[] PACKAGE_COUNTS = {1, 10, 40};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 10;
+
+    @Test
+    public void benchmarkParsing() {
+        for (int packageCount : PACKAGE_COUNTS) {
+            String dump = GfxInfoFixtures.buildGfxInfoDump(packageCount);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                GfxInfoParserTest.parseWithPatterns(dump);
+                GfxInfoParserTest.parseWithParser(dump);
+            }
+
+            long patternNs = 0;
+            long parserNs = 0;
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                long start = System.nanoTime();
+                GfxInfoParserTest.parseWithPatterns(dump);
+                patternNs += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                GfxInfoParserTest.parseWithParser(dump);
+                parserNs += System.nanoTime() - start;
+            }
+
+            assertThat(GfxInfoParserTest.parseWithParser(dump))
+                    .isEqualTo(GfxInfoParserTest.parseWithPatterns(dump));
+            assertWithMessage(String.format(
+                    "gfxinfo parsing of %d packages (%d chars): patterns %d us, parser %d us",
+                    packageCount, dump.length(), patternNs / MEASURED_ROUNDS / 1000,
+                    parserNs / MEASURED_ROUNDS / 1000))
+                    .that(parserNs).isAtMost(patternNs);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Android Unit tests for {@link GfxInfoParser}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.GfxInfoParserTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class GfxInfoParserTest {
+    private static final Pattern HEADER_PATTERN =
+            Pattern.compile("[\\s\\S]*Graphics info for pid (\\d+) \\[(.*)\\][\\s\\S]*");
+
+    /** Test the parser returns the same metrics as the per-metric patterns on a single package. */
+    @Test
+    public void testEquivalence_singlePackage() {
+        assertEquivalent(GfxInfoFixtures.buildGfxInfoDump(1));
+    }
+
+    /** Test the parser returns the same metrics as the per-metric patterns on many packages. */
+    @Test
+    public void testEquivalence_multiPackage() {
+        assertEquivalent(GfxInfoFixtures.buildGfxInfoDump(40));
+    }
+
+    /** Test the parser returns the same metrics when some of them are missing. */
+    @Test
+    public void testEquivalence_missingFields() {
+        String dump = GfxInfoFixtures.buildGfxInfoDump(3)
+                .replaceAll("9\\dth percentile: \\d+ms\n", "")
+                .replaceAll("Number Slow UI thread: \\d+\n", "");
+        assertEquivalent(dump);
+    }
+
+    /** Test the package and pid are read from the section header. */
+    @Test
+    public void testParseHeader() {
+        List<GfxInfoParser.PackageRecord> records =
+                GfxInfoParser.parse(GfxInfoFixtures.buildGfxInfoDump(2));
+        assertThat(records).hasSize(2);
+        assertThat(records.get(0).getPackageName()).isEqualTo("com.android.pkg0");
+        assertThat(records.get(0).getPid()).isEqualTo(1000);
+        assertThat(records.get(1).getPackageName()).isEqualTo("com.android.pkg1");
+        assertThat(records.get(1).getPid()).isEqualTo(1001);
+    }
+
+    /** Test looking for package headers. */
+    @Test
+    public void testContainsHeader() {
+        String dump = GfxInfoFixtures.buildGfxInfoDump(3);
+        assertThat(GfxInfoParser.containsHeader(dump, "")).isTrue();
+        assertThat(GfxInfoParser.containsHeader(dump, "com.android.pkg2")).isTrue();
+        assertThat(GfxInfoParser.containsHeader(dump, "com.android.pkg")).isFalse();
+        assertThat(GfxInfoParser.containsHeader(GfxInfoFixtures.DUMP_HEADER, "")).isFalse();
+    }
+
+    /** Test a section without a valid header is rejected. */
+    @Test
+    public void testInvalidSection() {
+        try {
+            GfxInfoParser.parse(GfxInfoFixtures.DUMP_HEADER + "\n** Unknown section **\n");
+            fail("Should have thrown an exception due to the invalid section.");
+        } catch (RuntimeException e) {
+            // pass
+        }
+    }
+
+    /** Compares the parser with the per-metric patterns of {@link JankCollectionHelper}. */
+    private static void assertEquivalent(String dump) {
+        assertThat(parseWithParser(dump)).isEqualTo(parseWithPatterns(dump));
+    }
+
+    static Map<String, Double> parseWithParser(String dump) {
+        Map<String, Double> results = new HashMap<>();
+        for (GfxInfoParser.PackageRecord record : GfxInfoParser.parse(dump)) {
+            for (JankCollectionHelper.GfxInfoMetric metric :
+                    JankCollectionHelper.GfxInfoMetric.values()) {
+                if (record.has(metric.getParserSlot())) {
+                    results.put(record.getPackageName() + "_" + metric.getMetricId(),
+                            record.get(metric.getParserSlot()));
+                }
+            }
+        }
+        return results;
+    }
+
+    /** Parses the dump the way the helper did before {@link GfxInfoParser}. */
+    static Map<String, Double> parseWithPatterns(String dump) {
+        Map<String, Double> results = new HashMap<>();
+        String[] sections = dump.split("\n\\*\\*");
+        for (int i = 1; i < sections.length; i++) {
+            Matcher header = HEADER_PATTERN.matcher(sections[i]);
+            if (!header.matches()) {
+                throw new RuntimeException("Failed to parse package from gfxinfo output.");
+            }
+            for (JankCollectionHelper.GfxInfoMetric metric :
+                    JankCollectionHelper.GfxInfoMetric.values()) {
+                Double value = metric.parse(sections[i]);
+                if (value != null) {
+                    results.put(header.group(2) + "_" + metric.getMetricId(), value);
+                }
+            }
+        }
+        return results;
+    }
+}
@@ -16,6 +16,7 @@
 package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
+import static com.android.helpers.JankCollectionHelper.GFXINFO_COMMAND_FRAMESTATS;
 import static com.android.helpers.JankCollectionHelper.GFXINFO_COMMAND_GET;
 import static com.android.helpers.JankCollectionHelper.GFXINFO_COMMAND_RESET;
 import static com.android.helpers.JankCollectionHelper.GfxInfoMetric.TOTAL_FRAMES;
@@ -34,6 +35,7 @@ import static com.android.helpers.JankCollectionHelper.GfxInfoMetric.NUM_FRAME_D
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.when;
 
@@ -85,6 +87,19 @@ public class JankCollectionHelperTest {
                     + "\nNumber Slow issue draw commands: 5"
                     + "\nNumber Frame deadline missed: 6";
 
+    // Frames of 5ms, 10ms, 20ms and 40ms; the second row is skipped for its flags and the last
+    // one because it is not completed yet.
+    private static final String FRAMESTATS_FORMAT =
+            "\n---PROFILEDATA---"
+                    + "\nFlags,IntendedVsync,Vsync,DrawStart,FrameCompleted,"
+                    + "\n0,1000000000,1000000000,1001000000,1005000000,"
+                    + "\n1,2000000000,2000000000,2001000000,2900000000,"
+                    + "\n0,3000000000,3000000000,3001000000,3010000000,"
+                    + "\n0,4000000000,4000000000,4001000000,4020000000,"
+                    + "\n0,5000000000,5000000000,5001000000,5040000000,"
+                    + "\n0,6000000000,6000000000,6001000000,0,"
+                    + "\n---PROFILEDATA---";
+
     private @Mock UiDevice mUiDevice;
     private JankCollectionHelper mHelper;
 
@@ -361,6 +376,82 @@ public class JankCollectionHelperTest {
         }
     }
 
+    /** Test the framestats metrics and histograms of a tracked package. */
+    @Test
+    public void testCollect_frameStats() throws Exception {
+        mockResetCommand("pkg1", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+        String output = String.format(GFXINFO_GET_FORMAT, "pkg1") + FRAMESTATS_FORMAT;
+        when(mUiDevice.executeShellCommand(String.format(GFXINFO_COMMAND_FRAMESTATS, "pkg1")))
+                .thenReturn(output);
+
+        // A 60 Hz display: the frames of 20ms and 40ms are janky.
+        doReturn(JankCollectionHelper.DEFAULT_FRAME_DURATION_NS)
+                .when(mHelper)
+                .getDisplayFrameDurationNs();
+
+        mHelper.addTrackedPackages("pkg1");
+        mHelper.setCollectFrameStats(true);
+        mHelper.startCollecting();
+        Map<String, Double> metrics = mHelper.getMetrics();
+        // The summary metrics are still reported.
+        assertThat(metrics.get(buildMetricKey("pkg1", TOTAL_FRAMES.getMetricId())))
+                .isEqualTo(900.0);
+        assertThat(metrics.get(buildMetricKey("pkg1", "framestats_total_frames")))
+                .isEqualTo(4.0);
+        assertThat(metrics.get(buildMetricKey("pkg1", "framestats_percentile_50")))
+                .isWithin(0.2).of(10.0);
+        assertThat(metrics.get(buildMetricKey("pkg1", "framestats_percentile_99")))
+                .isEqualTo(40.0);
+        assertThat(metrics.get(buildMetricKey("pkg1", "framestats_jank_count"))).isEqualTo(2.0);
+        assertThat(metrics.get(buildMetricKey("pkg1", "framestats_max_frame_time")))
+                .isEqualTo(40.0);
+
+        String histogramKey = buildMetricKey("pkg1", "framestats_histogram");
+        FrameHistogram histogram =
+                FrameHistogram.fromByteArray(mHelper.getFrameHistogramMetrics().get(histogramKey));
+        assertThat(histogram.getTotalCount()).isEqualTo(4);
+
+        // A second collection is merged with the first one.
+        mHelper.startCollecting();
+        mHelper.getMetrics();
+        FrameHistogram merged =
+                FrameHistogram.fromByteArray(
+                        mHelper.getMergedFrameHistogramMetrics().get(histogramKey));
+        assertThat(merged.getTotalCount()).isEqualTo(8);
+        assertThat(
+                        mHelper.getMergedFrameStatsMetrics()
+                                .get(buildMetricKey("pkg1", "framestats_jank_count")))
+                .isEqualTo(4.0);
+
+        // A new run merges from scratch.
+        mHelper.clearMergedFrameHistograms();
+        assertThat(mHelper.getMergedFrameHistogramMetrics()).isEmpty();
+    }
+
+    /** Test the framestats jank count follows the refresh rate of the display or the option. */
+    @Test
+    public void testCollect_frameStatsJankThreshold() throws Exception {
+        mockResetCommand("pkg1", String.format(GFXINFO_RESET_FORMAT, "pkg1"));
+        String output = String.format(GFXINFO_GET_FORMAT, "pkg1") + FRAMESTATS_FORMAT;
+        when(mUiDevice.executeShellCommand(String.format(GFXINFO_COMMAND_FRAMESTATS, "pkg1")))
+                .thenReturn(output);
+        // A 120 Hz display: the frames of 10ms, 20ms and 40ms are janky.
+        doReturn(8_333_333L).when(mHelper).getDisplayFrameDurationNs();
+
+        mHelper.addTrackedPackages("pkg1");
+        mHelper.setCollectFrameStats(true);
+        mHelper.startCollecting();
+        assertThat(mHelper.getMetrics().get(buildMetricKey("pkg1", "framestats_jank_count")))
+                .isEqualTo(3.0);
+
+        // An explicit threshold wins over the display.
+        assertThat(mHelper.setFrameStatsJankThreshold(0)).isFalse();
+        assertThat(mHelper.setFrameStatsJankThreshold(30_000_000L)).isTrue();
+        mHelper.startCollecting();
+        assertThat(mHelper.getMetrics().get(buildMetricKey("pkg1", "framestats_jank_count")))
+                .isEqualTo(1.0);
+    }
+
     /** Test that it fails when encountering an {@code IOException} on reset. */
     @Test
     public void testFailures_ioFailure() throws Exception {
@@ -30,6 +30,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -68,6 +69,8 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
 
     private UiDevice mUiDevice;
     private boolean mDropCache = false;
+    // Reused across samples for the per-process meminfo batch.
+    private final ShellCommandBatch mCommandBatch = new ShellCommandBatch();
 
     @Override
     public boolean startCollecting() {
@@ -88,7 +91,9 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
         }
         String memInfo;
         try {
-            memInfo = mUiDevice.executeShellCommand(PROC_MEMINFO);
+            memInfo = MetricUtility.executeShellCommand(
+                    PROC_MEMINFO, InstrumentationRegistry.getInstrumentation(),
+                    mUiDevice::executeShellCommand);
             Log.i(TAG, "cat proc/meminfo :" + memInfo);
         } catch (IOException ioe) {
             Log.e(TAG, "Failed to read " + PROC_MEMINFO + ".", ioe);
@@ -124,37 +129,46 @@ public class FreeMemHelper implements ICollectorHelper<Long> {
         List<String> cachedProcList = getCachedProcesses(dumpsysMemInfoBytes);
         Long cachedProcMemory = 0L;
 
+        // Read the meminfo of every cached process in a single shell invocation.
+        List<String> cachedProcNames = new ArrayList<>();
+        List<String> processDumpSysMemInfoCmds = new ArrayList<>();
         for (String process : cachedProcList) {
             Log.i(TAG, "Cached Process" + process);
             Matcher match;
             if ((match = matches(PID_PATTERN, process)) != null) {
                 String processId = match.group(PROCESS_ID);
-                String processDumpSysMemInfo = String.format(DUMPSYS_PROCESS, processId);
-                String processInfoStr;
                 Log.i(TAG, "Process Id of the cached process" + processId);
-                try {
-                    processInfoStr = mUiDevice.executeShellCommand(processDumpSysMemInfo);
-                } catch (IOException ioe) {
-                    Log.e(TAG, "Failed to get " + processDumpSysMemInfo + ".", ioe);
-                    return null;
-                }
+                cachedProcNames.add(process);
+                processDumpSysMemInfoCmds.add(String.format(DUMPSYS_PROCESS, processId));
+            }
+        }
+        List<ByteBuffer> processInfoOutputs;
+        try {
+            processInfoOutputs = MetricUtility.executeCommandsBatched(processDumpSysMemInfoCmds,
+                    mCommandBatch, InstrumentationRegistry.getInstrumentation());
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to get the meminfo of the cached processes.", ioe);
+            return null;
+        }
 
-                Pattern memTotalPattern = Pattern.compile(MEM_TOTAL, Pattern.MULTILINE);
-                Matcher memTotalMatcher = memTotalPattern.matcher(processInfoStr);
+        Pattern memTotalPattern = Pattern.compile(MEM_TOTAL, Pattern.MULTILINE);
+        for (int i = 0; i < cachedProcNames.size(); i++) {
+            String process = cachedProcNames.get(i);
+            String processInfoStr = ShellCommandBatch.toString(processInfoOutputs.get(i));
+            Matcher memTotalMatcher = memTotalPattern.matcher(processInfoStr);
 
-                String[] processInfo = null;
-                if (memTotalMatcher.find()) {
-                    processInfo = memTotalMatcher.group(0).split(LINE_SEPARATOR);
-                }
-                if (processInfo != null && processInfo.length > 0) {
-                    String[] procDetails = processInfo[0].trim().split(SEPARATOR);
-                    int privateDirty = Integer.parseInt(procDetails[2].trim());
-                    int privateClean = Integer.parseInt(procDetails[3].trim());
-                    cachedProcMemory = cachedProcMemory + privateDirty + privateClean;
-                    cacheProcDirty = cacheProcDirty + privateDirty + privateClean;
-                    Log.i(TAG, "Cached process: " + process + " Private Dirty: "
-                            + (privateDirty * 1024) + " Private Clean: " + (privateClean * 1024));
-                }
+            String[] processInfo = null;
+            if (memTotalMatcher.find()) {
+                processInfo = memTotalMatcher.group(0).split(LINE_SEPARATOR);
+            }
+            if (processInfo != null && processInfo.length > 0) {
+                String[] procDetails = processInfo[0].trim().split(SEPARATOR);
+                int privateDirty = Integer.parseInt(procDetails[2].trim());
+                int privateClean = Integer.parseInt(procDetails[3].trim());
+                cachedProcMemory = cachedProcMemory + privateDirty + privateClean;
+                cacheProcDirty = cacheProcDirty + privateDirty + privateClean;
+                Log.i(TAG, "Cached process: " + process + " Private Dirty: "
+                        + (privateDirty * 1024) + " Private Clean: " + (privateClean * 1024));
             }
         }
 
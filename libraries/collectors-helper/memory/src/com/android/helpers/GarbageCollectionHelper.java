@@ -77,10 +77,15 @@ public class GarbageCollectionHelper {
         // Garbage collect each application in sequence.
         for (String procName : mProcessNames) {
             try {
-                String pidofOutput = mUiDevice.executeShellCommand(
-                        String.format("pidof %s", procName));
+                String pidofOutput = MetricUtility.executeShellCommand(
+                        String.format("pidof %s", procName),
+                        InstrumentationRegistry.getInstrumentation(),
+                        mUiDevice::executeShellCommand);
                 if (!pidofOutput.isEmpty()) {
-                    mUiDevice.executeShellCommand(String.format(GC_CMD, pidofOutput));
+                    MetricUtility.executeShellCommand(
+                            String.format(GC_CMD, pidofOutput),
+                            InstrumentationRegistry.getInstrumentation(),
+                            mUiDevice::executeShellCommand);
                 }
             } catch (IOException e) {
                 Log.e(TAG,"Unable to execute shell command to GC", e);
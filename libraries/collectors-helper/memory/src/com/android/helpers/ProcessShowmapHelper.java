@@ -18,6 +18,7 @@ package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
+import android.app.UiAutomation;
 import android.icu.text.NumberFormat;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
@@ -56,11 +57,15 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
     private static final String RSS = "rss";
     private static final String VSS = "vss";
     private static final String DELTA = "delta";
+    // Showmap summary columns holding VSS, RSS and PSS
+    private static final int[] SUMMARY_COLUMNS = {0, 1, 2};
 
     private String[] mProcessNames;
     private ShowmapMetrics[] mTestStartMetrics;
     private ShowmapMetrics[] mTestEndMetrics;
     private UiDevice mUiDevice;
+    private UiAutomation mUiAutomation;
+    private int mConcurrency = 1;
 
     private static final class ShowmapMetrics {
         long pss;
@@ -76,6 +81,21 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
     public void setUp(String... processNames) {
         mProcessNames = processNames;
         mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mUiAutomation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
+    }
+
+    /**
+     * Sets the number of processes sampled at once.
+     *
+     * @param concurrency number of processes sampled at once, 1 to sample them one at a time
+     * @return true on success, false if the value is invalid
+     */
+    public boolean setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            return false;
+        }
+        mConcurrency = concurrency;
+        return true;
     }
 
     @Override
@@ -140,6 +160,9 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
             Log.e(TAG, "Process names or UI device is null. Make sure you've called setup.");
             return null;
         }
+        if (mConcurrency > 1) {
+            return sampleMemoryOfProcessesInParallel(processNames);
+        }
         ShowmapMetrics[] metrics = new ShowmapMetrics[processNames.length];
         for (int i = 0; i < processNames.length; i++) {
             metrics[i] = sampleMemory(processNames[i]);
@@ -147,6 +170,39 @@ public class ProcessShowmapHelper implements ICollectorHelper<Long> {
         return metrics;
     }
 
+    /**
+     * Sample the current memory for a set of processes, running showmap for up to
+     * {@code mConcurrency} processes at once.
+     *
+     * @param processNames the process names to sample
+     * @return a list of showmap metrics for each process given in order
+     */
+    private ShowmapMetrics[] sampleMemoryOfProcessesInParallel(String... processNames) {
+        ShowmapMetrics[] metrics = new ShowmapMetrics[processNames.length];
+        ShowmapCollectionPool pool = new ShowmapCollectionPool(
+                MetricUtility.getShellCommandExecutor(mUiAutomation), mConcurrency);
+        ShowmapCollectionPool.Result result;
+        try {
+            result = pool.collect(processNames, SHOWMAP_CMD, SUMMARY_COLUMNS, false, null);
+        } catch (IOException e) {
+            // Only writing the raw output can fail, which is not requested here.
+            Log.e(TAG, "Failed to sample showmap metrics", e);
+            return metrics;
+        }
+        for (int i = 0; i < processNames.length; i++) {
+            if (!result.isCollected(i)) {
+                Log.e(TAG, String.format("Failed to get showmap output for %s ", processNames[i]),
+                        result.getError(i));
+                continue;
+            }
+            metrics[i] = new ShowmapMetrics();
+            metrics[i].vss = result.getTotal(i, 0);
+            metrics[i].rss = result.getTotal(i, 1);
+            metrics[i].pss = result.getTotal(i, 2);
+        }
+        return metrics;
+    }
+
     /**
      * Samples the current memory use of the process using showmap. Gets PSS, RSS, and VSS.
      *
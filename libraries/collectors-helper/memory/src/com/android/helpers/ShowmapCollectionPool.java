@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ShowmapCollectionPool runs "pidof" and "showmap" for several processes at once over a bounded
+ * pool of workers and extracts the showmap summary columns of each process.
+ *
+ * Per-process totals are merged into an {@link AtomicLongArray}. When an output stream is given,
+ * the raw showmap outputs are written by the calling thread in the order of the process names,
+ * each preceded by a ">>> name (pid) <<<" line, so the file layout does not depend on the order
+ * in which the workers finish. At most twice the concurrency level of outputs are held in memory
+ * waiting to be written.
+ *
+ * When the collection of a process fails part way, the pids collected before the failure are kept
+ * in both the totals and the raw outputs, like the sequential collection of ShowmapSnapshotHelper.
+ *
+ * Example Usage:
+ * ShowmapCollectionPool pool = new ShowmapCollectionPool(executor, 4);
+ * ShowmapCollectionPool.Result result =
+ *         pool.collect(processNames, "showmap -v %d", new int[] {1, 2}, true, fileOutputStream);
+ */
+public class ShowmapCollectionPool {
+    private static final String PIDOF_CMD = "pidof %s";
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private final IShellCommandExecutor mExecutor;
+    private final int mConcurrency;
+
+    /** Totals and failures of one collection, indexed by the position of the process name. */
+    public static final class Result {
+        private final int mColumnCount;
+        private final AtomicLongArray mTotals;
+        private final boolean[] mCollected;
+        private final Exception[] mErrors;
+
+        private Result(int processCount, int columnCount) {
+            mColumnCount = columnCount;
+            mTotals = new AtomicLongArray(processCount * columnCount);
+            mCollected = new boolean[processCount];
+            mErrors = new Exception[processCount];
+        }
+
+        /** Returns true if the summary of at least one pid of the process was collected. */
+        public boolean isCollected(int processIndex) {
+            return mCollected[processIndex];
+        }
+
+        /**
+         * Returns the error that stopped the collection of the process, or null. The pids collected
+         * before the error are still part of the totals and the raw outputs.
+         */
+        public Exception getError(int processIndex) {
+            return mErrors[processIndex];
+        }
+
+        /**
+         * Returns the sum of the given summary column over all collected pids of the process.
+         *
+         * @param processIndex position of the process name
+         * @param columnIndex position of the column in the requested columns
+         */
+        public long getTotal(int processIndex, int columnIndex) {
+            return mTotals.get(processIndex * mColumnCount + columnIndex);
+        }
+
+        private void add(int processIndex, long[] values) {
+            for (int i = 0; i < mColumnCount; i++) {
+                mTotals.addAndGet(processIndex * mColumnCount + i, values[i]);
+            }
+        }
+    }
+
+    /** Raw showmap output of one pid, kept until the writer reaches its process. */
+    private static final class PidOutput {
+        final int pid;
+        final byte[] output;
+
+        PidOutput(int pid, byte[] output) {
+            this.pid = pid;
+            this.output = output;
+        }
+    }
+
+    /**
+     * @param executor used to run the shell commands, must be safe to call from several threads
+     * @param concurrency maximum number of processes collected at once
+     */
+    public ShowmapCollectionPool(IShellCommandExecutor executor, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        mExecutor = executor;
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Collects showmap summaries for the given processes.
+     *
+     * @param processNames names of the processes to collect
+     * @param showmapCommand showmap command format taking the pid as its only argument
+     * @param columns zero based summary columns to extract
+     * @param allPids true to collect every pid returned by "pidof", false for the first one only
+     * @param out if not null, receives the raw outputs in process order
+     * @return per-process totals of the requested columns
+     * @throws IOException if writing to {@code out} fails
+     */
+    public Result collect(String[] processNames, String showmapCommand, int[] columns,
+            boolean allPids, OutputStream out) throws IOException {
+        Result result = new Result(processNames.length, columns.length);
+        ExecutorService workers = Executors.newFixedThreadPool(mConcurrency);
+        ArrayDeque<Future<List<PidOutput>>> pending = new ArrayDeque<>();
+        int window = mConcurrency * 2;
+        try {
+            int next = 0;
+            int written = 0;
+            while (written < processNames.length) {
+                // Keep the workers busy without letting them run too far ahead of the writer.
+                while (next < processNames.length && pending.size() < window) {
+                    final int index = next++;
+                    pending.add(workers.submit(() -> collectProcess(
+                            result, index, processNames[index], showmapCommand, columns,
+                            allPids, out != null)));
+                }
+                List<PidOutput> outputs = waitFor(pending.poll(), result, written);
+                if (out != null && outputs != null) {
+                    for (PidOutput pidOutput : outputs) {
+                        out.write(String.format(">>> %s (%d) <<<\n", processNames[written],
+                                pidOutput.pid).getBytes(StandardCharsets.UTF_8));
+                        out.write(pidOutput.output);
+                        out.write('\n');
+                    }
+                }
+                written++;
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return result;
+    }
+
+    private static List<PidOutput> waitFor(
+            Future<List<PidOutput>> future, Result result, int processIndex) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            result.mErrors[processIndex] = e.getCause() instanceof Exception
+                    ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.mErrors[processIndex] = e;
+        }
+        return null;
+    }
+
+    /**
+     * Runs on a worker thread. Returns the raw outputs to write if they are kept, including when
+     * a later pid fails, so that they always match the totals.
+     */
+    private List<PidOutput> collectProcess(Result result, int processIndex, String processName,
+            String showmapCommand, int[] columns, boolean allPids, boolean keepOutput) {
+        ShowmapParser parser = new ShowmapParser();
+        long[] values = new long[columns.length];
+        List<PidOutput> outputs = new ArrayList<>();
+        try {
+            int[] pids = getPids(processName);
+            for (int i = 0; i < (allPids ? pids.length : 1); i++) {
+                ByteArrayOutputStream output = keepOutput ? new ByteArrayOutputStream() : null;
+                try (InputStream in =
+                        mExecutor.executeShellCommand(String.format(showmapCommand, pids[i]))) {
+                    parser.parse(in, output);
+                }
+                parser.getColumns(columns, values);
+                result.add(processIndex, values);
+                result.mCollected[processIndex] = true;
+                if (keepOutput) {
+                    outputs.add(new PidOutput(pids[i], output.toByteArray()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            result.mErrors[processIndex] = e;
+        }
+        return outputs;
+    }
+
+    /**
+     * Gets the pids of the process with {@code processName} name.
+     *
+     * @throws IOException if the process is not running
+     */
+    private int[] getPids(String processName) throws IOException {
+        // Sample output for the process with more than 1 pid.
+        // Sample command : "pidof init"
+        // Sample output : 1 559
+        String pidofOutput = readFully(
+                mExecutor.executeShellCommand(String.format(PIDOF_CMD, processName))).trim();
+        if (pidofOutput.isEmpty()) {
+            throw new IOException(String.format("Unable to get pid of %s ", processName));
+        }
+        String[] split = pidofOutput.split("\\s+");
+        int[] pids = new int[split.length];
+        try {
+            for (int i = 0; i < split.length; i++) {
+                pids[i] = Integer.parseInt(split[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Unable to get pid of %s ", processName), e);
+        }
+        return pids;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try (InputStream is = in;
+                ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[READ_BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buf)) >= 0) {
+                out.write(buf, 0, length);
+            }
+            return out.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+}
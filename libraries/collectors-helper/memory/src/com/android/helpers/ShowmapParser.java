@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * ShowmapParser reads "showmap" output from a stream and extracts the columns of the summary
+ * (TOTAL) row without buffering the whole output.
+ *
+ * The summary row is the first line following the last separator line (a line containing
+ * "----"). Every other line is only scanned for separators; the raw bytes can optionally be
+ * copied to an {@link OutputStream} while reading, so the output can be stored without keeping
+ * it in memory.
+ *
+ * A parser instance keeps its buffers between calls to {@link #parse} and is not thread safe.
+ *
+ * Example Usage:
+ * ShowmapParser parser = new ShowmapParser();
+ * parser.parse(showmapInputStream, snapshotFileOutputStream);
+ * long pss = parser.getColumn(2);
+ */
+public class ShowmapParser {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int INITIAL_LINE_SIZE = 256;
+    // Minimum number of consecutive dashes that makes a line a separator.
+    private static final int SEPARATOR_LENGTH = 4;
+
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+
+    // Bytes of the candidate summary row.
+    private byte[] mSummary = new byte[INITIAL_LINE_SIZE];
+    private int mSummaryLength;
+    // Start and end offsets of each whitespace separated token of the summary row.
+    private int[] mTokenStart = new int[16];
+    private int[] mTokenEnd = new int[16];
+    private int mTokenCount;
+
+    // Line scanning state.
+    private int mDashRun;
+    private boolean mLineIsSeparator;
+    private boolean mCapturing;
+    private boolean mSeenSeparator;
+
+    /**
+     * Reads the showmap output until the end of the stream and remembers the summary row.
+     *
+     * @param in showmap output
+     * @param tee if not null, receives a copy of every byte read from {@code in}
+     */
+    public void parse(InputStream in, OutputStream tee) throws IOException {
+        reset();
+        int length;
+        while ((length = in.read(mReadBuffer)) >= 0) {
+            if (tee != null) {
+                tee.write(mReadBuffer, 0, length);
+            }
+            scan(mReadBuffer, length);
+        }
+        tokenizeSummary();
+    }
+
+    /**
+     * Parses the showmap output held in a byte array.
+     *
+     * @param output showmap output
+     * @param length number of valid bytes in {@code output}
+     */
+    public void parse(byte[] output, int length) {
+        reset();
+        scan(output, length);
+        tokenizeSummary();
+    }
+
+    /**
+     * Returns the value of the given column of the summary row of the last parsed output.
+     *
+     * @param index zero based column index in the summary row
+     * @throws IndexOutOfBoundsException if no summary row was found or it has too few columns
+     * @throws NumberFormatException if the column is not a number
+     */
+    public long getColumn(int index) {
+        if (!mSeenSeparator || index < 0 || index >= mTokenCount) {
+            throw new IndexOutOfBoundsException(
+                    String.format("No column %d in showmap summary", index));
+        }
+        long value = 0;
+        for (int i = mTokenStart[index]; i < mTokenEnd[index]; i++) {
+            int digit = mSummary[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException(String.format(
+                        "Column %d of showmap summary is not a number", index));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Copies the given columns of the summary row into {@code values}. Nothing is written into
+     * {@code values} if one of the columns is missing or not a number.
+     *
+     * @param columns zero based column indexes in the summary row
+     * @param values destination, must be at least as long as {@code columns}
+     */
+    public void getColumns(int[] columns, long[] values) {
+        // Validate every column before touching the destination.
+        for (int column : columns) {
+            getColumn(column);
+        }
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = getColumn(columns[i]);
+        }
+    }
+
+    private void reset() {
+        mSummaryLength = 0;
+        mTokenCount = 0;
+        mDashRun = 0;
+        mLineIsSeparator = false;
+        mCapturing = false;
+        mSeenSeparator = false;
+    }
+
+    private void scan(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = buffer[i];
+            if (b == '\n') {
+                endLine();
+                continue;
+            }
+            if (b == '-') {
+                if (++mDashRun >= SEPARATOR_LENGTH) {
+                    mLineIsSeparator = true;
+                }
+            } else {
+                mDashRun = 0;
+            }
+            if (mCapturing) {
+                if (mSummaryLength == mSummary.length) {
+                    mSummary = Arrays.copyOf(mSummary, mSummary.length * 2);
+                }
+                mSummary[mSummaryLength++] = b;
+            }
+        }
+    }
+
+    private void endLine() {
+        if (mLineIsSeparator) {
+            // Start capturing the next line as the new summary candidate.
+            mSeenSeparator = true;
+            mSummaryLength = 0;
+            mCapturing = true;
+        } else {
+            mCapturing = false;
+        }
+        mLineIsSeparator = false;
+        mDashRun = 0;
+    }
+
+    private void tokenizeSummary() {
+        if (mLineIsSeparator) {
+            // The output ended on a separator line without a summary row.
+            mSeenSeparator = true;
+            mSummaryLength = 0;
+        }
+        mTokenCount = 0;
+        int i = 0;
+        while (i < mSummaryLength) {
+            while (i < mSummaryLength && isWhitespace(mSummary[i])) {
+                i++;
+            }
+            if (i == mSummaryLength) {
+                break;
+            }
+            if (mTokenCount == mTokenStart.length) {
+                mTokenStart = Arrays.copyOf(mTokenStart, mTokenCount * 2);
+                mTokenEnd = Arrays.copyOf(mTokenEnd, mTokenCount * 2);
+            }
+            mTokenStart[mTokenCount] = i;
+            while (i < mSummaryLength && !isWhitespace(mSummary[i])) {
+                i++;
+            }
+            mTokenEnd[mTokenCount++] = i;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
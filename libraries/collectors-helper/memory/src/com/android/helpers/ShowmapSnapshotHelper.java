@@ -18,15 +18,23 @@ package com.android.helpers;
 
 import static com.android.helpers.MetricUtility.constructKey;
 
+import android.app.UiAutomation;
+import android.os.ParcelFileDescriptor;
 import android.support.test.uiautomator.UiDevice;
 import android.util.Log;
 import androidx.test.InstrumentationRegistry;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -54,7 +62,10 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
 
   private int mDropCacheOption;
   private boolean mCollectForAllProcesses = false;
+  private boolean mStreamingMode = false;
+  private int mConcurrency = 1;
   private UiDevice mUiDevice;
+  private UiAutomation mUiAutomation;
 
   // Map to maintain per-process memory info
   private Map<String, String> mMemoryMap = new HashMap<>();
@@ -63,11 +74,17 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
   // summary
   private Map<Integer, String> mMetricNameIndexMap = new HashMap<>();
 
+  // Per-process totals used in streaming mode, in the order of mMetricIndexes.
+  private Map<String, long[]> mProcessTotals = new LinkedHashMap<>();
+  private int[] mMetricIndexes = new int[0];
+  private String[] mMetricNames = new String[0];
+
   public void setUp(String testOutputDir, String... processNames) {
     mProcessNames = processNames;
     mTestOutputDir = testOutputDir;
     mDropCacheOption = 0;
     mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+    mUiAutomation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
   }
 
   @Override
@@ -129,29 +146,15 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
         return mMemoryMap;
       }
 
-      FileWriter writer = new FileWriter(new File(mTestOutputFile), true);
-      for (String processName : mProcessNames) {
-        List<Integer> pids = new ArrayList<>();
-
-        // Collect required data
-        try {
-          pids = getPids(processName);
-          for (Integer pid: pids) {
-            String showmapOutput = execShowMap(processName, pid);
-            parseAndUpdateMemoryInfo(processName, showmapOutput);
-            // Store showmap output into file. If there are more than one process
-            // with same name write the individual showmap associated with pid.
-            storeToFile(mTestOutputFile, processName, pid, showmapOutput, writer);
-          }
-        } catch (RuntimeException e) {
-          Log.e(TAG, e.getMessage(), e.getCause());
-          // Skip this process and continue with the next one
-          continue;
-        }   
+      if (mConcurrency > 1) {
+        collectShowmapParallel();
+      } else if (mStreamingMode) {
+        collectShowmapStreaming();
+      } else {
+        collectShowmap();
       }
       // Store the unique process count. -1 to exclude the "ps" process name.
       mMemoryMap.put(PROCESS_COUNT, Integer.toString(mProcessNames.length - 1));
-      writer.close();
       mMemoryMap.put(OUTPUT_FILE_PATH_KEY, mTestOutputFile);
     } catch (RuntimeException e) {
       Log.e(TAG, e.getMessage(), e.getCause());
@@ -162,6 +165,120 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
     return mMemoryMap;
   }
 
+  /**
+   * Collects showmap output for every process, buffering each output as a string.
+   */
+  private void collectShowmap() throws IOException {
+    FileWriter writer = new FileWriter(new File(mTestOutputFile), true);
+    for (String processName : mProcessNames) {
+      List<Integer> pids = new ArrayList<>();
+
+      // Collect required data
+      try {
+        pids = getPids(processName);
+        for (Integer pid: pids) {
+          String showmapOutput = execShowMap(processName, pid);
+          parseAndUpdateMemoryInfo(processName, showmapOutput);
+          // Store showmap output into file. If there are more than one process
+          // with same name write the individual showmap associated with pid.
+          storeToFile(mTestOutputFile, processName, pid, showmapOutput, writer);
+        }
+      } catch (RuntimeException e) {
+        Log.e(TAG, e.getMessage(), e.getCause());
+        // Skip this process and continue with the next one
+        continue;
+      }
+    }
+    writer.close();
+  }
+
+  /**
+   * Collects showmap output for every process by reading the command output stream directly.
+   * The raw output is copied into the snapshot file while only the summary row is parsed.
+   */
+  private void collectShowmapStreaming() throws IOException {
+    updateMetricIndexes();
+    ShowmapParser parser = new ShowmapParser();
+    long[] values = new long[mMetricIndexes.length];
+    try (OutputStream out =
+        new BufferedOutputStream(new FileOutputStream(mTestOutputFile, true))) {
+      for (String processName : mProcessNames) {
+        try {
+          List<Integer> pids = getPids(processName);
+          for (Integer pid : pids) {
+            out.write(String.format(">>> %s (%d) <<<\n", processName, pid)
+                .getBytes(StandardCharsets.UTF_8));
+            streamShowMap(processName, pid, parser, out);
+            out.write('\n');
+            parser.getColumns(mMetricIndexes, values);
+            long[] totals = mProcessTotals.get(processName);
+            if (totals == null) {
+              totals = new long[mMetricIndexes.length];
+              mProcessTotals.put(processName, totals);
+            }
+            for (int i = 0; i < values.length; i++) {
+              totals[i] += values[i] * 1024;
+            }
+          }
+        } catch (RuntimeException e) {
+          Log.e(TAG, e.getMessage(), e.getCause());
+          // Skip this process and continue with the next one
+          continue;
+        }
+      }
+    }
+
+    updateMemoryMap();
+  }
+
+  /**
+   * Collects showmap output for several processes at once using a pool of
+   * {@code mConcurrency} workers. The outputs are written to the snapshot file in process order.
+   */
+  private void collectShowmapParallel() throws IOException {
+    updateMetricIndexes();
+    ShowmapCollectionPool pool = new ShowmapCollectionPool(
+        MetricUtility.getShellCommandExecutor(mUiAutomation), mConcurrency);
+    ShowmapCollectionPool.Result result;
+    try (OutputStream out =
+        new BufferedOutputStream(new FileOutputStream(mTestOutputFile, true))) {
+      result = pool.collect(mProcessNames, SHOWMAP_CMD, mMetricIndexes, true, out);
+    }
+
+    for (int p = 0; p < mProcessNames.length; p++) {
+      if (result.getError(p) != null) {
+        // The pids collected before the failure are still counted, as in collectShowmap().
+        Log.e(TAG, String.format("Unable to collect showmap for %s", mProcessNames[p]),
+            result.getError(p));
+      }
+      if (!result.isCollected(p)) {
+        continue;
+      }
+      long[] totals = mProcessTotals.get(mProcessNames[p]);
+      if (totals == null) {
+        totals = new long[mMetricIndexes.length];
+        mProcessTotals.put(mProcessNames[p], totals);
+      }
+      for (int i = 0; i < totals.length; i++) {
+        totals[i] += result.getTotal(p, i) * 1024;
+      }
+    }
+    updateMemoryMap();
+  }
+
+  /**
+   * Builds the string metrics from the primitive per-process totals, once per process and metric.
+   */
+  private void updateMemoryMap() {
+    for (Map.Entry<String, long[]> entry : mProcessTotals.entrySet()) {
+      long[] totals = entry.getValue();
+      for (int i = 0; i < mMetricNames.length; i++) {
+        mMemoryMap.put(constructKey(String.format(OUTPUT_METRIC_PATTERN, mMetricNames[i]),
+            entry.getKey()), Long.toString(totals[i]));
+      }
+    }
+  }
+
   @Override
   public boolean stopCollecting() {
     return true;
@@ -236,6 +353,26 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
     }
   }
 
+  /**
+   * Executes showmap command for the process with {@code pid} pid and parses its output while
+   * copying it to {@code out}.
+   *
+   * @param processName name of the process to run showmap for
+   * @param pid pid of the process to run showmap for
+   * @param parser parser that receives the showmap output
+   * @param out stream that receives a copy of the showmap output
+   */
+  private void streamShowMap(String processName, long pid, ShowmapParser parser,
+      OutputStream out) throws RuntimeException {
+    ParcelFileDescriptor pfd = mUiAutomation.executeShellCommand(String.format(SHOWMAP_CMD, pid));
+    try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+      parser.parse(in, out);
+    } catch (IOException e) {
+      throw new RuntimeException(
+          String.format("Unable to execute showmap command for %s ", processName), e);
+    }
+  }
+
   /**
    * Extract memory metrics from showmap command output for the process with {@code processName}
    * name.
@@ -313,6 +450,46 @@ public class ShowmapSnapshotHelper implements ICollectorHelper<String> {
           }
       }
       Log.i(TAG, String.format("Metric Name index map size %s", mMetricNameIndexMap.size()));
+      // Accumulated totals are laid out by metric index, so they can not be reused.
+      mProcessTotals.clear();
+  }
+
+  /**
+   * Rebuilds the primitive metric index arrays from the metric name index map.
+   */
+  private void updateMetricIndexes() {
+    mMetricIndexes = new int[mMetricNameIndexMap.size()];
+    mMetricNames = new String[mMetricNameIndexMap.size()];
+    int i = 0;
+    for (Map.Entry<Integer, String> entry : mMetricNameIndexMap.entrySet()) {
+      mMetricIndexes[i] = entry.getKey();
+      mMetricNames[i] = entry.getValue();
+      i++;
+    }
+  }
+
+  /**
+   * Enables parsing the showmap output while streaming it to the snapshot file instead of
+   * buffering the whole output of each process.
+   *
+   * @param streamingMode true to enable streaming mode
+   */
+  public void setStreamingMode(boolean streamingMode) {
+      mStreamingMode = streamingMode;
+  }
+
+  /**
+   * Set the number of processes collected at once.
+   *
+   * @param concurrency number of processes collected at once, 1 to collect them one at a time
+   * @return true on success, false if the value is invalid
+   */
+  public boolean setConcurrency(int concurrency) {
+      if (concurrency < 1) {
+          return false;
+      }
+      mConcurrency = concurrency;
+      return true;
   }
 
   /**
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import com.android.helpers.IShellCommandExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shell command executor returning canned outputs after an artificial latency, to measure and
+ * test collectors without a device.
+ */
+class FakeShellCommandExecutor implements IShellCommandExecutor {
+    private final Map<String, byte[]> mOutputs = new HashMap<>();
+    private final long mLatencyMs;
+    private final AtomicInteger mCommandCount = new AtomicInteger();
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mMaxRunning = new AtomicInteger();
+
+    /**
+     * @param latencyMs time each command takes before its output is returned
+     */
+    FakeShellCommandExecutor(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /** Sets the output returned for {@code command}. Unknown commands return no output. */
+    FakeShellCommandExecutor setOutput(String command, String output) {
+        mOutputs.put(command, output.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    @Override
+    public InputStream executeShellCommand(String command) throws IOException {
+        mCommandCount.incrementAndGet();
+        mMaxRunning.accumulateAndGet(mRunning.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(mLatencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while executing " + command, e);
+        } finally {
+            mRunning.decrementAndGet();
+        }
+        byte[] output = mOutputs.get(command);
+        return new ByteArrayInputStream(output == null ? new byte[0] : output);
+    }
+
+    /** Returns the number of commands executed so far. */
+    int getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /** Returns the highest number of commands that were executing at the same time. */
+    int getMaxConcurrentCommands() {
+        return mMaxRunning.get();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.helpers.ShowmapCollectionPool;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Measures the throughput of {@link ShowmapCollectionPool} at several concurrency levels over a
+ * fake shell with a fixed per-command latency, standing in for the shell round trip of
+ * "pidof" and "showmap" on a device, and checks that it scales with the number of workers. It is
+ * not part of the unit tests.
+ *
+ * To run:
+ * atest memory-helper-host-benchmark
+ */
+@RunWith(JUnit4.class)
+public class ShowmapCollectionPoolBenchmark {
+    private static final int PROCESS_COUNT = 64;
+    private static final int ROW_COUNT = 500;
+    // Approximate shell round trip on a device.
+    private static final long LATENCY_MS = 5;
+    private static final int[] CONCURRENCY_LEVELS = {1, 2, 4, 8};
+    private static final int[] COLUMNS = {1, 2, 6};
+
+    @Test
+    public void benchmarkConcurrency() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(ROW_COUNT);
+        FakeShellCommandExecutor executor = new FakeShellCommandExecutor(LATENCY_MS);
+        String[] processNames = new String[PROCESS_COUNT];
+        for (int i = 0; i < PROCESS_COUNT; i++) {
+            processNames[i] = "process" + i;
+            executor.setOutput("pidof " + processNames[i], Integer.toString(i + 1))
+                    .setOutput("showmap -v " + (i + 1), output);
+        }
+
+        byte[] sequentialOutput = null;
+        long sequentialMs = 0;
+        for (int concurrency : CONCURRENCY_LEVELS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            ShowmapCollectionPool.Result result = new ShowmapCollectionPool(executor, concurrency)
+                    .collect(processNames, "showmap -v %d", COLUMNS, true, out);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+            for (int i = 0; i < PROCESS_COUNT; i++) {
+                assertEquals(ShowmapFixtures.TOTAL_PSS, result.getTotal(i, 1));
+            }
+            // The file layout must not depend on the concurrency level.
+            if (sequentialOutput == null) {
+                sequentialOutput = out.toByteArray();
+                sequentialMs = elapsedMs;
+            } else {
+                assertEquals(sequentialOutput.length, out.size());
+                // The shell latency dominates, so n workers must be at least n / 2 times faster.
+                assertTrue(String.format("%d workers took %d ms, 1 worker %d ms",
+                                concurrency, elapsedMs, sequentialMs),
+                        elapsedMs * concurrency <= sequentialMs * 2);
+            }
+        }
+    }
+}
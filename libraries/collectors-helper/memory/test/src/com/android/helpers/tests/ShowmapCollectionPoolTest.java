@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.helpers.ShowmapCollectionPool;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for {@link ShowmapCollectionPool}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.ShowmapCollectionPoolTest
+ */
+@RunWith(JUnit4.class)
+public class ShowmapCollectionPoolTest {
+    private static final String SHOWMAP_CMD = "showmap -v %d";
+    private static final int[] COLUMNS = {1, 2};
+
+    /** Test totals are summed over pids and outputs are written in process order. */
+    @Test
+    public void testCollectInOrder() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(10);
+        FakeShellCommandExecutor executor = new FakeShellCommandExecutor(5)
+                .setOutput("pidof first", "100 101\n")
+                .setOutput("pidof second", "200\n")
+                .setOutput("pidof third", "300\n")
+                .setOutput("showmap -v 100", output)
+                .setOutput("showmap -v 101", output)
+                .setOutput("showmap -v 200", output)
+                .setOutput("showmap -v 300", output);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ShowmapCollectionPool.Result result = new ShowmapCollectionPool(executor, 3).collect(
+                new String[] {"first", "second", "third"}, SHOWMAP_CMD, COLUMNS, true, out);
+
+        assertEquals(2 * ShowmapFixtures.TOTAL_RSS, result.getTotal(0, 0));
+        assertEquals(2 * ShowmapFixtures.TOTAL_PSS, result.getTotal(0, 1));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, result.getTotal(1, 1));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, result.getTotal(2, 1));
+        String expected = ">>> first (100) <<<\n" + output + "\n"
+                + ">>> first (101) <<<\n" + output + "\n"
+                + ">>> second (200) <<<\n" + output + "\n"
+                + ">>> third (300) <<<\n" + output + "\n";
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /** Test only the first pid is collected when requested. */
+    @Test
+    public void testCollectFirstPid() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(10);
+        FakeShellCommandExecutor executor = new FakeShellCommandExecutor(0)
+                .setOutput("pidof first", "100 101\n")
+                .setOutput("showmap 100", output)
+                .setOutput("showmap 101", output);
+
+        ShowmapCollectionPool.Result result = new ShowmapCollectionPool(executor, 2).collect(
+                new String[] {"first"}, "showmap %d", new int[] {0, 1, 2}, false, null);
+
+        assertEquals(ShowmapFixtures.TOTAL_VSS, result.getTotal(0, 0));
+        assertEquals(ShowmapFixtures.TOTAL_RSS, result.getTotal(0, 1));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, result.getTotal(0, 2));
+        assertEquals(2, executor.getCommandCount());
+    }
+
+    /** Test a missing process is reported without affecting the other processes. */
+    @Test
+    public void testMissingProcess() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(10);
+        FakeShellCommandExecutor executor = new FakeShellCommandExecutor(0)
+                .setOutput("pidof first", "100\n")
+                .setOutput("showmap -v 100", output);
+
+        ShowmapCollectionPool.Result result = new ShowmapCollectionPool(executor, 2).collect(
+                new String[] {"missing", "first"}, SHOWMAP_CMD, COLUMNS, true, null);
+
+        assertFalse(result.isCollected(0));
+        assertNotNull(result.getError(0));
+        assertTrue(result.isCollected(1));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, result.getTotal(1, 1));
+    }
+
+    /** Test the pids collected before a failure are kept in both the totals and the output. */
+    @Test
+    public void testPartialFailure_keepsCollectedPids() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(10);
+        // The showmap output of pid 101 is missing, so its summary cannot be parsed.
+        FakeShellCommandExecutor executor = new FakeShellCommandExecutor(0)
+                .setOutput("pidof first", "100 101 102\n")
+                .setOutput("showmap -v 100", output)
+                .setOutput("showmap -v 102", output);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ShowmapCollectionPool.Result result = new ShowmapCollectionPool(executor, 2).collect(
+                new String[] {"first"}, SHOWMAP_CMD, COLUMNS, true, out);
+
+        assertTrue(result.isCollected(0));
+        assertNotNull(result.getError(0));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, result.getTotal(0, 1));
+        assertEquals(">>> first (100) <<<\n" + output + "\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /** Test the number of commands running at once is bounded by the concurrency. */
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        String[] processNames = new String[16];
+        FakeShellCommandExecutor executor = new FakeShellCommandExecutor(10);
+        String output = ShowmapFixtures.buildShowmapOutput(10);
+        for (int i = 0; i < processNames.length; i++) {
+            processNames[i] = "process" + i;
+            executor.setOutput("pidof " + processNames[i], Integer.toString(i + 1))
+                    .setOutput("showmap -v " + (i + 1), output);
+        }
+
+        new ShowmapCollectionPool(executor, 4).collect(
+                processNames, SHOWMAP_CMD, COLUMNS, true, null);
+
+        assertTrue(executor.getMaxConcurrentCommands() <= 4);
+        assertTrue(executor.getMaxConcurrentCommands() > 1);
+    }
+}
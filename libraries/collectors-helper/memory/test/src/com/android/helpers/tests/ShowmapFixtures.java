@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+/**
+ * Showmap outputs recorded from a device, used by the showmap parser tests and benchmark.
+ */
+final class ShowmapFixtures {
+    // CHECKSTYLE:OFF Generated code
+    static final String SHOWMAP_HEADER =
+            " virtual                     shared   shared  private  private                          \n"
+            + "    size      RSS      PSS    clean    dirty    clean    dirty     swap  swapPSS flags object\n"
+            + "-------- -------- -------- -------- -------- -------- -------- -------- -------- ----- ------------------------------\n";
+
+    static final String[] SHOWMAP_ROWS = {
+        "    1024      980      112      868        0      112        0        0        0  r--  /system/lib64/libc.so\n",
+        "     768      640       98      540        0      100        0        0        0  r-x  /system/lib64/libc.so\n",
+        "      12       12       12        0        0        0       12        0        0  rw-  /system/lib64/libc.so\n",
+        "    4096     2048     1502        0      560        0     1488       32       32  rw-  [anon:libc_malloc]\n",
+        "   32768    11784     4218     7012      108     3704      960        0        0  r--  /system/framework/arm64/boot-framework.art\n",
+        "  262144    21312    21312        0        0        0    21312     4096     4096  rw-  [anon:dalvik-main space (region space)]\n",
+        "    8192      160      160        0        0        0      160        0        0  rw-  [anon:dalvik-LinearAlloc]\n",
+        "   25380    12532     2140    10392        0     2140        0        0        0  r--  /system/framework/framework.jar\n",
+    };
+
+    static final String SHOWMAP_FOOTER =
+            "-------- -------- -------- -------- -------- -------- -------- -------- -------- ----- ------------------------------\n"
+            + " virtual                     shared   shared  private  private                          \n"
+            + "    size      RSS      PSS    clean    dirty    clean    dirty     swap  swapPSS flags object\n"
+            + "-------- -------- -------- -------- -------- -------- -------- -------- -------- ----- ------------------------------\n"
+            + "10810272     5400     1585     3800      168      264     1168        0        0      TOTAL\n";
+    // CHECKSTYLE:ON Generated code
+
+    static final long TOTAL_VSS = 10810272;
+    static final long TOTAL_RSS = 5400;
+    static final long TOTAL_PSS = 1585;
+    static final long TOTAL_PRIVATE_DIRTY = 1168;
+
+    private ShowmapFixtures() {}
+
+    /**
+     * Builds a showmap output with {@code rowCount} mapping rows, similar to the output of a
+     * large process.
+     */
+    static String buildShowmapOutput(int rowCount) {
+        StringBuilder builder = new StringBuilder(SHOWMAP_HEADER);
+        for (int i = 0; i < rowCount; i++) {
+            builder.append(SHOWMAP_ROWS[i % SHOWMAP_ROWS.length]);
+        }
+        builder.append(SHOWMAP_FOOTER);
+        return builder.toString();
+    }
+}
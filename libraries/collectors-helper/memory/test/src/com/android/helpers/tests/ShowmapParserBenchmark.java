@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.helpers.ShowmapParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the buffered string parsing of showmap output used by ShowmapSnapshotHelper with
+ * the streaming {@link ShowmapParser} over recorded showmap outputs, and checks that streaming is
+ * not the slower of the two. Only uses plain Java, so it runs on the host as well as on a device.
+ * It is not part of the unit tests.
+ *
+ * To run:
+ * atest memory-helper-host-benchmark
+ */
+@RunWith(JUnit4.class)
+public class ShowmapParserBenchmark {
+    // Roughly the number of processes of an all-process snapshot.
+    private static final int PROCESS_COUNT = 600;
+    // Mapping rows per showmap output.
+    private static final int ROW_COUNT = 1500;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    // Same metric index layout as the default of ShowmapSnapshotListener.
+    private static final int[] METRIC_INDEXES = {1, 2, 6};
+    private static final String[] METRIC_NAMES = {"rss", "pss", "privatedirty"};
+
+    @Test
+    public void benchmarkParsing() throws Exception {
+        byte[] output =
+                ShowmapFixtures.buildShowmapOutput(ROW_COUNT).getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runBuffered(output);
+            runStreaming(output);
+        }
+
+        long bufferedNs = 0;
+        long streamingNs = 0;
+        Map<String, String> bufferedResult = null;
+        long[][] streamingResult = null;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            bufferedResult = runBuffered(output);
+            bufferedNs += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            streamingResult = runStreaming(output);
+            streamingNs += System.nanoTime() - start;
+        }
+
+        // Both paths must agree on every metric.
+        for (int p = 0; p < PROCESS_COUNT; p++) {
+            for (int m = 0; m < METRIC_INDEXES.length; m++) {
+                assertEquals(
+                        bufferedResult.get(METRIC_NAMES[m] + "_" + p),
+                        Long.toString(streamingResult[p][m]));
+            }
+        }
+
+        assertTrue(String.format("streaming took %d ms, buffered %d ms",
+                        streamingNs / MEASURED_ROUNDS / 1000000,
+                        bufferedNs / MEASURED_ROUNDS / 1000000),
+                streamingNs <= bufferedNs);
+    }
+
+    /** Mirrors the buffered path: read to String, split the summary, keep string totals. */
+    private static Map<String, String> runBuffered(byte[] output) throws IOException {
+        Map<String, String> memoryMap = new HashMap<>();
+        char[] buffer = new char[1024];
+        for (int p = 0; p < PROCESS_COUNT; p++) {
+            StringBuilder builder = new StringBuilder();
+            try (Reader reader = new InputStreamReader(
+                    new ByteArrayInputStream(output), StandardCharsets.UTF_8)) {
+                int length;
+                while ((length = reader.read(buffer)) >= 0) {
+                    builder.append(buffer, 0, length);
+                }
+            }
+            String showmapOutput = builder.toString();
+            int pos = showmapOutput.lastIndexOf("----");
+            String[] summarySplit = showmapOutput.substring(pos).trim().split("\\s+");
+            for (int m = 0; m < METRIC_INDEXES.length; m++) {
+                String key = METRIC_NAMES[m] + "_" + p;
+                long value = Long.parseLong(summarySplit[METRIC_INDEXES[m] + 1]) * 1024;
+                if (memoryMap.containsKey(key)) {
+                    value += Long.parseLong(memoryMap.get(key));
+                }
+                memoryMap.put(key, Long.toString(value));
+            }
+        }
+        return memoryMap;
+    }
+
+    /** Streams every output through one parser into primitive totals. */
+    private static long[][] runStreaming(byte[] output) throws IOException {
+        ShowmapParser parser = new ShowmapParser();
+        OutputStream sink = new NullOutputStream();
+        long[][] totals = new long[PROCESS_COUNT][METRIC_INDEXES.length];
+        long[] values = new long[METRIC_INDEXES.length];
+        for (int p = 0; p < PROCESS_COUNT; p++) {
+            try (InputStream in = new ByteArrayInputStream(output)) {
+                parser.parse(in, sink);
+            }
+            parser.getColumns(METRIC_INDEXES, values);
+            for (int m = 0; m < values.length; m++) {
+                totals[p][m] += values[m] * 1024;
+            }
+        }
+        return totals;
+    }
+
+    /** Stands in for the snapshot file so only parsing cost is measured. */
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.android.helpers.ShowmapParser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for {@link ShowmapParser}.
+ *
+ * To run:
+ * atest CollectorsHelperTest:com.android.helpers.tests.ShowmapParserTest
+ */
+@RunWith(JUnit4.class)
+public class ShowmapParserTest {
+
+    private ShowmapParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new ShowmapParser();
+    }
+
+    /** Test the summary row columns are parsed from a streamed output. */
+    @Test
+    public void testParseSummary() throws Exception {
+        parse(ShowmapFixtures.buildShowmapOutput(ShowmapFixtures.SHOWMAP_ROWS.length));
+        assertEquals(ShowmapFixtures.TOTAL_VSS, mParser.getColumn(0));
+        assertEquals(ShowmapFixtures.TOTAL_RSS, mParser.getColumn(1));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, mParser.getColumn(2));
+        assertEquals(ShowmapFixtures.TOTAL_PRIVATE_DIRTY, mParser.getColumn(6));
+    }
+
+    /** Test the raw output is copied unchanged to the tee stream. */
+    @Test
+    public void testTeeCopiesOutput() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(5000);
+        ByteArrayOutputStream tee = new ByteArrayOutputStream();
+        mParser.parse(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)), tee);
+        assertEquals(output, new String(tee.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /** Test the parser returns the same values as splitting the output after the last "----". */
+    @Test
+    public void testMatchesSplitParsing() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(1000);
+        parse(output);
+        String[] summarySplit =
+                output.substring(output.lastIndexOf("----")).trim().split("\\s+");
+        for (int i = 0; i < 9; i++) {
+            assertEquals(Long.parseLong(summarySplit[i + 1]), mParser.getColumn(i));
+        }
+    }
+
+    /** Test several columns are copied at once. */
+    @Test
+    public void testGetColumns() throws Exception {
+        parse(ShowmapFixtures.buildShowmapOutput(10));
+        long[] values = new long[3];
+        mParser.getColumns(new int[] {1, 2, 6}, values);
+        assertArrayEquals(
+                new long[] {
+                    ShowmapFixtures.TOTAL_RSS,
+                    ShowmapFixtures.TOTAL_PSS,
+                    ShowmapFixtures.TOTAL_PRIVATE_DIRTY
+                },
+                values);
+    }
+
+    /** Test the summary row is found without a trailing newline. */
+    @Test
+    public void testParseWithoutTrailingNewline() throws Exception {
+        String output = ShowmapFixtures.buildShowmapOutput(10);
+        parse(output.substring(0, output.length() - 1));
+        assertEquals(ShowmapFixtures.TOTAL_PSS, mParser.getColumn(2));
+    }
+
+    /** Test a missing summary row is reported. */
+    @Test
+    public void testMissingSummary() throws Exception {
+        parse(ShowmapFixtures.SHOWMAP_HEADER);
+        try {
+            mParser.getColumn(1);
+            fail("Should have thrown an exception due to the missing summary row.");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+    }
+
+    /** Test a non-numeric column is reported and leaves the destination untouched. */
+    @Test
+    public void testNonNumericColumn() throws Exception {
+        parse(ShowmapFixtures.buildShowmapOutput(10));
+        long[] values = new long[2];
+        try {
+            mParser.getColumns(new int[] {1, 9}, values);
+            fail("Should have thrown an exception due to the non-numeric column.");
+        } catch (NumberFormatException e) {
+            // Expected.
+        }
+        assertArrayEquals(new long[2], values);
+    }
+
+    private void parse(String output) throws Exception {
+        mParser.parse(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)), null);
+    }
+}
@@ -180,6 +180,15 @@ public class ShowmapSnapshotHelperTest {
   }
 
 
+  /**
+   * Test getting metrics from multiple processes in streaming mode.
+   */
+  @Test
+  public void testGetMetrics_StreamingMode() {
+    mShowmapSnapshotHelper.setStreamingMode(true);
+    testProcessList(METRIC_INDEX_STR, TWO_PROCESS_LIST);
+  }
+
   private void testProcessList(String metricIndexStr, String... processNames) {
     mShowmapSnapshotHelper.setUp(VALID_OUTPUT_DIR, processNames);
     mShowmapSnapshotHelper.setMetricNameIndex(metricIndexStr);
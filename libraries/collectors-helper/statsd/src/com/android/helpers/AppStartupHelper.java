@@ -24,7 +24,13 @@ import com.android.os.AtomsProto.Atom;
 import com.android.os.AtomsProto.ProcessStartTime;
 import com.android.os.StatsLog.EventMetricData;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,10 +61,33 @@ public class AppStartupHelper implements ICollectorHelper<StringBuilder> {
     private static final String PROCESS_START = "process_start";
     private static final String PROCESS_START_DELAY = "process_start_delay";
     private static final String TRANSITION_DELAY_MILLIS = "transition_delay_millis";
+
+    private static final String MIN = "min";
+    private static final String MEAN = "mean";
+    private static final String P50 = "p50";
+    private static final String P90 = "p90";
+    private static final String P99 = "p99";
+    private static final String MAX = "max";
+    // Version of the format written by writeLatencySeries, 2 since the latencies are longs.
+    private static final int LATENCY_SERIES_VERSION = 2;
+
     private boolean isProcStartDetailsDisabled;
+    private boolean mAggregateLatencies = false;
+    private long mIncrementalPullIntervalMs = 0;
+    private boolean mIncrementalPullStarted = false;
 
     private StatsdHelper mStatsdHelper = new StatsdHelper();
 
+    // Metrics folded from the atoms pulled since the last call to getMetrics. Guarded by this,
+    // since incremental pulls update them from a background thread.
+    private Map<String, StringBuilder> mAppStartResultMap = new HashMap<>();
+    private Map<String, Integer> mAppStartCountMap = new HashMap<>();
+    private Map<String, Integer> mTempResultCountMap = new HashMap<>();
+    // Latencies kept instead of the comma separated values when aggregating, by metric key.
+    private Map<String, LatencySeries> mLatencySeriesMap = new HashMap<>();
+    // Latencies aggregated by the last call to getMetrics, see writeLatencySeries.
+    private Map<String, LatencySeries> mLastLatencySeriesMap = new HashMap<>();
+
     /**
      * Set up the app startup statsd config to track the metrics during the app start occurred.
      */
@@ -71,7 +100,17 @@ public class AppStartupHelper implements ICollectorHelper<StringBuilder> {
         if (!isProcStartDetailsDisabled) {
             atomIdList.add(Atom.PROCESS_START_TIME_FIELD_NUMBER);
         }
-        return mStatsdHelper.addEventConfig(atomIdList);
+        synchronized (this) {
+            resetMetrics();
+        }
+        if (!mStatsdHelper.addEventConfig(atomIdList)) {
+            return false;
+        }
+        if (mIncrementalPullIntervalMs > 0) {
+            mStatsdHelper.startIncrementalPull(mIncrementalPullIntervalMs, this::addEventMetric);
+            mIncrementalPullStarted = true;
+        }
+        return true;
     }
 
     /**
@@ -79,158 +118,188 @@ public class AppStartupHelper implements ICollectorHelper<StringBuilder> {
      */
     @Override
     public Map<String, StringBuilder> getMetrics() {
-        List<EventMetricData> eventMetricData = mStatsdHelper.getEventMetrics();
-        Map<String, StringBuilder> appStartResultMap = new HashMap<>();
-        Map<String, Integer> appStartCountMap = new HashMap<>();
-        Map<String, Integer> tempResultCountMap = new HashMap<>();
-        for (EventMetricData dataItem : eventMetricData) {
-            Atom atom = dataItem.getAtom();
-            if (atom.hasAppStartOccurred()) {
-                AppStartOccurred appStartAtom = atom.getAppStartOccurred();
-                String pkgName = appStartAtom.getPkgName();
-                String transitionType = appStartAtom.getType().toString();
-                int windowsDrawnMillis = appStartAtom.getWindowsDrawnDelayMillis();
-                int transitionDelayMillis = appStartAtom.getTransitionDelayMillis();
-                Log.i(LOG_TAG, String.format("Pkg Name: %s, Transition Type: %s, "
-                        + "WindowDrawnDelayMillis: %s, TransitionDelayMillis: %s",
-                        pkgName, transitionType, windowsDrawnMillis, transitionDelayMillis));
-
-                String metricTypeKey = "";
-                String metricTransitionKey = "";
-                // To track number of startups per type per package.
-                String metricCountKey = "";
-                // To track total number of startups per type.
-                String totalCountKey = "";
-                String typeKey = "";
-                switch (appStartAtom.getType()) {
-                    case COLD:
-                        typeKey = COLD_STARTUP;
-                        break;
-                    case WARM:
-                        typeKey = WARM_STARTUP;
-                        break;
-                    case HOT:
-                        typeKey = HOT_STARTUP;
-                        break;
-                    case UNKNOWN:
-                        break;
-                }
-                if (!typeKey.isEmpty()) {
-                    metricTypeKey = MetricUtility.constructKey(typeKey, pkgName);
-                    metricCountKey = MetricUtility.constructKey(typeKey, COUNT, pkgName);
-                    totalCountKey = MetricUtility.constructKey(typeKey, TOTAL_COUNT);
-
-                    // Update the windows drawn delay metrics.
-                    MetricUtility.addMetric(metricTypeKey, windowsDrawnMillis, appStartResultMap);
-                    MetricUtility.addMetric(metricCountKey, appStartCountMap);
-                    MetricUtility.addMetric(totalCountKey, appStartCountMap);
-
-                    // Update the transition delay metrics.
-                    metricTransitionKey = MetricUtility.constructKey(typeKey,
-                            TRANSITION_DELAY_MILLIS, pkgName);
-                    MetricUtility.addMetric(metricTransitionKey, transitionDelayMillis,
-                            appStartResultMap);
+        // Pull the atoms logged since the last incremental pull, if any.
+        if (!mStatsdHelper.pullEventMetrics(this::addEventMetric)) {
+            Log.e(LOG_TAG, "Retreiving app startup metrics failed.");
+        }
+        synchronized (this) {
+            if (isProcStartDetailsDisabled) {
+                for (Entry<String, Integer> entry : mTempResultCountMap.entrySet()) {
+                    Log.i(LOG_TAG, String.format("Process_delay_key: %s, Count: %d",
+                            entry.getKey(), entry.getValue()));
                 }
             }
-            if (atom.hasAppStartFullyDrawn()) {
-                AppStartFullyDrawn appFullyDrawnAtom = atom.getAppStartFullyDrawn();
-                String pkgName = appFullyDrawnAtom.getPkgName();
-                String transitionType = appFullyDrawnAtom.getType().toString();
-                long startupTimeMillis = appFullyDrawnAtom.getAppStartupTimeMillis();
-                Log.i(LOG_TAG, String.format("Pkg Name: %s, Transition Type: %s, "
-                        + "AppStartupTimeMillis: %d", pkgName, transitionType, startupTimeMillis));
-
-                String metricKey = "";
-                switch (appFullyDrawnAtom.getType()) {
-                    case UNKNOWN:
-                        metricKey = MetricUtility.constructKey(
-                                STARTUP_FULLY_DRAWN_UNKNOWN, pkgName);
-                        break;
-                    case WITH_BUNDLE:
-                        metricKey = MetricUtility.constructKey(
-                                STARTUP_FULLY_DRAWN_WITH_BUNDLE, pkgName);
-                        break;
-                    case WITHOUT_BUNDLE:
-                        metricKey = MetricUtility.constructKey(
-                                STARTUP_FULLY_DRAWN_WITHOUT_BUNDLE, pkgName);
-                        break;
-                }
-                if (!metricKey.isEmpty()) {
-                    MetricUtility.addMetric(metricKey, startupTimeMillis, appStartResultMap);
+
+            // Cast to StringBuilder as the raw app startup metric could be comma separated values
+            // if there are multiple app launches.
+            Map<String, StringBuilder> finalCountMap = mAppStartCountMap
+                    .entrySet()
+                    .stream()
+                    .collect(
+                            Collectors.toMap(Map.Entry::getKey,
+                                    e -> new StringBuilder(Integer.toString(e.getValue()))));
+            // Add the count map in the app start result map.
+            Map<String, StringBuilder> appStartResultMap = mAppStartResultMap;
+            appStartResultMap.putAll(finalCountMap);
+            if (mAggregateLatencies) {
+                for (Entry<String, LatencySeries> entry : mLatencySeriesMap.entrySet()) {
+                    entry.getValue().addAggregateMetrics(entry.getKey(), appStartResultMap);
                 }
+                mLastLatencySeriesMap = mLatencySeriesMap;
             }
-            // ProcessStartTime reports startup time for both foreground and background process.
-            if (atom.hasProcessStartTime()) {
-                ProcessStartTime processStartTimeAtom = atom.getProcessStartTime();
-                String processName = processStartTimeAtom.getProcessName();
-                // Number of milliseconds it takes to finish start of the process.
-                long processStartDelayMillis = processStartTimeAtom.getProcessStartDelayMillis();
-                // Treating activity hosting type as foreground and everything else as background.
-                String hostingType = processStartTimeAtom.getHostingType().equals("activity")
-                        ? "fg" : "bg";
-                Log.i(LOG_TAG, String.format("Process Name: %s, Start Type: %s, Hosting Type: %s,"
-                        + " ProcessStartDelayMillis: %d", processName,
-                        processStartTimeAtom.getType().toString(),
-                        hostingType, processStartDelayMillis));
-
-                String metricKey = "";
-                // To track number of startups per type per package.
-                String metricCountKey = "";
-                // To track total number of startups per type.
-                String totalCountKey = "";
-                String typeKey = "";
-                switch (processStartTimeAtom.getType()) {
-                    case COLD:
-                        typeKey = COLD_STARTUP;
-                        break;
-                    case WARM:
-                        typeKey = WARM_STARTUP;
-                        break;
-                    case HOT:
-                        typeKey = HOT_STARTUP;
-                        break;
-                    case UNKNOWN:
-                        break;
-                }
-                if (!typeKey.isEmpty()) {
-                    metricKey = MetricUtility.constructKey(typeKey,
-                            PROCESS_START_DELAY, processName, hostingType);
-                    metricCountKey = MetricUtility.constructKey(typeKey, PROCESS_START,
-                            COUNT, processName, hostingType);
-                    totalCountKey = MetricUtility.constructKey(typeKey, PROCESS_START,
-                            TOTAL_COUNT);
-                    // Update the metrics
-                    if (isProcStartDetailsDisabled) {
-                        MetricUtility.addMetric(metricCountKey, tempResultCountMap);
-                    } else {
-                        MetricUtility.addMetric(metricKey, processStartDelayMillis,
-                                appStartResultMap);
-                        MetricUtility.addMetric(metricCountKey, appStartCountMap);
-                    }
-
-                    MetricUtility.addMetric(totalCountKey, appStartCountMap);
-                }
+            resetMetrics();
+            return appStartResultMap;
+        }
+    }
+
+    private void resetMetrics() {
+        mAppStartResultMap = new HashMap<>();
+        mAppStartCountMap = new HashMap<>();
+        mTempResultCountMap = new HashMap<>();
+        mLatencySeriesMap = new HashMap<>();
+    }
+
+    /**
+     * Adds the latency {@code value} of the launch to the metric {@code metricKey}, either as one
+     * more comma separated value or to the series aggregated by getMetrics.
+     */
+    private void addLatencyMetric(String metricKey, long value) {
+        if (mAggregateLatencies) {
+            mLatencySeriesMap.computeIfAbsent(metricKey, key -> new LatencySeries()).add(value);
+        } else {
+            MetricUtility.addMetric(metricKey, value, mAppStartResultMap);
+        }
+    }
+
+    /**
+     * Folds the app startup related atom of {@code dataItem} into the metrics.
+     */
+    private synchronized void addEventMetric(EventMetricData dataItem) {
+        Atom atom = dataItem.getAtom();
+        if (atom.hasAppStartOccurred()) {
+            AppStartOccurred appStartAtom = atom.getAppStartOccurred();
+            String pkgName = appStartAtom.getPkgName();
+            String transitionType = appStartAtom.getType().toString();
+            int windowsDrawnMillis = appStartAtom.getWindowsDrawnDelayMillis();
+            int transitionDelayMillis = appStartAtom.getTransitionDelayMillis();
+            Log.i(LOG_TAG, String.format("Pkg Name: %s, Transition Type: %s, "
+                    + "WindowDrawnDelayMillis: %s, TransitionDelayMillis: %s",
+                    pkgName, transitionType, windowsDrawnMillis, transitionDelayMillis));
+
+            String metricTypeKey = "";
+            String metricTransitionKey = "";
+            // To track number of startups per type per package.
+            String metricCountKey = "";
+            // To track total number of startups per type.
+            String totalCountKey = "";
+            String typeKey = "";
+            switch (appStartAtom.getType()) {
+                case COLD:
+                    typeKey = COLD_STARTUP;
+                    break;
+                case WARM:
+                    typeKey = WARM_STARTUP;
+                    break;
+                case HOT:
+                    typeKey = HOT_STARTUP;
+                    break;
+                case UNKNOWN:
+                    break;
+            }
+            if (!typeKey.isEmpty()) {
+                metricTypeKey = MetricUtility.constructKey(typeKey, pkgName);
+                metricCountKey = MetricUtility.constructKey(typeKey, COUNT, pkgName);
+                totalCountKey = MetricUtility.constructKey(typeKey, TOTAL_COUNT);
+
+                // Update the windows drawn delay metrics.
+                addLatencyMetric(metricTypeKey, windowsDrawnMillis);
+                MetricUtility.addMetric(metricCountKey, mAppStartCountMap);
+                MetricUtility.addMetric(totalCountKey, mAppStartCountMap);
+
+                // Update the transition delay metrics.
+                metricTransitionKey = MetricUtility.constructKey(typeKey,
+                        TRANSITION_DELAY_MILLIS, pkgName);
+                addLatencyMetric(metricTransitionKey, transitionDelayMillis);
             }
         }
+        if (atom.hasAppStartFullyDrawn()) {
+            AppStartFullyDrawn appFullyDrawnAtom = atom.getAppStartFullyDrawn();
+            String pkgName = appFullyDrawnAtom.getPkgName();
+            String transitionType = appFullyDrawnAtom.getType().toString();
+            long startupTimeMillis = appFullyDrawnAtom.getAppStartupTimeMillis();
+            Log.i(LOG_TAG, String.format("Pkg Name: %s, Transition Type: %s, "
+                    + "AppStartupTimeMillis: %d", pkgName, transitionType, startupTimeMillis));
 
-        if (isProcStartDetailsDisabled) {
-            for (Entry<String, Integer> entry : tempResultCountMap.entrySet()) {
-                Log.i(LOG_TAG, String.format("Process_delay_key: %s, Count: %d", entry.getKey(),
-                        entry.getValue()));
+            String metricKey = "";
+            switch (appFullyDrawnAtom.getType()) {
+                case UNKNOWN:
+                    metricKey = MetricUtility.constructKey(
+                            STARTUP_FULLY_DRAWN_UNKNOWN, pkgName);
+                    break;
+                case WITH_BUNDLE:
+                    metricKey = MetricUtility.constructKey(
+                            STARTUP_FULLY_DRAWN_WITH_BUNDLE, pkgName);
+                    break;
+                case WITHOUT_BUNDLE:
+                    metricKey = MetricUtility.constructKey(
+                            STARTUP_FULLY_DRAWN_WITHOUT_BUNDLE, pkgName);
+                    break;
+            }
+            if (!metricKey.isEmpty()) {
+                addLatencyMetric(metricKey, startupTimeMillis);
             }
         }
+        // ProcessStartTime reports startup time for both foreground and background process.
+        if (atom.hasProcessStartTime()) {
+            ProcessStartTime processStartTimeAtom = atom.getProcessStartTime();
+            String processName = processStartTimeAtom.getProcessName();
+            // Number of milliseconds it takes to finish start of the process.
+            long processStartDelayMillis = processStartTimeAtom.getProcessStartDelayMillis();
+            // Treating activity hosting type as foreground and everything else as background.
+            String hostingType = processStartTimeAtom.getHostingType().equals("activity")
+                    ? "fg" : "bg";
+            Log.i(LOG_TAG, String.format("Process Name: %s, Start Type: %s, Hosting Type: %s,"
+                    + " ProcessStartDelayMillis: %d", processName,
+                    processStartTimeAtom.getType().toString(),
+                    hostingType, processStartDelayMillis));
+
+            String metricKey = "";
+            // To track number of startups per type per package.
+            String metricCountKey = "";
+            // To track total number of startups per type.
+            String totalCountKey = "";
+            String typeKey = "";
+            switch (processStartTimeAtom.getType()) {
+                case COLD:
+                    typeKey = COLD_STARTUP;
+                    break;
+                case WARM:
+                    typeKey = WARM_STARTUP;
+                    break;
+                case HOT:
+                    typeKey = HOT_STARTUP;
+                    break;
+                case UNKNOWN:
+                    break;
+            }
+            if (!typeKey.isEmpty()) {
+                metricKey = MetricUtility.constructKey(typeKey,
+                        PROCESS_START_DELAY, processName, hostingType);
+                metricCountKey = MetricUtility.constructKey(typeKey, PROCESS_START,
+                        COUNT, processName, hostingType);
+                totalCountKey = MetricUtility.constructKey(typeKey, PROCESS_START,
+                        TOTAL_COUNT);
+                // Update the metrics
+                if (isProcStartDetailsDisabled) {
+                    MetricUtility.addMetric(metricCountKey, mTempResultCountMap);
+                } else {
+                    addLatencyMetric(metricKey, processStartDelayMillis);
+                    MetricUtility.addMetric(metricCountKey, mAppStartCountMap);
+                }
 
-        // Cast to StringBuilder as the raw app startup metric could be comma separated values
-        // if there are multiple app launches.
-        Map<String, StringBuilder> finalCountMap = appStartCountMap
-                .entrySet()
-                .stream()
-                .collect(
-                        Collectors.toMap(Map.Entry::getKey,
-                                e -> new StringBuilder(Integer.toString(e.getValue()))));
-        // Add the count map in the app start result map.
-        appStartResultMap.putAll(finalCountMap);
-        return appStartResultMap;
+                MetricUtility.addMetric(totalCountKey, mAppStartCountMap);
+            }
+        }
     }
 
     /**
@@ -238,6 +307,10 @@ public class AppStartupHelper implements ICollectorHelper<StringBuilder> {
      */
     @Override
     public boolean stopCollecting() {
+        if (mIncrementalPullStarted) {
+            mStatsdHelper.stopIncrementalPull();
+            mIncrementalPullStarted = false;
+        }
         return mStatsdHelper.removeStatsConfig();
     }
 
@@ -247,4 +320,94 @@ public class AppStartupHelper implements ICollectorHelper<StringBuilder> {
     public void setDisableProcStartDetails() {
         isProcStartDetailsDisabled = true;
     }
+
+    /**
+     * Pull the atoms from statsd every {@code intervalMs} while collecting, instead of only when
+     * the metrics are retrieved, so that long runs do not build up a large report in statsd.
+     */
+    public void setIncrementalPullInterval(long intervalMs) {
+        mIncrementalPullIntervalMs = intervalMs;
+    }
+
+    /**
+     * Report the min, mean, p50, p90, p99 and max of the latencies of each metric, suffixed to its
+     * key, instead of every latency as comma separated values. The latencies themselves can be
+     * saved with {@link #writeLatencySeries(File)}.
+     */
+    public void setEnableAggregateOutput() {
+        mAggregateLatencies = true;
+    }
+
+    /**
+     * Writes the latencies aggregated by the last call to getMetrics to {@code file}.
+     *
+     * <p>The file holds the format version and the number of metrics as ints, then for each
+     * metric its key in modified UTF-8, the number of latencies as an int and the latencies in
+     * order of the launches as longs, all big-endian as written by {@link DataOutputStream}.
+     *
+     * @return true if the file was written.
+     */
+    public synchronized boolean writeLatencySeries(File file) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(LATENCY_SERIES_VERSION);
+            out.writeInt(mLastLatencySeriesMap.size());
+            for (Entry<String, LatencySeries> entry : mLastLatencySeriesMap.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write the app startup latencies to " + file, e);
+            return false;
+        }
+    }
+
+    /** Latencies of one metric, in milliseconds, in order of the launches. */
+    private static class LatencySeries {
+        private long[] mValues = new long[16];
+        private int mSize = 0;
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        /** Adds the aggregates of the latencies to {@code resultMap}, suffixed to {@code key}. */
+        void addAggregateMetrics(String key, Map<String, StringBuilder> resultMap) {
+            long[] sorted = Arrays.copyOf(mValues, mSize);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long value : sorted) {
+                sum += value;
+            }
+            resultMap.put(MetricUtility.constructKey(key, MIN),
+                    new StringBuilder().append(sorted[0]));
+            resultMap.put(MetricUtility.constructKey(key, MEAN),
+                    new StringBuilder().append((double) sum / mSize));
+            resultMap.put(MetricUtility.constructKey(key, P50),
+                    new StringBuilder().append(percentile(sorted, 50)));
+            resultMap.put(MetricUtility.constructKey(key, P90),
+                    new StringBuilder().append(percentile(sorted, 90)));
+            resultMap.put(MetricUtility.constructKey(key, P99),
+                    new StringBuilder().append(percentile(sorted, 99)));
+            resultMap.put(MetricUtility.constructKey(key, MAX),
+                    new StringBuilder().append(sorted[mSize - 1]));
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(mSize);
+            for (int i = 0; i < mSize; i++) {
+                out.writeLong(mValues[i]);
+            }
+        }
+
+        /** Returns the nearest-rank {@code percent} percentile of the {@code sorted} latencies. */
+        private static long percentile(long[] sorted, int percent) {
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
 }
@@ -17,14 +17,15 @@
 package com.android.helpers;
 
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
 
 import com.android.os.AtomsProto.Atom;
+import com.android.os.AtomsProto.CpuTimePerFreq;
+import com.android.os.AtomsProto.CpuTimePerUid;
 import com.android.os.StatsLog.GaugeBucketInfo;
 import com.android.os.StatsLog.GaugeMetricData;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -51,6 +52,7 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
     private static final String SYSTEM_TIME = "system_time";
     private static final String TOTAL_CPU_TIME = "total_cpu_time";
     private static final String CPU_UTILIZATION = "cpu_utilization_average_per_core_percent";
+    private static final String STATSD_WAIT_TIME = "statsd_gauge_wait_time_millis";
 
     private StatsdHelper mStatsdHelper = new StatsdHelper();
     private boolean isPerFreqDisabled;
@@ -58,9 +60,12 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
     private boolean isTotalPkgDisabled;
     private boolean isTotalFreqDisabled;
     private boolean isCpuUtilizationEnabled;
+    private boolean isStatsdWaitTimeEnabled;
     private long mStartTime;
     private long mEndTime;
     private Integer mCpuCores = null;
+    // Package name, or the UID if there is none, of each UID seen during the collection.
+    private SparseArray<String> mUidNames = new SparseArray<>();
 
     @Override
     public boolean startCollecting() {
@@ -74,6 +79,7 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
             mStartTime = System.currentTimeMillis();
         }
 
+        mUidNames = new SparseArray<>();
         return mStatsdHelper.addGaugeConfig(atomIdList);
     }
 
@@ -87,57 +93,45 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
             mEndTime = System.currentTimeMillis();
         }
 
-        ListMultimap<String, Long> cpuUsageMap = ArrayListMultimap.create();
+        // It is possible to have multiple bucket info. Track the first and last gauge values of
+        // each UID and frequency to compute the final usage from their difference.
+        SparseArray<Delta> userTimes = new SparseArray<>();
+        SparseArray<Delta> sysTimes = new SparseArray<>();
+        LongSparseArray<Delta> freqTimes = new LongSparseArray<>();
 
         for (GaugeMetricData gaugeMetric : gaugeMetricList) {
             Log.v(LOG_TAG, "Bucket Size: " + gaugeMetric.getBucketInfoCount());
             for (GaugeBucketInfo gaugeBucketInfo : gaugeMetric.getBucketInfoList()) {
                 for (Atom atom : gaugeBucketInfo.getAtomList()) {
 
-                    // Track CPU usage in user time and system time per package or UID
+                    // Track CPU usage in user time and system time per UID
                     if (atom.getCpuTimePerUid().hasUid()) {
-                        int uId = atom.getCpuTimePerUid().getUid();
-                        String packageName = mStatsdHelper.getPackageName(uId);
+                        CpuTimePerUid cpuTimePerUid = atom.getCpuTimePerUid();
+                        int uId = cpuTimePerUid.getUid();
                         // Convert to milliseconds to compare with CpuTimePerFreq
-                        long userTimeMillis = atom.getCpuTimePerUid().getUserTimeMicros() / 1000;
-                        long sysTimeMillis = atom.getCpuTimePerUid().getSysTimeMicros() / 1000;
-                        Log.v(LOG_TAG, String.format("Uid:%d, Pkg Name: %s, User_Time: %d,"
-                                + " System_Time: %d", uId, packageName, userTimeMillis,
-                                sysTimeMillis));
-
-                        // Use the package name if exist for the UID otherwise use the UID.
-                        // Note: UID for the apps will be different across the builds.
-
-                        // It is possible to have multiple bucket info. Track all the gauge info
-                        // and take the difference of the first and last to compute the
-                        // final usage.
-
-                        // Add uid suffix to CPU_USAGE_PKG_UID type of key to tell apart processes
-                        // with the same package name but different uid in multi-user situations,
-                        // so that cpu gauge info won't get mixed up when taking the difference. All
-                        // uid suffix will be removed subsequently in final result.
-
-                        String UserTimeKey = MetricUtility.constructKey(CPU_USAGE_PKG_UID,
-                                (packageName == null) ? String.valueOf(uId) : packageName,
-                                USER_TIME, String.valueOf(uId));
-                        String SystemTimeKey = MetricUtility.constructKey(CPU_USAGE_PKG_UID,
-                                (packageName == null) ? String.valueOf(uId) : packageName,
-                                SYSTEM_TIME, String.valueOf(uId));
-                        cpuUsageMap.put(UserTimeKey, userTimeMillis);
-                        cpuUsageMap.put(SystemTimeKey, sysTimeMillis);
+                        long userTimeMillis = cpuTimePerUid.getUserTimeMicros() / 1000;
+                        long sysTimeMillis = cpuTimePerUid.getSysTimeMicros() / 1000;
+                        Log.v(LOG_TAG, String.format("Uid:%d, User_Time: %d, System_Time: %d",
+                                uId, userTimeMillis, sysTimeMillis));
+                        getDelta(userTimes, uId).add(userTimeMillis);
+                        getDelta(sysTimes, uId).add(sysTimeMillis);
                     }
 
                     // Track cpu usage per cluster_id and freq_index
                     if (atom.getCpuTimePerFreq().hasFreqIndex()) {
-                        int clusterId = atom.getCpuTimePerFreq().getCluster();
-                        int freqIndex = atom.getCpuTimePerFreq().getFreqIndex();
-                        long timeInFreq = atom.getCpuTimePerFreq().getTimeMillis();
+                        CpuTimePerFreq cpuTimePerFreq = atom.getCpuTimePerFreq();
+                        int clusterId = cpuTimePerFreq.getCluster();
+                        int freqIndex = cpuTimePerFreq.getFreqIndex();
+                        long timeInFreq = cpuTimePerFreq.getTimeMillis();
                         Log.v(LOG_TAG, String.format("Cluster Id: %d FreqIndex: %d,"
                                 + " Time_in_Freq: %d", clusterId, freqIndex, timeInFreq));
-                        String finalFreqIndexKey = MetricUtility.constructKey(
-                                CPU_USAGE_FREQ, CLUSTER_ID, String.valueOf(clusterId), FREQ_INDEX,
-                                String.valueOf(freqIndex));
-                        cpuUsageMap.put(finalFreqIndexKey, timeInFreq);
+                        long freqKey = ((long) clusterId << 32) | (freqIndex & 0xffffffffL);
+                        Delta freqTime = freqTimes.get(freqKey);
+                        if (freqTime == null) {
+                            freqTime = new Delta();
+                            freqTimes.put(freqKey, freqTime);
+                        }
+                        freqTime.add(timeInFreq);
                     }
 
                 }
@@ -145,41 +139,29 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
         }
 
         // Compute the final result map
-        Long totalCpuUsage = 0L;
-        Long totalCpuFreq = 0L;
-        for (String key : cpuUsageMap.keySet()) {
-            List<Long> cpuUsageList = cpuUsageMap.get(key);
-            if (cpuUsageList.size() > 1) {
-                // Compute the total usage by taking the difference of last and first value.
-                Long cpuUsage = cpuUsageList.get(cpuUsageList.size() - 1)
-                        - cpuUsageList.get(0);
-                // Add the final result only if the cpu usage is greater than 0.
-                if (cpuUsage > 0) {
-                    if (key.startsWith(CPU_USAGE_PKG_UID)
-                            && !isPerPkgDisabled) {
-                        // remove uid suffix from key.
-                        String finalKey = key.substring(0, key.lastIndexOf('_'));
-                        if (cpuUsageFinalMap.containsKey(finalKey)) {
-                            // accumulate cpu time of the same package from different uid.
-                            cpuUsageFinalMap.put(
-                                    finalKey, cpuUsage + cpuUsageFinalMap.get(finalKey));
-                        } else {
-                            cpuUsageFinalMap.put(finalKey, cpuUsage);
-                        }
-                    }
-                    if (key.startsWith(CPU_USAGE_FREQ)
-                            && !isPerFreqDisabled) {
-                        cpuUsageFinalMap.put(key, cpuUsage);
-                    }
-                }
-                // Add the CPU time to their respective (usage or frequency) total metric.
-                if (key.startsWith(CPU_USAGE_PKG_UID)
-                        && !isTotalPkgDisabled) {
-                    totalCpuUsage += cpuUsage;
-                } else if (key.startsWith(CPU_USAGE_FREQ)
-                        && !isTotalFreqDisabled) {
-                    totalCpuFreq += cpuUsage;
-                }
+        long totalCpuUsage = 0L;
+        long totalCpuFreq = 0L;
+        for (int i = 0; i < userTimes.size(); i++) {
+            int uId = userTimes.keyAt(i);
+            totalCpuUsage += addUidUsage(uId, USER_TIME, userTimes.valueAt(i), cpuUsageFinalMap);
+            totalCpuUsage += addUidUsage(uId, SYSTEM_TIME, sysTimes.get(uId), cpuUsageFinalMap);
+        }
+        for (int i = 0; i < freqTimes.size(); i++) {
+            Delta freqTime = freqTimes.valueAt(i);
+            if (freqTime.count < 2) {
+                continue;
+            }
+            long cpuUsage = freqTime.getDelta();
+            if (cpuUsage > 0 && !isPerFreqDisabled) {
+                long freqKey = freqTimes.keyAt(i);
+                String finalFreqIndexKey = MetricUtility.constructKey(
+                        CPU_USAGE_FREQ, CLUSTER_ID, String.valueOf((int) (freqKey >> 32)),
+                        FREQ_INDEX, String.valueOf((int) freqKey));
+                cpuUsageFinalMap.put(finalFreqIndexKey, cpuUsage);
+            }
+            // Add the CPU time to the total frequency metric.
+            if (!isTotalFreqDisabled) {
+                totalCpuFreq += cpuUsage;
             }
         }
         // Put the total results into the final result map.
@@ -201,9 +183,81 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
             }
         }
 
+        // Time spent waiting for statsd to report the gauge metrics before and after the test.
+        if (isStatsdWaitTimeEnabled) {
+            cpuUsageFinalMap.put(STATSD_WAIT_TIME, mStatsdHelper.getGaugeWaitMillis());
+        }
+
         return cpuUsageFinalMap;
     }
 
+    /**
+     * Adds the usage of {@code uId} in {@code timeType} to the final result map, keyed by its
+     * package name if it has one. Processes with the same package name but different UIDs, in
+     * multi-user situations, are accumulated.
+     *
+     * @return the usage to add to the total usage metric.
+     */
+    private long addUidUsage(int uId, String timeType, Delta time,
+            Map<String, Long> cpuUsageFinalMap) {
+        if (time.count < 2) {
+            return 0;
+        }
+        long cpuUsage = time.getDelta();
+        // Add the final result only if the cpu usage is greater than 0.
+        if (cpuUsage > 0 && !isPerPkgDisabled) {
+            // Use the package name if exist for the UID otherwise use the UID.
+            // Note: UID for the apps will be different across the builds.
+            String finalKey = MetricUtility.constructKey(CPU_USAGE_PKG_UID, getUidName(uId),
+                    timeType);
+            Long pkgUsage = cpuUsageFinalMap.get(finalKey);
+            cpuUsageFinalMap.put(finalKey, pkgUsage == null ? cpuUsage : pkgUsage + cpuUsage);
+        }
+        return isTotalPkgDisabled ? 0 : cpuUsage;
+    }
+
+    /**
+     * Returns the package name of {@code uId}, or the UID if it has none, looked up once per
+     * collection.
+     */
+    private String getUidName(int uId) {
+        String uidName = mUidNames.get(uId);
+        if (uidName == null) {
+            String packageName = mStatsdHelper.getPackageName(uId);
+            uidName = (packageName == null) ? String.valueOf(uId) : packageName;
+            mUidNames.put(uId, uidName);
+        }
+        return uidName;
+    }
+
+    private static Delta getDelta(SparseArray<Delta> deltas, int key) {
+        Delta delta = deltas.get(key);
+        if (delta == null) {
+            delta = new Delta();
+            deltas.put(key, delta);
+        }
+        return delta;
+    }
+
+    /** First and last of a series of gauge values. */
+    private static class Delta {
+        long first;
+        long last;
+        int count;
+
+        void add(long value) {
+            if (count == 0) {
+                first = value;
+            }
+            last = value;
+            count++;
+        }
+
+        long getDelta() {
+            return last - first;
+        }
+    }
+
     /**
      * Remove the statsd config used to track the cpu usage metrics.
      */
@@ -247,6 +301,20 @@ public class CpuUsageHelper implements ICollectorHelper<Long> {
         isCpuUtilizationEnabled = true;
     }
 
+    /**
+     * Enable the collection of the time spent waiting for statsd to report the cpu usage.
+     */
+    public void setEnableStatsdWaitTime() {
+        isStatsdWaitTimeEnabled = true;
+    }
+
+    /**
+     * Set the upper bound of each wait for statsd to report the cpu usage.
+     */
+    public void setStatsdWaitTimeout(long timeoutMs) {
+        mStatsdHelper.setGaugeWaitTimeout(timeoutMs);
+    }
+
     /**
      * return the number of cores that the device has.
      */
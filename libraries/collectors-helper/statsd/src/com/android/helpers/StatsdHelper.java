@@ -16,6 +16,8 @@
 
 package com.android.helpers;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import android.content.Context;
 import android.app.StatsManager;
 import android.app.StatsManager.StatsUnavailableException;
@@ -35,14 +37,22 @@ import com.android.os.AtomsProto.Atom;
 import com.android.os.StatsLog.ConfigMetricsReport;
 import com.android.os.StatsLog.ConfigMetricsReportList;
 import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.GaugeBucketInfo;
 import com.android.os.StatsLog.GaugeMetricData;
 import com.android.os.StatsLog.StatsLogReport;
+import com.android.os.StatsLog.StatsLogReport.EventMetricDataWrapper;
+import com.android.os.StatsLog.StatsLogReport.GaugeMetricDataWrapper;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 
 /**
  * StatsdHelper consist of basic utilities that will be used to setup statsd
@@ -51,9 +61,23 @@ import java.util.UUID;
 public class StatsdHelper {
     private static final String LOG_TAG = StatsdHelper.class.getSimpleName();
     private static final long MAX_ATOMS = 2000;
-    private static final long METRIC_DELAY_MS = 3000;
+    // Default upper bound of the wait for the gauge metrics triggered by an app breadcrumb.
+    private static final long DEFAULT_GAUGE_WAIT_TIMEOUT_MS = 3000;
+    private static final long GAUGE_POLL_INITIAL_DELAY_MS = 20;
+    private static final long PULL_SHUTDOWN_TIMEOUT_MS = 10000;
+    /**
+     * Held from adopting the shell permission identity until dropping it. The identity belongs to
+     * the single UiAutomation of the instrumentation, so a helper or listener dropping it, for
+     * example from an incremental pull, would otherwise fail the calls of another one holding it.
+     */
+    public static final Object SHELL_IDENTITY_LOCK = new Object();
     private long mConfigId = -1;
     private StatsManager mStatsManager;
+    private ScheduledExecutorService mPullExecutor;
+    private long mGaugeWaitTimeoutMs = DEFAULT_GAUGE_WAIT_TIMEOUT_MS;
+    private long mGaugeWaitMs = 0;
+    // Gauge metric data pulled while waiting for the triggered gauge metrics, in pull order.
+    private List<GaugeMetricData> mPulledGaugeData = new ArrayList<>();
 
     /**
      * Add simple event configurations using a list of atom ids.
@@ -75,9 +99,11 @@ public class StatsdHelper {
                     .addAtomMatcher(getSimpleAtomMatcher(atomUniqueId, atomId));
         }
         try {
-            adoptShellIdentity();
-            getStatsManager().addConfig(configId, statsConfigBuilder.build().toByteArray());
-            dropShellIdentity();
+            synchronized (SHELL_IDENTITY_LOCK) {
+                adoptShellIdentity();
+                getStatsManager().addConfig(configId, statsConfigBuilder.build().toByteArray());
+                dropShellIdentity();
+            }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Not able to setup the event config.", e);
             return false;
@@ -125,13 +151,12 @@ public class StatsdHelper {
         }
 
         try {
-            adoptShellIdentity();
-            getStatsManager().addConfig(configId,
-                    statsConfigBuilder.build().toByteArray());
-            StatsLog.logEvent(0);
-            // Dump the counters before the test started.
-            SystemClock.sleep(METRIC_DELAY_MS);
-            dropShellIdentity();
+            synchronized (SHELL_IDENTITY_LOCK) {
+                adoptShellIdentity();
+                getStatsManager().addConfig(configId,
+                        statsConfigBuilder.build().toByteArray());
+                dropShellIdentity();
+            }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Not able to setup the gauge config.", e);
             return false;
@@ -139,9 +164,63 @@ public class StatsdHelper {
 
         Log.i(LOG_TAG, "Successfully added config with config-id:" + configId);
         setConfigId(configId);
+        mPulledGaugeData = new ArrayList<>();
+        mGaugeWaitMs = 0;
+        // Dump the counters before the test started.
+        triggerGaugeMetrics();
         return true;
     }
 
+    /**
+     * Triggers the gauge metrics with an app breadcrumb, then polls the reports with exponential
+     * backoff until a gauge bucket holding atoms shows up, or until the wait timeout. The pulled
+     * data is kept for {@link #getGaugeMetrics}, since statsd drops the reports once pulled.
+     */
+    private void triggerGaugeMetrics() {
+        synchronized (SHELL_IDENTITY_LOCK) {
+            adoptShellIdentity();
+            StatsLog.logEvent(0);
+            dropShellIdentity();
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        long delayMs = GAUGE_POLL_INITIAL_DELAY_MS;
+        boolean[] triggered = new boolean[1];
+        while (true) {
+            pullReports(null, gaugeData -> {
+                mPulledGaugeData.add(gaugeData);
+                for (GaugeBucketInfo bucketInfo : gaugeData.getBucketInfoList()) {
+                    triggered[0] |= bucketInfo.getAtomCount() > 0;
+                }
+            });
+            long waitMs = SystemClock.elapsedRealtime() - startTime;
+            if (triggered[0] || waitMs >= mGaugeWaitTimeoutMs) {
+                if (!triggered[0]) {
+                    Log.w(LOG_TAG, "Timed out waiting for the gauge metrics.");
+                }
+                Log.i(LOG_TAG, "Waited " + waitMs + " ms for the gauge metrics.");
+                mGaugeWaitMs += waitMs;
+                return;
+            }
+            SystemClock.sleep(Math.min(delayMs, mGaugeWaitTimeoutMs - waitMs));
+            delayMs *= 2;
+        }
+    }
+
+    /**
+     * Sets the upper bound of the wait for the gauge metrics triggered when the gauge config is
+     * added and when the gauge metrics are retrieved.
+     */
+    public void setGaugeWaitTimeout(long timeoutMs) {
+        mGaugeWaitTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Returns the time waited for the triggered gauge metrics since the gauge config was added.
+     */
+    public long getGaugeWaitMillis() {
+        return mGaugeWaitMs;
+    }
+
     /**
      * Create simple atom matcher with the given id and the field id.
      *
@@ -182,25 +261,9 @@ public class StatsdHelper {
      * Returns the list of EventMetricData tracked under the config.
      */
     public List<EventMetricData> getEventMetrics() {
-        ConfigMetricsReportList reportList = null;
         List<EventMetricData> eventData = new ArrayList<>();
-        try {
-            if (getConfigId() != -1) {
-                adoptShellIdentity();
-                reportList = ConfigMetricsReportList.parser()
-                        .parseFrom(getStatsManager().getReports(getConfigId()));
-                dropShellIdentity();
-            }
-        } catch (InvalidProtocolBufferException | StatsUnavailableException se) {
-            Log.e(LOG_TAG, "Retreiving event metrics failed.", se);
-            return eventData;
-        }
-
-        if (reportList != null) {
-            ConfigMetricsReport configReport = reportList.getReports(0);
-            for (StatsLogReport metric : configReport.getMetricsList()) {
-                eventData.addAll(metric.getEventMetrics().getDataList());
-            }
+        if (!pullEventMetrics(eventData::add)) {
+            Log.e(LOG_TAG, "Retreiving event metrics failed.");
         }
         Log.i(LOG_TAG, "Number of events: " + eventData.size());
         return eventData;
@@ -210,31 +273,172 @@ public class StatsdHelper {
      * Returns the list of GaugeMetric data tracked under the config.
      */
     public List<GaugeMetricData> getGaugeMetrics() {
-        ConfigMetricsReportList reportList = null;
-        List<GaugeMetricData> gaugeData = new ArrayList<>();
-        try {
-            if (getConfigId() != -1) {
+        if (getConfigId() != -1) {
+            // Dump the the counters after the test completed.
+            triggerGaugeMetrics();
+        }
+        List<GaugeMetricData> gaugeData = mPulledGaugeData;
+        mPulledGaugeData = new ArrayList<>();
+        Log.i(LOG_TAG, "Number of Gauge data: " + gaugeData.size());
+        return gaugeData;
+    }
+
+    /**
+     * Pulls the reports of the config from statsd and hands the EventMetricData of all of them to
+     * {@code visitor}, one at a time and without building the whole report list. Statsd drops the
+     * reports once pulled, so each pull only returns the data collected since the last one.
+     *
+     * @return true if the reports were pulled successfully, otherwise false.
+     */
+    public boolean pullEventMetrics(Consumer<EventMetricData> visitor) {
+        return pullReports(visitor, null);
+    }
+
+    /**
+     * Pulls the reports of the config from statsd and hands the GaugeMetricData of all of them to
+     * {@code visitor}, like {@link #pullEventMetrics}.
+     *
+     * @return true if the reports were pulled successfully, otherwise false.
+     */
+    public boolean pullGaugeMetrics(Consumer<GaugeMetricData> visitor) {
+        return pullReports(null, visitor);
+    }
+
+    /**
+     * Pulls the EventMetricData of the config every {@code intervalMs} during the test, so that
+     * long tests do not build up a large report in statsd, until {@link #stopIncrementalPull} is
+     * called. {@code visitor} is called from a background thread, and the data collected since the
+     * last incremental pull can be pulled at any time with {@link #pullEventMetrics}.
+     */
+    public void startIncrementalPull(long intervalMs, Consumer<EventMetricData> visitor) {
+        if (mPullExecutor != null) {
+            throw new IllegalStateException("Incremental pull is already started");
+        }
+        mPullExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StatsdHelper-pull");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mPullExecutor.scheduleWithFixedDelay(() -> {
+            if (!pullEventMetrics(visitor)) {
+                Log.w(LOG_TAG, "Incremental pull of event metrics failed.");
+            }
+        }, intervalMs, intervalMs, MILLISECONDS);
+        Log.i(LOG_TAG, "Pulling event metrics every " + intervalMs + " ms.");
+    }
+
+    /**
+     * Stops the incremental pull started by {@link #startIncrementalPull}, waiting for a pull in
+     * progress to complete.
+     */
+    public void stopIncrementalPull() {
+        if (mPullExecutor != null) {
+            mPullExecutor.shutdown();
+            try {
+                if (!mPullExecutor.awaitTermination(PULL_SHUTDOWN_TIMEOUT_MS, MILLISECONDS)) {
+                    Log.w(LOG_TAG, "Timed out waiting for the incremental pull to stop.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mPullExecutor = null;
+        }
+    }
+
+    /**
+     * Pulls the reports of the config and walks them, handing the metric data to the visitors
+     * that are set. Pulls of a helper are serialized, so that the visitors are not called
+     * concurrently by an incremental pull and a pull of the test.
+     */
+    private synchronized boolean pullReports(Consumer<EventMetricData> eventVisitor,
+            Consumer<GaugeMetricData> gaugeVisitor) {
+        if (getConfigId() == -1) {
+            return true;
+        }
+        byte[] reportList;
+        synchronized (SHELL_IDENTITY_LOCK) {
+            try {
                 adoptShellIdentity();
-                StatsLog.logEvent(0);
-                // Dump the the counters after the test completed.
-                SystemClock.sleep(METRIC_DELAY_MS);
-                reportList = ConfigMetricsReportList.parser()
-                        .parseFrom(getStatsManager().getReports(getConfigId()));
+                reportList = getStatsManager().getReports(getConfigId());
+            } catch (StatsUnavailableException se) {
+                Log.e(LOG_TAG, "Retreiving the reports failed.", se);
+                return false;
+            } finally {
                 dropShellIdentity();
             }
-        } catch (InvalidProtocolBufferException | StatsUnavailableException se) {
-            Log.e(LOG_TAG, "Retreiving gauge metrics failed.", se);
-            return gaugeData;
         }
+        try {
+            visitReportList(CodedInputStream.newInstance(reportList), eventVisitor, gaugeVisitor);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Parsing the reports failed.", e);
+            return false;
+        }
+        return true;
+    }
+
+    /** Reads a field of a message, such as a nested message. */
+    private interface FieldReader {
+        void read(CodedInputStream input) throws IOException;
+    }
+
+    /**
+     * Walks a ConfigMetricsReportList field by field, handing the EventMetricData and the
+     * GaugeMetricData of every report to the visitors that are set.
+     */
+    private static void visitReportList(CodedInputStream input,
+            Consumer<EventMetricData> eventVisitor, Consumer<GaugeMetricData> gaugeVisitor)
+            throws IOException {
+        forEachMessage(input, ConfigMetricsReportList.REPORTS_FIELD_NUMBER,
+                report -> forEachMessage(report, ConfigMetricsReport.METRICS_FIELD_NUMBER,
+                        metric -> visitMetric(metric, eventVisitor, gaugeVisitor)));
+    }
+
+    private static void visitMetric(CodedInputStream metric,
+            Consumer<EventMetricData> eventVisitor, Consumer<GaugeMetricData> gaugeVisitor)
+            throws IOException {
+        int tag;
+        while ((tag = metric.readTag()) != 0) {
+            if (eventVisitor != null
+                    && isMessage(tag, StatsLogReport.EVENT_METRICS_FIELD_NUMBER)) {
+                readMessage(metric, wrapper -> forEachMessage(wrapper,
+                        EventMetricDataWrapper.DATA_FIELD_NUMBER,
+                        data -> eventVisitor.accept(EventMetricData.parseFrom(data))));
+            } else if (gaugeVisitor != null
+                    && isMessage(tag, StatsLogReport.GAUGE_METRICS_FIELD_NUMBER)) {
+                readMessage(metric, wrapper -> forEachMessage(wrapper,
+                        GaugeMetricDataWrapper.DATA_FIELD_NUMBER,
+                        data -> gaugeVisitor.accept(GaugeMetricData.parseFrom(data))));
+            } else {
+                metric.skipField(tag);
+            }
+        }
+    }
 
-        if (reportList != null) {
-            ConfigMetricsReport configReport = reportList.getReports(0);
-            for (StatsLogReport metric : configReport.getMetricsList()) {
-                gaugeData.addAll(metric.getGaugeMetrics().getDataList());
+    /** Reads each message field {@code fieldNumber} with {@code reader}, skipping other fields. */
+    private static void forEachMessage(CodedInputStream input, int fieldNumber,
+            FieldReader reader) throws IOException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (isMessage(tag, fieldNumber)) {
+                readMessage(input, reader);
+            } else {
+                input.skipField(tag);
             }
         }
-        Log.i(LOG_TAG, "Number of Gauge data: " + gaugeData.size());
-        return gaugeData;
+    }
+
+    /** Reads the message following a length-delimited tag, limiting {@code reader} to it. */
+    private static void readMessage(CodedInputStream input, FieldReader reader)
+            throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+        reader.read(input);
+        input.skipRawBytes(input.getBytesUntilLimit());
+        input.popLimit(oldLimit);
+    }
+
+    private static boolean isMessage(int tag, int fieldNumber) {
+        return WireFormat.getTagFieldNumber(tag) == fieldNumber
+                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
     }
 
     /**
@@ -245,9 +449,11 @@ public class StatsdHelper {
     public boolean removeStatsConfig() {
         Log.i(LOG_TAG, "Removing statsd config-id: " + getConfigId());
         try {
-            adoptShellIdentity();
-            getStatsManager().removeConfig(getConfigId());
-            dropShellIdentity();
+            synchronized (SHELL_IDENTITY_LOCK) {
+                adoptShellIdentity();
+                getStatsManager().removeConfig(getConfigId());
+                dropShellIdentity();
+            }
             Log.i(LOG_TAG, "Successfully removed config-id: " + getConfigId());
             return true;
         } catch (StatsUnavailableException e) {
@@ -309,7 +515,8 @@ public class StatsdHelper {
     }
 
     /**
-     * Adopts shell permission identity needed to access StatsManager service
+     * Adopts shell permission identity needed to access StatsManager service. Callers hold
+     * {@link #SHELL_IDENTITY_LOCK} until they drop it.
      */
     public static void adoptShellIdentity() {
         InstrumentationRegistry.getInstrumentation().getUiAutomation()
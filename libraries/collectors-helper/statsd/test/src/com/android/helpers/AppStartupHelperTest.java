@@ -26,6 +26,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.util.Map;
 
 import static org.junit.Assert.assertFalse;
@@ -195,6 +198,78 @@ public class AppStartupHelperTest {
         mHelper.get().exit();
     }
 
+    /**
+     * Test multiple cold launch metric pulled incrementally from statsd.
+     */
+    @Test
+    public void testIncrementalPullColdLaunchMetric() throws Exception {
+        mAppStartupHelper.setIncrementalPullInterval(HelperTestUtility.ACTION_DELAY / 2);
+        assertTrue(mAppStartupHelper.startCollecting());
+        mHelper.get().open();
+        // Wait for the first launch to be pulled in the background.
+        SystemClock.sleep(HelperTestUtility.ACTION_DELAY);
+        mHelper.get().exit();
+        HelperTestUtility.clearApp(String.format(KILL_TEST_APP_CMD_TEMPLATE, CALENDAR_PKG_NAME));
+        mHelper.get().open();
+        Map<String, StringBuilder> appLaunchMetrics = mAppStartupHelper.getMetrics();
+        // The launches pulled in the background and at the end should both be reported.
+        String coldLaunchMetricKey = String.format(COLD_LAUNCH_KEY_TEMPLATE, CALENDAR_PKG_NAME);
+        String coldLaunchCountPkgKey = String.format(COLD_LAUNCH_COUNT_PKG_KEY_TEMPLATE,
+                CALENDAR_PKG_NAME);
+        assertTrue(appLaunchMetrics.keySet().contains(coldLaunchMetricKey));
+        assertEquals(2, appLaunchMetrics.get(coldLaunchMetricKey).toString().split(",").length);
+        assertEquals(2, Integer.parseInt(appLaunchMetrics.get(coldLaunchCountPkgKey).toString()));
+        assertTrue(mAppStartupHelper.stopCollecting());
+        mHelper.get().exit();
+    }
+
+    /**
+     * Test that the cold launch latencies are aggregated and saved when aggregating.
+     */
+    @Test
+    public void testAggregateColdLaunchMetric() throws Exception {
+        mAppStartupHelper.setEnableAggregateOutput();
+        assertTrue(mAppStartupHelper.startCollecting());
+        mHelper.get().open();
+        SystemClock.sleep(HelperTestUtility.ACTION_DELAY);
+        mHelper.get().exit();
+        HelperTestUtility.clearApp(String.format(KILL_TEST_APP_CMD_TEMPLATE, CALENDAR_PKG_NAME));
+        mHelper.get().open();
+        SystemClock.sleep(HelperTestUtility.ACTION_DELAY);
+        Map<String, StringBuilder> appLaunchMetrics = mAppStartupHelper.getMetrics();
+        String coldLaunchMetricKey = String.format(COLD_LAUNCH_KEY_TEMPLATE, CALENDAR_PKG_NAME);
+        assertFalse(appLaunchMetrics.keySet().contains(coldLaunchMetricKey));
+        long min = Long.parseLong(appLaunchMetrics.get(coldLaunchMetricKey + "_min").toString());
+        long p50 = Long.parseLong(appLaunchMetrics.get(coldLaunchMetricKey + "_p50").toString());
+        long max = Long.parseLong(appLaunchMetrics.get(coldLaunchMetricKey + "_max").toString());
+        assertTrue(min <= p50 && p50 <= max);
+        assertTrue(appLaunchMetrics.keySet().contains(String.format(
+                COLD_LAUNCH_TRANSITION_DELAY_MILLIS_KEY_TEMPLATE, CALENDAR_PKG_NAME) + "_p90"));
+
+        // Both launches should be saved in the series of the cold launch metric.
+        File file = File.createTempFile("app_startup_latency_series", ".bin");
+        assertTrue(mAppStartupHelper.writeLatencySeries(file));
+        int coldLaunchCount = 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            assertEquals(2, in.readInt());
+            int seriesCount = in.readInt();
+            for (int i = 0; i < seriesCount; i++) {
+                String key = in.readUTF();
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    assertTrue(in.readLong() >= 0);
+                }
+                if (key.equals(coldLaunchMetricKey)) {
+                    coldLaunchCount = count;
+                }
+            }
+        }
+        file.delete();
+        assertEquals(2, coldLaunchCount);
+        assertTrue(mAppStartupHelper.stopCollecting());
+        mHelper.get().exit();
+    }
+
     /**
      * Test cold launch metric of two different apps.
      */
@@ -55,6 +55,10 @@ public class CpuUsageHelperTest {
     private static final String TOTAL_CPU_TIME = "total_cpu_time";
     // Key used for CPU utilization average over each core
     private static final String CPU_UTILIZATION = "cpu_utilization_average_per_core_percent";
+    // Key used for the time spent waiting for statsd to report the gauge metrics
+    private static final String STATSD_WAIT_TIME = "statsd_gauge_wait_time_millis";
+    // Upper bound of the wait for the gauge metrics set by the tests, in milliseconds
+    private static final long STATSD_WAIT_TIMEOUT_MS = 3000;
 
     private CpuUsageHelper mCpuUsageHelper;
     private HelperAccessor<ICalendarHelper> mHelper =
@@ -233,4 +237,23 @@ public class CpuUsageHelperTest {
         assertTrue(mCpuUsageHelper.stopCollecting());
         mHelper.get().exit();
     }
+
+    /**
+     * Test the time spent waiting for statsd is collected and bounded by the wait timeout.
+     */
+    @Test
+    public void testCpuEnableStatsdWaitTime() throws Exception {
+        mCpuUsageHelper.setEnableStatsdWaitTime();
+        mCpuUsageHelper.setStatsdWaitTimeout(STATSD_WAIT_TIMEOUT_MS);
+        assertTrue(mCpuUsageHelper.startCollecting());
+        mHelper.get().open();
+        Map<String, Long> cpuUsage = mCpuUsageHelper.getMetrics();
+        assertTrue(cpuUsage.containsKey(STATSD_WAIT_TIME));
+        assertTrue(cpuUsage.get(STATSD_WAIT_TIME) >= 0);
+        // Two waits, before and after the test, each bounded by the timeout and a last poll.
+        assertTrue(cpuUsage.get(STATSD_WAIT_TIME) < 4 * STATSD_WAIT_TIMEOUT_MS);
+        assertTrue(cpuUsage.get(TOTAL_CPU_USAGE) > 0);
+        assertTrue(mCpuUsageHelper.stopCollecting());
+        mHelper.get().exit();
+    }
 }
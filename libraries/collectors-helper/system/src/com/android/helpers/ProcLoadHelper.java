@@ -95,7 +95,9 @@ public class ProcLoadHelper implements ICollectorHelper<Double> {
      */
     private double getProcLoadInLastMinute() {
         try {
-            String output = getDevice().executeShellCommand(LOAD_CMD);
+            String output = MetricUtility.executeShellCommand(
+                    LOAD_CMD, InstrumentationRegistry.getInstrumentation(),
+                    getDevice()::executeShellCommand);
             Log.i(LOG_TAG, String.format("Output of proc_loadavg is : %s", output));
             // Output of the load command
             // 1.39 1.10 1.21 2/2679 6380
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs shell commands for collector helpers. Implementations must allow commands to be executed
+ * from several threads at once.
+ */
+public interface IShellCommandExecutor {
+
+    /**
+     * Executes a shell command.
+     *
+     * @param command shell command to be executed.
+     * @return the output of the command. The caller must close the stream.
+     */
+    InputStream executeShellCommand(String command) throws IOException;
+}
@@ -1,12 +1,21 @@
 package com.android.helpers;
 
 import android.app.Instrumentation;
+import android.app.UiAutomation;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,6 +29,11 @@ public class MetricUtility {
     private static final String METRIC_SEPARATOR = ",";
 
     public static final int BUFFER_SIZE = 1024;
+    public static final long SHELL_SESSION_TIMEOUT_MS = 2 * 60 * 1000;
+
+    // Shared shell session, see setShellSessionEnabled. Guarded by MetricUtility.class.
+    private static boolean sShellSessionEnabled;
+    private static ShellSession sShellSession;
 
     /**
      * Append the given array of string to construct the final key used to track the metrics.
@@ -62,8 +76,7 @@ public class MetricUtility {
      * @return byte array of execution result
      */
     public static byte[] executeCommandBlocking(String command, Instrumentation instr) {
-        try (InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(instr.getUiAutomation()
-                .executeShellCommand(command));
+        try (InputStream is = openCommandOutput(command, instr);
                 ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             byte[] buf = new byte[BUFFER_SIZE];
             int length;
@@ -79,4 +92,250 @@ public class MetricUtility {
         }
     }
 
+    /**
+     * Execute a shell command and return its output, through the shared shell session if it is
+     * enabled.
+     *
+     * @param command shell command to be executed.
+     * @param instr used to run the shell command.
+     * @return the output of the command.
+     */
+    public static String executeShellCommand(String command, Instrumentation instr)
+            throws IOException {
+        try (InputStream is = openCommandOutput(command, instr);
+                ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buf)) >= 0) {
+                out.write(buf, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Execute a shell command through the shared shell session if it is enabled, or through
+     * {@code executor} otherwise, such as {@code UiDevice#executeShellCommand}.
+     *
+     * @param command shell command to be executed.
+     * @param instr used to run the shell command over the shared shell session.
+     * @param executor used to run the shell command when the shared shell session is disabled.
+     * @return the output of the command.
+     */
+    public static String executeShellCommand(
+            String command, Instrumentation instr, StringCommandExecutor executor)
+            throws IOException {
+        if (isShellSessionEnabled()) {
+            return executeShellCommand(command, instr);
+        }
+        return executor.executeShellCommand(command);
+    }
+
+    /** Runs a shell command and returns its output as a string. */
+    public interface StringCommandExecutor {
+        String executeShellCommand(String command) throws IOException;
+    }
+
+    /**
+     * Enable or disable the shared {@link ShellSession}. While enabled, {@link
+     * #executeCommandBlocking} and {@link #executeShellCommand} run the commands over one
+     * long-lived shell instead of spawning a shell per command. Disabling closes the session.
+     */
+    public static synchronized void setShellSessionEnabled(boolean enabled) {
+        sShellSessionEnabled = enabled;
+        if (!enabled && sShellSession != null) {
+            sShellSession.close();
+            sShellSession = null;
+        }
+    }
+
+    /** Returns whether the shared {@link ShellSession} is enabled. */
+    public static synchronized boolean isShellSessionEnabled() {
+        return sShellSessionEnabled;
+    }
+
+    /**
+     * Returns the shared {@link ShellSession}, starting it on first use, or null if it is disabled
+     * or the platform cannot keep a shell open for the instrumentation.
+     *
+     * @param uiAutomation used to start the shell.
+     */
+    public static synchronized ShellSession getShellSession(UiAutomation uiAutomation) {
+        if (!sShellSessionEnabled) {
+            return null;
+        }
+        if (sShellSession == null) {
+            Method executeShellCommandRw;
+            try {
+                // Test API, reachable by instrumentations but not part of the public SDK.
+                executeShellCommandRw =
+                        UiAutomation.class.getMethod("executeShellCommandRw", String.class);
+            } catch (NoSuchMethodException e) {
+                Log.w(TAG, "Shell session is not supported, running one shell per command.");
+                sShellSessionEnabled = false;
+                return null;
+            }
+            sShellSession =
+                    new ShellSession(
+                            () -> startShell(uiAutomation, executeShellCommandRw),
+                            SHELL_SESSION_TIMEOUT_MS);
+        }
+        return sShellSession;
+    }
+
+    /**
+     * Returns a shell command executor that runs every command through {@link UiAutomation}.
+     *
+     * @param uiAutomation used to run the shell commands.
+     */
+    public static IShellCommandExecutor getShellCommandExecutor(UiAutomation uiAutomation) {
+        return command -> new ParcelFileDescriptor.AutoCloseInputStream(
+                uiAutomation.executeShellCommand(command));
+    }
+
+    /**
+     * Returns a shell command executor that interprets its commands as shell scripts, which
+     * {@link UiAutomation} does not. The scripts run over the shared shell session if it is
+     * enabled, otherwise from a temporary script file.
+     *
+     * @param instr used to run the scripts.
+     */
+    public static IShellCommandExecutor getScriptExecutor(Instrumentation instr) {
+        return script -> {
+            ShellSession session = getShellSession(instr.getUiAutomation());
+            if (session != null) {
+                return session.executeShellCommand(script);
+            }
+            File scriptFile =
+                    File.createTempFile("script", ".sh", instr.getContext().getCacheDir());
+            try (Writer writer = new FileWriter(scriptFile)) {
+                writer.write(script);
+            }
+            scriptFile.setReadable(true, /*ownerOnly*/ false);
+            ParcelFileDescriptor pfd =
+                    instr.getUiAutomation().executeShellCommand("sh " + scriptFile);
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        scriptFile.delete();
+                    }
+                }
+            };
+        };
+    }
+
+    /**
+     * Run several shell commands in a single shell invocation.
+     *
+     * @param commands shell commands to be executed, in order.
+     * @param batch holds the output buffer, reused from one call to the next.
+     * @param instr used to run the shell commands.
+     * @return the output of each command. The buffers are only valid until the next use of
+     *     {@code batch}.
+     */
+    public static List<ByteBuffer> executeCommandsBatched(
+            List<String> commands, ShellCommandBatch batch, Instrumentation instr)
+            throws IOException {
+        return batch.execute(getScriptExecutor(instr), commands);
+    }
+
+    private static InputStream openCommandOutput(String command, Instrumentation instr)
+            throws IOException {
+        ShellSession session = getShellSession(instr.getUiAutomation());
+        if (session != null) {
+            return session.executeShellCommand(command);
+        }
+        return new ParcelFileDescriptor.AutoCloseInputStream(
+                instr.getUiAutomation().executeShellCommand(command));
+    }
+
+    /**
+     * Starts {@code sh} with its stdin and stdout connected to the instrumentation, and reads its
+     * pid so that closing the shell can kill it even while a command hangs.
+     */
+    private static ShellSession.Shell startShell(
+            UiAutomation uiAutomation, Method executeShellCommandRw) throws IOException {
+        ParcelFileDescriptor[] fds;
+        try {
+            fds = (ParcelFileDescriptor[]) executeShellCommandRw.invoke(uiAutomation, "sh");
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unable to start the shell session", e);
+        }
+        InputStream output = new ParcelFileDescriptor.AutoCloseInputStream(fds[0]);
+        OutputStream input = new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]);
+        String pid;
+        try {
+            input.write("echo $$\n".getBytes(StandardCharsets.US_ASCII));
+            input.flush();
+            pid = readLine(output);
+            if (!pid.matches("[0-9]+")) {
+                throw new IOException("Unexpected shell pid: " + pid);
+            }
+        } catch (IOException e) {
+            closeStreams(input, output);
+            throw e;
+        }
+        return new ShellSession.Shell() {
+            @Override
+            public OutputStream getInput() {
+                return input;
+            }
+
+            @Override
+            public InputStream getOutput() {
+                return output;
+            }
+
+            @Override
+            public void close() {
+                // Closing stdin would only end the shell once its current command returns, so
+                // kill the command and the shell first.
+                runBlocking(uiAutomation, "pkill -9 -P " + pid);
+                runBlocking(uiAutomation, "kill -9 " + pid);
+                closeStreams(input, output);
+            }
+        };
+    }
+
+    /** Reads one line of {@code in}, without reading past it. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Shell session ended");
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII).trim();
+    }
+
+    /** Runs {@code command} through {@link UiAutomation} and waits for it to complete. */
+    private static void runBlocking(UiAutomation uiAutomation, String command) {
+        try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                uiAutomation.executeShellCommand(command))) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (in.read(buf) >= 0) {
+                // Discard the output.
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to run " + command, e);
+        }
+    }
+
+    private static void closeStreams(OutputStream input, InputStream output) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close the shell input", e);
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close the shell output", e);
+        }
+    }
 }
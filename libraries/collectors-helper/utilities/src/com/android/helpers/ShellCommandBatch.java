@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * ShellCommandBatch runs several shell commands as one script, so they cost a single shell
+ * invocation, and splits the output back per command.
+ *
+ * Each command is followed by an {@code echo} of a random separator. The whole output is read into
+ * a direct buffer that is kept across batches, and each command gets a {@link ByteBuffer} slice of
+ * it, without further copies. The slices are only valid until the next batch.
+ *
+ * The script uses shell syntax, so the executor must run it with a shell, for example
+ * {@link ShellSession} or {@link MetricUtility#getScriptExecutor}. Not thread safe.
+ *
+ * Example Usage:
+ * ShellCommandBatch batch = new ShellCommandBatch();
+ * List<ByteBuffer> outputs = batch.execute(executor, Arrays.asList("pidof a", "pidof b"));
+ * String pidsOfA = ShellCommandBatch.toString(outputs.get(0));
+ */
+public class ShellCommandBatch {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final String mSeparator;
+    private final byte[] mSeparatorLine;
+    private ByteBuffer mBuffer;
+
+    public ShellCommandBatch() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /** @param initialCapacity initial size of the output buffer, which grows as needed. */
+    public ShellCommandBatch(int initialCapacity) {
+        mSeparator = "BATCH_" + UUID.randomUUID().toString().replace("-", "");
+        mSeparatorLine = (mSeparator + "\n").getBytes(StandardCharsets.US_ASCII);
+        mBuffer = ByteBuffer.allocateDirect(Math.max(initialCapacity, mSeparatorLine.length));
+    }
+
+    /** Returns the script running {@code commands} in order, each followed by the separator. */
+    public String buildScript(List<String> commands) {
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            script.append(command).append("\necho ").append(mSeparator).append('\n');
+        }
+        return script.toString();
+    }
+
+    /**
+     * Runs {@code commands} through {@code executor} as one script.
+     *
+     * @return the output of each command, in the order of {@code commands}. The slices share the
+     *     buffer of this batch and are overwritten by the next call.
+     * @throws IOException if the script fails to run or stops before the last command.
+     */
+    public List<ByteBuffer> execute(IShellCommandExecutor executor, List<String> commands)
+            throws IOException {
+        if (commands.isEmpty()) {
+            return new ArrayList<>();
+        }
+        mBuffer.clear();
+        try (InputStream output = executor.executeShellCommand(buildScript(commands))) {
+            readFully(output);
+        }
+        mBuffer.flip();
+        List<ByteBuffer> outputs = new ArrayList<>(commands.size());
+        int start = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            int end = indexOfSeparator(start);
+            if (end < 0) {
+                throw new IOException(
+                        String.format(
+                                "Batch output ended after %d of %d commands", i, commands.size()));
+            }
+            ByteBuffer slice = mBuffer.duplicate();
+            slice.limit(end);
+            slice.position(start);
+            outputs.add(slice.slice());
+            start = end + mSeparatorLine.length;
+        }
+        return outputs;
+    }
+
+    /** Decodes a command output as UTF-8, leaving {@code output} untouched. */
+    public static String toString(ByteBuffer output) {
+        return StandardCharsets.UTF_8.decode(output.duplicate()).toString();
+    }
+
+    private void readFully(InputStream in) throws IOException {
+        // File descriptors, like the ones returned by UiAutomation, are read straight into the
+        // direct buffer.
+        ReadableByteChannel channel =
+                in instanceof FileInputStream
+                        ? ((FileInputStream) in).getChannel()
+                        : Channels.newChannel(in);
+        while (true) {
+            if (!mBuffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(mBuffer.capacity() * 2);
+                mBuffer.flip();
+                larger.put(mBuffer);
+                mBuffer = larger;
+            }
+            if (channel.read(mBuffer) < 0) {
+                return;
+            }
+        }
+    }
+
+    /** Returns the offset of the next separator line at or after {@code from}, or -1. */
+    private int indexOfSeparator(int from) {
+        int last = mBuffer.limit() - mSeparatorLine.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < mSeparatorLine.length; j++) {
+                if (mBuffer.get(i + j) != mSeparatorLine[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
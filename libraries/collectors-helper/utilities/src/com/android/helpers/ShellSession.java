@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShellSession runs shell commands over one long-lived {@code sh} process, instead of spawning a
+ * new shell for every command.
+ *
+ * Commands run one at a time, in a subshell with stdin and stderr redirected to /dev/null, and
+ * their stdout is framed by a random sentinel printed after each command. A command holds the
+ * session until its output stream is fully read or closed; other callers wait for it. If a
+ * command does not complete within the timeout, the shell is killed and the session is handed to
+ * the next command, which starts a new shell. Reading the output of the timed out command fails.
+ *
+ * Plain Java, the shell itself comes from a {@link ShellFactory}.
+ *
+ * Example Usage:
+ * try (ShellSession session = new ShellSession(ShellSession.processFactory("sh"), 60_000)) {
+ *     try (InputStream output = session.executeShellCommand("cat /proc/loadavg")) {
+ *         ...
+ *     }
+ * }
+ */
+public class ShellSession implements IShellCommandExecutor, Closeable {
+
+    /** A running shell, reading commands from its input and writing to its output. */
+    public interface Shell extends Closeable {
+        /** Returns the stream the commands are written to. */
+        OutputStream getInput();
+
+        /** Returns the stdout of the shell. */
+        InputStream getOutput();
+
+        /** Kills the shell and releases its streams. */
+        @Override
+        void close();
+    }
+
+    /** Starts a new {@link Shell}. */
+    public interface ShellFactory {
+        Shell start() throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ShellFactory mFactory;
+    private final long mTimeoutMs;
+    private final byte[] mSentinel;
+    private final String mCommandSuffix;
+    // One permit, held from the moment a command is sent until its output is consumed.
+    private final Semaphore mPermit = new Semaphore(1, true);
+    private final ScheduledExecutorService mWatchdog;
+    // Guarded by this.
+    private Shell mShell;
+    private boolean mClosed;
+
+    /**
+     * @param factory starts the shell, now and whenever the previous one had to be killed.
+     * @param timeoutMs time a command has to complete and have its output read.
+     */
+    public ShellSession(ShellFactory factory, long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+        mFactory = factory;
+        mTimeoutMs = timeoutMs;
+        String sentinel = "SHELL_SESSION_" + UUID.randomUUID().toString().replace("-", "");
+        mSentinel = sentinel.getBytes(StandardCharsets.US_ASCII);
+        mCommandSuffix = "\n) </dev/null 2>/dev/null; echo " + sentinel + "\n";
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ShellSession-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Returns a {@link ShellFactory} running {@code command} as a local process. */
+    public static ShellFactory processFactory(String... command) {
+        return () -> {
+            Process process =
+                    new ProcessBuilder(command)
+                            .redirectError(ProcessBuilder.Redirect.INHERIT)
+                            .start();
+            return new Shell() {
+                @Override
+                public OutputStream getInput() {
+                    return process.getOutputStream();
+                }
+
+                @Override
+                public InputStream getOutput() {
+                    return process.getInputStream();
+                }
+
+                @Override
+                public void close() {
+                    process.destroy();
+                }
+            };
+        };
+    }
+
+    /**
+     * Runs {@code command} once the previous command has completed.
+     *
+     * @return the stdout of the command. The caller must close the stream, which discards any
+     *     unread output; the session is blocked for other callers until then.
+     * @throws IOException if the session is closed, the shell cannot be started, or the wait for
+     *     the previous command is interrupted.
+     */
+    @Override
+    public InputStream executeShellCommand(String command) throws IOException {
+        try {
+            mPermit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the shell session");
+        }
+        try {
+            Shell shell = getShell();
+            CommandOutputStream output = new CommandOutputStream(shell, command);
+            OutputStream input = shell.getInput();
+            input.write(("(" + command + mCommandSuffix).getBytes(StandardCharsets.UTF_8));
+            input.flush();
+            return output;
+        } catch (IOException | RuntimeException e) {
+            killShell(null);
+            mPermit.release();
+            throw e;
+        }
+    }
+
+    /** Kills the shell. Commands started afterwards fail. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        killShell(null);
+        mWatchdog.shutdownNow();
+    }
+
+    private synchronized Shell getShell() throws IOException {
+        if (mClosed) {
+            throw new IOException("Shell session is closed");
+        }
+        if (mShell == null) {
+            mShell = mFactory.start();
+        }
+        return mShell;
+    }
+
+    /** Kills {@code shell}, or the current shell if null, so that the next command respawns it. */
+    private void killShell(Shell shell) {
+        Shell killed;
+        synchronized (this) {
+            if (mShell == null || (shell != null && shell != mShell)) {
+                return;
+            }
+            killed = mShell;
+            mShell = null;
+        }
+        killed.close();
+    }
+
+    /** Output of one command, read until the sentinel. */
+    private class CommandOutputStream extends InputStream {
+        private final Shell mCommandShell;
+        private final String mCommand;
+        private final ScheduledFuture<?> mTimeout;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE + mSentinel.length];
+        private int mStart;
+        private int mEnd;
+        // Offset of the sentinel in the buffer, or -1 while not seen.
+        private int mSentinelIndex = -1;
+        // Both only change under the stream lock, from the reading or the watchdog thread.
+        private volatile boolean mFinished;
+        private volatile boolean mTimedOut;
+
+        CommandOutputStream(Shell shell, String command) {
+            mCommandShell = shell;
+            mCommand = command;
+            mTimeout =
+                    mWatchdog.schedule(
+                            () -> finish(true, true), mTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mTimedOut) {
+                throw new IOException("Timed out running " + mCommand);
+            }
+            if (mFinished) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (mSentinelIndex < 0) {
+                    mSentinelIndex = indexOfSentinel();
+                }
+                // Bytes that cannot be the start of the sentinel.
+                int available =
+                        mSentinelIndex >= 0
+                                ? mSentinelIndex - mStart
+                                : mEnd - mStart - (mSentinel.length - 1);
+                if (available > 0) {
+                    int count = Math.min(available, len);
+                    System.arraycopy(mBuffer, mStart, b, off, count);
+                    mStart += count;
+                    return count;
+                }
+                if (mSentinelIndex >= 0) {
+                    // The sentinel is followed by a new line, which is the last byte of the
+                    // command output; anything after it would mean the framing is lost.
+                    mStart = mSentinelIndex + mSentinel.length;
+                    if (mStart == mEnd && !fill()) {
+                        fail("Shell session ended");
+                    }
+                    if (mBuffer[mStart] != '\n' || mEnd - mStart != 1) {
+                        fail("Unexpected shell output after " + mCommand);
+                    }
+                    finish(false, false);
+                    return -1;
+                }
+                if (!fill()) {
+                    fail("Shell session ended");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mFinished) {
+                return;
+            }
+            // Discard the rest of the output to keep the shell in sync.
+            byte[] skip = new byte[BUFFER_SIZE];
+            while (read(skip, 0, skip.length) >= 0) {
+                // Keep reading.
+            }
+        }
+
+        /** Reads more shell output into the buffer. Returns false at the end of the output. */
+        private boolean fill() throws IOException {
+            if (mStart > 0) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+            }
+            int count;
+            try {
+                count = mCommandShell.getOutput().read(mBuffer, mEnd, mBuffer.length - mEnd);
+            } catch (IOException e) {
+                fail(e.getMessage());
+                throw e;
+            }
+            if (count < 0) {
+                return false;
+            }
+            mEnd += count;
+            return true;
+        }
+
+        private int indexOfSentinel() {
+            outer:
+            for (int i = mStart; i <= mEnd - mSentinel.length; i++) {
+                for (int j = 0; j < mSentinel.length; j++) {
+                    if (mBuffer[i + j] != mSentinel[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private void fail(String message) throws IOException {
+            finish(true, false);
+            throw new IOException(mTimedOut ? "Timed out running " + mCommand : message);
+        }
+
+        /** Releases the session to the next command, once. */
+        private void finish(boolean kill, boolean timedOut) {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                mTimedOut = timedOut;
+            }
+            mTimeout.cancel(false);
+            if (kill) {
+                killShell(mCommandShell);
+            }
+            mPermit.release();
+        }
+    }
+}
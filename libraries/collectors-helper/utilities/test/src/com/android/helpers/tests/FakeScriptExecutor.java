@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import com.android.helpers.IShellCommandExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shell command executor returning canned outputs after an artificial latency per invocation. A
+ * multi-line command is run as a script: line by line, where {@code echo} lines print their
+ * argument.
+ */
+class FakeScriptExecutor implements IShellCommandExecutor {
+    private final Map<String, byte[]> mOutputs = new HashMap<>();
+    private final long mLatencyMs;
+    private int mInvocationCount;
+
+    /**
+     * @param latencyMs time each invocation takes before its output is returned
+     */
+    FakeScriptExecutor(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /** Sets the output returned for {@code command}. Unknown commands return no output. */
+    FakeScriptExecutor setOutput(String command, String output) {
+        mOutputs.put(command, output.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    @Override
+    public InputStream executeShellCommand(String command) throws IOException {
+        mInvocationCount++;
+        try {
+            Thread.sleep(mLatencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while executing " + command, e);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String line : command.split("\n")) {
+            if (line.startsWith("echo ")) {
+                out.write((line.substring("echo ".length()) + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            } else if (mOutputs.containsKey(line)) {
+                out.write(mOutputs.get(line));
+            }
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    /** Returns the number of invocations so far. */
+    int getInvocationCount() {
+        return mInvocationCount;
+    }
+}
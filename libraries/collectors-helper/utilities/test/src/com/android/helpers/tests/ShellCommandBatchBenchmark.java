@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.helpers.ShellCommandBatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares running N related commands one invocation each, the way
+ * {@code MetricUtility.executeCommandBlocking} does, with running them as one
+ * {@link ShellCommandBatch}, over a fake shell with a fixed per-invocation latency standing in for
+ * the shell spawn and binder round trip on a device, and checks that batching pays off from ten
+ * commands on. It is not part of the unit tests.
+ *
+ * To run:
+ * atest collector-helper-utilities-host-benchmark
+ */
+@RunWith(JUnit4.class)
+public class ShellCommandBatchBenchmark {
+    private static final int[] COMMAND_COUNTS = {10, 50};
+    // Approximate shell round trip on a device.
+    private static final long LATENCY_MS = 5;
+    private static final int ITERATIONS = 5;
+    private static final int OUTPUT_LINES = 40;
+
+    @Test
+    public void benchmarkBatching() throws IOException {
+        for (int commandCount : COMMAND_COUNTS) {
+            FakeScriptExecutor executor = new FakeScriptExecutor(LATENCY_MS);
+            List<String> commands = new ArrayList<>();
+            for (int i = 0; i < commandCount; i++) {
+                String command = "dumpsys meminfo " + (1000 + i);
+                commands.add(command);
+                executor.setOutput(command, buildOutput(i));
+            }
+            ShellCommandBatch batch = new ShellCommandBatch();
+
+            long perCommandNanos = 0;
+            long batchedNanos = 0;
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                long start = System.nanoTime();
+                List<String> expected = new ArrayList<>();
+                for (String command : commands) {
+                    expected.add(readFully(executor.executeShellCommand(command)));
+                }
+                perCommandNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<ByteBuffer> outputs = batch.execute(executor, commands);
+                batchedNanos += System.nanoTime() - start;
+
+                for (int i = 0; i < commandCount; i++) {
+                    assertEquals(expected.get(i), ShellCommandBatch.toString(outputs.get(i)));
+                }
+            }
+            // One invocation instead of one per command, so at least twice as fast from 10 on.
+            assertTrue(String.format("%d commands: per command %.1f ms, batched %.1f ms",
+                            commandCount,
+                            perCommandNanos / 1e6 / ITERATIONS,
+                            batchedNanos / 1e6 / ITERATIONS),
+                    batchedNanos * 2 <= perCommandNanos);
+        }
+    }
+
+    private static String buildOutput(int seed) {
+        StringBuilder output = new StringBuilder();
+        for (int line = 0; line < OUTPUT_LINES; line++) {
+            output.append(String.format(
+                    "  %-16s %8d %8d %8d %8d\n", "Native Heap", seed, line, seed * line, 7));
+        }
+        return output.toString();
+    }
+
+    /** Reads the output through a 1 KB buffer, like MetricUtility.executeCommandBlocking. */
+    private static String readFully(InputStream in) throws IOException {
+        try (InputStream is = in;
+                ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[1024];
+            int length;
+            while ((length = is.read(buf)) >= 0) {
+                out.write(buf, 0, length);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        }
+    }
+}
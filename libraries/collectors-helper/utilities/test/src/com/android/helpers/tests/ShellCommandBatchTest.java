@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.helpers.ShellCommandBatch;
+import com.android.helpers.ShellSession;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Host tests for {@link ShellCommandBatch}.
+ *
+ * To run: atest collector-helper-utilities-host-tests
+ */
+@RunWith(JUnit4.class)
+public class ShellCommandBatchTest {
+
+    /** Test that the outputs are split per command, with one invocation for the batch. */
+    @Test
+    public void testSplitsOutputs() throws IOException {
+        FakeScriptExecutor executor =
+                new FakeScriptExecutor(0)
+                        .setOutput("pidof a", "12 34\n")
+                        .setOutput("pidof c", "56");
+        ShellCommandBatch batch = new ShellCommandBatch();
+
+        List<ByteBuffer> outputs =
+                batch.execute(executor, Arrays.asList("pidof a", "pidof b", "pidof c"));
+
+        assertEquals(3, outputs.size());
+        assertEquals("12 34\n", ShellCommandBatch.toString(outputs.get(0)));
+        assertEquals("", ShellCommandBatch.toString(outputs.get(1)));
+        assertEquals("56", ShellCommandBatch.toString(outputs.get(2)));
+        assertEquals(1, executor.getInvocationCount());
+    }
+
+    /** Test that the buffer grows for outputs larger than its initial capacity. */
+    @Test
+    public void testGrowsBuffer() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("line").append(i).append('\n');
+        }
+        FakeScriptExecutor executor =
+                new FakeScriptExecutor(0)
+                        .setOutput("first", large.toString())
+                        .setOutput("second", "end\n");
+        ShellCommandBatch batch = new ShellCommandBatch(16);
+
+        List<ByteBuffer> outputs = batch.execute(executor, Arrays.asList("first", "second"));
+
+        assertEquals(large.toString(), ShellCommandBatch.toString(outputs.get(0)));
+        assertEquals("end\n", ShellCommandBatch.toString(outputs.get(1)));
+    }
+
+    /** Test that an output missing separators fails rather than returning shifted outputs. */
+    @Test
+    public void testTruncatedOutput() throws IOException {
+        ShellCommandBatch batch = new ShellCommandBatch();
+        try {
+            batch.execute(
+                    command -> new ByteArrayInputStream("partial".getBytes()),
+                    Arrays.asList("a", "b"));
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("0 of 2"));
+        }
+    }
+
+    /** Test that an empty batch does not run anything. */
+    @Test
+    public void testEmptyBatch() throws IOException {
+        FakeScriptExecutor executor = new FakeScriptExecutor(0);
+        assertTrue(
+                new ShellCommandBatch()
+                        .execute(executor, Collections.<String>emptyList())
+                        .isEmpty());
+        assertEquals(0, executor.getInvocationCount());
+    }
+
+    /** Test the batch script against a real shell. */
+    @Test
+    public void testWithShell() throws IOException {
+        ShellCommandBatch batch = new ShellCommandBatch();
+        try (ShellSession session = new ShellSession(ShellSession.processFactory("sh"), 10_000)) {
+            List<ByteBuffer> outputs =
+                    batch.execute(
+                            session,
+                            Arrays.asList("echo one", "printf two", "false", "echo 'a\nb'"));
+            assertEquals("one\n", ShellCommandBatch.toString(outputs.get(0)));
+            assertEquals("two", ShellCommandBatch.toString(outputs.get(1)));
+            assertEquals("", ShellCommandBatch.toString(outputs.get(2)));
+            assertEquals("a\nb\n", ShellCommandBatch.toString(outputs.get(3)));
+            // The buffer is reused by the next batch.
+            outputs = batch.execute(session, Arrays.asList("echo again"));
+            assertEquals("again\n", ShellCommandBatch.toString(outputs.get(0)));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.helpers.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.helpers.ShellSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Host tests for {@link ShellSession}, run against a local {@code sh}.
+ *
+ * To run: atest collector-helper-utilities-host-tests
+ */
+@RunWith(JUnit4.class)
+public class ShellSessionTest {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private AtomicInteger mStartCount;
+    private ShellSession mSession;
+
+    @Before
+    public void setUp() {
+        mStartCount = new AtomicInteger();
+        ShellSession.ShellFactory factory = ShellSession.processFactory("sh");
+        mSession =
+                new ShellSession(
+                        () -> {
+                            mStartCount.incrementAndGet();
+                            return factory.start();
+                        },
+                        TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        mSession.close();
+    }
+
+    /** Test that several commands reuse a single shell. */
+    @Test
+    public void testCommandsShareOneShell() throws IOException {
+        assertEquals("one\n", run("echo one"));
+        assertEquals("two\n", run("echo two"));
+        assertEquals("", run("true"));
+        assertEquals(1, mStartCount.get());
+    }
+
+    /** Test the output framing of outputs without a trailing new line or larger than a buffer. */
+    @Test
+    public void testOutputFraming() throws IOException {
+        assertEquals("no new line", run("printf 'no new line'"));
+        assertEquals("a\n\nb\n", run("printf 'a\\n\\nb\\n'"));
+        String large = run("i=0; while [ $i -lt 5000 ]; do echo line$i; i=$((i+1)); done");
+        assertEquals(5000, large.split("\n").length);
+        assertTrue(large.endsWith("line4999\n"));
+        assertEquals("after\n", run("echo after"));
+    }
+
+    /** Test that stderr, stdin, exit and state changes of a command do not leak into the next. */
+    @Test
+    public void testCommandsAreIsolated() throws IOException {
+        assertEquals("", run("echo error >&2; false"));
+        assertEquals("", run("cat"));
+        assertEquals("", run("cd /; X=1; exit 3"));
+        assertEquals("\n", run("echo $X"));
+        assertEquals(1, mStartCount.get());
+    }
+
+    /** Test that closing an unread output discards it and keeps the session usable. */
+    @Test
+    public void testCloseDiscardsUnreadOutput() throws IOException {
+        try (InputStream output = mSession.executeShellCommand("seq 1 100000")) {
+            assertEquals('1', output.read());
+        }
+        assertEquals("next\n", run("echo next"));
+    }
+
+    /** Test that a command running over the timeout fails and the shell is respawned. */
+    @Test
+    public void testTimeoutRespawnsShell() throws IOException {
+        ShellSession.ShellFactory factory = ShellSession.processFactory("sh");
+        try (ShellSession session =
+                new ShellSession(
+                        () -> {
+                            mStartCount.incrementAndGet();
+                            return factory.start();
+                        },
+                        200)) {
+            try {
+                read(session.executeShellCommand("sleep 2"));
+                fail("Expected the command to time out");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("Timed out"));
+            }
+            assertEquals("alive\n", read(session.executeShellCommand("echo alive")));
+            assertEquals(2, mStartCount.get());
+        }
+    }
+
+    /** Test that commands from several threads are serialized without mixing their outputs. */
+    @Test
+    public void testConcurrentCommands() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> outputs = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String command = "echo start" + i + "; echo end" + i;
+                outputs.add(executor.submit(() -> run(command)));
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                assertEquals("start" + i + "\nend" + i + "\n", outputs.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, mStartCount.get());
+    }
+
+    /** Test that commands fail once the session is closed. */
+    @Test
+    public void testClosedSession() throws IOException {
+        run("true");
+        mSession.close();
+        try {
+            mSession.executeShellCommand("true");
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    private String run(String command) throws IOException {
+        return read(mSession.executeShellCommand(command));
+    }
+
+    private static String read(InputStream stream) throws IOException {
+        try (InputStream in = stream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
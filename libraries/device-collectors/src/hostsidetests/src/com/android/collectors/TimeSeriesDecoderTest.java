@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.device.collectors.util.TimeSeriesDecoder;
+import android.device.collectors.util.TimeSeriesEncoder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Host side round-trip tests for {@link TimeSeriesEncoder} and {@link TimeSeriesDecoder}. */
+@RunWith(JUnit4.class)
+public class TimeSeriesDecoderTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimeSeriesEncoder encoder = new TimeSeriesEncoder(bytes);
+        long[] timestamps = {0, 100, 201, 299, 400};
+        long[] counts = {5, 7, -3, Long.MAX_VALUE, Long.MIN_VALUE};
+        double[] loads = {0.5, 0.5, Double.NaN, -1.25e300, Double.MIN_VALUE};
+        for (int i = 0; i < timestamps.length; i++) {
+            Map<String, Number> sample = new LinkedHashMap<>();
+            sample.put("count", counts[i]);
+            sample.put("load", loads[i]);
+            encoder.writeSample(timestamps[i], sample);
+        }
+
+        Map<String, TimeSeriesDecoder.Series> series = decode(bytes.toByteArray());
+
+        assertEquals(Arrays.asList("count", "load"), Arrays.asList(series.keySet().toArray()));
+        assertArrayEquals(timestamps, series.get("count").getTimestamps());
+        double[] countValues = series.get("count").getValues();
+        for (int i = 0; i < counts.length; i++) {
+            assertEquals((double) counts[i], countValues[i], 0);
+        }
+        assertArrayEquals(timestamps, series.get("load").getTimestamps());
+        assertArrayEquals(loads, series.get("load").getValues(), 0);
+    }
+
+    @Test
+    public void testRoundTrip_sparseKeys() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimeSeriesEncoder encoder = new TimeSeriesEncoder(bytes);
+        Map<String, Number> first = new LinkedHashMap<>();
+        first.put("a", 1);
+        encoder.writeSample(10, first);
+        Map<String, Number> second = new LinkedHashMap<>();
+        second.put("b", 2.5f);
+        second.put("a", 3);
+        encoder.writeSample(20, second);
+        Map<String, Number> third = new LinkedHashMap<>();
+        // Same key, other type: continues the series of "a".
+        third.put("a", 4.5);
+        encoder.writeSample(30, third);
+
+        Map<String, TimeSeriesDecoder.Series> series = decode(bytes.toByteArray());
+
+        assertArrayEquals(new long[] {10, 20, 30}, series.get("a").getTimestamps());
+        assertArrayEquals(new double[] {1, 3, 4.5}, series.get("a").getValues(), 0);
+        assertArrayEquals(new long[] {20}, series.get("b").getTimestamps());
+        assertArrayEquals(new double[] {2.5}, series.get("b").getValues(), 0);
+    }
+
+    @Test
+    public void testTruncatedStream_keepsCompleteSamples() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimeSeriesEncoder encoder = new TimeSeriesEncoder(bytes);
+        Map<String, Number> sample = new LinkedHashMap<>();
+        sample.put("metric", 1000L);
+        encoder.writeSample(0, sample);
+        int completeLength = bytes.size();
+        sample.put("metric", 123456789L);
+        encoder.writeSample(100, sample);
+        byte[] data = bytes.toByteArray();
+
+        // Cut the stream anywhere in the last sample, as a crash would.
+        for (int length = completeLength; length < data.length; length++) {
+            Map<String, TimeSeriesDecoder.Series> series =
+                    decode(Arrays.copyOf(data, length));
+            assertArrayEquals(new long[] {0}, series.get("metric").getTimestamps());
+            assertArrayEquals(new double[] {1000}, series.get("metric").getValues(), 0);
+        }
+        assertEquals(2, decode(data).get("metric").size());
+    }
+
+    @Test
+    public void testInvalidHeader() throws IOException {
+        try {
+            decode("time,metric_key,value\n".getBytes());
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testSlowlyChangingSeriesIsCompact() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimeSeriesEncoder encoder = new TimeSeriesEncoder(bytes);
+        int sampleCount = 1000;
+        for (int i = 0; i < sampleCount; i++) {
+            Map<String, Number> sample = new LinkedHashMap<>();
+            sample.put("memory_rss_bytes", 150_000_000L + (i % 3) * 4096);
+            encoder.writeSample(i * 1000L, sample);
+        }
+        // Tag, timestamp delta, count, column id and value delta take at most 8 bytes per sample,
+        // where a csv row takes more than 140.
+        assertTrue(bytes.size() <= sampleCount * 8 + 32);
+        assertEquals(sampleCount, decode(bytes.toByteArray()).get("memory_rss_bytes").size());
+    }
+
+    private static Map<String, TimeSeriesDecoder.Series> decode(byte[] data) throws IOException {
+        return TimeSeriesDecoder.decode(new ByteArrayInputStream(data));
+    }
+}
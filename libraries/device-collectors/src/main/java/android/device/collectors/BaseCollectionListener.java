@@ -101,8 +101,9 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
                 // Collect the metrics.
                 Map<String, T> metrics = mHelper.getMetrics();
                 for (Map.Entry<String, T> entry : metrics.entrySet()) {
-                    testData.addStringMetric(entry.getKey(), entry.getValue().toString());
+                    testData.addMetric(entry.getKey(), entry.getValue());
                 }
+                addAdditionalMetrics(testData);
             }
             mHelper.stopCollecting();
         }
@@ -113,8 +114,9 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
         if (mIsCollectPerRun) {
             Map<String, T> metrics = mHelper.getMetrics();
             for (Map.Entry<String, T> entry : metrics.entrySet()) {
-                runData.addStringMetric(entry.getKey(), entry.getValue().toString());
+                runData.addMetric(entry.getKey(), entry.getValue());
             }
+            addAdditionalMetrics(runData);
             mHelper.stopCollecting();
         }
     }
@@ -127,6 +129,15 @@ public class BaseCollectionListener<T> extends BaseMetricListener {
         // NO-OP by default
     }
 
+    /**
+     * To add listener specific metrics that the helper does not return from getMetrics, such as
+     * binary metrics, implement this method in the sub class. It is called right after the helper
+     * metrics are added to {@code data}.
+     */
+    public void addAdditionalMetrics(DataRecord data) {
+        // NO-OP by default
+    }
+
     protected void createHelperInstance(ICollectorHelper helper) {
         mHelper = helper;
     }
@@ -27,6 +27,8 @@ import android.util.Log;
 import androidx.test.InstrumentationRegistry;
 import androidx.test.internal.runner.listener.InstrumentationRunListener;
 
+import com.android.helpers.MetricUtility;
+
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
@@ -63,6 +65,11 @@ import java.util.Set;
  * group using '--exclude-filter-group [group name]'.
  * Several group name can be passed using a comma separated argument.
  *
+ * Shell session:
+ * With '--shell_session true', collector helpers going through {@link MetricUtility} run their
+ * shell commands over one long-lived shell shared by the whole instrumentation, instead of
+ * spawning a shell per command. The session is closed when the instrumentation finishes.
+ *
  */
 public class BaseMetricListener extends InstrumentationRunListener {
 
@@ -87,6 +94,13 @@ public class BaseMetricListener extends InstrumentationRunListener {
     // to 3. Metric will not be collected for 1st,2nd and 3rd iteration.
     public static final String SKIP_METRIC_UNTIL_ITERATION = "skip_metric_until_iteration";
 
+    // Report long and double metrics with their bundle types instead of as strings, for
+    // consumers that read typed values.
+    public static final String REPORT_TYPED_METRICS = "report_typed_metrics";
+
+    // Run the helper shell commands over a shared long-lived shell.
+    public static final String SHELL_SESSION = "shell_session";
+
     private static final String NAMESPACE_SEPARATOR = ":";
 
     private DataRecord mRunData;
@@ -100,6 +114,8 @@ public class BaseMetricListener extends InstrumentationRunListener {
     private Map<String, Integer> mTestIdInvocationCount = new HashMap<>();
     private int mCollectIterationInterval = 1;
     private int mSkipMetricUntilIteration = 0;
+    private boolean mReportTypedMetrics = false;
+    private boolean mShellSession = false;
 
     public BaseMetricListener() {
         mIncludeFilters = new ArrayList<>();
@@ -119,6 +135,9 @@ public class BaseMetricListener extends InstrumentationRunListener {
     @Override
     public final void testRunStarted(Description description) throws Exception {
         parseArguments();
+        if (mShellSession && !mLogOnly) {
+            MetricUtility.setShellSessionEnabled(true);
+        }
         if (!mLogOnly) {
             try {
                 mRunData = createDataRecord();
@@ -199,6 +218,9 @@ public class BaseMetricListener extends InstrumentationRunListener {
     @Override
     public void instrumentationRunFinished(
             PrintStream streamResult, Bundle resultBundle, Result junitResults) {
+        if (mShellSession) {
+            MetricUtility.setShellSessionEnabled(false);
+        }
         // Test Run data goes into the INSTRUMENTATION_RESULT
         if (mRunData != null) {
             resultBundle.putAll(mRunData.createBundleFromMetrics());
@@ -210,7 +232,9 @@ public class BaseMetricListener extends InstrumentationRunListener {
      */
     @VisibleForTesting
     DataRecord createDataRecord() {
-        return new DataRecord();
+        DataRecord record = new DataRecord();
+        record.setReportTypedValues(mReportTypedMetrics);
+        return record;
     }
 
     // ---------- Interfaces that can be implemented to take action on each test state.
@@ -367,6 +391,8 @@ public class BaseMetricListener extends InstrumentationRunListener {
             // Reset to collect for all the iterations.
             mCollectIterationInterval = 1;
         }
+        mReportTypedMetrics = Boolean.parseBoolean(args.getString(REPORT_TYPED_METRICS));
+        mShellSession = Boolean.parseBoolean(args.getString(SHELL_SESSION));
         String logOnly = args.getString(ARGUMENT_LOG_ONLY);
         if (logOnly != null) {
             mLogOnly = Boolean.parseBoolean(logOnly);
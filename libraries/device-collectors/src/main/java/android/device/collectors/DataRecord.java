@@ -19,17 +19,30 @@ import android.os.Bundle;
 import androidx.annotation.VisibleForTesting;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Object to hold all the data collected by metric collectors.
+ *
+ * Long and double metrics are kept in primitive maps, so numeric values are not boxed while they
+ * are collected. They are reported in their string form by default, as existing consumers only
+ * read string values, or with their own {@link Bundle} types when requested with
+ * {@link #setReportTypedValues}. Arrays are always reported as comma separated values, since the
+ * instrumentation results cannot carry them.
  */
 public class DataRecord {
     // TODO: expend type supports to more complex type: Object,etc.
     private LinkedHashMap<String, String> mCurrentStringMetrics = new LinkedHashMap<>();
     private LinkedHashMap<String, File> mCurrentFileMetrics = new LinkedHashMap<>();
     private LinkedHashMap<String, byte[]> mCurrentBinaryMetrics = new LinkedHashMap<>();
+    private PrimitiveMetrics mCurrentLongMetrics = new PrimitiveMetrics();
+    // Doubles are stored as their raw long bits.
+    private PrimitiveMetrics mCurrentDoubleMetrics = new PrimitiveMetrics();
+    private LinkedHashMap<String, long[]> mCurrentLongArrayMetrics = new LinkedHashMap<>();
+    private LinkedHashMap<String, double[]> mCurrentDoubleArrayMetrics = new LinkedHashMap<>();
+    private boolean mReportTypedValues = false;
 
     /**
      * Add a metric to be tracked by a key.
@@ -62,12 +75,86 @@ public class DataRecord {
         mCurrentBinaryMetrics.put(key, value);
     }
 
+    /**
+     * Add a long metric to be tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addLongMetric(String key, long value) {
+        mCurrentLongMetrics.put(key, value);
+    }
+
+    /**
+     * Add a double metric to be tracked by a key.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addDoubleMetric(String key, double value) {
+        mCurrentDoubleMetrics.put(key, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Add a long[] metric to be tracked by a key. The array is not copied.
+     *
+     * @param key the key under which to find the metric
+     * @param value the values associated with the key
+     */
+    public void addLongArrayMetric(String key, long[] value) {
+        mCurrentLongArrayMetrics.put(key, value);
+    }
+
+    /**
+     * Add a double[] metric to be tracked by a key. The array is not copied.
+     *
+     * @param key the key under which to find the metric
+     * @param value the values associated with the key
+     */
+    public void addDoubleArrayMetric(String key, double[] value) {
+        mCurrentDoubleArrayMetrics.put(key, value);
+    }
+
+    /**
+     * Add a metric with the most specific type supported for {@code value}: long for integral
+     * numbers, double for floating point numbers, long[] and double[] as is, and the string form
+     * of anything else.
+     *
+     * @param key the key under which to find the metric
+     * @param value the value associated with the key
+     */
+    public void addMetric(String key, Object value) {
+        if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            addLongMetric(key, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            addDoubleMetric(key, ((Number) value).doubleValue());
+        } else if (value instanceof long[]) {
+            addLongArrayMetric(key, (long[]) value);
+        } else if (value instanceof double[]) {
+            addDoubleArrayMetric(key, (double[]) value);
+        } else {
+            addStringMetric(key, value.toString());
+        }
+    }
+
+    /**
+     * Report the long and double metrics with their {@link Bundle} types instead of their string
+     * form, for consumers that read typed values. Arrays are still reported as comma separated
+     * values.
+     */
+    public void setReportTypedValues(boolean reportTypedValues) {
+        mReportTypedValues = reportTypedValues;
+    }
+
     /**
      * Returns True if the {@link DataRecord} already contains some metrics, False otherwise.
      */
     public boolean hasMetrics() {
         return (mCurrentStringMetrics.size() + mCurrentFileMetrics.size()
-                + mCurrentBinaryMetrics.size()) > 0;
+                + mCurrentBinaryMetrics.size() + mCurrentLongMetrics.size()
+                + mCurrentDoubleMetrics.size() + mCurrentLongArrayMetrics.size()
+                + mCurrentDoubleArrayMetrics.size()) > 0;
     }
 
     /**
@@ -96,9 +183,43 @@ public class DataRecord {
         for (String key : mCurrentBinaryMetrics.keySet()) {
             b.putByteArray(key, mCurrentBinaryMetrics.get(key));
         }
+        putTypedMetrics(b);
         return b;
     }
 
+    /** Put the long, double and array metrics in {@code b}. */
+    private void putTypedMetrics(Bundle b) {
+        for (int i = 0; i < mCurrentLongMetrics.size(); i++) {
+            String key = mCurrentLongMetrics.keyAt(i);
+            long value = mCurrentLongMetrics.valueAt(i);
+            if (mReportTypedValues) {
+                b.putLong(key, value);
+            } else {
+                b.putString(key, Long.toString(value));
+            }
+        }
+        for (int i = 0; i < mCurrentDoubleMetrics.size(); i++) {
+            String key = mCurrentDoubleMetrics.keyAt(i);
+            double value = Double.longBitsToDouble(mCurrentDoubleMetrics.valueAt(i));
+            if (mReportTypedValues) {
+                b.putDouble(key, value);
+            } else {
+                b.putString(key, Double.toString(value));
+            }
+        }
+        for (Map.Entry<String, long[]> entry : mCurrentLongArrayMetrics.entrySet()) {
+            b.putString(entry.getKey(), joinValues(Arrays.toString(entry.getValue())));
+        }
+        for (Map.Entry<String, double[]> entry : mCurrentDoubleArrayMetrics.entrySet()) {
+            b.putString(entry.getKey(), joinValues(Arrays.toString(entry.getValue())));
+        }
+    }
+
+    /** Turn the "[1, 2, 3]" form of an array into "1,2,3". */
+    private static String joinValues(String arrayString) {
+        return arrayString.substring(1, arrayString.length() - 1).replace(", ", ",");
+    }
+
     /**
      * Create a {@link Bundle} that will hold the metrics. Exposed for testing.
      */
@@ -106,4 +227,64 @@ public class DataRecord {
     Bundle createBundle() {
         return new Bundle();
     }
+
+    /**
+     * Insertion ordered map from metric key to a primitive long value. Replacing the value of an
+     * existing key keeps its position, like {@link LinkedHashMap}.
+     */
+    private static final class PrimitiveMetrics {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private String[] mKeys = new String[INITIAL_CAPACITY];
+        private long[] mValues = new long[INITIAL_CAPACITY];
+        private int mSize;
+        // Open addressing table of (index + 1) into mKeys, 0 for an empty slot.
+        private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+        void put(String key, long value) {
+            int slot = findSlot(key);
+            if (mSlots[slot] != 0) {
+                mValues[mSlots[slot] - 1] = value;
+                return;
+            }
+            if (mSize == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mSize * 2);
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+                rehash(mSize * 4);
+                slot = findSlot(key);
+            }
+            mKeys[mSize] = key;
+            mValues[mSize] = value;
+            mSlots[slot] = ++mSize;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        String keyAt(int index) {
+            return mKeys[index];
+        }
+
+        long valueAt(int index) {
+            return mValues[index];
+        }
+
+        /** Returns the slot holding {@code key}, or the empty slot where it belongs. */
+        private int findSlot(String key) {
+            int mask = mSlots.length - 1;
+            int slot = (key.hashCode() * 0x9E3779B9) >>> 1 & mask;
+            while (mSlots[slot] != 0 && !mKeys[mSlots[slot] - 1].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash(int capacity) {
+            mSlots = new int[capacity];
+            for (int i = 0; i < mSize; i++) {
+                mSlots[findSlot(mKeys[i])] = i + 1;
+            }
+        }
+    }
 }
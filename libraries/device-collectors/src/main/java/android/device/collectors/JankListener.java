@@ -23,11 +23,25 @@ import androidx.annotation.VisibleForTesting;
 
 import com.android.helpers.JankCollectionHelper;
 
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * A {@link BaseCollectionListener} that captures and records jank metrics for a specific package or
  * for all packages if none are specified.
+ *
+ * Options:
+ * -e jank-package-names [pkg1,pkg2] : packages to track, all packages if not set.
+ * -e jank-framestats [true|false] : also collect "dumpsys gfxinfo <pkg> framestats" for the
+ * tracked packages and report frame time percentiles, jank count and maximum computed on the
+ * device, together with the serialized frame histogram as a binary metric. Unless per_run is
+ * set, the histograms of every collected test iteration are also merged and reported with the
+ * run metrics.
+ * -e jank-framestats-threshold-ms [ms] : frame time above which framestats frames are counted as
+ * janky, the vsync period of the display by default.
  */
 @OptionClass(alias = "jank-listener")
 public class JankListener extends BaseCollectionListener<Double> {
@@ -35,6 +49,11 @@ public class JankListener extends BaseCollectionListener<Double> {
 
     @VisibleForTesting static final String PACKAGE_SEPARATOR = ",";
     @VisibleForTesting static final String PACKAGE_NAMES_KEY = "jank-package-names";
+    @VisibleForTesting static final String FRAMESTATS_KEY = "jank-framestats";
+    @VisibleForTesting
+    static final String FRAMESTATS_THRESHOLD_KEY = "jank-framestats-threshold-ms";
+
+    private boolean mCollectFrameStats = false;
 
     public JankListener() {
         createHelperInstance(new JankCollectionHelper());
@@ -62,5 +81,59 @@ public class JankListener extends BaseCollectionListener<Double> {
         } else {
             Log.v(LOG_TAG, "Tracking all packages for jank.");
         }
+        mCollectFrameStats = Boolean.parseBoolean(args.getString(FRAMESTATS_KEY));
+        ((JankCollectionHelper) mHelper).setCollectFrameStats(mCollectFrameStats);
+
+        String thresholdValue = args.getString(FRAMESTATS_THRESHOLD_KEY);
+        if (thresholdValue != null && !setFrameStatsJankThreshold(thresholdValue)) {
+            Log.e(LOG_TAG, "Value for \"" + FRAMESTATS_THRESHOLD_KEY + "\" parameter is invalid,"
+                    + " using the display vsync period");
+        }
+    }
+
+    /** Returns false if {@code value} is not a valid threshold, leaving the helper default. */
+    private boolean setFrameStatsJankThreshold(String value) {
+        try {
+            return ((JankCollectionHelper) mHelper).setFrameStatsJankThreshold(
+                    (long) (Double.parseDouble(value.trim()) * 1_000_000));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** Starts merging the frame histograms of the run from scratch. */
+    @Override
+    public void onTestRunStart(DataRecord runData, Description description) {
+        ((JankCollectionHelper) mHelper).clearMergedFrameHistograms();
+        super.onTestRunStart(runData, description);
+    }
+
+    /** Adds the frame histograms of the tracked packages as binary metrics. */
+    @Override
+    public void addAdditionalMetrics(DataRecord data) {
+        if (!mCollectFrameStats) {
+            return;
+        }
+        addBinaryMetrics(data, ((JankCollectionHelper) mHelper).getFrameHistogramMetrics());
+    }
+
+    /** Reports the frame histograms merged over all the collected test iterations. */
+    @Override
+    public void onTestRunEnd(DataRecord runData, Result result) {
+        super.onTestRunEnd(runData, result);
+        if (!mCollectFrameStats || mIsCollectPerRun) {
+            return;
+        }
+        JankCollectionHelper helper = (JankCollectionHelper) mHelper;
+        for (Map.Entry<String, Double> entry : helper.getMergedFrameStatsMetrics().entrySet()) {
+            runData.addDoubleMetric(entry.getKey(), entry.getValue());
+        }
+        addBinaryMetrics(runData, helper.getMergedFrameHistogramMetrics());
+    }
+
+    private void addBinaryMetrics(DataRecord data, Map<String, byte[]> metrics) {
+        for (Map.Entry<String, byte[]> entry : metrics.entrySet()) {
+            data.addBinaryMetric(entry.getKey(), entry.getValue());
+        }
     }
 }
@@ -33,12 +33,14 @@ import org.junit.runner.Description;
  * Options:
  * -e processshowmap-process-name [processName] : the process from the test case that we want to
  * measure memory for
+ * -e showmap-concurrency [count] : number of processes sampled at once
  */
 @OptionClass(alias = "process-showmap-collector")
 public class ProcessShowmapListener extends BaseCollectionListener<Long> {
     private static final String TAG = ProcessShowmapListener.class.getSimpleName();
     @VisibleForTesting static final String PROCESS_SEPARATOR = ",";
     @VisibleForTesting static final String PROCESS_NAMES_KEY = "showmap-process-names";
+    @VisibleForTesting static final String CONCURRENCY_KEY = "showmap-concurrency";
     private ProcessShowmapHelper mShowmapHelper = new ProcessShowmapHelper();
 
     public ProcessShowmapListener() {
@@ -66,5 +68,20 @@ public class ProcessShowmapListener extends BaseCollectionListener<Long> {
         }
         String[] procs = procsString.split(PROCESS_SEPARATOR);
         mShowmapHelper.setUp(procs);
+
+        String concurrencyValue = args.getString(CONCURRENCY_KEY);
+        if (concurrencyValue != null && !setConcurrency(concurrencyValue)) {
+            Log.e(TAG, "Value for \"" + CONCURRENCY_KEY + "\" parameter is invalid, sampling one"
+                    + " process at a time");
+        }
+    }
+
+    /** Returns false if {@code value} is not a valid concurrency, leaving the helper default. */
+    private boolean setConcurrency(String value) {
+        try {
+            return mShowmapHelper.setConcurrency(Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 }
@@ -15,7 +15,9 @@
  */
 package android.device.collectors;
 
+import android.device.collectors.util.QuantileEstimator;
 import android.device.collectors.util.SendToInstrumentation;
+import android.device.collectors.util.TimeSeriesEncoder;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
@@ -23,11 +25,12 @@ import androidx.annotation.VisibleForTesting;
 
 import com.android.helpers.ICollectorHelper;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,9 +41,17 @@ import org.junit.runner.Result;
 
 /**
  * Extend this class for a periodic metric collection which relies on ICollectorHelper to collect
- * metrics and dump the time-series in csv format. In case of system crashes, the time series up to
+ * metrics and dump the time-series to a file. In case of system crashes, the time series up to
  * the point where the crash happened will still be stored.
  *
+ * The time-series is written in the compact binary format of {@link TimeSeriesEncoder}, which
+ * stores each value as a delta to the previous value of the same metric, and is reported as a file
+ * metric at the end of the run. {@link android.device.collectors.util.TimeSeriesDecoder} reads it
+ * back on the host. Only min, max, mean, p50, p95 and last value of each metric are reported as
+ * scalar metrics. The percentiles are estimated in constant memory per metric with
+ * {@link QuantileEstimator}, so they are exact only for up to five samples. Set the
+ * "time_series_csv" option to true to also dump the time-series in csv format.
+ *
  * In case of running tests with Tradefed file pulller, use the option
  * {@link file-puller-log-collector:directory-keys} from {{@link FilePullerLogCollector} to
  * specify the directory path under which the output file should be pulled from (i.e.
@@ -53,6 +64,11 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     private static final String TIME_SERIES_PREFIX = "time_series_";
     @VisibleForTesting public static final String OUTPUT_ROOT = "test_results";
     @VisibleForTesting public static final String OUTPUT_FILE_PATH = "%s_time_series_path";
+    @VisibleForTesting
+    public static final String BINARY_OUTPUT_FILE_PATH = "%s_time_series_binary_path";
+    @VisibleForTesting public static final String BINARY_OUTPUT_FILE = "%s_time_series_binary";
+    // Option to also write the time-series in csv format.
+    @VisibleForTesting public static final String TIME_SERIES_CSV_KEY = "time_series_csv";
 
     @VisibleForTesting
     public static final String TIME_SERIES_HEADER =
@@ -62,9 +78,13 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     @VisibleForTesting public static final String MEAN_SUFFIX = "-mean";
     @VisibleForTesting public static final String MAX_SUFFIX = "-max";
     @VisibleForTesting public static final String MIN_SUFFIX = "-min";
+    @VisibleForTesting public static final String P50_SUFFIX = "-p50";
+    @VisibleForTesting public static final String P95_SUFFIX = "-p95";
+    @VisibleForTesting public static final String LAST_SUFFIX = "-last";
 
     protected ICollectorHelper<T> mHelper;
     private TimeSeriesCsvWriter mTimeSeriesCsvWriter;
+    private TimeSeriesBinaryWriter mTimeSeriesBinaryWriter;
     private TimeSeriesStatistics mTimeSeriesStatistics;
     private long mStartTime;
 
@@ -92,10 +112,8 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
         private File mDestFile;
         private boolean mIsHeaderWritten = false;
 
-        private TimeSeriesCsvWriter(Path destination) {
-            // Create parent directory if it doesn't exist.
-            File destDir = createAndEmptyDirectory(destination.getParent().toString());
-            mDestFile = new File(destDir, destination.getFileName().toString());
+        private TimeSeriesCsvWriter(File destFile) {
+            mDestFile = destFile;
         }
 
         private void write(Map<String, T> dataPoint, long timeStamp) {
@@ -119,11 +137,62 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
         }
     }
 
+    /**
+     * Write a time-series with {@link TimeSeriesEncoder}. The stream stays open for the whole run
+     * and is flushed after every data point.
+     */
+    private class TimeSeriesBinaryWriter {
+        private File mDestFile;
+        private BufferedOutputStream mOutputStream;
+        private TimeSeriesEncoder mEncoder;
+
+        private TimeSeriesBinaryWriter(File destFile) {
+            mDestFile = destFile;
+            try {
+                mOutputStream = new BufferedOutputStream(new FileOutputStream(mDestFile));
+                mEncoder = new TimeSeriesEncoder(mOutputStream);
+                mEncoder.flush();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Fail to create the time series output file.", e);
+                close();
+            }
+        }
+
+        private void write(Map<String, T> dataPoint, long timeStamp) {
+            if (mEncoder == null) {
+                return;
+            }
+            try {
+                mEncoder.writeSample(timeStamp, dataPoint);
+                mEncoder.flush();
+            } catch (IOException e) {
+                Log.e(
+                        LOG_TAG,
+                        String.format("Fail to output time series due to : %s.", e.getMessage()));
+            }
+        }
+
+        private void close() {
+            mEncoder = null;
+            if (mOutputStream != null) {
+                try {
+                    mOutputStream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Fail to close the time series output file.", e);
+                }
+                mOutputStream = null;
+            }
+        }
+    }
+
     private class TimeSeriesStatistics {
         Map<String, T> minMap = new HashMap<>();
         Map<String, T> maxMap = new HashMap<>();
+        Map<String, T> lastMap = new HashMap<>();
         Map<String, Double> sumMap = new HashMap<>();
         Map<String, Long> countMap = new HashMap<>();
+        Map<String, QuantileEstimator> p50Map = new HashMap<>();
+        Map<String, QuantileEstimator> p95Map = new HashMap<>();
 
         private void update(Map<String, T> dataPoint) {
             for (String key : dataPoint.keySet()) {
@@ -138,6 +207,12 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
                 sumMap.put(key, value.doubleValue() + sumMap.getOrDefault(key, 0.));
                 // Add / update count.
                 countMap.put(key, 1 + countMap.getOrDefault(key, 0L));
+                lastMap.put(key, value);
+                // Add / update the percentiles.
+                p50Map.computeIfAbsent(key, k -> new QuantileEstimator(0.5))
+                        .add(value.doubleValue());
+                p95Map.computeIfAbsent(key, k -> new QuantileEstimator(0.95))
+                        .add(value.doubleValue());
             }
         }
 
@@ -155,6 +230,15 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
                     res.put(key + MEAN_SUFFIX, Double.toString(mean));
                 }
             }
+            for (String key : lastMap.keySet()) {
+                res.put(key + LAST_SUFFIX, lastMap.get(key).toString());
+            }
+            for (String key : p50Map.keySet()) {
+                res.put(key + P50_SUFFIX, Double.toString(p50Map.get(key).getQuantile()));
+            }
+            for (String key : p95Map.keySet()) {
+                res.put(key + P95_SUFFIX, Double.toString(p95Map.get(key).getQuantile()));
+            }
             return res;
         }
 
@@ -170,24 +254,34 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     @Override
     void onStart(DataRecord runData, Description description) {
         setupAdditionalArgs();
-        Path path =
-                Paths.get(
-                        OUTPUT_ROOT,
+        // Create parent directory if it doesn't exist.
+        File destDir =
+                createAndEmptyDirectory(
+                        Paths.get(OUTPUT_ROOT, getClass().getSimpleName()).toString());
+        String fileName =
+                String.format(
+                        "%s%s-%d",
+                        TIME_SERIES_PREFIX,
                         getClass().getSimpleName(),
-                        String.format(
-                                "%s%s-%d.csv",
-                                TIME_SERIES_PREFIX,
-                                getClass().getSimpleName(),
-                                UUID.randomUUID().hashCode()));
-        mTimeSeriesCsvWriter = new TimeSeriesCsvWriter(path);
+                        UUID.randomUUID().hashCode());
+        mTimeSeriesBinaryWriter = new TimeSeriesBinaryWriter(new File(destDir, fileName + ".bin"));
+        mTimeSeriesCsvWriter = null;
+        if (Boolean.parseBoolean(getArgsBundle().getString(TIME_SERIES_CSV_KEY))) {
+            mTimeSeriesCsvWriter = new TimeSeriesCsvWriter(new File(destDir, fileName + ".csv"));
+        }
         mTimeSeriesStatistics = new TimeSeriesStatistics();
         mStartTime = SystemClock.uptimeMillis();
         mHelper.startCollecting();
         // Send to stdout the path where the time-series files will be stored.
         Bundle filePathBundle = new Bundle();
         filePathBundle.putString(
-                String.format(OUTPUT_FILE_PATH, getClass().getSimpleName()),
-                mTimeSeriesCsvWriter.mDestFile.toString());
+                String.format(BINARY_OUTPUT_FILE_PATH, getClass().getSimpleName()),
+                mTimeSeriesBinaryWriter.mDestFile.toString());
+        if (mTimeSeriesCsvWriter != null) {
+            filePathBundle.putString(
+                    String.format(OUTPUT_FILE_PATH, getClass().getSimpleName()),
+                    mTimeSeriesCsvWriter.mDestFile.toString());
+        }
         SendToInstrumentation.sendBundle(getInstrumentation(), filePathBundle);
     }
 
@@ -195,6 +289,10 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     @Override
     void onEnd(DataRecord runData, Result result) {
         mHelper.stopCollecting();
+        mTimeSeriesBinaryWriter.close();
+        runData.addFileMetric(
+                String.format(BINARY_OUTPUT_FILE, getClass().getSimpleName()),
+                mTimeSeriesBinaryWriter.mDestFile);
         for (Map.Entry<String, String> entry : mTimeSeriesStatistics.getStatistics().entrySet()) {
             runData.addStringMetric(entry.getKey(), entry.getValue());
         }
@@ -205,7 +303,10 @@ public class ScheduledRunCollectionListener<T extends Number> extends ScheduledR
     public void collect(DataRecord runData, Description description) throws InterruptedException {
         long timeStamp = SystemClock.uptimeMillis() - mStartTime;
         Map<String, T> dataPoint = mHelper.getMetrics();
-        mTimeSeriesCsvWriter.write(dataPoint, timeStamp);
+        mTimeSeriesBinaryWriter.write(dataPoint, timeStamp);
+        if (mTimeSeriesCsvWriter != null) {
+            mTimeSeriesCsvWriter.write(dataPoint, timeStamp);
+        }
         mTimeSeriesStatistics.update(dataPoint);
     }
 
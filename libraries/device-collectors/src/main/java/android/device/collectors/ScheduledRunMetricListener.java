@@ -22,21 +22,52 @@ import android.util.Log;
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of {@link BaseMetricListener} that allows to run a periodic collection during the
  * instrumentation run. Implementing {@link #collect(DataRecord, Description)} as the periodic task
  * running. It is possible to run some actions before and at the end of the periodic run using
  * {@link #onStart(DataRecord, Description)} and {@link #onEnd(DataRecord, Result)}.
+ *
+ * Samples are scheduled at a fixed rate from the start of the run, so the schedule does not drift.
+ * A sample whose time comes while the previous {@link #collect} is still running is skipped and
+ * counted as an overrun instead of being run late. An exception thrown by {@link #collect} is
+ * logged and counted, and does not stop the following samples. The number of samples, overruns
+ * and failures, and the collect latency, are reported as run metrics.
+ *
+ * Options:
+ * -e interval [value] : period of the collection, in milliseconds by default. Sub-millisecond
+ * periods can be given with a unit suffix: "500us", "250ms" or "2s".
  */
 public abstract class ScheduledRunMetricListener extends BaseMetricListener {
 
     public static final String INTERVAL_ARG_KEY = "interval";
     private static final long DEFAULT_INTERVAL_MS = 60 * 1000l; // 1 min
+    // Maximum time to wait for a running collection when the run ends.
+    private static final long SHUTDOWN_TIMEOUT_MS = 10 * 1000L;
+
+    // Run metrics describing the sampler.
+    @VisibleForTesting static final String SAMPLE_COUNT_SUFFIX = "_sampler_sample_count";
+    @VisibleForTesting static final String OVERRUN_COUNT_SUFFIX = "_sampler_overrun_count";
+    @VisibleForTesting static final String FAILURE_COUNT_SUFFIX = "_sampler_failure_count";
+    @VisibleForTesting static final String LATENCY_MEAN_SUFFIX = "_sampler_latency_mean_ms";
+    @VisibleForTesting static final String LATENCY_MAX_SUFFIX = "_sampler_latency_max_ms";
+    @VisibleForTesting static final String START_DELAY_MAX_SUFFIX = "_sampler_start_delay_max_ms";
 
-    private Timer mTimer;
+    private ScheduledExecutorService mScheduler;
+    private long mStartNanos;
+    private long mIntervalNanos;
+    // Only accessed from the sampler thread while the run is in progress.
+    private long mTickCount;
+    private long mSampleCount;
+    private long mOverrunCount;
+    private long mFailureCount;
+    private long mLatencySumNanos;
+    private long mLatencyMaxNanos;
+    private long mStartDelayMaxNanos;
 
     public ScheduledRunMetricListener() {}
 
@@ -49,35 +80,83 @@ public abstract class ScheduledRunMetricListener extends BaseMetricListener {
     public final void onTestRunStart(final DataRecord runData, final Description description) {
         Log.d(getTag(), "Starting");
         onStart(runData, description);
-        // TODO: could this be done with Handlers ?
-        mTimer = new Timer();
-        TimerTask timerTask =
-                new TimerTask() {
-                    @Override
-                    public void run() {
-                        try {
-                            collect(runData, description);
-                        } catch (InterruptedException e) {
-                            mTimer.cancel();
-                            Thread.currentThread().interrupt();
-                            Log.e(getTag(), "Interrupted exception thrown from task:", e);
-                        }
-                    }
-                };
-
-        mTimer.scheduleAtFixedRate(timerTask, 0, getIntervalFromArgs());
+        mIntervalNanos = getIntervalNanosFromArgs();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(
+                runnable -> new Thread(runnable, getTag() + "-sampler"));
+        mStartNanos = System.nanoTime();
+        mScheduler.scheduleAtFixedRate(
+                () -> sample(runData, description), 0, mIntervalNanos, TimeUnit.NANOSECONDS);
     }
 
     @Override
     public final void onTestRunEnd(DataRecord runData, Result result) {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer.purge();
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+            try {
+                if (!mScheduler.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    mScheduler.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                mScheduler.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            reportSamplerMetrics(runData);
         }
         onEnd(runData, result);
         Log.d(getTag(), "Finished");
     }
 
+    /** Runs on the sampler thread for every tick of the fixed rate schedule. */
+    private void sample(DataRecord runData, Description description) {
+        long scheduledNanos = mStartNanos + mTickCount++ * mIntervalNanos;
+        long startNanos = System.nanoTime();
+        long delayNanos = startNanos - scheduledNanos;
+        if (delayNanos >= mIntervalNanos) {
+            // The tick was held back by a slow collection, the next one is already due.
+            mOverrunCount++;
+            return;
+        }
+        mStartDelayMaxNanos = Math.max(mStartDelayMaxNanos, delayNanos);
+        try {
+            collect(runData, description);
+        } catch (InterruptedException e) {
+            mScheduler.shutdown();
+            Thread.currentThread().interrupt();
+            Log.e(getTag(), "Interrupted exception thrown from task:", e);
+            return;
+        } catch (RuntimeException e) {
+            // Keep sampling, a failed sample must not cancel the schedule.
+            mFailureCount++;
+            Log.e(getTag(), "Exception thrown from task:", e);
+        }
+        long latencyNanos = System.nanoTime() - startNanos;
+        mSampleCount++;
+        mLatencySumNanos += latencyNanos;
+        mLatencyMaxNanos = Math.max(mLatencyMaxNanos, latencyNanos);
+    }
+
+    private void reportSamplerMetrics(DataRecord runData) {
+        String prefix = getSamplerKeyPrefix();
+        runData.addStringMetric(prefix + SAMPLE_COUNT_SUFFIX, String.valueOf(mSampleCount));
+        runData.addStringMetric(prefix + OVERRUN_COUNT_SUFFIX, String.valueOf(mOverrunCount));
+        runData.addStringMetric(prefix + FAILURE_COUNT_SUFFIX, String.valueOf(mFailureCount));
+        if (mSampleCount > 0) {
+            runData.addStringMetric(prefix + LATENCY_MEAN_SUFFIX,
+                    String.valueOf(mLatencySumNanos / 1e6 / mSampleCount));
+            runData.addStringMetric(
+                    prefix + LATENCY_MAX_SUFFIX, String.valueOf(mLatencyMaxNanos / 1e6));
+            runData.addStringMetric(
+                    prefix + START_DELAY_MAX_SUFFIX, String.valueOf(mStartDelayMaxNanos / 1e6));
+        }
+    }
+
+    /** Returns the prefix of the sampler metric keys, based on the listener class name. */
+    @VisibleForTesting
+    String getSamplerKeyPrefix() {
+        String name = getClass().getSimpleName();
+        return name.isEmpty() ? "scheduled_run" : name;
+    }
+
     /**
      * Executed when entering this collector.
      *
@@ -111,11 +190,11 @@ public abstract class ScheduledRunMetricListener extends BaseMetricListener {
     /**
      * Extract the interval from the instrumentation arguments or use the default interval value.
      */
-    private long getIntervalFromArgs() {
+    private long getIntervalNanosFromArgs() {
         String intervalValue = getArgsBundle().getString(INTERVAL_ARG_KEY);
         long interval = 0L;
         try {
-            interval = Long.parseLong(intervalValue);
+            interval = parseIntervalNanos(intervalValue);
         } catch (NumberFormatException e) {
             Log.e(getTag(), "Failed to parse the interval value.", e);
         }
@@ -124,9 +203,30 @@ public abstract class ScheduledRunMetricListener extends BaseMetricListener {
             Log.d(getTag(),
                     String.format(
                             "Using default interval %s for periodic task. %s could not be used.",
-                            DEFAULT_INTERVAL_MS, interval));
-            interval = DEFAULT_INTERVAL_MS;
+                            DEFAULT_INTERVAL_MS, intervalValue));
+            interval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL_MS);
         }
         return interval;
     }
+
+    /**
+     * Parses an interval in milliseconds, or with a "us", "ms" or "s" unit suffix.
+     *
+     * @throws NumberFormatException if the value is missing or not a number
+     */
+    @VisibleForTesting
+    static long parseIntervalNanos(String value) {
+        if (value == null) {
+            throw new NumberFormatException("No interval value");
+        }
+        String trimmed = value.trim();
+        if (trimmed.endsWith("us")) {
+            return TimeUnit.MICROSECONDS.toNanos(Long.parseLong(trimmed.replaceAll("us$", "")));
+        } else if (trimmed.endsWith("ms")) {
+            return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(trimmed.replaceAll("ms$", "")));
+        } else if (trimmed.endsWith("s")) {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(trimmed.replaceAll("s$", "")));
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(trimmed));
+    }
 }
@@ -34,6 +34,9 @@ import java.util.Map;
  * -e test-output-dir [path] : path to the output directory
  * -e metric-index [rss:2,pss:3,privatedirty:7] : memory metric name corresponding
  *  to index in the showmap output.
+ * -e streaming-parser [true | false] : parse the showmap output while streaming it to the
+ *  output file instead of buffering it.
+ * -e concurrency [count] : number of processes collected at once.
  */
 @OptionClass(alias = "showmapsnapshot-collector")
 public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
@@ -45,6 +48,8 @@ public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
   @VisibleForTesting static final String METRIC_NAME_INDEX = "metric-name-index";
   @VisibleForTesting static final String DROP_CACHE_KEY = "drop-cache";
   @VisibleForTesting static final String OUTPUT_DIR_KEY = "test-output-dir";
+  @VisibleForTesting static final String STREAMING_PARSER_KEY = "streaming-parser";
+  @VisibleForTesting static final String CONCURRENCY_KEY = "concurrency";
 
   private ShowmapSnapshotHelper mShowmapSnapshotHelper = new ShowmapSnapshotHelper();
   private final Map<String, Integer> dropCacheValues = new HashMap<String, Integer>() {
@@ -106,6 +111,14 @@ public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
 
 
     mShowmapSnapshotHelper.setUp(testOutputDir, procs);
+    mShowmapSnapshotHelper.setStreamingMode(
+        Boolean.parseBoolean(args.getString(STREAMING_PARSER_KEY)));
+
+    String concurrencyValue = args.getString(CONCURRENCY_KEY);
+    if (concurrencyValue != null && !setConcurrency(concurrencyValue)) {
+      Log.e(TAG, "Value for \"" + CONCURRENCY_KEY + "\" parameter is invalid, collecting one"
+          + " process at a time");
+    }
 
     String dropCacheValue = args.getString(DROP_CACHE_KEY);
     if (dropCacheValue != null) {
@@ -117,4 +130,13 @@ public class ShowmapSnapshotListener extends BaseCollectionListener<String> {
       }
     }
   }
+
+  /** Returns false if {@code value} is not a valid concurrency, leaving the helper default. */
+  private boolean setConcurrency(String value) {
+    try {
+      return mShowmapSnapshotHelper.setConcurrency(Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
 }
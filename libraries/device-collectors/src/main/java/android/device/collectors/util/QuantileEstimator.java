@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+/**
+ * Estimates one quantile of a stream of values in constant memory, with the P-square algorithm of
+ * Jain and Chlamtac: five markers track the minimum, the maximum, the quantile and the quantiles
+ * half way to the extremes, and are moved along a parabola fitted through their neighbours as
+ * values arrive.
+ *
+ * The quantile is exact, with the nearest-rank definition, until five values were added; it is
+ * an estimate afterwards, which gets closer to the exact quantile as more values are added.
+ *
+ * Not thread safe. Pure Java.
+ */
+public class QuantileEstimator {
+    private static final int MARKERS = 5;
+
+    private final double mQuantile;
+    // Heights and actual positions, starting at 1, of the markers.
+    private final double[] mHeights = new double[MARKERS];
+    private final int[] mPositions = new int[MARKERS];
+    // Desired positions of the markers, and their increments per added value.
+    private final double[] mDesiredPositions = new double[MARKERS];
+    private final double[] mIncrements = new double[MARKERS];
+    private int mCount;
+
+    /** @param quantile quantile to estimate, between 0 and 1, for example 0.95 for p95. */
+    public QuantileEstimator(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        }
+        mQuantile = quantile;
+        mIncrements[0] = 0;
+        mIncrements[1] = quantile / 2;
+        mIncrements[2] = quantile;
+        mIncrements[3] = (1 + quantile) / 2;
+        mIncrements[4] = 1;
+    }
+
+    /** Adds {@code value} to the stream. */
+    public void add(double value) {
+        if (mCount < MARKERS) {
+            // Keep the first values, sorted, until every marker is set.
+            int i = mCount++;
+            while (i > 0 && mHeights[i - 1] > value) {
+                mHeights[i] = mHeights[i - 1];
+                i--;
+            }
+            mHeights[i] = value;
+            if (mCount == MARKERS) {
+                for (int j = 0; j < MARKERS; j++) {
+                    mPositions[j] = j + 1;
+                    mDesiredPositions[j] = 1 + 4 * mIncrements[j];
+                }
+            }
+            return;
+        }
+        mCount++;
+        // Find the cell of the value, extending the extremes if needed.
+        int cell;
+        if (value < mHeights[0]) {
+            mHeights[0] = value;
+            cell = 0;
+        } else if (value >= mHeights[MARKERS - 1]) {
+            mHeights[MARKERS - 1] = value;
+            cell = MARKERS - 2;
+        } else {
+            cell = 0;
+            while (value >= mHeights[cell + 1]) {
+                cell++;
+            }
+        }
+        for (int i = cell + 1; i < MARKERS; i++) {
+            mPositions[i]++;
+        }
+        for (int i = 0; i < MARKERS; i++) {
+            mDesiredPositions[i] += mIncrements[i];
+        }
+        // Move the middle markers that drifted by at least one position from where they belong.
+        for (int i = 1; i < MARKERS - 1; i++) {
+            double drift = mDesiredPositions[i] - mPositions[i];
+            if ((drift >= 1 && mPositions[i + 1] - mPositions[i] > 1)
+                    || (drift <= -1 && mPositions[i - 1] - mPositions[i] < -1)) {
+                int step = drift > 0 ? 1 : -1;
+                double height = parabolic(i, step);
+                if (mHeights[i - 1] < height && height < mHeights[i + 1]) {
+                    mHeights[i] = height;
+                } else {
+                    mHeights[i] = linear(i, step);
+                }
+                mPositions[i] += step;
+            }
+        }
+    }
+
+    /** Returns the number of values added. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Returns the estimated quantile of the values added, or NaN if none was added. */
+    public double getQuantile() {
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        if (mCount <= MARKERS) {
+            // The first values are kept sorted.
+            int rank = (int) Math.ceil(mQuantile * mCount);
+            return mHeights[Math.max(rank, 1) - 1];
+        }
+        return mHeights[2];
+    }
+
+    private double parabolic(int i, int step) {
+        double left = mPositions[i] - mPositions[i - 1];
+        double right = mPositions[i + 1] - mPositions[i];
+        return mHeights[i]
+                + step / (double) (mPositions[i + 1] - mPositions[i - 1])
+                        * ((left + step) * (mHeights[i + 1] - mHeights[i]) / right
+                                + (right - step) * (mHeights[i] - mHeights[i - 1]) / left);
+    }
+
+    private double linear(int i, int step) {
+        return mHeights[i]
+                + step * (mHeights[i + step] - mHeights[i])
+                        / (mPositions[i + step] - mPositions[i]);
+    }
+}
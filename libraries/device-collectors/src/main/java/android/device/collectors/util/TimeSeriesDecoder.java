@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a stream written by {@link TimeSeriesEncoder} back into one {@link Series} per metric
+ * key. A truncated last record, as left by a writer that stopped abruptly, is ignored.
+ *
+ * Pure Java, so it can be used on the host to process pulled time series files.
+ *
+ * Example Usage:
+ * try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+ *     Map<String, TimeSeriesDecoder.Series> series = TimeSeriesDecoder.decode(in);
+ * }
+ */
+public class TimeSeriesDecoder {
+
+    /** Samples of one metric key, in the order they were written. */
+    public static class Series {
+        private long[] mTimestamps = new long[16];
+        private double[] mValues = new double[16];
+        private int mSize;
+
+        private void add(long timestamp, double value) {
+            if (mSize == mTimestamps.length) {
+                mTimestamps = Arrays.copyOf(mTimestamps, mSize * 2);
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mTimestamps[mSize] = timestamp;
+            mValues[mSize] = value;
+            mSize++;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public long[] getTimestamps() {
+            return Arrays.copyOf(mTimestamps, mSize);
+        }
+
+        public double[] getValues() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+
+    private static final class Column {
+        final int type;
+        final Series series;
+        long previous;
+
+        Column(int type, Series series) {
+            this.type = type;
+            this.series = series;
+        }
+    }
+
+    private final InputStream mIn;
+    private final List<Column> mColumns = new ArrayList<>();
+    private final Map<String, Series> mSeries = new LinkedHashMap<>();
+    private long mTimestamp;
+    // Values of the sample being read, only added to their series once the sample is complete.
+    private int[] mPendingColumns = new int[16];
+    private double[] mPendingValues = new double[16];
+    private long[] mPendingBits = new long[16];
+
+    private TimeSeriesDecoder(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Decodes {@code in} until its end. Values of a key that was written both as long and as
+     * double end up in the same series.
+     *
+     * @return the series by metric key, in the order the keys first appeared
+     * @throws IOException if reading fails or {@code in} is not a time series stream
+     */
+    public static Map<String, Series> decode(InputStream in) throws IOException {
+        TimeSeriesDecoder decoder = new TimeSeriesDecoder(in);
+        decoder.readHeader();
+        try {
+            while (decoder.readRecord()) {
+                // Keep reading.
+            }
+        } catch (TruncatedException e) {
+            // The writer stopped in the middle of a record, keep what was complete.
+        }
+        return decoder.mSeries;
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[TimeSeriesEncoder.MAGIC.length];
+        int read = 0;
+        while (read < magic.length) {
+            int count = mIn.read(magic, read, magic.length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        if (!Arrays.equals(magic, TimeSeriesEncoder.MAGIC)) {
+            throw new IOException("Not a time series stream");
+        }
+    }
+
+    /** Reads one record. Returns false at the end of the stream. */
+    private boolean readRecord() throws IOException {
+        int tag = mIn.read();
+        if (tag < 0) {
+            return false;
+        }
+        switch (tag) {
+            case TimeSeriesEncoder.TAG_KEY:
+                readKey();
+                return true;
+            case TimeSeriesEncoder.TAG_SAMPLE:
+                readSample();
+                return true;
+            default:
+                throw new IOException("Unknown record tag " + tag);
+        }
+    }
+
+    private void readKey() throws IOException {
+        int id = (int) readVarint();
+        int type = (int) readVarint();
+        byte[] name = readBytes((int) readVarint());
+        if (id != mColumns.size()) {
+            throw new IOException("Unexpected column id " + id);
+        }
+        if (type != TimeSeriesEncoder.TYPE_LONG && type != TimeSeriesEncoder.TYPE_DOUBLE) {
+            throw new IOException("Unknown column type " + type);
+        }
+        Series series =
+                mSeries.computeIfAbsent(
+                        new String(name, StandardCharsets.UTF_8), k -> new Series());
+        mColumns.add(new Column(type, series));
+    }
+
+    private void readSample() throws IOException {
+        long timestamp = mTimestamp + unzigzag(readVarint());
+        int count = (int) readVarint();
+        if (count > mPendingColumns.length) {
+            mPendingColumns = new int[count];
+            mPendingValues = new double[count];
+            mPendingBits = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            int id = (int) readVarint();
+            if (id < 0 || id >= mColumns.size()) {
+                throw new IOException("Undeclared column id " + id);
+            }
+            Column column = mColumns.get(id);
+            long encoded = readVarint();
+            mPendingColumns[i] = id;
+            if (column.type == TimeSeriesEncoder.TYPE_LONG) {
+                mPendingBits[i] = column.previous + unzigzag(encoded);
+                mPendingValues[i] = mPendingBits[i];
+            } else {
+                mPendingBits[i] = column.previous ^ encoded;
+                mPendingValues[i] = Double.longBitsToDouble(mPendingBits[i]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            Column column = mColumns.get(mPendingColumns[i]);
+            column.previous = mPendingBits[i];
+            column.series.add(timestamp, mPendingValues[i]);
+        }
+        mTimestamp = timestamp;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+        for (int i = 0; i < length; i++) {
+            bytes.write(readByte());
+        }
+        return bytes.toByteArray();
+    }
+
+    private int readByte() throws IOException {
+        int value = mIn.read();
+        if (value < 0) {
+            throw new TruncatedException();
+        }
+        return value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Thrown when the stream ends in the middle of a record. */
+    private static class TruncatedException extends IOException {}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes time series samples as a compact binary stream, read back by {@link TimeSeriesDecoder}.
+ *
+ * The stream starts with the {@link #MAGIC} bytes, followed by records. Each record starts with a
+ * one byte tag:
+ * <ul>
+ *   <li>{@link #TAG_KEY}: declares a column. varint id, varint type ({@link #TYPE_LONG} or
+ *       {@link #TYPE_DOUBLE}), varint name length, UTF-8 name. A column is declared right before
+ *       the first sample using it.
+ *   <li>{@link #TAG_SAMPLE}: one row. zigzag varint timestamp delta to the previous row, varint
+ *       value count, then per value its varint column id and its encoded value. Long values are
+ *       the zigzag varint delta to the previous value of the column; double values are the varint
+ *       of their bits XOR the bits of the previous value of the column.
+ * </ul>
+ *
+ * Slowly changing long series therefore take one or two bytes per value. A double value that did
+ * not change takes one byte, but any other change usually flips high mantissa bits and takes up
+ * to ten bytes, so double series are only compact when they repeat values. The stream stays
+ * readable up to the last complete record if the writer stops abruptly, for example on a crash.
+ *
+ * Not thread safe. Pure Java, so the format can be decoded on the host.
+ */
+public class TimeSeriesEncoder {
+    public static final byte[] MAGIC = {'A', 'T', 'S', '1'};
+    public static final int TAG_KEY = 1;
+    public static final int TAG_SAMPLE = 2;
+    public static final int TYPE_LONG = 0;
+    public static final int TYPE_DOUBLE = 1;
+
+    // A value keeps its column as long as its type does not change.
+    private static final class Column {
+        final int id;
+        final int type;
+        long previous;
+
+        Column(int id, int type) {
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final Map<String, Column> mLongColumns = new HashMap<>();
+    private final Map<String, Column> mDoubleColumns = new HashMap<>();
+    private int mNextId;
+    private long mPreviousTimestamp;
+    // Scratch buffer for one record.
+    private byte[] mBuffer = new byte[256];
+    private int mLength;
+
+    /** Writes the header to {@code out}. The stream is not buffered, pass a buffered one. */
+    public TimeSeriesEncoder(OutputStream out) throws IOException {
+        mOut = out;
+        mOut.write(MAGIC);
+    }
+
+    /**
+     * Writes one row of values taken at {@code timestamp}. Integral values ({@link Long},
+     * {@link Integer}, {@link Short} and {@link Byte}) are stored as longs, any other number as a
+     * double.
+     */
+    public void writeSample(long timestamp, Map<String, ? extends Number> values)
+            throws IOException {
+        Column[] columns = new Column[values.size()];
+        int i = 0;
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            columns[i++] = getColumn(entry.getKey(), entry.getValue());
+        }
+        mLength = 0;
+        writeByte(TAG_SAMPLE);
+        writeVarint(zigzag(timestamp - mPreviousTimestamp));
+        writeVarint(columns.length);
+        i = 0;
+        for (Number value : values.values()) {
+            Column column = columns[i++];
+            writeVarint(column.id);
+            if (column.type == TYPE_LONG) {
+                long current = value.longValue();
+                writeVarint(zigzag(current - column.previous));
+                column.previous = current;
+            } else {
+                long current = Double.doubleToLongBits(value.doubleValue());
+                writeVarint(current ^ column.previous);
+                column.previous = current;
+            }
+        }
+        mOut.write(mBuffer, 0, mLength);
+        mPreviousTimestamp = timestamp;
+    }
+
+    /** Flushes the underlying stream. */
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /** Returns the column of {@code key} for the type of {@code value}, declaring it if needed. */
+    private Column getColumn(String key, Number value) throws IOException {
+        boolean integral = value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte;
+        Map<String, Column> columns = integral ? mLongColumns : mDoubleColumns;
+        Column column = columns.get(key);
+        if (column == null) {
+            column = new Column(mNextId++, integral ? TYPE_LONG : TYPE_DOUBLE);
+            columns.put(key, column);
+            byte[] name = key.getBytes(StandardCharsets.UTF_8);
+            mLength = 0;
+            writeByte(TAG_KEY);
+            writeVarint(column.id);
+            writeVarint(column.type);
+            writeVarint(name.length);
+            mOut.write(mBuffer, 0, mLength);
+            mOut.write(name);
+        }
+        return column;
+    }
+
+    private void writeByte(int value) {
+        if (mLength == mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+        }
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    /** Writes {@code value} as an unsigned LEB128 varint. */
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
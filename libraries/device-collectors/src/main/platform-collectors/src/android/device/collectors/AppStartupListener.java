@@ -17,12 +17,19 @@ package android.device.collectors;
 
 import android.device.collectors.annotations.OptionClass;
 import android.os.Bundle;
+import android.util.Log;
 
 import com.android.helpers.AppStartupHelper;
 
+import java.io.File;
+
 /**
  * A {@link AppStartupListener} that captures app startup during the test method.
  *
+ * With aggregate_latencies set, the min, mean and percentiles of the latencies are reported
+ * instead of every latency, and the latencies are saved to a binary file reported as a file
+ * metric. This needs external storage permission, see {@link BaseMetricListener}.
+ *
  * Do NOT throw exception anywhere in this class. We don't want to halt the test when metrics
  * collection fails.
  */
@@ -30,6 +37,13 @@ import com.android.helpers.AppStartupHelper;
 public class AppStartupListener extends BaseCollectionListener<StringBuilder> {
 
     private static final String DISABLE_PROC_START_DETAILS = "disable_process_start_details";
+    private static final String INCREMENTAL_PULL_INTERVAL_MS = "incremental_pull_interval_ms";
+    private static final String AGGREGATE_LATENCIES = "aggregate_latencies";
+    private static final String LATENCY_SERIES_DIR = "run_listeners/app_startup";
+    private static final String LATENCY_SERIES_KEY = "app_startup_latency_series";
+
+    private File mLatencySeriesDir;
+    private int mLatencySeriesCount = 0;
 
     public AppStartupListener() {
         createHelperInstance(new AppStartupHelper());
@@ -45,5 +59,32 @@ public class AppStartupListener extends BaseCollectionListener<StringBuilder> {
         if ("true".equals(args.getString(DISABLE_PROC_START_DETAILS))) {
             appstartupHelper.setDisableProcStartDetails();
         }
+        if (args.containsKey(INCREMENTAL_PULL_INTERVAL_MS)) {
+            try {
+                appstartupHelper.setIncrementalPullInterval(
+                        Long.parseLong(args.getString(INCREMENTAL_PULL_INTERVAL_MS)));
+            } catch (NumberFormatException e) {
+                Log.e(getTag(), "Failed to parse the incremental pull interval", e);
+            }
+        }
+        if ("true".equals(args.getString(AGGREGATE_LATENCIES))) {
+            appstartupHelper.setEnableAggregateOutput();
+            mLatencySeriesDir = createAndEmptyDirectory(LATENCY_SERIES_DIR);
+        }
+    }
+
+    /**
+     * Saves the latencies aggregated by the helper and adds the file as a metric.
+     */
+    @Override
+    public void addAdditionalMetrics(DataRecord data) {
+        if (mLatencySeriesDir == null) {
+            return;
+        }
+        File file = new File(mLatencySeriesDir,
+                String.format("%s_%d.bin", LATENCY_SERIES_KEY, ++mLatencySeriesCount));
+        if (((AppStartupHelper) mHelper).writeLatencySeries(file)) {
+            data.addFileMetric(LATENCY_SERIES_KEY, file);
+        }
     }
 }
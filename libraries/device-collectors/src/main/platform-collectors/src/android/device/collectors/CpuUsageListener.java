@@ -17,6 +17,7 @@ package android.device.collectors;
 
 import android.device.collectors.annotations.OptionClass;
 import android.os.Bundle;
+import android.util.Log;
 
 import com.android.helpers.CpuUsageHelper;
 
@@ -34,6 +35,8 @@ public class CpuUsageListener extends BaseCollectionListener<Long> {
     private static final String DISABLE_TOTAL_PKG = "disable_total_pkg";
     private static final String DISABLE_TOTAL_FREQ = "disable_total_freq";
     private static final String ENABLE_CPU_UTILIZATION = "enable_cpu_utilization";
+    private static final String ENABLE_STATSD_WAIT_TIME = "enable_statsd_wait_time";
+    private static final String STATSD_WAIT_TIMEOUT_MS = "statsd_wait_timeout_ms";
 
     public CpuUsageListener() {
         createHelperInstance(new CpuUsageHelper());
@@ -65,6 +68,19 @@ public class CpuUsageListener extends BaseCollectionListener<Long> {
         if ("true".equals(args.getString(ENABLE_CPU_UTILIZATION))) {
             cpuUsageHelper.setEnableCpuUtilization();
         }
+
+        if ("true".equals(args.getString(ENABLE_STATSD_WAIT_TIME))) {
+            cpuUsageHelper.setEnableStatsdWaitTime();
+        }
+
+        if (args.containsKey(STATSD_WAIT_TIMEOUT_MS)) {
+            try {
+                cpuUsageHelper.setStatsdWaitTimeout(
+                        Long.parseLong(args.getString(STATSD_WAIT_TIMEOUT_MS)));
+            } catch (NumberFormatException e) {
+                Log.e(getTag(), "Failed to parse the statsd wait timeout", e);
+            }
+        }
     }
 }
 
@@ -27,6 +27,7 @@ import android.util.StatsLog;
 import androidx.annotation.VisibleForTesting;
 import androidx.test.InstrumentationRegistry;
 
+import com.android.helpers.StatsdHelper;
 import com.android.internal.os.StatsdConfigProto.StatsdConfig;
 import com.android.os.AtomsProto.Atom;
 import com.android.os.StatsLog.ConfigMetricsReportList;
@@ -41,10 +42,14 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
@@ -56,6 +61,10 @@ public class StatsdListener extends BaseMetricListener {
 
     static final String OPTION_CONFIGS_RUN_LEVEL = "statsd-configs-run-level";
     static final String OPTION_CONFIGS_TEST_LEVEL = "statsd-configs-test-level";
+    // Parse the reports before saving them, and skip the ones that cannot be parsed.
+    static final String OPTION_VALIDATE_REPORTS = "statsd-validate-reports";
+    // Register the compatible configs of each level as a single config.
+    static final String OPTION_MERGE_CONFIGS = "statsd-merge-configs";
 
     // Sub-directory within the test APK's assets/ directory to look for configs.
     static final String CONFIG_SUB_DIRECTORY = "statsd-configs";
@@ -75,6 +84,8 @@ public class StatsdListener extends BaseMetricListener {
     static final String REPORT_KEY_PREFIX = "statsd-";
     // Common prefix for the metric file.
     static final String REPORT_FILENAME_PREFIX = "statsd-";
+    // Separator between the names of configs merged into a single config.
+    static final String MERGED_CONFIG_NAME_SEPARATOR = "+";
 
     // Labels used to signify test events to statsd with the AppBreadcrumbReported atom.
     static final int RUN_EVENT_LABEL = 7;
@@ -96,13 +107,23 @@ public class StatsdListener extends BaseMetricListener {
     // Cached stats manager instance.
     private StatsManager mStatsManager;
 
+    private boolean mValidateReports = false;
+
     /** Register the test run configs with {@link StatsManager} before the test run starts. */
     @Override
     public void onTestRunStart(DataRecord runData, Description description) {
         // The argument parsing has to be performed here as the instrumentation has not yet been
         // registered when the constructor of this class is called.
-        mRunLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_RUN_LEVEL));
-        mTestLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_TEST_LEVEL));
+        Bundle args = getArguments();
+        mValidateReports = "true".equals(args.getString(OPTION_VALIDATE_REPORTS));
+        if ("true".equals(args.getString(OPTION_MERGE_CONFIGS))) {
+            mRunLevelConfigs.putAll(mergeConfigs(getConfigsFromOption(OPTION_CONFIGS_RUN_LEVEL)));
+            mTestLevelConfigs.putAll(
+                    mergeConfigs(getConfigsFromOption(OPTION_CONFIGS_TEST_LEVEL)));
+        } else {
+            mRunLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_RUN_LEVEL));
+            mTestLevelConfigs.putAll(getConfigsFromOption(OPTION_CONFIGS_TEST_LEVEL));
+        }
 
         mRunLevelConfigIds = registerConfigsWithStatsManager(mRunLevelConfigs);
 
@@ -174,23 +195,30 @@ public class StatsdListener extends BaseMetricListener {
     private Map<String, Long> registerConfigsWithStatsManager(
             final Map<String, StatsdConfig> configs) {
         Map<String, Long> configIds = new HashMap<String, Long>();
-        adoptShellPermissionIdentity();
-        for (String configName : configs.keySet()) {
-            long configId = getUniqueIdForConfig(configs.get(configName));
-            StatsdConfig newConfig = configs.get(configName).toBuilder().setId(configId).build();
-            try {
-                Log.i(LOG_TAG, String.format("Adding config %s with ID %d.", configName, configId));
-                addStatsConfig(configId, newConfig.toByteArray());
-                configIds.put(configName, configId);
-            } catch (StatsUnavailableException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Failed to add statsd config %s due to %s.",
-                                configName, e.toString()));
+        // Other statsd users must not drop the shell identity while it is held.
+        synchronized (StatsdHelper.SHELL_IDENTITY_LOCK) {
+            adoptShellPermissionIdentity();
+            for (String configName : configs.keySet()) {
+                long configId = getUniqueIdForConfig(configs.get(configName));
+                StatsdConfig newConfig =
+                        configs.get(configName).toBuilder().setId(configId).build();
+                try {
+                    Log.i(
+                            LOG_TAG,
+                            String.format(
+                                    "Adding config %s with ID %d.", configName, configId));
+                    addStatsConfig(configId, newConfig.toByteArray());
+                    configIds.put(configName, configId);
+                } catch (StatsUnavailableException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Failed to add statsd config %s due to %s.",
+                                    configName, e.toString()));
+                }
             }
+            dropShellPermissionIdentity();
         }
-        dropShellPermissionIdentity();
         return configIds;
     }
 
@@ -214,70 +242,160 @@ public class StatsdListener extends BaseMetricListener {
             saveDirectory.mkdirs();
         }
         Map<String, File> savedConfigFiles = new HashMap<String, File>();
-        adoptShellPermissionIdentity();
-        for (String configName : configIds.keySet()) {
-            // Dump the metric report to external storage.
-            ConfigMetricsReportList reportList;
-            try {
-                Log.i(
-                        LOG_TAG,
-                        String.format(
-                                "Pulling metrics for config %s with ID %d.",
-                                configName, configIds.get(configName)));
-                reportList =
-                        ConfigMetricsReportList.parseFrom(
-                                getStatsReports(configIds.get(configName)));
-                Log.i(
-                        LOG_TAG,
-                        String.format(
-                                "Found %d metric %s from config %s.",
-                                reportList.getReportsCount(),
-                                reportList.getReportsCount() == 1 ? "report" : "reports",
-                                configName));
-                File reportFile =
-                        new File(
-                                saveDirectory,
-                                REPORT_FILENAME_PREFIX + configName + suffix + PROTO_EXTENSION);
-                writeToFile(reportFile, reportList.toByteArray());
-                savedConfigFiles.put(configName, reportFile);
-            } catch (StatsUnavailableException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Failed to retrieve metrics for config %s due to %s.",
-                                configName, e.toString()));
-            } catch (InvalidProtocolBufferException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Unable to parse report for config %s. Details: %s.",
-                                configName, e.toString()));
-            } catch (IOException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Failed to write metric report for config %s to device. "
-                                        + "Details: %s.",
-                                configName, e.toString()));
+        // Other statsd users must not drop the shell identity while it is held.
+        synchronized (StatsdHelper.SHELL_IDENTITY_LOCK) {
+            adoptShellPermissionIdentity();
+            for (String configName : configIds.keySet()) {
+                // Dump the metric report to external storage.
+                try {
+                    Log.i(
+                            LOG_TAG,
+                            String.format(
+                                    "Pulling metrics for config %s with ID %d.",
+                                    configName, configIds.get(configName)));
+                    // The report is saved as pulled, it is only parsed if it has to be validated.
+                    byte[] reportList = getStatsReports(configIds.get(configName));
+                    if (mValidateReports) {
+                        validateReport(configName, reportList);
+                    } else {
+                        Log.i(
+                                LOG_TAG,
+                                String.format(
+                                        "Pulled %d bytes of metric reports from config %s.",
+                                        reportList.length, configName));
+                    }
+                    File reportFile =
+                            new File(
+                                    saveDirectory,
+                                    REPORT_FILENAME_PREFIX + configName + suffix + PROTO_EXTENSION);
+                    writeToFile(reportFile, reportList);
+                    savedConfigFiles.put(configName, reportFile);
+                } catch (StatsUnavailableException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Failed to retrieve metrics for config %s due to %s.",
+                                    configName, e.toString()));
+                } catch (InvalidProtocolBufferException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Unable to parse report for config %s. Details: %s.",
+                                    configName, e.toString()));
+                } catch (IOException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Failed to write metric report for config %s to device. "
+                                            + "Details: %s.",
+                                    configName, e.toString()));
+                }
+
+                // Remove the statsd config.
+                try {
+                    Log.i(
+                            LOG_TAG,
+                            String.format(
+                                    "Removing config %s with ID %d.",
+                                    configName, configIds.get(configName)));
+                    removeStatsConfig(configIds.get(configName));
+                } catch (StatsUnavailableException e) {
+                    Log.e(
+                            LOG_TAG,
+                            String.format(
+                                    "Unable to remove config %s due to %s.",
+                                    configName,
+                                    e.toString()));
+                }
             }
+            dropShellPermissionIdentity();
+        }
+        return savedConfigFiles;
+    }
 
-            // Remove the statsd config.
-            try {
-                Log.i(
-                        LOG_TAG,
-                        String.format(
-                                "Removing config %s with ID %d.",
-                                configName, configIds.get(configName)));
-                removeStatsConfig(configIds.get(configName));
-            } catch (StatsUnavailableException e) {
-                Log.e(
-                        LOG_TAG,
-                        String.format(
-                                "Unable to remove config %s due to %s.", configName, e.toString()));
+    /** Parse a pulled report to check that it is valid before it is saved. */
+    private void validateReport(String configName, byte[] report)
+            throws InvalidProtocolBufferException {
+        ConfigMetricsReportList reportList = ConfigMetricsReportList.parseFrom(report);
+        Log.i(
+                LOG_TAG,
+                String.format(
+                        "Found %d metric %s from config %s.",
+                        reportList.getReportsCount(),
+                        reportList.getReportsCount() == 1 ? "report" : "reports",
+                        configName));
+    }
+
+    /**
+     * Merge compatible configs, so that they are registered, pulled and saved as a single config
+     * named after the configs it merges.
+     *
+     * <p>Configs are compatible when the IDs of their matchers, predicates, metrics, alerts, alarms
+     * and subscriptions do not collide. Other fields are taken from the last config setting them,
+     * in the order of the config names.
+     *
+     * @param configs Map of (config name, config proto message)
+     * @return Map of (merged config name, merged config proto message)
+     */
+    @VisibleForTesting
+    Map<String, StatsdConfig> mergeConfigs(final Map<String, StatsdConfig> configs) {
+        List<List<String>> groupNames = new ArrayList<>();
+        List<StatsdConfig.Builder> groupConfigs = new ArrayList<>();
+        List<Set<Long>> groupIds = new ArrayList<>();
+        for (Map.Entry<String, StatsdConfig> entry : new TreeMap<>(configs).entrySet()) {
+            Set<Long> ids = getComponentIds(entry.getValue());
+            int group = 0;
+            while (group < groupIds.size()
+                    && groupIds.get(group).stream().anyMatch(ids::contains)) {
+                group++;
+            }
+            if (group == groupIds.size()) {
+                groupNames.add(new ArrayList<>());
+                groupConfigs.add(StatsdConfig.newBuilder());
+                groupIds.add(new HashSet<>());
             }
+            groupNames.get(group).add(entry.getKey());
+            groupConfigs.get(group).mergeFrom(entry.getValue());
+            groupIds.get(group).addAll(ids);
         }
-        dropShellPermissionIdentity();
-        return savedConfigFiles;
+        Map<String, StatsdConfig> mergedConfigs = new HashMap<String, StatsdConfig>();
+        for (int group = 0; group < groupNames.size(); group++) {
+            String mergedName = String.join(MERGED_CONFIG_NAME_SEPARATOR, groupNames.get(group));
+            StatsdConfig.Builder builder = groupConfigs.get(group);
+            // Drop the permission-related entries repeated by each merged config.
+            List<String> allowedLogSources = dedupe(builder.getAllowedLogSourceList());
+            List<String> defaultPullPackages = dedupe(builder.getDefaultPullPackagesList());
+            List<Integer> whitelistedAtomIds = dedupe(builder.getWhitelistedAtomIdsList());
+            builder.clearAllowedLogSource()
+                    .addAllAllowedLogSource(allowedLogSources)
+                    .clearDefaultPullPackages()
+                    .addAllDefaultPullPackages(defaultPullPackages)
+                    .clearWhitelistedAtomIds()
+                    .addAllWhitelistedAtomIds(whitelistedAtomIds);
+            Log.i(LOG_TAG, String.format("Merged configs into config %s.", mergedName));
+            mergedConfigs.put(mergedName, builder.build());
+        }
+        return mergedConfigs;
+    }
+
+    /** Returns the IDs of the components of a config that must be unique within a config. */
+    private static Set<Long> getComponentIds(StatsdConfig config) {
+        Set<Long> ids = new HashSet<>();
+        config.getAtomMatcherList().forEach(matcher -> ids.add(matcher.getId()));
+        config.getPredicateList().forEach(predicate -> ids.add(predicate.getId()));
+        config.getEventMetricList().forEach(metric -> ids.add(metric.getId()));
+        config.getCountMetricList().forEach(metric -> ids.add(metric.getId()));
+        config.getDurationMetricList().forEach(metric -> ids.add(metric.getId()));
+        config.getGaugeMetricList().forEach(metric -> ids.add(metric.getId()));
+        config.getValueMetricList().forEach(metric -> ids.add(metric.getId()));
+        config.getAlertList().forEach(alert -> ids.add(alert.getId()));
+        config.getAlarmList().forEach(alarm -> ids.add(alarm.getId()));
+        config.getSubscriptionList().forEach(subscription -> ids.add(subscription.getId()));
+        return ids;
+    }
+
+    private static <T> List<T> dedupe(List<T> list) {
+        return list.stream().distinct().collect(Collectors.toList());
     }
 
     /**
@@ -31,6 +31,7 @@ import org.mockito.MockitoAnnotations;
 
 import java.util.HashMap;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -241,4 +242,43 @@ public class BaseCollectionListenerTest {
         verify(helper, times(2)).getMetrics();
         verify(helper, times(3)).stopCollecting();
     }
+
+    /** Verify numeric helper values are reported with their bundle types when requested. */
+    @Test
+    public void testTypedMetrics() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(BaseMetricListener.REPORT_TYPED_METRICS, "true");
+        mListener = initListener(b);
+        HashMap<String, Object> metrics = new HashMap<>();
+        metrics.put("long", 3L);
+        metrics.put("double", 1.5);
+        metrics.put("string", "value");
+        doReturn(metrics).when(helper).getMetrics();
+
+        mListener.testRunStarted(FAKE_DESCRIPTION);
+        DataRecord testData = mListener.createDataRecord();
+        mListener.onTestStart(testData, FAKE_TEST_DESCRIPTION);
+        mListener.onTestEnd(testData, FAKE_TEST_DESCRIPTION);
+
+        Bundle bundle = testData.createBundleFromMetrics();
+        assertEquals(3L, bundle.getLong("long"));
+        assertEquals(1.5, bundle.getDouble("double"), 0);
+        assertEquals("value", bundle.getString("string"));
+    }
+
+    /** Verify numeric helper values are reported as strings by default. */
+    @Test
+    public void testTypedMetrics_reportedAsStrings() throws Exception {
+        mListener = initListener(new Bundle());
+        HashMap<String, Object> metrics = new HashMap<>();
+        metrics.put("long", 3L);
+        doReturn(metrics).when(helper).getMetrics();
+
+        mListener.testRunStarted(FAKE_DESCRIPTION);
+        DataRecord testData = mListener.createDataRecord();
+        mListener.onTestStart(testData, FAKE_TEST_DESCRIPTION);
+        mListener.onTestEnd(testData, FAKE_TEST_DESCRIPTION);
+
+        assertEquals("3", testData.createBundleFromMetrics().getString("long"));
+    }
 }
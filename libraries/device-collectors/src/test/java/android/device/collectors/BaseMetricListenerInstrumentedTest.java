@@ -32,6 +32,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.lang.annotation.Annotation;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -585,4 +586,45 @@ public class BaseMetricListenerInstrumentedTest {
         assertEquals(RUN_END_VALUE, resultBundle.getString(RUN_END_KEY));
         assertEquals(2, resultBundle.size());
     }
+
+    /**
+     * Test that the test metrics are sent before {@link BaseMetricListener#testFinished} returns,
+     * so that they are reported between the end of the test and the start of the next one by the
+     * runner, which notifies its own result listener first.
+     */
+    @Test
+    public void testTestMetricsSentBeforeNextTestStarts() throws Exception {
+        List<String> events = new ArrayList<>();
+        BaseMetricListener listener = new BaseMetricListener(new Bundle()) {
+            @Override
+            public void onTestEnd(DataRecord testData, Description description) {
+                testData.addStringMetric(TEST_END_KEY, description.getMethodName());
+            }
+        };
+        listener.setInstrumentation(mMockInstrumentation);
+        Mockito.doAnswer(invocation -> {
+            Bundle bundle = invocation.getArgument(1);
+            events.add("metrics:" + bundle.getString(TEST_END_KEY));
+            return null;
+        }).when(mMockInstrumentation).sendStatus(Mockito.anyInt(), Mockito.any(Bundle.class));
+
+        listener.testRunStarted(Description.createSuiteDescription("run"));
+        for (int i = 1; i <= 2; i++) {
+            Description testDescription = Description.createTestDescription("class", "method" + i);
+            events.add("started:method" + i);
+            listener.testStarted(testDescription);
+            events.add("finished:method" + i);
+            listener.testFinished(testDescription);
+        }
+        listener.testRunFinished(new Result());
+        listener.instrumentationRunFinished(System.out, new Bundle(), new Result());
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            expected.add("started:method" + i);
+            expected.add("finished:method" + i);
+            expected.add("metrics:method" + i);
+        }
+        assertEquals(expected, events);
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Android Unit tests for {@link DataRecord}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.DataRecordTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class DataRecordTest {
+
+    /** Test typed metrics are reported as strings by default. */
+    @Test
+    public void testTypedMetrics_reportedAsStrings() {
+        DataRecord record = new DataRecord();
+        assertFalse(record.hasMetrics());
+        record.addLongMetric("long", 42L);
+        record.addDoubleMetric("double", 1.5);
+        record.addLongArrayMetric("long_array", new long[] {1, 2, 3});
+        record.addDoubleArrayMetric("double_array", new double[] {0.5, 2});
+        record.addStringMetric("string", "value");
+        assertTrue(record.hasMetrics());
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals("42", bundle.getString("long"));
+        assertEquals("1.5", bundle.getString("double"));
+        assertEquals("1,2,3", bundle.getString("long_array"));
+        assertEquals("0.5,2.0", bundle.getString("double_array"));
+        assertEquals("value", bundle.getString("string"));
+    }
+
+    /** Test scalar metrics are reported with their bundle types when requested, not arrays. */
+    @Test
+    public void testReportTypedValues() {
+        DataRecord record = new DataRecord();
+        record.setReportTypedValues(true);
+        record.addLongMetric("long", 42L);
+        record.addDoubleMetric("double", 1.5);
+        record.addLongArrayMetric("long_array", new long[] {1, 2, 3});
+        record.addDoubleArrayMetric("double_array", new double[] {0.5, 2});
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals(42L, bundle.getLong("long"));
+        assertEquals(1.5, bundle.getDouble("double"), 0);
+        assertEquals("1,2,3", bundle.getString("long_array"));
+        assertEquals("0.5,2.0", bundle.getString("double_array"));
+    }
+
+    /** Test {@link DataRecord#addMetric} picks the type from the value. */
+    @Test
+    public void testAddMetric() {
+        DataRecord record = new DataRecord();
+        record.setReportTypedValues(true);
+        record.addMetric("int", 7);
+        record.addMetric("long", 8L);
+        record.addMetric("float", 0.5f);
+        record.addMetric("double", 2.5);
+        record.addMetric("other", Boolean.TRUE);
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals(7L, bundle.getLong("int"));
+        assertEquals(8L, bundle.getLong("long"));
+        assertEquals(0.5, bundle.getDouble("float"), 0);
+        assertEquals(2.5, bundle.getDouble("double"), 0);
+        assertEquals("true", bundle.getString("other"));
+    }
+
+    /** Test replacing a value keeps a single entry, and that many keys are all kept. */
+    @Test
+    public void testManyLongMetrics() {
+        DataRecord record = new DataRecord();
+        for (int i = 0; i < 1000; i++) {
+            record.addLongMetric("key_" + i, i);
+        }
+        record.addLongMetric("key_5", -5);
+
+        Bundle bundle = record.createBundleFromMetrics();
+        assertEquals(1000, bundle.keySet().size());
+        assertEquals("-5", bundle.getString("key_5"));
+        assertEquals("999", bundle.getString("key_999"));
+    }
+}
@@ -15,10 +15,14 @@
  */
 package android.device.collectors;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import android.app.Instrumentation;
 import android.os.Bundle;
@@ -34,6 +38,9 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.Collections;
+import java.util.HashMap;
+
 /** Unit tests for {@link JankListener} specific behavior. */
 @RunWith(AndroidJUnit4.class)
 public final class JankListenerTest {
@@ -82,4 +89,69 @@ public final class JankListenerTest {
         collector.testFinished(TEST_DESCRIPTION);
         collector.testRunFinished(new Result());
     }
+
+    /** Test that the framestats histograms are reported per test and merged per run. */
+    @Test
+    public void testCollect_frameStats() throws Exception {
+        Bundle args = new Bundle();
+        args.putString(JankListener.PACKAGE_NAMES_KEY, "pkg1");
+        args.putString(JankListener.FRAMESTATS_KEY, "true");
+        when(mHelper.getMetrics()).thenReturn(new HashMap<>());
+        when(mHelper.getFrameHistogramMetrics())
+                .thenReturn(Collections.singletonMap("histogram", new byte[] {1}));
+        when(mHelper.getMergedFrameHistogramMetrics())
+                .thenReturn(Collections.singletonMap("histogram", new byte[] {1, 2}));
+        when(mHelper.getMergedFrameStatsMetrics())
+                .thenReturn(Collections.singletonMap("jank_count", 2.0));
+        JankListener collector = new JankListener(args, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper, times(1)).setCollectFrameStats(true);
+        verify(mHelper, times(1)).clearMergedFrameHistograms();
+        DataRecord testData = collector.createDataRecord();
+        collector.onTestStart(testData, TEST_DESCRIPTION);
+        collector.onTestEnd(testData, TEST_DESCRIPTION);
+        assertArrayEquals(
+                new byte[] {1}, testData.createBundleFromMetrics().getByteArray("histogram"));
+
+        DataRecord runData = collector.createDataRecord();
+        collector.onTestRunEnd(runData, new Result());
+        Bundle runMetrics = runData.createBundleFromMetrics();
+        assertArrayEquals(new byte[] {1, 2}, runMetrics.getByteArray("histogram"));
+        assertEquals("2.0", runMetrics.getString("jank_count"));
+    }
+
+    /** Test that framestats are not collected by default. */
+    @Test
+    public void testCollect_noFrameStatsByDefault() throws Exception {
+        JankListener collector = new JankListener(new Bundle(), mHelper);
+        collector.setInstrumentation(mInstrumentation);
+
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper, times(1)).setCollectFrameStats(false);
+        collector.testStarted(TEST_DESCRIPTION);
+        collector.testFinished(TEST_DESCRIPTION);
+        collector.testRunFinished(new Result());
+        verify(mHelper, never()).getFrameHistogramMetrics();
+        verify(mHelper, never()).getMergedFrameHistogramMetrics();
+        verify(mHelper, never()).setFrameStatsJankThreshold(anyLong());
+    }
+
+    /** Test that the framestats jank threshold is passed in nanoseconds when valid. */
+    @Test
+    public void testCollect_frameStatsThreshold() throws Exception {
+        Bundle args = new Bundle();
+        args.putString(JankListener.FRAMESTATS_THRESHOLD_KEY, "8.5");
+        JankListener collector = new JankListener(args, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper, times(1)).setFrameStatsJankThreshold(8_500_000L);
+
+        args.putString(JankListener.FRAMESTATS_THRESHOLD_KEY, "fast");
+        collector = new JankListener(args, mHelper);
+        collector.setInstrumentation(mInstrumentation);
+        collector.testRunStarted(RUN_DESCRIPTION);
+        verify(mHelper, times(1)).setFrameStatsJankThreshold(anyLong());
+    }
 }
@@ -16,9 +16,12 @@
 
 package android.device.collectors;
 
+import static android.device.collectors.ProcessShowmapListener.CONCURRENCY_KEY;
 import static android.device.collectors.ProcessShowmapListener.PROCESS_NAMES_KEY;
 import static android.device.collectors.ProcessShowmapListener.PROCESS_SEPARATOR;
 
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.app.Instrumentation;
@@ -74,4 +77,28 @@ public class ProcessShowmapListenerTest {
 
         verify(mShowmapHelper).setUp("process1", "process2");
     }
+
+    @Test
+    public void testHelperReceivesConcurrency() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(PROCESS_NAMES_KEY, "process1");
+        b.putString(CONCURRENCY_KEY, "4");
+        mListener = initListener(b);
+
+        mListener.testRunStarted(mRunDesc);
+
+        verify(mShowmapHelper).setConcurrency(4);
+    }
+
+    @Test
+    public void testHelperKeepsConcurrency_invalidValue() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(PROCESS_NAMES_KEY, "process1");
+        b.putString(CONCURRENCY_KEY, "four");
+        mListener = initListener(b);
+
+        mListener.testRunStarted(mRunDesc);
+
+        verify(mShowmapHelper, never()).setConcurrency(anyInt());
+    }
 }
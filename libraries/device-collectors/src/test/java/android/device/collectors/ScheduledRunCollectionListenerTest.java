@@ -17,6 +17,7 @@ package android.device.collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doReturn;
@@ -26,6 +27,7 @@ import static org.mockito.Mockito.when;
 
 import android.app.Instrumentation;
 import android.device.collectors.util.SendToInstrumentation;
+import android.device.collectors.util.TimeSeriesDecoder;
 import android.os.Bundle;
 import android.os.Environment;
 import androidx.test.InstrumentationRegistry;
@@ -33,7 +35,10 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.helpers.ICollectorHelper;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -74,9 +79,11 @@ public class ScheduledRunCollectionListenerTest {
 
     private ScheduledRunCollectionListener mListener;
 
-    private ScheduledRunCollectionListener initListener() {
+    private ScheduledRunCollectionListener initListener(boolean writeCsv) {
         Bundle b = new Bundle();
         b.putString(ScheduledRunCollectionListener.INTERVAL_ARG_KEY, Long.toString(TEST_INTERVAL));
+        b.putString(
+                ScheduledRunCollectionListener.TIME_SERIES_CSV_KEY, Boolean.toString(writeCsv));
         doReturn(true).when(mHelper).startCollecting();
         Map<String, Integer> first = new HashMap<>();
         first.put(TEST_METRIC_KEY, TEST_METRIC_VALUES[0]);
@@ -107,7 +114,7 @@ public class ScheduledRunCollectionListenerTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
-        mListener = initListener();
+        mListener = initListener(false);
     }
 
     @After
@@ -123,14 +130,62 @@ public class ScheduledRunCollectionListenerTest {
 
     @Test
     public void testCompleteRun() throws Exception {
+        mListener = initListener(true);
         testRun(true);
     }
 
     @Test
     public void testIncompleteRun() throws Exception {
+        mListener = initListener(true);
         testRun(false);
     }
 
+    @Test
+    public void testBinaryTimeSeries() throws Exception {
+        Description runDescription = Description.createSuiteDescription("run");
+        mListener.testRunStarted(runDescription);
+        Thread.sleep(TEST_DURATION);
+        mListener.testRunFinished(new Result());
+        Bundle result = new Bundle();
+        mListener.instrumentationRunFinished(System.out, result, new Result());
+
+        ArgumentCaptor<Bundle> bundle = ArgumentCaptor.forClass(Bundle.class);
+        verify(mInstrumentation, atLeast(1))
+                .sendStatus(eq(SendToInstrumentation.INST_STATUS_IN_PROGRESS), bundle.capture());
+        Bundle pathBundle = bundle.getAllValues().get(0);
+        String simpleName = ScheduledRunCollectionListener.class.getSimpleName();
+        String path =
+                pathBundle.getString(
+                        String.format(
+                                ScheduledRunCollectionListener.BINARY_OUTPUT_FILE_PATH,
+                                simpleName));
+        assertNotNull(path);
+        // No csv unless asked for.
+        assertNull(
+                pathBundle.getString(
+                        String.format(
+                                ScheduledRunCollectionListener.OUTPUT_FILE_PATH, simpleName)));
+        // The file is also reported as a metric at the end of the run.
+        assertEquals(
+                path,
+                result.getString(
+                        String.format(
+                                ScheduledRunCollectionListener.BINARY_OUTPUT_FILE, simpleName)));
+
+        Map<String, TimeSeriesDecoder.Series> series;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+            series = TimeSeriesDecoder.decode(in);
+        }
+        TimeSeriesDecoder.Series metric = series.get(TEST_METRIC_KEY);
+        assertEquals(NUMBER_OF_COLLECTIONS, metric.size());
+        long[] timestamps = metric.getTimestamps();
+        double[] values = metric.getValues();
+        for (int i = 0; i < metric.size(); i++) {
+            assertEquals(i * TEST_INTERVAL, timestamps[i], TEST_INTERVAL / 2);
+            assertEquals(TEST_METRIC_VALUES[i], values[i], 0);
+        }
+    }
+
     @Test
     public void testInstrumentationResult() throws Exception {
         Description runDescription = Description.createSuiteDescription("run");
@@ -162,6 +217,24 @@ public class ScheduledRunCollectionListenerTest {
                         result.getString(
                                 TEST_METRIC_KEY + ScheduledRunCollectionListener.MEAN_SUFFIX)),
                 0.1);
+        // Nearest-rank percentiles of {0, 1, 2, 3, 4}.
+        assertEquals(
+                2,
+                Double.parseDouble(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.P50_SUFFIX)),
+                0);
+        assertEquals(
+                4,
+                Double.parseDouble(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.P95_SUFFIX)),
+                0);
+        assertEquals(
+                (int) TEST_METRIC_VALUES[TEST_METRIC_VALUES.length - 1],
+                Integer.parseInt(
+                        result.getString(
+                                TEST_METRIC_KEY + ScheduledRunCollectionListener.LAST_SUFFIX)));
     }
 
     private void testRun(boolean isComplete) throws Exception {
@@ -28,6 +28,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Android Unit tests for {@link ScheduledRunMetricListener}.
@@ -72,4 +73,77 @@ public class ScheduledRunMetricListenerTest {
         assertEquals(TEST_RUN_VALUE + "1", resultBundle.getString(TEST_RUN_KEY + "1"));
         assertEquals(TEST_RUN_VALUE + "2", resultBundle.getString(TEST_RUN_KEY + "2"));
     }
+
+    /** Test that samples due while a collection is still running are skipped and counted. */
+    @Test
+    public void testSlowCollect_skipsOverruns() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(ScheduledRunMetricListener.INTERVAL_ARG_KEY, "50");
+        ScheduledRunMetricListener listener = new ScheduledRunMetricListener(b) {
+            @Override
+            public void collect(DataRecord runData, Description desc) throws InterruptedException {
+                Thread.sleep(120L);
+            }
+        };
+        listener.setInstrumentation(Mockito.mock(Instrumentation.class));
+        listener.testRunStarted(Description.createSuiteDescription("run"));
+        Thread.sleep(500L);
+        listener.testRunFinished(new Result());
+        Bundle resultBundle = new Bundle();
+        listener.instrumentationRunFinished(System.out, resultBundle, new Result());
+
+        String prefix = listener.getSamplerKeyPrefix();
+        long samples =
+                getLong(resultBundle, prefix + ScheduledRunMetricListener.SAMPLE_COUNT_SUFFIX);
+        long overruns =
+                getLong(resultBundle, prefix + ScheduledRunMetricListener.OVERRUN_COUNT_SUFFIX);
+        // Each collection spans about 3 ticks: one runs, the next ones are skipped.
+        assertTrue(samples >= 2 && samples <= 5);
+        assertTrue(overruns >= samples);
+        assertTrue(getDouble(resultBundle, prefix + ScheduledRunMetricListener.LATENCY_MAX_SUFFIX)
+                >= 120);
+    }
+
+    /** Test that an exception from a collection does not stop the following ones. */
+    @Test
+    public void testFailingCollect_keepsSampling() throws Exception {
+        Bundle b = new Bundle();
+        b.putString(ScheduledRunMetricListener.INTERVAL_ARG_KEY, "50ms");
+        ScheduledRunMetricListener listener = new ScheduledRunMetricListener(b) {
+            @Override
+            public void collect(DataRecord runData, Description desc) throws InterruptedException {
+                throw new IllegalStateException("collection failure");
+            }
+        };
+        listener.setInstrumentation(Mockito.mock(Instrumentation.class));
+        listener.testRunStarted(Description.createSuiteDescription("run"));
+        Thread.sleep(300L);
+        listener.testRunFinished(new Result());
+        Bundle resultBundle = new Bundle();
+        listener.instrumentationRunFinished(System.out, resultBundle, new Result());
+
+        String prefix = listener.getSamplerKeyPrefix();
+        long failures =
+                getLong(resultBundle, prefix + ScheduledRunMetricListener.FAILURE_COUNT_SUFFIX);
+        assertTrue(failures > 2);
+        assertEquals(failures,
+                getLong(resultBundle, prefix + ScheduledRunMetricListener.SAMPLE_COUNT_SUFFIX));
+    }
+
+    private static long getLong(Bundle bundle, String key) {
+        return Long.parseLong(bundle.getString(key));
+    }
+
+    private static double getDouble(Bundle bundle, String key) {
+        return Double.parseDouble(bundle.getString(key));
+    }
+
+    /** Test the interval units. */
+    @Test
+    public void testParseInterval() {
+        assertEquals(100_000_000L, ScheduledRunMetricListener.parseIntervalNanos("100"));
+        assertEquals(250_000_000L, ScheduledRunMetricListener.parseIntervalNanos("250ms"));
+        assertEquals(500_000L, ScheduledRunMetricListener.parseIntervalNanos("500us"));
+        assertEquals(2_000_000_000L, ScheduledRunMetricListener.parseIntervalNanos("2s"));
+    }
 }
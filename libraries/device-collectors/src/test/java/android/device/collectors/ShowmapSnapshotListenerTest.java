@@ -16,11 +16,15 @@
 
 package android.device.collectors;
 
+import static android.device.collectors.ShowmapSnapshotListener.CONCURRENCY_KEY;
 import static android.device.collectors.ShowmapSnapshotListener.DROP_CACHE_KEY;
 import static android.device.collectors.ShowmapSnapshotListener.METRIC_NAME_INDEX;
 import static android.device.collectors.ShowmapSnapshotListener.OUTPUT_DIR_KEY;
 import static android.device.collectors.ShowmapSnapshotListener.PROCESS_NAMES_KEY;
 import static android.device.collectors.ShowmapSnapshotListener.PROCESS_SEPARATOR;
+import static android.device.collectors.ShowmapSnapshotListener.STREAMING_PARSER_KEY;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import android.app.Instrumentation;
@@ -92,4 +96,43 @@ public class ShowmapSnapshotListenerTest {
     // DROP_CACHE_KEY values: "pagecache" = 1, "slab" = 2, "all" = 3
     verify(mShowmapSnapshotHelper).setDropCacheOption(3);
   }
+
+  @Test
+  public void testStreamingParserOption() throws Exception {
+    Bundle b = new Bundle();
+    b.putString(PROCESS_NAMES_KEY, "process1");
+    b.putString(OUTPUT_DIR_KEY, VALID_OUTPUT_DIR);
+    b.putString(STREAMING_PARSER_KEY, "true");
+    mListener = initListener(b);
+
+    mListener.testRunStarted(mRunDesc);
+
+    verify(mShowmapSnapshotHelper).setStreamingMode(true);
+  }
+
+  @Test
+  public void testConcurrencyOption() throws Exception {
+    Bundle b = new Bundle();
+    b.putString(PROCESS_NAMES_KEY, "process1");
+    b.putString(OUTPUT_DIR_KEY, VALID_OUTPUT_DIR);
+    b.putString(CONCURRENCY_KEY, "4");
+    mListener = initListener(b);
+
+    mListener.testRunStarted(mRunDesc);
+
+    verify(mShowmapSnapshotHelper).setConcurrency(4);
+  }
+
+  @Test
+  public void testInvalidConcurrencyOption() throws Exception {
+    Bundle b = new Bundle();
+    b.putString(PROCESS_NAMES_KEY, "process1");
+    b.putString(OUTPUT_DIR_KEY, VALID_OUTPUT_DIR);
+    b.putString(CONCURRENCY_KEY, "four");
+    mListener = initListener(b);
+
+    mListener.testRunStarted(mRunDesc);
+
+    verify(mShowmapSnapshotHelper, never()).setConcurrency(anyInt());
+  }
 }
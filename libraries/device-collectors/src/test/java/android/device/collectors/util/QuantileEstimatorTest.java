@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.device.collectors.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Android Unit tests for {@link QuantileEstimator}.
+ *
+ * To run:
+ * atest CollectorDeviceLibTest:android.device.collectors.util.QuantileEstimatorTest
+ */
+@RunWith(AndroidJUnit4.class)
+public class QuantileEstimatorTest {
+
+    /** Test no quantile is reported before any value is added. */
+    @Test
+    public void testEmpty() {
+        assertTrue(Double.isNaN(new QuantileEstimator(0.5).getQuantile()));
+    }
+
+    /** Test the quantile is exact up to five values, in any order. */
+    @Test
+    public void testFewValues_exact() {
+        QuantileEstimator p50 = new QuantileEstimator(0.5);
+        QuantileEstimator p95 = new QuantileEstimator(0.95);
+        for (int i = 4; i >= 0; i--) {
+            p50.add(i);
+            p95.add(i);
+        }
+        assertEquals(5, p50.getCount());
+        assertEquals(2, p50.getQuantile(), 0);
+        assertEquals(4, p95.getQuantile(), 0);
+    }
+
+    /** Test the quantile of many values is estimated close to the exact one. */
+    @Test
+    public void testManyValues_estimated() {
+        QuantileEstimator p50 = new QuantileEstimator(0.5);
+        QuantileEstimator p95 = new QuantileEstimator(0.95);
+        // Visit 0..9999 in a scrambled order, 7919 being coprime with 10000.
+        for (int i = 0; i < 10000; i++) {
+            int value = (int) ((i * 7919L) % 10000);
+            p50.add(value);
+            p95.add(value);
+        }
+        assertEquals(10000, p50.getCount());
+        assertEquals(4999, p50.getQuantile(), 100);
+        assertEquals(9499, p95.getQuantile(), 100);
+    }
+
+    /** Test a constant series has that constant as quantile. */
+    @Test
+    public void testConstantValues() {
+        QuantileEstimator p95 = new QuantileEstimator(0.95);
+        for (int i = 0; i < 100; i++) {
+            p95.add(7);
+        }
+        assertEquals(7, p95.getQuantile(), 0);
+    }
+}
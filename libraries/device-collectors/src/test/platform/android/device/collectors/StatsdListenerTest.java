@@ -32,6 +32,7 @@ import static org.mockito.Mockito.verify;
 import android.content.res.AssetManager;
 import android.os.Bundle;
 
+import com.android.internal.os.StatsdConfigProto.AtomMatcher;
 import com.android.internal.os.StatsdConfigProto.StatsdConfig;
 import com.android.os.AtomsProto.Atom;
 import com.android.os.StatsLog.ConfigMetricsReportList;
@@ -448,6 +449,100 @@ public class StatsdListenerTest {
                                         + StatsdListener.PROTO_EXTENSION));
     }
 
+    /** Test that the collector saves the pulled reports without parsing them by default. */
+    @Test
+    public void testRunLevelCollection_savesRawReports() throws Exception {
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+        doReturn(new Bundle()).when(mListener).getArguments();
+        byte[] unparsedReport = "not a report".getBytes();
+        doReturn(unparsedReport).when(mListener).getStatsReports(eq(CONFIG_ID_1));
+
+        DataRecord runData = mock(DataRecord.class);
+        Description description = Description.createSuiteDescription("TestRun");
+
+        mListener.onTestRunStart(runData, description);
+        mListener.onTestRunEnd(runData, new Result());
+
+        verify(mListener, times(1))
+                .writeToFile(
+                        getPartialFileNameMatcher(
+                                Paths.get(
+                                                StatsdListener.REPORT_PATH_ROOT,
+                                                StatsdListener.REPORT_PATH_RUN_LEVEL)
+                                        .toString(),
+                                CONFIG_NAME_1),
+                        eq(unparsedReport));
+        verify(runData, times(1))
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_1), any());
+    }
+
+    /** Test that the collector skips the reports that cannot be parsed when validating them. */
+    @Test
+    public void testRunLevelCollection_validatesReports() throws Exception {
+        doReturn(CONFIG_MAP)
+                .when(mListener)
+                .getConfigsFromOption(eq(StatsdListener.OPTION_CONFIGS_RUN_LEVEL));
+        Bundle args = new Bundle();
+        args.putString(StatsdListener.OPTION_VALIDATE_REPORTS, "true");
+        doReturn(args).when(mListener).getArguments();
+        doReturn("not a report".getBytes()).when(mListener).getStatsReports(eq(CONFIG_ID_1));
+
+        DataRecord runData = mock(DataRecord.class);
+        Description description = Description.createSuiteDescription("TestRun");
+
+        mListener.onTestRunStart(runData, description);
+        mListener.onTestRunEnd(runData, new Result());
+
+        verify(runData, never())
+                .addFileMetric(eq(StatsdListener.REPORT_KEY_PREFIX + CONFIG_NAME_1), any());
+        verify(mListener, times(1))
+                .writeToFile(
+                        getPartialFileNameMatcher(
+                                Paths.get(
+                                                StatsdListener.REPORT_PATH_ROOT,
+                                                StatsdListener.REPORT_PATH_RUN_LEVEL)
+                                        .toString(),
+                                CONFIG_NAME_2),
+                        eq(REPORT_2.toByteArray()));
+        verify(mListener, times(1)).removeStatsConfig(eq(CONFIG_ID_1));
+    }
+
+    /** Test that only configs with distinct component IDs are merged. */
+    @Test
+    public void testMergingConfigs() throws Exception {
+        StatsdConfig config3 =
+                StatsdConfig.newBuilder()
+                        .setId(3)
+                        .addAtomMatcher(AtomMatcher.newBuilder().setId(10))
+                        .addDefaultPullPackages("AID_SYSTEM")
+                        .build();
+        StatsdConfig config4 =
+                StatsdConfig.newBuilder()
+                        .setId(4)
+                        .addAtomMatcher(AtomMatcher.newBuilder().setId(10))
+                        .build();
+        StatsdConfig config5 =
+                StatsdConfig.newBuilder()
+                        .setId(5)
+                        .addAtomMatcher(AtomMatcher.newBuilder().setId(11))
+                        .addDefaultPullPackages("AID_SYSTEM")
+                        .build();
+
+        Map<String, StatsdConfig> configs =
+                mListener.mergeConfigs(
+                        ImmutableMap.of("config-3", config3, "config-4", config4, "config-5",
+                                config5));
+
+        Assert.assertEquals(2, configs.size());
+        StatsdConfig merged = configs.get("config-3+config-5");
+        Assert.assertNotNull(merged);
+        Assert.assertEquals(2, merged.getAtomMatcherCount());
+        Assert.assertEquals(1, merged.getDefaultPullPackagesCount());
+        Assert.assertEquals(config4, configs.get("config-4"));
+    }
+
     /** Test that the collector parses the configs from arguments correctly for valid configs. */
     @Test
     public void testParsingConfigFromArguments_validConfig() throws Exception {
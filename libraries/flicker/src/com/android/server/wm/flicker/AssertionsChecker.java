@@ -16,6 +16,8 @@
 
 package com.android.server.wm.flicker;
 
+import androidx.annotation.Nullable;
+
 import com.android.server.wm.flicker.Assertions.NamedAssertion;
 import com.android.server.wm.flicker.Assertions.Result;
 import com.android.server.wm.flicker.Assertions.TraceAssertion;
@@ -23,6 +25,9 @@ import com.android.server.wm.flicker.Assertions.TraceAssertion;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.stream.Collectors;
 
 /**
@@ -32,11 +37,15 @@ import java.util.stream.Collectors;
  * @param <T> trace entry type
  */
 public class AssertionsChecker<T extends ITraceEntry> {
+    // Number of assertion evaluations run by a single parallel task.
+    private static final int PARALLEL_CHUNK_SIZE = 8;
+
     private boolean mFilterEntriesByRange = false;
     private long mFilterStartTime = 0;
     private long mFilterEndTime = 0;
     private AssertionOption mOption = AssertionOption.NONE;
     private List<NamedAssertion<T>> mAssertions = new LinkedList<>();
+    @Nullable private ForkJoinPool mPool = null;
 
     public void add(Assertions.TraceAssertion<T> assertion, String name) {
         mAssertions.add(new NamedAssertion<>(assertion, name));
@@ -68,6 +77,23 @@ public class AssertionsChecker<T extends ITraceEntry> {
         setOption(AssertionOption.CHECK_CHANGING_ASSERTIONS);
     }
 
+    /**
+     * Evaluates the assertions over the entries concurrently in {@code pool}. Assertions and
+     * entries must be safe to use from several threads. Failures are reported in the same order
+     * as when evaluated sequentially.
+     *
+     * <p>With {@link #checkChangingAssertions()}, every assertion is evaluated on every entry in
+     * parallel, then the results are scanned in order.
+     */
+    public void evaluateInParallel(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /** Evaluates the assertions over the entries concurrently in the common pool. */
+    public void evaluateInParallel() {
+        evaluateInParallel(ForkJoinPool.commonPool());
+    }
+
     /**
      * Filters trace entries then runs assertions returning a list of failures.
      *
@@ -75,24 +101,35 @@ public class AssertionsChecker<T extends ITraceEntry> {
      * @return list of failed assertion results
      */
     public List<Result> test(List<T> entries) {
+        return test(entries, null /* index */);
+    }
+
+    /**
+     * Filters trace entries then runs assertions returning a list of failures.
+     *
+     * @param entries list of entries to perform assertions on
+     * @param index timestamp index of {@code entries} used to filter them by range, or null to
+     *     scan them
+     * @return list of failed assertion results
+     */
+    public List<Result> test(List<T> entries, @Nullable TimestampIndex index) {
         List<T> filteredEntries;
         List<Result> failures;
 
-        if (mFilterEntriesByRange) {
-            filteredEntries =
-                    entries.stream()
-                            .filter(
-                                    e ->
-                                            ((e.getTimestamp() >= mFilterStartTime)
-                                                    && (e.getTimestamp() <= mFilterEndTime)))
-                            .collect(Collectors.toList());
+        if (mFilterEntriesByRange && index != null) {
+            filteredEntries = index.subList(entries, mFilterStartTime, mFilterEndTime);
+        } else if (mFilterEntriesByRange) {
+            filteredEntries = entries.stream().filter(this::isInRange).collect(Collectors.toList());
         } else {
             filteredEntries = entries;
         }
 
+        if (mPool != null) {
+            return testInParallel(filteredEntries);
+        }
         switch (mOption) {
             case CHECK_CHANGING_ASSERTIONS:
-                return assertChanges(filteredEntries);
+                return assertChanges(filteredEntries, null /* results */);
             case CHECK_FIRST_ENTRY:
                 return assertEntry(filteredEntries.get(0));
             case CHECK_LAST_ENTRY:
@@ -101,6 +138,62 @@ public class AssertionsChecker<T extends ITraceEntry> {
         return assertAll(filteredEntries);
     }
 
+    /**
+     * Starts checking the assertions over entries fed one at a time, such as the entries of a
+     * trace while it is being recorded. The check uses the assertions and options of this checker
+     * and, once finished, reports the same failures as {@link #test(List)} over the fed entries.
+     * Assertions must not be added while the check is in progress.
+     */
+    public IncrementalCheck startIncrementalCheck() {
+        return new IncrementalCheck();
+    }
+
+    private boolean isInRange(T entry) {
+        return !mFilterEntriesByRange
+                || (entry.getTimestamp() >= mFilterStartTime
+                        && entry.getTimestamp() <= mFilterEndTime);
+    }
+
+    private List<Result> testInParallel(List<T> entries) {
+        switch (mOption) {
+            case CHECK_CHANGING_ASSERTIONS:
+                return assertChanges(entries, evaluateAll(entries));
+            case CHECK_FIRST_ENTRY:
+                entries = entries.subList(0, 1);
+                break;
+            case CHECK_LAST_ENTRY:
+                entries = entries.subList(entries.size() - 1, entries.size());
+                break;
+        }
+        Result[][] results = evaluateAll(entries);
+        List<Result> failures = new ArrayList<>();
+        for (Result[] assertionResults : results) {
+            for (Result result : assertionResults) {
+                if (result.failed()) {
+                    failures.add(result);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Evaluates every assertion on every entry in the pool.
+     *
+     * @return the results, indexed by assertion then by entry
+     */
+    private Result[][] evaluateAll(List<T> entries) {
+        List<NamedAssertion<T>> assertions = new ArrayList<>(mAssertions);
+        if (!(entries instanceof RandomAccess)) {
+            entries = new ArrayList<>(entries);
+        }
+        Result[][] results = new Result[assertions.size()][entries.size()];
+        mPool.invoke(
+                new EvaluationTask<>(
+                        assertions, entries, results, 0, assertions.size() * entries.size()));
+        return results;
+    }
+
     /**
      * Steps through each trace entry checking if provided assertions are true in the order they are
      * added. Each assertion must be true for at least a single trace entry.
@@ -109,7 +202,7 @@ public class AssertionsChecker<T extends ITraceEntry> {
      * visibility for a window changes from true to false or top-most window changes from A to Bb
      * and back to A again.
      */
-    private List<Result> assertChanges(List<T> entries) {
+    private List<Result> assertChanges(List<T> entries, @Nullable Result[][] results) {
         List<Result> failures = new ArrayList<>();
         int entryIndex = 0;
         int assertionIndex = 0;
@@ -120,8 +213,13 @@ public class AssertionsChecker<T extends ITraceEntry> {
         }
 
         while (assertionIndex < mAssertions.size() && entryIndex < entries.size()) {
-            TraceAssertion<T> currentAssertion = mAssertions.get(assertionIndex).assertion;
-            Result result = currentAssertion.apply(entries.get(entryIndex));
+            Result result;
+            if (results != null) {
+                result = results[assertionIndex][entryIndex];
+            } else {
+                TraceAssertion<T> currentAssertion = mAssertions.get(assertionIndex).assertion;
+                result = currentAssertion.apply(entries.get(entryIndex));
+            }
             if (result.passed()) {
                 lastPassedAssertionIndex = assertionIndex;
                 entryIndex++;
@@ -142,37 +240,41 @@ public class AssertionsChecker<T extends ITraceEntry> {
 
         if (failures.isEmpty()) {
             if (assertionIndex != mAssertions.size() - 1) {
-                String reason =
-                        "\nAssertion "
-                                + mAssertions.get(assertionIndex).name
-                                + " never became false";
-                reason +=
-                        "\nPassed assertions: "
-                                + mAssertions
-                                        .stream()
-                                        .limit(assertionIndex)
-                                        .map(assertion -> assertion.name)
-                                        .collect(Collectors.joining(","));
-                reason +=
-                        "\nUntested assertions: "
-                                + mAssertions
-                                        .stream()
-                                        .skip(assertionIndex + 1)
-                                        .map(assertion -> assertion.name)
-                                        .collect(Collectors.joining(","));
-
-                Result result =
-                        new Result(
-                                false /* success */,
-                                0 /* timestamp */,
-                                "assertChanges",
-                                "Not all assertions passed." + reason);
-                failures.add(result);
+                failures.add(getUnfinishedChangesResult(assertionIndex));
             }
         }
         return failures;
     }
 
+    /**
+     * Returns the failure of a changing assertions check that ran out of entries while checking
+     * the assertion at {@code assertionIndex}, before the last one.
+     */
+    private Result getUnfinishedChangesResult(int assertionIndex) {
+        String reason =
+                "\nAssertion " + mAssertions.get(assertionIndex).name + " never became false";
+        reason +=
+                "\nPassed assertions: "
+                        + mAssertions
+                                .stream()
+                                .limit(assertionIndex)
+                                .map(assertion -> assertion.name)
+                                .collect(Collectors.joining(","));
+        reason +=
+                "\nUntested assertions: "
+                        + mAssertions
+                                .stream()
+                                .skip(assertionIndex + 1)
+                                .map(assertion -> assertion.name)
+                                .collect(Collectors.joining(","));
+
+        return new Result(
+                false /* success */,
+                0 /* timestamp */,
+                "assertChanges",
+                "Not all assertions passed." + reason);
+    }
+
     private List<Result> assertEntry(T entry) {
         List<Result> failures = new ArrayList<>();
         for (NamedAssertion<T> assertion : mAssertions) {
@@ -193,6 +295,173 @@ public class AssertionsChecker<T extends ITraceEntry> {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Check of the assertions of the checker over entries fed one at a time, in timestamp order.
+     * The state of the check, including the progress through changing assertions, is kept between
+     * entries so that the first failure is reported as soon as an entry causes it.
+     *
+     * <p>With {@link #checkLastEntry()}, the assertions are only checked when the check is
+     * finished.
+     */
+    public class IncrementalCheck {
+        // Failures of each assertion, reported assertion by assertion like in test().
+        private final List<List<Result>> mFailuresByAssertion = new ArrayList<>();
+        @Nullable private Result mFirstFailure = null;
+        @Nullable private T mFirstEntry = null;
+        @Nullable private T mLastEntry = null;
+        // Progress through changing assertions, see assertChanges().
+        private int mAssertionIndex = 0;
+        private int mLastPassedAssertionIndex = -1;
+        @Nullable private List<Result> mFailures = null;
+
+        private IncrementalCheck() {
+            for (int i = 0; i < mAssertions.size(); i++) {
+                mFailuresByAssertion.add(new ArrayList<>());
+            }
+        }
+
+        /**
+         * Checks {@code entry}, skipping it if it is out of the range of the checker.
+         *
+         * @return the first failure found so far, or null if there is none
+         */
+        @Nullable
+        public Result add(T entry) {
+            if (mFailures != null) {
+                throw new IllegalStateException("The check is finished");
+            }
+            if (!isInRange(entry)) {
+                return mFirstFailure;
+            }
+            boolean isFirstEntry = mFirstEntry == null;
+            if (isFirstEntry) {
+                mFirstEntry = entry;
+            }
+            mLastEntry = entry;
+            switch (mOption) {
+                case CHECK_CHANGING_ASSERTIONS:
+                    checkChanges(entry);
+                    break;
+                case CHECK_FIRST_ENTRY:
+                    if (isFirstEntry) {
+                        checkEntry(entry);
+                    }
+                    break;
+                case CHECK_LAST_ENTRY:
+                    break;
+                default:
+                    checkEntry(entry);
+            }
+            return mFirstFailure;
+        }
+
+        /** Returns true if an assertion failed on the entries checked so far. */
+        public boolean hasFailed() {
+            return mFirstFailure != null;
+        }
+
+        /**
+         * Finishes the check and returns the failed assertion results, like {@link #test(List)}
+         * over all entries that were added.
+         */
+        public List<Result> finish() {
+            if (mFailures != null) {
+                return mFailures;
+            }
+            if (mOption == AssertionOption.CHECK_LAST_ENTRY && mLastEntry != null) {
+                checkEntry(mLastEntry);
+            }
+            if ((mOption == AssertionOption.CHECK_FIRST_ENTRY
+                            || mOption == AssertionOption.CHECK_LAST_ENTRY)
+                    && mFirstEntry == null) {
+                throw new IllegalStateException("No entry to check");
+            }
+            mFailures = new ArrayList<>();
+            if (mOption != AssertionOption.CHECK_CHANGING_ASSERTIONS) {
+                mFailuresByAssertion.forEach(mFailures::addAll);
+            } else if (mFirstFailure != null) {
+                mFailures.add(mFirstFailure);
+            } else if (!mAssertions.isEmpty() && mAssertionIndex != mAssertions.size() - 1) {
+                mFailures.add(getUnfinishedChangesResult(mAssertionIndex));
+            }
+            return mFailures;
+        }
+
+        private void checkEntry(T entry) {
+            for (int i = 0; i < mAssertions.size(); i++) {
+                Result result = mAssertions.get(i).assertion.apply(entry);
+                if (result.failed()) {
+                    mFailuresByAssertion.get(i).add(result);
+                    if (mFirstFailure == null) {
+                        mFirstFailure = result;
+                    }
+                }
+            }
+        }
+
+        /** Advances the changing assertions check over {@code entry}, like assertChanges(). */
+        private void checkChanges(T entry) {
+            if (mFirstFailure != null || mAssertions.isEmpty()) {
+                return;
+            }
+            while (true) {
+                Result result = mAssertions.get(mAssertionIndex).assertion.apply(entry);
+                if (result.passed()) {
+                    mLastPassedAssertionIndex = mAssertionIndex;
+                    return;
+                }
+                if (mLastPassedAssertionIndex != mAssertionIndex) {
+                    mFirstFailure = result;
+                    return;
+                }
+                mAssertionIndex++;
+                if (mAssertionIndex == mAssertions.size()) {
+                    mFirstFailure = result;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates a range of the (entry, assertion) pairs, numbered entry by entry so that the
+     * assertions of an entry tend to run in the same task.
+     */
+    private static class EvaluationTask<T extends ITraceEntry> extends RecursiveAction {
+        private final List<NamedAssertion<T>> mAssertions;
+        private final List<T> mEntries;
+        private final Result[][] mResults;
+        private final int mStart;
+        private final int mEnd;
+
+        EvaluationTask(List<NamedAssertion<T>> assertions, List<T> entries, Result[][] results,
+                int start, int end) {
+            mAssertions = assertions;
+            mEntries = entries;
+            mResults = results;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > PARALLEL_CHUNK_SIZE) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(
+                        new EvaluationTask<>(mAssertions, mEntries, mResults, mStart, middle),
+                        new EvaluationTask<>(mAssertions, mEntries, mResults, middle, mEnd));
+                return;
+            }
+            int assertionCount = mAssertions.size();
+            for (int i = mStart; i < mEnd; i++) {
+                int entryIndex = i / assertionCount;
+                int assertionIndex = i % assertionCount;
+                mResults[assertionIndex][entryIndex] =
+                        mAssertions.get(assertionIndex).assertion.apply(mEntries.get(entryIndex));
+            }
+        }
+    }
+
     private enum AssertionOption {
         NONE,
         CHECK_CHANGING_ASSERTIONS,
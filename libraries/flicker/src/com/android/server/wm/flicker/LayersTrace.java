@@ -18,6 +18,7 @@ package com.android.server.wm.flicker;
 
 import androidx.annotation.Nullable;
 
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.surfaceflinger.nano.Layers.LayerProto;
 import android.surfaceflinger.nano.Layers.RectProto;
@@ -28,11 +29,21 @@ import android.util.SparseArray;
 
 import com.android.server.wm.flicker.Assertions.Result;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -40,16 +51,34 @@ import java.util.stream.Collectors;
  * Contains a collection of parsed Layers trace entries and assertions to apply over a single entry.
  *
  * <p>Each entry is parsed into a list of {@link LayersTrace.Entry} objects.
+ *
+ * <p>A trace parsed with {@link #parseLazilyFrom} keeps the entry protos and only builds the layer
+ * hierarchy of an entry when it is first accessed. The hierarchies of the most recently used
+ * entries are kept in a bounded cache, and rebuilt after being evicted. A trace parsed lazily from
+ * a file memory-maps it and only decodes the protos of an entry when building its hierarchy.
  */
 public class LayersTrace {
+    /** Default number of layer hierarchies kept by a lazily parsed trace. */
+    public static final int DEFAULT_MAX_CACHED_ENTRIES = 16;
+
     private final List<Entry> mEntries;
+    private final TimestampIndex mTimestampIndex;
     @Nullable private final Path mSource;
 
     private LayersTrace(List<Entry> entries, Path source) {
         this.mEntries = entries;
+        this.mTimestampIndex = TimestampIndex.of(entries);
         this.mSource = source;
     }
 
+    private static LayersTraceFileProto parseFileProto(byte[] data) {
+        try {
+            return LayersTraceFileProto.parseFrom(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Parses {@code LayersTraceFileProto} from {@code data} and uses the proto to generates a list
      * of trace entries, storing the flattened layers into its hierarchical structure.
@@ -61,17 +90,13 @@ public class LayersTrace {
     public static LayersTrace parseFrom(byte[] data, Path source,
             Consumer<Layer> orphanLayerCallback) {
         List<Entry> entries = new ArrayList<>();
-        LayersTraceFileProto fileProto;
-        try {
-            fileProto = LayersTraceFileProto.parseFrom(data);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        LayersTraceFileProto fileProto = parseFileProto(data);
+        LayerNameIndex nameIndex = new LayerNameIndex();
         for (LayersTraceProto traceProto : fileProto.entry) {
             Entry entry =
                     Entry.fromFlattenedLayers(
                             traceProto.elapsedRealtimeNanos, traceProto.layers.layers,
-                            orphanLayerCallback);
+                            orphanLayerCallback, nameIndex);
             entries.add(entry);
         }
         return new LayersTrace(entries, source);
@@ -98,32 +123,317 @@ public class LayersTrace {
         return parseFrom(data, null);
     }
 
+    /**
+     * Parses {@code LayersTraceFileProto} from {@code data} without building the layer hierarchy
+     * of its entries. The hierarchy of an entry is built on first access, so orphan layers are
+     * only reported then.
+     *
+     * @param data binary proto data
+     * @param source Path to source of data for additional debug information
+     * @param orphanLayerCallback a callback to handle any unexpected orphan layers
+     * @param maxCachedEntries number of layer hierarchies kept in memory
+     */
+    public static LayersTrace parseLazilyFrom(byte[] data, Path source,
+            Consumer<Layer> orphanLayerCallback, int maxCachedEntries) {
+        if (maxCachedEntries < 1) {
+            throw new IllegalArgumentException("maxCachedEntries must be positive");
+        }
+        HierarchyCache cache = new HierarchyCache(maxCachedEntries, new LayerNameIndex());
+        LayersTraceFileProto fileProto = parseFileProto(data);
+        List<Entry> entries = new ArrayList<>(fileProto.entry.length);
+        for (int i = 0; i < fileProto.entry.length; i++) {
+            LayersTraceProto traceProto = fileProto.entry[i];
+            entries.add(
+                    new Entry(
+                            traceProto.elapsedRealtimeNanos, i, traceProto.layers.layers,
+                            orphanLayerCallback, cache));
+        }
+        return new LayersTrace(entries, source);
+    }
+
+    /**
+     * Parses {@code LayersTraceFileProto} from {@code data} without building the layer hierarchy
+     * of its entries, keeping up to {@link #DEFAULT_MAX_CACHED_ENTRIES} hierarchies in memory.
+     *
+     * @param data binary proto data
+     * @param source Path to source of data for additional debug information
+     */
+    public static LayersTrace parseLazilyFrom(byte[] data, Path source) {
+        return parseLazilyFrom(
+                data, source, null /* orphanLayerCallback */, DEFAULT_MAX_CACHED_ENTRIES);
+    }
+
+    /**
+     * Memory-maps the {@code LayersTraceFileProto} at {@code tracePath} without decoding its
+     * entries. The layer protos of an entry are decoded, and its hierarchy built, on first access.
+     *
+     * <p>The entries are read from the index written by {@link #writeIndex} if it is up to date,
+     * and otherwise found by walking the trace. The layer visibility stored in the index is used
+     * to check that a layer is visible without decoding the entry.
+     *
+     * @param tracePath trace file, which must not change while the trace is in use
+     * @param orphanLayerCallback a callback to handle any unexpected orphan layers
+     * @param maxCachedEntries number of layer hierarchies kept in memory
+     */
+    public static LayersTrace parseLazilyFrom(Path tracePath,
+            Consumer<Layer> orphanLayerCallback, int maxCachedEntries) throws IOException {
+        if (maxCachedEntries < 1) {
+            throw new IllegalArgumentException("maxCachedEntries must be positive");
+        }
+        ByteBuffer trace = TraceIndex.mapTrace(tracePath);
+        TraceIndex index = TraceIndex.read(tracePath);
+        if (index == null) {
+            index = TraceIndex.build(trace);
+        }
+        HierarchyCache cache =
+                new HierarchyCache(maxCachedEntries, new LayerNameIndex(), trace, index);
+        List<Entry> entries = new ArrayList<>(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            entries.add(
+                    new Entry(
+                            index.getTimestamp(i), i, null /* protos */, orphanLayerCallback,
+                            cache));
+        }
+        return new LayersTrace(entries, tracePath);
+    }
+
+    /**
+     * Memory-maps the {@code LayersTraceFileProto} at {@code tracePath} without decoding its
+     * entries, keeping up to {@link #DEFAULT_MAX_CACHED_ENTRIES} hierarchies in memory.
+     */
+    public static LayersTrace parseLazilyFrom(Path tracePath) throws IOException {
+        return parseLazilyFrom(
+                tracePath, null /* orphanLayerCallback */, DEFAULT_MAX_CACHED_ENTRIES);
+    }
+
+    /**
+     * Writes an index of the trace at {@code tracePath} next to it, holding the timestamp and
+     * location of each entry and the visibility of its layers. Used by {@link #parseLazilyFrom}
+     * to open the trace without walking it. Orphan layers are ignored.
+     */
+    public static void writeIndex(Path tracePath) throws IOException {
+        ByteBuffer trace = TraceIndex.mapTrace(tracePath);
+        TraceIndex index = TraceIndex.build(trace);
+        LayerNameIndex nameIndex = new LayerNameIndex();
+        Map<String, Integer> nameIds = new LinkedHashMap<>();
+        List<Set<Integer>> visibleNameIds = new ArrayList<>(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            Entry entry =
+                    Entry.fromFlattenedLayers(
+                            index.getTimestamp(i),
+                            readLayerProtos(trace, index.getOffset(i), index.getLength(i)),
+                            layer -> {} /* orphanLayerCallback */,
+                            nameIndex);
+            Set<Integer> visible = new HashSet<>();
+            for (Layer layer : entry.asFlattenedLayers()) {
+                Integer id = nameIds.computeIfAbsent(layer.mProto.name, n -> nameIds.size());
+                if (!layer.isHiddenByParent() && !layer.isInvisible()) {
+                    visible.add(id);
+                }
+            }
+            visibleNameIds.add(visible);
+        }
+        long[][] visibleLayers =
+                new long[index.size()][TraceIndex.getWordCount(nameIds.size())];
+        for (int i = 0; i < index.size(); i++) {
+            for (int id : visibleNameIds.get(i)) {
+                visibleLayers[i][id / Long.SIZE] |= 1L << id;
+            }
+        }
+        index.withLayerVisibility(nameIds.keySet().toArray(new String[0]), visibleLayers)
+                .write(tracePath);
+    }
+
+    /** Decodes the layers of the {@code LayersTraceProto} at {@code offset} of {@code trace}. */
+    private static LayerProto[] readLayerProtos(ByteBuffer trace, int offset, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer entryBuffer = trace.duplicate();
+        entryBuffer.position(offset);
+        entryBuffer.get(data);
+        LayersTraceProto traceProto;
+        try {
+            traceProto = LayersTraceProto.parseFrom(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return traceProto.layers != null ? traceProto.layers.layers : new LayerProto[0];
+    }
+
     public List<Entry> getEntries() {
         return mEntries;
     }
 
     public Entry getEntry(long timestamp) {
-        Optional<Entry> entry =
-                mEntries.stream().filter(e -> e.getTimestamp() == timestamp).findFirst();
-        if (!entry.isPresent()) {
+        int index = mTimestampIndex.indexOf(timestamp);
+        if (index < 0) {
             throw new RuntimeException("Entry does not exist for timestamp " + timestamp);
         }
-        return entry.get();
+        return mEntries.get(index);
+    }
+
+    /** Returns the entries between {@code startTime} and {@code endTime}, inclusive. */
+    public List<Entry> getEntries(long startTime, long endTime) {
+        return mTimestampIndex.subList(mEntries, startTime, endTime);
+    }
+
+    /** Returns the timestamp index of {@link #getEntries()}. */
+    public TimestampIndex getTimestampIndex() {
+        return mTimestampIndex;
     }
 
     public Optional<Path> getSource() {
         return Optional.ofNullable(mSource);
     }
 
+    /**
+     * Bounded LRU of the layer hierarchies of a lazily parsed trace, mapping each lazy entry to
+     * an entry built with {@link Entry#fromFlattenedLayers}.
+     */
+    private static class HierarchyCache {
+        private final Map<Entry, Entry> mEntries;
+        private final LayerNameIndex mNameIndex;
+        // Only set for traces parsed from a file, whose entries are decoded on demand.
+        @Nullable private final ByteBuffer mTrace;
+        @Nullable private final TraceIndex mTraceIndex;
+
+        HierarchyCache(int maxEntries, LayerNameIndex nameIndex) {
+            this(maxEntries, nameIndex, null /* trace */, null /* traceIndex */);
+        }
+
+        HierarchyCache(int maxEntries, LayerNameIndex nameIndex, @Nullable ByteBuffer trace,
+                @Nullable TraceIndex traceIndex) {
+            mNameIndex = nameIndex;
+            mTrace = trace;
+            mTraceIndex = traceIndex;
+            mEntries =
+                    new LinkedHashMap<Entry, Entry>(16, 0.75f, true /* accessOrder */) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<Entry, Entry> eldest) {
+                            return size() > maxEntries;
+                        }
+                    };
+        }
+
+        Entry get(Entry lazyEntry) {
+            synchronized (this) {
+                Entry entry = mEntries.get(lazyEntry);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            // Build outside of the lock so that several entries can be built concurrently.
+            LayerProto[] protos = lazyEntry.mLayerProtos;
+            if (protos == null) {
+                int position = lazyEntry.mPosition;
+                protos =
+                        readLayerProtos(
+                                mTrace, mTraceIndex.getOffset(position),
+                                mTraceIndex.getLength(position));
+            }
+            Entry entry =
+                    Entry.fromFlattenedLayers(
+                            lazyEntry.mTimestamp, protos, lazyEntry.mOrphanLayerCallback,
+                            mNameIndex);
+            synchronized (this) {
+                Entry existing = mEntries.putIfAbsent(lazyEntry, entry);
+                return existing != null ? existing : entry;
+            }
+        }
+
+        /**
+         * Returns the names of the layers visible in {@code lazyEntry} that contain {@code query},
+         * or null if the trace index does not hold the visibility of the layers.
+         */
+        @Nullable
+        List<String> getVisibleLayerNamesContaining(Entry lazyEntry, String query) {
+            if (mTraceIndex == null || !mTraceIndex.hasLayerVisibility()) {
+                return null;
+            }
+            return mTraceIndex.getVisibleLayerNamesContaining(lazyEntry.mPosition, query);
+        }
+    }
+
+    /**
+     * Distinct layer names of a trace, shared by its entries. The names are interned, and the
+     * names containing a queried substring are memoized, so that each name is only matched once
+     * against each query across all entries.
+     */
+    private static class LayerNameIndex {
+        private final Map<String, String> mNames = new HashMap<>();
+        private final List<String> mNameList = new ArrayList<>();
+        private final Map<String, Matches> mMatches = new HashMap<>();
+
+        /** Names containing a query, out of the first {@code mCheckedCount} names. */
+        private static class Matches {
+            Set<String> mNames = Collections.emptySet();
+            int mCheckedCount = 0;
+        }
+
+        synchronized String intern(String name) {
+            String interned = mNames.putIfAbsent(name, name);
+            if (interned != null) {
+                return interned;
+            }
+            mNameList.add(name);
+            return name;
+        }
+
+        /** Returns the names containing {@code query}. The returned set is not modified later. */
+        synchronized Set<String> getNamesContaining(String query) {
+            Matches matches = mMatches.computeIfAbsent(query, q -> new Matches());
+            if (matches.mCheckedCount < mNameList.size()) {
+                Set<String> names = null;
+                for (int i = matches.mCheckedCount; i < mNameList.size(); i++) {
+                    String name = mNameList.get(i);
+                    if (name.contains(query)) {
+                        if (names == null) {
+                            names = new HashSet<>(matches.mNames);
+                        }
+                        names.add(name);
+                    }
+                }
+                if (names != null) {
+                    matches.mNames = Collections.unmodifiableSet(names);
+                }
+                matches.mCheckedCount = mNameList.size();
+            }
+            return matches.mNames;
+        }
+    }
+
     /** Represents a single Layer trace entry. */
     public static class Entry implements ITraceEntry {
         private long mTimestamp;
         private List<Layer> mRootLayers; // hierarchical representation of layers
-        private List<Layer> mFlattenedLayers = null;
-
-        private Entry(long timestamp, List<Layer> rootLayers) {
+        private volatile List<Layer> mFlattenedLayers = null;
+        @Nullable private final LayerNameIndex mNameIndex;
+        // Layers whose name contains a queried substring, in flattened order.
+        private final Map<String, List<Layer>> mLayersByName = new ConcurrentHashMap<>();
+        // Only set for entries of a lazily parsed trace, which build their layers on demand.
+        // Entries of a trace parsed from a file decode their protos on demand too.
+        private final int mPosition;
+        @Nullable private final LayerProto[] mLayerProtos;
+        @Nullable private final Consumer<Layer> mOrphanLayerCallback;
+        @Nullable private final HierarchyCache mCache;
+
+        private Entry(long timestamp, List<Layer> rootLayers, LayerNameIndex nameIndex) {
             this.mTimestamp = timestamp;
             this.mRootLayers = rootLayers;
+            this.mNameIndex = nameIndex;
+            this.mPosition = -1;
+            this.mLayerProtos = null;
+            this.mOrphanLayerCallback = null;
+            this.mCache = null;
+        }
+
+        private Entry(long timestamp, int position, @Nullable LayerProto[] protos,
+                Consumer<Layer> orphanLayerCallback, HierarchyCache cache) {
+            this.mTimestamp = timestamp;
+            this.mNameIndex = null;
+            this.mPosition = position;
+            this.mLayerProtos = protos;
+            this.mOrphanLayerCallback = orphanLayerCallback;
+            this.mCache = cache;
         }
 
         /**
@@ -156,9 +466,16 @@ public class LayersTrace {
         /** Constructs the layer hierarchy from a flattened list of layers. */
         public static Entry fromFlattenedLayers(long timestamp, LayerProto[] protos,
                 Consumer<Layer> orphanLayerCallback) {
+            return fromFlattenedLayers(
+                    timestamp, protos, orphanLayerCallback, new LayerNameIndex());
+        }
+
+        private static Entry fromFlattenedLayers(long timestamp, LayerProto[] protos,
+                Consumer<Layer> orphanLayerCallback, LayerNameIndex nameIndex) {
             SparseArray<Layer> layerMap = new SparseArray<>();
             ArrayList<Layer> orphans = new ArrayList<>();
             for (LayerProto proto : protos) {
+                proto.name = nameIndex.intern(proto.name);
                 int id = proto.id;
                 int parentId = proto.parent;
 
@@ -208,7 +525,7 @@ public class LayersTrace {
                                         + childNodes);
                     });
 
-            return new Entry(timestamp, rootLayer.mChildren);
+            return new Entry(timestamp, rootLayer.mChildren, nameIndex);
         }
 
         /** Extracts {@link Rect} from {@link RectProto}. */
@@ -233,41 +550,33 @@ public class LayersTrace {
             String assertionName = "coversRegion";
             Collection<Layer> layers = asFlattenedLayers();
 
-            for (int x = testRect.left; x < testRect.right; x++) {
-                for (int y = testRect.top; y < testRect.bottom; y++) {
-                    boolean emptyRegionFound = true;
-                    for (Layer layer : layers) {
-                        if (layer.isInvisible() || layer.isHiddenByParent()) {
-                            continue;
-                        }
-                        for (RectProto rectProto : layer.mProto.visibleRegion.rect) {
-                            Rect r = extract(rectProto);
-                            if (r.contains(x, y)) {
-                                y = r.bottom;
-                                emptyRegionFound = false;
-                            }
-                        }
-                    }
-                    if (emptyRegionFound) {
-                        String reason =
-                                "Region to test: "
-                                        + testRect
-                                        + "\nfirst empty point: "
-                                        + x
-                                        + ", "
-                                        + y;
-                        reason += "\nvisible regions:";
-                        for (Layer layer : layers) {
-                            if (layer.isInvisible() || layer.isHiddenByParent()) {
-                                continue;
-                            }
-                            Rect r = extract(layer.mProto.visibleRegion);
-                            reason += "\n" + layer.mProto.name + r.toString();
-                        }
-                        return new Result(
-                                false /* success */, this.mTimestamp, assertionName, reason);
+            List<Rect> visibleRects = new ArrayList<>();
+            for (Layer layer : layers) {
+                if (layer.isInvisible() || layer.isHiddenByParent()) {
+                    continue;
+                }
+                for (RectProto rectProto : layer.mProto.visibleRegion.rect) {
+                    visibleRects.add(extract(rectProto));
+                }
+            }
+            Point emptyPoint = new RegionCoverage(visibleRects).getFirstUncoveredPoint(testRect);
+            if (emptyPoint != null) {
+                String reason =
+                        "Region to test: "
+                                + testRect
+                                + "\nfirst empty point: "
+                                + emptyPoint.x
+                                + ", "
+                                + emptyPoint.y;
+                reason += "\nvisible regions:";
+                for (Layer layer : layers) {
+                    if (layer.isInvisible() || layer.isHiddenByParent()) {
+                        continue;
                     }
+                    Rect r = extract(layer.mProto.visibleRegion);
+                    reason += "\n" + layer.mProto.name + r.toString();
                 }
+                return new Result(false /* success */, this.mTimestamp, assertionName, reason);
             }
             String info = "Region covered: " + testRect;
             return new Result(true /* success */, this.mTimestamp, assertionName, info);
@@ -280,32 +589,30 @@ public class LayersTrace {
         public Result hasVisibleRegion(String layerName, Rect expectedVisibleRegion) {
             String assertionName = "hasVisibleRegion";
             String reason = "Could not find " + layerName;
-            for (Layer layer : asFlattenedLayers()) {
-                if (layer.mProto.name.contains(layerName)) {
-                    if (layer.isHiddenByParent()) {
-                        reason = layer.getHiddenByParentReason();
-                        continue;
-                    }
-                    if (layer.isInvisible()) {
-                        reason = layer.getVisibilityReason();
-                        continue;
-                    }
-                    Rect visibleRegion = extract(layer.mProto.visibleRegion);
-                    if (visibleRegion.equals(expectedVisibleRegion)) {
-                        return new Result(
-                                true /* success */,
-                                this.mTimestamp,
-                                assertionName,
-                                layer.mProto.name + "has visible region " + expectedVisibleRegion);
-                    }
-                    reason =
-                            layer.mProto.name
-                                    + " has visible region:"
-                                    + visibleRegion
-                                    + " "
-                                    + "expected:"
-                                    + expectedVisibleRegion;
+            for (Layer layer : findLayers(layerName)) {
+                if (layer.isHiddenByParent()) {
+                    reason = layer.getHiddenByParentReason();
+                    continue;
+                }
+                if (layer.isInvisible()) {
+                    reason = layer.getVisibilityReason();
+                    continue;
                 }
+                Rect visibleRegion = extract(layer.mProto.visibleRegion);
+                if (visibleRegion.equals(expectedVisibleRegion)) {
+                    return new Result(
+                            true /* success */,
+                            this.mTimestamp,
+                            assertionName,
+                            layer.mProto.name + "has visible region " + expectedVisibleRegion);
+                }
+                reason =
+                        layer.mProto.name
+                                + " has visible region:"
+                                + visibleRegion
+                                + " "
+                                + "expected:"
+                                + expectedVisibleRegion;
             }
             return new Result(false /* success */, this.mTimestamp, assertionName, reason);
         }
@@ -313,23 +620,33 @@ public class LayersTrace {
         /** Checks if a layer with name {@code layerName} is visible. */
         public Result isVisible(String layerName) {
             String assertionName = "isVisible";
-            String reason = "Could not find " + layerName;
-            for (Layer layer : asFlattenedLayers()) {
-                if (layer.mProto.name.contains(layerName)) {
-                    if (layer.isHiddenByParent()) {
-                        reason = layer.getHiddenByParentReason();
-                        continue;
-                    }
-                    if (layer.isInvisible()) {
-                        reason = layer.getVisibilityReason();
-                        continue;
-                    }
+            if (mCache != null) {
+                // The trace index answers passing checks without building the hierarchy, as long
+                // as the visible layer is unambiguous.
+                List<String> visibleNames = mCache.getVisibleLayerNamesContaining(this, layerName);
+                if (visibleNames != null && visibleNames.size() == 1) {
                     return new Result(
                             true /* success */,
                             this.mTimestamp,
                             assertionName,
-                            layer.mProto.name + " is visible");
+                            visibleNames.get(0) + " is visible");
+                }
+            }
+            String reason = "Could not find " + layerName;
+            for (Layer layer : findLayers(layerName)) {
+                if (layer.isHiddenByParent()) {
+                    reason = layer.getHiddenByParentReason();
+                    continue;
+                }
+                if (layer.isInvisible()) {
+                    reason = layer.getVisibilityReason();
+                    continue;
                 }
+                return new Result(
+                        true /* success */,
+                        this.mTimestamp,
+                        assertionName,
+                        layer.mProto.name + " is visible");
             }
             return new Result(false /* success */, this.mTimestamp, assertionName, reason);
         }
@@ -339,28 +656,65 @@ public class LayersTrace {
             return mTimestamp;
         }
 
+        /**
+         * Returns the root layers. For entries of a lazily parsed trace, the layers may be
+         * rebuilt between calls.
+         */
         public List<Layer> getRootLayers() {
+            if (mCache != null) {
+                return mCache.get(this).getRootLayers();
+            }
             return mRootLayers;
         }
 
-        /** Returns all layers as a flattened list using a depth first traversal. */
+        /** Returns all layers as a flattened list using a breadth first traversal. */
         public List<Layer> asFlattenedLayers() {
-            if (mFlattenedLayers == null) {
-                mFlattenedLayers = new ArrayList<>();
-                ArrayList<Layer> pendingLayers = new ArrayList<>(this.mRootLayers);
+            if (mCache != null) {
+                return mCache.get(this).asFlattenedLayers();
+            }
+            List<Layer> flattenedLayers = mFlattenedLayers;
+            if (flattenedLayers == null) {
+                flattenedLayers = new ArrayList<>();
+                ArrayDeque<Layer> pendingLayers = new ArrayDeque<>(this.mRootLayers);
                 while (!pendingLayers.isEmpty()) {
-                    Layer layer = pendingLayers.remove(0);
-                    mFlattenedLayers.add(layer);
+                    Layer layer = pendingLayers.poll();
+                    flattenedLayers.add(layer);
                     pendingLayers.addAll(layer.mChildren);
                 }
+                mFlattenedLayers = flattenedLayers;
             }
-            return mFlattenedLayers;
+            return flattenedLayers;
+        }
+
+        /**
+         * Returns the layers whose name contains {@code layerName}, in the order of {@link
+         * #asFlattenedLayers()}. The list is cached and shared between callers, so it cannot be
+         * modified.
+         */
+        public List<Layer> findLayers(String layerName) {
+            if (mCache != null) {
+                return mCache.get(this).findLayers(layerName);
+            }
+            return mLayersByName.computeIfAbsent(
+                    layerName,
+                    name -> {
+                        Set<String> names = mNameIndex.getNamesContaining(name);
+                        if (names.isEmpty()) {
+                            return Collections.emptyList();
+                        }
+                        List<Layer> layers = new ArrayList<>();
+                        for (Layer layer : asFlattenedLayers()) {
+                            if (names.contains(layer.mProto.name)) {
+                                layers.add(layer);
+                            }
+                        }
+                        return Collections.unmodifiableList(layers);
+                    });
         }
 
         public Rect getVisibleBounds(String layerName) {
-            List<Layer> layers = asFlattenedLayers();
-            for (Layer layer : layers) {
-                if (layer.mProto.name.contains(layerName) && layer.isVisible()) {
+            for (Layer layer : findLayers(layerName)) {
+                if (layer.isVisible()) {
                     return extract(layer.mProto.visibleRegion);
                 }
             }
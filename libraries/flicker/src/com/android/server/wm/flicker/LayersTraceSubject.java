@@ -31,6 +31,7 @@ import com.android.server.wm.flicker.TransitionRunner.TransitionResult;
 import com.google.common.truth.FailureMetadata;
 import com.google.common.truth.Subject;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
 import java.util.function.Consumer;
@@ -70,8 +71,20 @@ public class LayersTraceSubject extends Subject<LayersTraceSubject, LayersTrace>
     // User-defined entry point
     public static LayersTraceSubject assertThat(@Nullable TransitionResult result,
             Consumer<LayersTrace.Layer> orphanLayerCallback) {
-        LayersTrace entries = LayersTrace.parseFrom(result.getLayersTrace(),
-                result.getLayersTracePath(), orphanLayerCallback);
+        LayersTrace entries;
+        if (result.getLayersTracePath() == null) {
+            // The trace was kept in memory instead of being saved
+            entries = LayersTrace.parseFrom(result.getLayersTrace(), null, orphanLayerCallback);
+        } else {
+            try {
+                entries =
+                        LayersTrace.parseLazilyFrom(
+                                result.getLayersTracePath(), orphanLayerCallback,
+                                LayersTrace.DEFAULT_MAX_CACHED_ENTRIES);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         return assertWithMessage(result.toString()).about(FACTORY).that(entries);
     }
 
@@ -111,7 +124,7 @@ public class LayersTraceSubject extends Subject<LayersTraceSubject, LayersTrace>
     }
 
     private void test() {
-        List<Result> failures = mChecker.test(actual().getEntries());
+        List<Result> failures = mChecker.test(actual().getEntries(), actual().getTimestampIndex());
         if (!failures.isEmpty()) {
             String failureLogs =
                     failures.stream().map(Result::toString).collect(Collectors.joining("\n"));
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the fields of a protobuf message in wire format, without decoding nested messages.
+ *
+ * <p>Used to find the entries of a trace file, and the fields of an entry that need decoding,
+ * without copying the file to the heap.
+ */
+class ProtoWireReader {
+    static final int WIRETYPE_VARINT = 0;
+    static final int WIRETYPE_FIXED64 = 1;
+    static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    static final int WIRETYPE_FIXED32 = 5;
+
+    private final ByteBuffer mBuffer;
+    private final int mEnd;
+    private int mPosition;
+    private int mTag;
+
+    /** Reads the fields between {@code start} and {@code end} of {@code buffer}. */
+    ProtoWireReader(ByteBuffer buffer, int start, int end) {
+        mBuffer = buffer;
+        mPosition = start;
+        mEnd = end;
+    }
+
+    /** Reads the tag of the next field, or returns false at the end of the message. */
+    boolean nextField() {
+        if (mPosition >= mEnd) {
+            return false;
+        }
+        mTag = (int) readVarint();
+        return true;
+    }
+
+    int getFieldNumber() {
+        return mTag >>> 3;
+    }
+
+    int getWireType() {
+        return mTag & 0x7;
+    }
+
+    /** Returns the offset of the next byte to read. */
+    int getPosition() {
+        return mPosition;
+    }
+
+    long readVarint() {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = get(mPosition++);
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalStateException("Malformed varint at " + mPosition);
+    }
+
+    long readFixed64() {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result |= (long) (get(mPosition++) & 0xff) << (8 * i);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the length of a length-delimited field, leaving the position at the start of its
+     * payload.
+     */
+    int readLength() {
+        long length = readVarint();
+        if (length < 0 || length > mEnd - mPosition) {
+            throw new IllegalStateException(
+                    "Field of " + length + " bytes at " + mPosition + " overruns its message");
+        }
+        return (int) length;
+    }
+
+    void skip(int length) {
+        mPosition += length;
+    }
+
+    /** Skips the value of the current field. */
+    void skipField() {
+        switch (getWireType()) {
+            case WIRETYPE_VARINT:
+                readVarint();
+                break;
+            case WIRETYPE_FIXED64:
+                skip(8);
+                break;
+            case WIRETYPE_LENGTH_DELIMITED:
+                skip(readLength());
+                break;
+            case WIRETYPE_FIXED32:
+                skip(4);
+                break;
+            default:
+                throw new IllegalStateException(
+                        "Unsupported wire type " + getWireType() + " at " + mPosition);
+        }
+    }
+
+    private byte get(int index) {
+        if (index >= mEnd) {
+            throw new IllegalStateException("Message truncated at " + index);
+        }
+        return mBuffer.get(index);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Union of a set of rects, used to check whether they cover a region.
+ *
+ * <p>The rects are kept sorted by their top edge. Coverage is checked with a sweep over the
+ * vertical edges of the rects: between two consecutive edges the same rects span every column, so
+ * each column range is checked once by merging the vertical spans of those rects. This costs about
+ * the square of the number of rects, independently of the size of the region.
+ */
+public class RegionCoverage {
+    private final Rect[] mRects;
+
+    /** @param rects rects of the union. Empty rects are ignored. */
+    public RegionCoverage(Collection<Rect> rects) {
+        List<Rect> nonEmptyRects = new ArrayList<>(rects.size());
+        for (Rect rect : rects) {
+            if (rect.left < rect.right && rect.top < rect.bottom) {
+                nonEmptyRects.add(rect);
+            }
+        }
+        mRects = nonEmptyRects.toArray(new Rect[0]);
+        Arrays.sort(mRects, (a, b) -> Integer.compare(a.top, b.top));
+    }
+
+    /** Checks if every point of {@code testRect} is covered by the union. */
+    public boolean covers(Rect testRect) {
+        return getFirstUncoveredPoint(testRect) == null;
+    }
+
+    /**
+     * Returns the first point of {@code testRect} not covered by the union, scanning columns from
+     * left to right and each column from top to bottom, or null if it is fully covered.
+     */
+    @Nullable
+    public Point getFirstUncoveredPoint(Rect testRect) {
+        if (testRect.left >= testRect.right || testRect.top >= testRect.bottom) {
+            return null;
+        }
+        // Coverage only changes at the vertical edges of the rects, so it is enough to check the
+        // first column after each edge.
+        int[] columns = new int[mRects.length * 2 + 1];
+        int columnCount = 0;
+        columns[columnCount++] = testRect.left;
+        for (Rect rect : mRects) {
+            if (rect.left > testRect.left && rect.left < testRect.right) {
+                columns[columnCount++] = rect.left;
+            }
+            if (rect.right > testRect.left && rect.right < testRect.right) {
+                columns[columnCount++] = rect.right;
+            }
+        }
+        Arrays.sort(columns, 0, columnCount);
+
+        for (int i = 0; i < columnCount; i++) {
+            int x = columns[i];
+            if (i > 0 && x == columns[i - 1]) {
+                continue;
+            }
+            int y = getFirstUncoveredRow(x, testRect.top, testRect.bottom);
+            if (y < testRect.bottom) {
+                return new Point(x, y);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first row between {@code top} and {@code bottom} of column {@code x} not covered
+     * by any rect, or {@code bottom} if the column is covered.
+     */
+    private int getFirstUncoveredRow(int x, int top, int bottom) {
+        int y = top;
+        for (Rect rect : mRects) {
+            if (rect.left > x || rect.right <= x || rect.bottom <= y) {
+                continue;
+            }
+            if (rect.top > y) {
+                // Rects are sorted by top, so no later rect covers y either.
+                return y;
+            }
+            y = rect.bottom;
+            if (y >= bottom) {
+                return bottom;
+            }
+        }
+        return y;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timestamps of a list of trace entries, used to look entries up by timestamp or time range.
+ *
+ * <p>Traces are recorded in chronological order, so lookups are binary searches over the
+ * timestamps. Lists that are not sorted by timestamp fall back to linear scans.
+ */
+public class TimestampIndex {
+    private final long[] mTimestamps;
+    private final boolean mSorted;
+
+    private TimestampIndex(long[] timestamps) {
+        mTimestamps = timestamps;
+        boolean sorted = true;
+        for (int i = 1; i < timestamps.length && sorted; i++) {
+            sorted = timestamps[i - 1] <= timestamps[i];
+        }
+        mSorted = sorted;
+    }
+
+    /** Builds the index of {@code entries}, which must not change afterwards. */
+    public static TimestampIndex of(List<? extends ITraceEntry> entries) {
+        long[] timestamps = new long[entries.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = entries.get(i).getTimestamp();
+        }
+        return new TimestampIndex(timestamps);
+    }
+
+    /** Returns the number of indexed entries. */
+    public int size() {
+        return mTimestamps.length;
+    }
+
+    /** Returns the index of the first entry at {@code timestamp}, or -1 if there is none. */
+    public int indexOf(long timestamp) {
+        if (!mSorted) {
+            for (int i = 0; i < mTimestamps.length; i++) {
+                if (mTimestamps[i] == timestamp) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int index = lowerBound(timestamp);
+        return index < mTimestamps.length && mTimestamps[index] == timestamp ? index : -1;
+    }
+
+    /**
+     * Returns the entries of {@code entries} between {@code startTime} and {@code endTime},
+     * inclusive. For a sorted index this is a view of {@code entries}.
+     *
+     * @param entries the entries this index was built from
+     */
+    public <T> List<T> subList(List<T> entries, long startTime, long endTime) {
+        if (entries.size() != mTimestamps.length) {
+            throw new IllegalArgumentException(
+                    "Index of " + mTimestamps.length + " entries used for " + entries.size());
+        }
+        if (!mSorted) {
+            List<T> filtered = new ArrayList<>();
+            for (int i = 0; i < mTimestamps.length; i++) {
+                if (mTimestamps[i] >= startTime && mTimestamps[i] <= endTime) {
+                    filtered.add(entries.get(i));
+                }
+            }
+            return filtered;
+        }
+        int from = lowerBound(startTime);
+        int to = endTime == Long.MAX_VALUE ? mTimestamps.length : lowerBound(endTime + 1);
+        return entries.subList(from, Math.max(from, to));
+    }
+
+    /** Returns the index of the first entry at or after {@code timestamp} in a sorted index. */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = mTimestamps.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimestamps[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the entries of a trace file, stored in a sidecar file next to the trace.
+ *
+ * <p>The index holds the timestamp and the byte range of each entry, so that a trace can be opened
+ * without parsing it. The index of a layers trace also holds the names of its layers and, for each
+ * entry, which of them are visible. An index is only used while the size of its trace and a hash
+ * of its first and last bytes match the ones it was written for, so it still applies to a copy of
+ * the trace, such as one pulled from the device.
+ */
+class TraceIndex {
+    private static final int MAGIC = 0x464c4958; // "FLIX"
+    private static final int VERSION = 2;
+    // Number of bytes hashed at each end of a trace to detect a change of its content.
+    private static final int HASHED_BYTES = 4096;
+    private static final String INDEX_SUFFIX = ".idx";
+    // Field numbers shared by WindowManagerTraceFileProto and LayersTraceFileProto, and by their
+    // entries.
+    private static final int FILE_ENTRY_FIELD = 2;
+    private static final int ENTRY_ELAPSED_REALTIME_NANOS_FIELD = 1;
+
+    private final long[] mTimestamps;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    // Only set for layers traces.
+    @Nullable private final String[] mLayerNames;
+    @Nullable private final long[][] mVisibleLayers;
+
+    private TraceIndex(long[] timestamps, int[] offsets, int[] lengths,
+            @Nullable String[] layerNames, @Nullable long[][] visibleLayers) {
+        mTimestamps = timestamps;
+        mOffsets = offsets;
+        mLengths = lengths;
+        mLayerNames = layerNames;
+        mVisibleLayers = visibleLayers;
+    }
+
+    /** Memory-maps the trace at {@code tracePath}. */
+    static ByteBuffer mapTrace(Path tracePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(tracePath, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Trace is too large to map: " + tracePath);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** Indexes the entries of {@code trace} by walking its fields, without decoding them. */
+    static TraceIndex build(ByteBuffer trace) throws IOException {
+        List<long[]> entries = new ArrayList<>();
+        try {
+            ProtoWireReader fileReader = new ProtoWireReader(trace, 0, trace.limit());
+            while (fileReader.nextField()) {
+                if (fileReader.getFieldNumber() != FILE_ENTRY_FIELD
+                        || fileReader.getWireType() != ProtoWireReader.WIRETYPE_LENGTH_DELIMITED) {
+                    fileReader.skipField();
+                    continue;
+                }
+                int length = fileReader.readLength();
+                int offset = fileReader.getPosition();
+                entries.add(new long[] {readTimestamp(trace, offset, length), offset, length});
+                fileReader.skip(length);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed trace", e);
+        }
+        long[] timestamps = new long[entries.size()];
+        int[] offsets = new int[entries.size()];
+        int[] lengths = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            timestamps[i] = entries.get(i)[0];
+            offsets[i] = (int) entries.get(i)[1];
+            lengths[i] = (int) entries.get(i)[2];
+        }
+        return new TraceIndex(timestamps, offsets, lengths, null, null);
+    }
+
+    private static long readTimestamp(ByteBuffer trace, int offset, int length) {
+        ProtoWireReader reader = new ProtoWireReader(trace, offset, offset + length);
+        while (reader.nextField()) {
+            if (reader.getFieldNumber() == ENTRY_ELAPSED_REALTIME_NANOS_FIELD
+                    && reader.getWireType() == ProtoWireReader.WIRETYPE_FIXED64) {
+                return reader.readFixed64();
+            }
+            reader.skipField();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a copy of this index holding the layer names of a layers trace.
+     *
+     * @param layerNames distinct layer names of the trace
+     * @param visibleLayers for each entry, a bit set of the indices in {@code layerNames} of the
+     *     layers visible in the entry
+     */
+    TraceIndex withLayerVisibility(String[] layerNames, long[][] visibleLayers) {
+        if (visibleLayers.length != size()) {
+            throw new IllegalArgumentException("Expected visible layers for each entry");
+        }
+        return new TraceIndex(mTimestamps, mOffsets, mLengths, layerNames, visibleLayers);
+    }
+
+    /** Returns the path of the index of the trace at {@code tracePath}. */
+    static Path getIndexPath(Path tracePath) {
+        return tracePath.resolveSibling(tracePath.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Reads the index of the trace at {@code tracePath}, or returns null if there is none or if
+     * the trace changed since the index was written.
+     */
+    @Nullable
+    static TraceIndex read(Path tracePath) {
+        Path indexPath = getIndexPath(tracePath);
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != MAGIC
+                    || in.readInt() != VERSION
+                    || in.readLong() != Files.size(tracePath)
+                    || in.readLong() != hashContent(tracePath)) {
+                return null;
+            }
+            int entryCount = in.readInt();
+            long[] timestamps = new long[entryCount];
+            int[] offsets = new int[entryCount];
+            int[] lengths = new int[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                timestamps[i] = in.readLong();
+                offsets[i] = in.readInt();
+                lengths[i] = in.readInt();
+            }
+            if (!in.readBoolean()) {
+                return new TraceIndex(timestamps, offsets, lengths, null, null);
+            }
+            String[] layerNames = new String[in.readInt()];
+            for (int i = 0; i < layerNames.length; i++) {
+                layerNames[i] = in.readUTF();
+            }
+            long[][] visibleLayers = new long[entryCount][getWordCount(layerNames.length)];
+            for (long[] words : visibleLayers) {
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+            }
+            return new TraceIndex(timestamps, offsets, lengths, layerNames, visibleLayers);
+        } catch (IOException | RuntimeException e) {
+            // A missing or corrupt index is ignored, the trace is indexed again instead.
+            return null;
+        }
+    }
+
+    /**
+     * Writes this index next to the trace at {@code tracePath}, keyed by the current size of the
+     * trace and a hash of its first and last bytes.
+     */
+    void write(Path tracePath) throws IOException {
+        Path indexPath = getIndexPath(tracePath);
+        Path tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(Files.size(tracePath));
+            out.writeLong(hashContent(tracePath));
+            out.writeInt(size());
+            for (int i = 0; i < size(); i++) {
+                out.writeLong(mTimestamps[i]);
+                out.writeInt(mOffsets[i]);
+                out.writeInt(mLengths[i]);
+            }
+            out.writeBoolean(hasLayerVisibility());
+            if (hasLayerVisibility()) {
+                out.writeInt(mLayerNames.length);
+                for (String name : mLayerNames) {
+                    out.writeUTF(name);
+                }
+                for (long[] words : mVisibleLayers) {
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        }
+        Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns a hash of the first and last {@link #HASHED_BYTES} bytes of the trace at {@code
+     * tracePath}. Together with its size, it tells apart the traces saved by different runs
+     * without reading them entirely.
+     */
+    private static long hashContent(Path tracePath) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(tracePath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(HASHED_BYTES);
+            hashRange(channel, 0, Math.min(size, HASHED_BYTES), buffer, crc);
+            hashRange(channel, Math.max(size - HASHED_BYTES, 0), size, buffer, crc);
+        }
+        return crc.getValue();
+    }
+
+    private static void hashRange(FileChannel channel, long start, long end, ByteBuffer buffer,
+            CRC32 crc) throws IOException {
+        buffer.clear();
+        buffer.limit((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Trace is shorter than expected");
+            }
+        }
+        crc.update(buffer.array(), 0, buffer.position());
+    }
+
+    /** Returns the number of words of a bit set of {@code bitCount} bits. */
+    static int getWordCount(int bitCount) {
+        return (bitCount + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    int size() {
+        return mTimestamps.length;
+    }
+
+    long getTimestamp(int entryIndex) {
+        return mTimestamps[entryIndex];
+    }
+
+    int getOffset(int entryIndex) {
+        return mOffsets[entryIndex];
+    }
+
+    int getLength(int entryIndex) {
+        return mLengths[entryIndex];
+    }
+
+    boolean hasLayerVisibility() {
+        return mLayerNames != null;
+    }
+
+    /**
+     * Returns the names of the layers visible in entry {@code entryIndex} that contain {@code
+     * query}.
+     */
+    List<String> getVisibleLayerNamesContaining(int entryIndex, String query) {
+        List<String> names = new ArrayList<>();
+        long[] words = mVisibleLayers[entryIndex];
+        for (int i = 0; i < mLayerNames.length; i++) {
+            if ((words[i / Long.SIZE] & (1L << i)) != 0 && mLayerNames[i].contains(query)) {
+                names.add(mLayerNames[i]);
+            }
+        }
+        return names;
+    }
+}
@@ -18,6 +18,8 @@ package com.android.server.wm.flicker;
 
 import static com.android.server.wm.flicker.monitor.ITransitionMonitor.OUTPUT_DIR;
 
+import android.app.Instrumentation;
+import android.os.Bundle;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -28,7 +30,9 @@ import androidx.test.InstrumentationRegistry;
 import com.android.server.wm.flicker.monitor.ITransitionMonitor;
 import com.android.server.wm.flicker.monitor.LayersTraceMonitor;
 import com.android.server.wm.flicker.monitor.ScreenRecorder;
+import com.android.server.wm.flicker.monitor.TraceMonitor;
 import com.android.server.wm.flicker.monitor.WindowAnimationFrameStatsMonitor;
+import com.android.server.wm.flicker.monitor.WindowAnimationFrameStatsMonitor.FrameStatsSummary;
 import com.android.server.wm.flicker.monitor.WindowManagerTraceMonitor;
 
 import com.google.common.io.Files;
@@ -40,6 +44,13 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 /**
  * Builds and runs UI transitions capturing test artifacts.
@@ -67,6 +78,11 @@ import java.util.Locale;
  *  {@link TransitionBuilder#includeJankyRuns()} disables {@link WindowAnimationFrameStatsMonitor}
  *  to monitor janky frames. If janky frames are detected, then the test run is skipped. This
  *  monitor is enabled by default.
+ *  {@link TransitionBuilder#reportFrameStats()} keeps {@link WindowAnimationFrameStatsMonitor}
+ *  enabled with {@link TransitionBuilder#includeJankyRuns()}, so that the frame stats of each run
+ *  are reported in its result without skipping janky runs. They are also sent to the
+ *  instrumentation as metrics named "[tag]_[iteration]_[metric]", such as
+ *  "OpenTestAppFast_0_frame_duration_p90".
  *  {@link TransitionBuilder#skipLayersTrace()} disables {@link LayersTraceMonitor} used to
  *  capture Layers trace during a transition. This monitor is enabled by default.
  *  {@link TransitionBuilder#skipWindowManagerTrace()} disables {@link WindowManagerTraceMonitor}
@@ -77,6 +93,18 @@ import java.util.Locale;
  *  monitor is used for debugging purposes.
  *  {@link TransitionBuilder#recordEachRun()} records the screen contents during test transitions
  *  and saves it to a file for each run. This monitor is used for debugging purposes.
+ *  {@link TransitionBuilder#saveTracesInBackground()} saves the traces of a run while the next
+ *  run proceeds. All traces are saved before {@link TransitionBuilder#runAfterAll(Runnable)}
+ *  transitions complete.
+ *  {@link TransitionBuilder#stopOnFailure(Predicate)} checks the result of each run, such as
+ *  with an {@link AssertionsChecker.IncrementalCheck} fed with its trace entries, and skips the
+ *  remaining runs once a run fails. When traces are saved in the background, the runs started
+ *  before the failing run is saved still complete.
+ *  {@link TransitionBuilder#keepTracesInMemory()} keeps the traces of each run in memory instead
+ *  of saving them to files, for tests that only check the traces.
+ *  {@link TransitionBuilder#indexTraces()} writes an index next to each saved trace, so that the
+ *  trace opens faster when it is checked several times. Building the index decodes the trace
+ *  once, when it is saved.
  *
  * Example transition to capture WindowManager and Layers trace when opening a test app:
  * {@code
@@ -96,10 +124,14 @@ import java.util.Locale;
  */
 public class TransitionRunner {
     private static final String TAG = "FLICKER";
+    // Metrics are reported under the "status in progress" of the running test.
+    @VisibleForTesting static final int INST_STATUS_IN_PROGRESS = 2;
+    @VisibleForTesting static final String FRAME_STATS_METRIC_FORMAT = "%s_%d_%s";
     private final ScreenRecorder mScreenRecorder;
     private final WindowManagerTraceMonitor mWmTraceMonitor;
     private final LayersTraceMonitor mLayersTraceMonitor;
     private final WindowAnimationFrameStatsMonitor mFrameStatsMonitor;
+    private final Instrumentation mInstrumentation;
 
     private final List<ITransitionMonitor> mAllRunsMonitors;
     private final List<ITransitionMonitor> mPerRunMonitors;
@@ -111,14 +143,22 @@ public class TransitionRunner {
 
     private final int mIterations;
     private final String mTestTag;
+    private final boolean mSaveTracesInBackground;
+    private final boolean mKeepTracesInMemory;
+    private final boolean mSkipJankyRuns;
+    private final boolean mReportFrameStats;
+    @Nullable private final Predicate<TransitionResult> mFailureCheck;
 
     @Nullable private List<TransitionResult> mResults = null;
+    // Set once a run fails mFailureCheck, possibly from the background saver.
+    private volatile boolean mStopIterations = false;
 
     private TransitionRunner(TransitionBuilder builder) {
         mScreenRecorder = builder.mScreenRecorder;
         mWmTraceMonitor = builder.mWmTraceMonitor;
         mLayersTraceMonitor = builder.mLayersTraceMonitor;
         mFrameStatsMonitor = builder.mFrameStatsMonitor;
+        mInstrumentation = builder.mInstrumentation;
 
         mAllRunsMonitors = builder.mAllRunsMonitors;
         mPerRunMonitors = builder.mPerRunMonitors;
@@ -130,6 +170,11 @@ public class TransitionRunner {
 
         mIterations = builder.mIterations;
         mTestTag = builder.mTestTag;
+        mSaveTracesInBackground = builder.mSaveTracesInBackground;
+        mKeepTracesInMemory = builder.mKeepTracesInMemory;
+        mSkipJankyRuns = builder.mRunJankFree;
+        mReportFrameStats = builder.mReportFrameStats;
+        mFailureCheck = builder.mFailureCheck;
     }
 
     public static TransitionBuilder newBuilder(String outputDir) {
@@ -148,9 +193,38 @@ public class TransitionRunner {
      */
     public TransitionRunner run() {
         mResults = new ArrayList<>();
+        mStopIterations = false;
+        ExecutorService saver =
+                mSaveTracesInBackground ? Executors.newSingleThreadExecutor() : null;
+        List<Future<TransitionResult>> pendingResults = new ArrayList<>();
+        try {
+            runIterations(saver, pendingResults);
+            mAfterAlls.forEach(Runnable::run);
+            for (Future<TransitionResult> pendingResult : pendingResults) {
+                mResults.add(getResult(pendingResult));
+            }
+        } finally {
+            if (saver != null) {
+                saver.shutdown();
+            }
+        }
+        mAllRunsMonitors.forEach(
+                monitor -> {
+                    monitor.stop();
+                    monitor.save(mTestTag);
+                });
+        return this;
+    }
+
+    /**
+     * Runs each iteration, saving its results to {@link #mResults} or, if {@code saver} is set,
+     * staging its traces and adding a task saving them to {@code pendingResults}.
+     */
+    private void runIterations(
+            @Nullable ExecutorService saver, List<Future<TransitionResult>> pendingResults) {
         mAllRunsMonitors.forEach(ITransitionMonitor::start);
         mBeforeAlls.forEach(Runnable::run);
-        for (int iteration = 0; iteration < mIterations; iteration++) {
+        for (int iteration = 0; iteration < mIterations && !mStopIterations; iteration++) {
             mBefores.forEach(Runnable::run);
             mPerRunMonitors.forEach(ITransitionMonitor::start);
             mTransitions.forEach(Runnable::run);
@@ -168,15 +242,80 @@ public class TransitionRunner {
                 Log.e(TAG, msg);
                 continue;
             }
-            mResults.add(saveResult(iteration));
+            FrameStatsSummary frameStats =
+                    mPerRunMonitors.contains(mFrameStatsMonitor)
+                            ? mFrameStatsMonitor.getSummary()
+                            : null;
+            if (mReportFrameStats && frameStats != null) {
+                reportFrameStats(frameStats, iteration);
+            }
+            if (saver == null) {
+                TransitionResult result = saveResult(iteration);
+                result.frameStats = frameStats;
+                mResults.add(result);
+                checkForFailure(result, iteration);
+                continue;
+            }
+            // Staging reuses the staging files of the traces staged STAGING_SLOTS runs ago, so
+            // wait for them to be saved first.
+            int reusedSlot = pendingResults.size() - TraceMonitor.STAGING_SLOTS;
+            if (reusedSlot >= 0) {
+                getResult(pendingResults.get(reusedSlot));
+            }
+            Callable<TransitionResult> resultSaver = stageResult(iteration);
+            int savedIteration = iteration;
+            pendingResults.add(
+                    saver.submit(
+                            () -> {
+                                TransitionResult result = resultSaver.call();
+                                result.frameStats = frameStats;
+                                checkForFailure(result, savedIteration);
+                                return result;
+                            }));
+        }
+    }
+
+    /** Sends the frame stats of the run to the instrumentation as metrics. */
+    private void reportFrameStats(FrameStatsSummary frameStats, int iteration) {
+        Bundle metrics = new Bundle();
+        for (Map.Entry<String, Double> metric : frameStats.getMetrics().entrySet()) {
+            metrics.putString(
+                    String.format(
+                            Locale.getDefault(),
+                            FRAME_STATS_METRIC_FORMAT,
+                            mTestTag,
+                            iteration,
+                            metric.getKey()),
+                    Double.toString(metric.getValue()));
+        }
+        mInstrumentation.sendStatus(INST_STATUS_IN_PROGRESS, metrics);
+    }
+
+    /** Stops the remaining iterations if {@code result} fails the failure check. */
+    private void checkForFailure(TransitionResult result, int iteration) {
+        if (mFailureCheck == null || !mFailureCheck.test(result)) {
+            return;
+        }
+        String msg =
+                String.format(
+                        Locale.getDefault(),
+                        "Iteration %d/%d for test %s failed, skipping the remaining iterations",
+                        iteration,
+                        mIterations - 1,
+                        mTestTag);
+        Log.e(TAG, msg);
+        mStopIterations = true;
+    }
+
+    private static TransitionResult getResult(Future<TransitionResult> pendingResult) {
+        try {
+            return pendingResult.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to save transition result", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while saving transition result", e);
         }
-        mAfterAlls.forEach(Runnable::run);
-        mAllRunsMonitors.forEach(
-                monitor -> {
-                    monitor.stop();
-                    monitor.save(mTestTag);
-                });
-        return this;
     }
 
     /**
@@ -210,6 +349,9 @@ public class TransitionRunner {
      * @return object containing paths to test artifacts
      */
     private TransitionResult saveResult(int iteration) {
+        if (mKeepTracesInMemory) {
+            return captureResult(iteration);
+        }
         Path windowTrace = null;
         Path layerTrace = null;
         Path screenCaptureVideo = null;
@@ -226,29 +368,106 @@ public class TransitionRunner {
         return new TransitionResult(layerTrace, windowTrace, screenCaptureVideo);
     }
 
+    /**
+     * Reads monitor traces into memory without saving them. The screen recording is saved to file.
+     *
+     * @return object containing the traces and the path to the screen recording
+     */
+    private TransitionResult captureResult(int iteration) {
+        byte[] windowTrace = null;
+        byte[] layerTrace = null;
+        Path screenCaptureVideo = null;
+
+        if (mPerRunMonitors.contains(mWmTraceMonitor)) {
+            windowTrace = mWmTraceMonitor.capture();
+        }
+        if (mPerRunMonitors.contains(mLayersTraceMonitor)) {
+            layerTrace = mLayersTraceMonitor.capture();
+        }
+        if (mPerRunMonitors.contains(mScreenRecorder)) {
+            screenCaptureVideo = mScreenRecorder.save(mTestTag, iteration);
+        }
+        return TransitionResult.inMemory(layerTrace, windowTrace, screenCaptureVideo);
+    }
+
+    /**
+     * Stages monitor traces so that monitors can be restarted before they are saved. The screen
+     * recording is saved right away.
+     *
+     * @return task saving the staged traces and returning an object containing paths to test
+     *     artifacts
+     */
+    private Callable<TransitionResult> stageResult(int iteration) {
+        Callable<Path> windowTraceSaver = null;
+        Callable<Path> layerTraceSaver = null;
+        Path screenCaptureVideo = null;
+
+        if (mPerRunMonitors.contains(mWmTraceMonitor)) {
+            windowTraceSaver = mWmTraceMonitor.stage(mTestTag, iteration);
+        }
+        if (mPerRunMonitors.contains(mLayersTraceMonitor)) {
+            layerTraceSaver = mLayersTraceMonitor.stage(mTestTag, iteration);
+        }
+        if (mPerRunMonitors.contains(mScreenRecorder)) {
+            screenCaptureVideo = mScreenRecorder.save(mTestTag, iteration);
+        }
+        Callable<Path> finalWindowTraceSaver = windowTraceSaver;
+        Callable<Path> finalLayerTraceSaver = layerTraceSaver;
+        Path finalScreenCaptureVideo = screenCaptureVideo;
+        return () -> {
+            Path windowTrace =
+                    finalWindowTraceSaver != null ? finalWindowTraceSaver.call() : null;
+            Path layerTrace = finalLayerTraceSaver != null ? finalLayerTraceSaver.call() : null;
+            return new TransitionResult(layerTrace, windowTrace, finalScreenCaptureVideo);
+        };
+    }
+
     private boolean runJankFree() {
-        return mPerRunMonitors.contains(mFrameStatsMonitor);
+        return mSkipJankyRuns && mPerRunMonitors.contains(mFrameStatsMonitor);
     }
 
     public String getTestTag() {
         return mTestTag;
     }
 
-    /** Stores paths to all test artifacts. */
+    /** Stores paths to all test artifacts, or the traces themselves when kept in memory. */
     @VisibleForTesting
     public static class TransitionResult {
         @Nullable public final Path layersTrace;
         @Nullable public final Path windowManagerTrace;
         @Nullable public final Path screenCaptureVideo;
+        @Nullable private final byte[] layersTraceData;
+        @Nullable private final byte[] windowManagerTraceData;
+        @Nullable private FrameStatsSummary frameStats;
         private boolean flaggedForSaving = true;
 
         public TransitionResult(
                 @Nullable Path layersTrace,
                 @Nullable Path windowManagerTrace,
                 @Nullable Path screenCaptureVideo) {
+            this(layersTrace, windowManagerTrace, screenCaptureVideo, null, null);
+        }
+
+        private TransitionResult(
+                @Nullable Path layersTrace,
+                @Nullable Path windowManagerTrace,
+                @Nullable Path screenCaptureVideo,
+                @Nullable byte[] layersTraceData,
+                @Nullable byte[] windowManagerTraceData) {
             this.layersTrace = layersTrace;
             this.windowManagerTrace = windowManagerTrace;
             this.screenCaptureVideo = screenCaptureVideo;
+            this.layersTraceData = layersTraceData;
+            this.windowManagerTraceData = windowManagerTraceData;
+        }
+
+        /** Creates a result holding traces that were kept in memory instead of being saved. */
+        public static TransitionResult inMemory(
+                @Nullable byte[] layersTrace,
+                @Nullable byte[] windowManagerTrace,
+                @Nullable Path screenCaptureVideo) {
+            return new TransitionResult(
+                    null, null, screenCaptureVideo, layersTrace, windowManagerTrace);
         }
 
         public void flagForSaving() {
@@ -260,10 +479,14 @@ public class TransitionRunner {
         }
 
         public boolean layersTraceExists() {
-            return layersTrace != null && layersTrace.toFile().exists();
+            return layersTraceData != null
+                    || (layersTrace != null && layersTrace.toFile().exists());
         }
 
         public byte[] getLayersTrace() {
+            if (layersTraceData != null) {
+                return layersTraceData;
+            }
             try {
                 return Files.toByteArray(this.layersTrace.toFile());
             } catch (IOException e) {
@@ -276,10 +499,14 @@ public class TransitionRunner {
         }
 
         public boolean windowManagerTraceExists() {
-            return windowManagerTrace != null && windowManagerTrace.toFile().exists();
+            return windowManagerTraceData != null
+                    || (windowManagerTrace != null && windowManagerTrace.toFile().exists());
         }
 
         public byte[] getWindowManagerTrace() {
+            if (windowManagerTraceData != null) {
+                return windowManagerTraceData;
+            }
             try {
                 return Files.toByteArray(this.windowManagerTrace.toFile());
             } catch (IOException e) {
@@ -291,6 +518,15 @@ public class TransitionRunner {
             return windowManagerTrace;
         }
 
+        /**
+         * Returns the frame stats of the run, or null if {@link WindowAnimationFrameStatsMonitor}
+         * was disabled.
+         */
+        @Nullable
+        public FrameStatsSummary getFrameStats() {
+            return frameStats;
+        }
+
         public boolean screenCaptureVideoExists() {
             return screenCaptureVideo != null && screenCaptureVideo.toFile().exists();
         }
@@ -300,8 +536,14 @@ public class TransitionRunner {
         }
 
         public void delete() {
-            if (layersTraceExists()) layersTrace.toFile().delete();
-            if (windowManagerTraceExists()) windowManagerTrace.toFile().delete();
+            if (layersTrace != null) {
+                layersTrace.toFile().delete();
+                TraceIndex.getIndexPath(layersTrace).toFile().delete();
+            }
+            if (windowManagerTrace != null) {
+                windowManagerTrace.toFile().delete();
+                TraceIndex.getIndexPath(windowManagerTrace).toFile().delete();
+            }
             if (screenCaptureVideoExists()) screenCaptureVideo.toFile().delete();
         }
     }
@@ -312,6 +554,7 @@ public class TransitionRunner {
         private WindowManagerTraceMonitor mWmTraceMonitor;
         private LayersTraceMonitor mLayersTraceMonitor;
         private WindowAnimationFrameStatsMonitor mFrameStatsMonitor;
+        private Instrumentation mInstrumentation;
 
         private List<ITransitionMonitor> mAllRunsMonitors = new LinkedList<>();
         private List<ITransitionMonitor> mPerRunMonitors = new LinkedList<>();
@@ -322,11 +565,16 @@ public class TransitionRunner {
         private List<Runnable> mAfterAlls = new LinkedList<>();
 
         private boolean mRunJankFree = true;
+        private boolean mReportFrameStats = false;
         private boolean mCaptureWindowManagerTrace = true;
         private boolean mCaptureLayersTrace = true;
         private boolean mRecordEachRun = false;
         private int mIterations = 1;
         private String mTestTag = "";
+        private boolean mSaveTracesInBackground = false;
+        private boolean mKeepTracesInMemory = false;
+        private boolean mIndexTraces = false;
+        @Nullable private Predicate<TransitionResult> mFailureCheck = null;
 
         private boolean mRecordAllRuns = false;
 
@@ -334,9 +582,8 @@ public class TransitionRunner {
             mScreenRecorder = new ScreenRecorder();
             mWmTraceMonitor = new WindowManagerTraceMonitor(outputDir);
             mLayersTraceMonitor = new LayersTraceMonitor(outputDir);
-            mFrameStatsMonitor =
-                    new WindowAnimationFrameStatsMonitor(
-                            InstrumentationRegistry.getInstrumentation());
+            mInstrumentation = InstrumentationRegistry.getInstrumentation();
+            mFrameStatsMonitor = new WindowAnimationFrameStatsMonitor(mInstrumentation);
         }
 
         public TransitionBuilder() {
@@ -352,7 +599,7 @@ public class TransitionRunner {
                 mPerRunMonitors.add(mLayersTraceMonitor);
             }
 
-            if (mRunJankFree) {
+            if (mRunJankFree || mReportFrameStats) {
                 mPerRunMonitors.add(mFrameStatsMonitor);
             }
 
@@ -364,6 +611,11 @@ public class TransitionRunner {
                 mPerRunMonitors.add(mScreenRecorder);
             }
 
+            if (mIndexTraces) {
+                mWmTraceMonitor.setWriteIndex(true);
+                mLayersTraceMonitor.setWriteIndex(true);
+            }
+
             return new TransitionRunner(this);
         }
 
@@ -412,6 +664,11 @@ public class TransitionRunner {
             return this;
         }
 
+        public TransitionBuilder reportFrameStats() {
+            mReportFrameStats = true;
+            return this;
+        }
+
         public TransitionBuilder recordEachRun() {
             if (mRecordAllRuns) {
                 throw new IllegalArgumentException("Invalid option with recordAllRuns");
@@ -428,6 +685,32 @@ public class TransitionRunner {
             return this;
         }
 
+        public TransitionBuilder saveTracesInBackground() {
+            if (mKeepTracesInMemory) {
+                throw new IllegalArgumentException("Invalid option with keepTracesInMemory");
+            }
+            mSaveTracesInBackground = true;
+            return this;
+        }
+
+        public TransitionBuilder keepTracesInMemory() {
+            if (mSaveTracesInBackground) {
+                throw new IllegalArgumentException("Invalid option with saveTracesInBackground");
+            }
+            mKeepTracesInMemory = true;
+            return this;
+        }
+
+        public TransitionBuilder indexTraces() {
+            mIndexTraces = true;
+            return this;
+        }
+
+        public TransitionBuilder stopOnFailure(Predicate<TransitionResult> failureCheck) {
+            mFailureCheck = failureCheck;
+            return this;
+        }
+
         public TransitionBuilder withTag(String testTag) {
             if (testTag.contains(" ")) {
                 throw new IllegalArgumentException(
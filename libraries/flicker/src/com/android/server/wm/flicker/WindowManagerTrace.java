@@ -28,9 +28,13 @@ import com.android.server.wm.nano.WindowTokenProto;
 
 import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -38,14 +42,29 @@ import java.util.Optional;
  * entry.
  *
  * <p>Each entry is parsed into a list of {@link WindowManagerTrace.Entry} objects.
+ *
+ * <p>A trace parsed with {@link #parseLazilyFrom} memory-maps the trace file and only decodes an
+ * entry when it is accessed, keeping the most recently used entries in a bounded cache. Only the
+ * fields used by the assertions are decoded: the timestamp and the root window container.
  */
 public class WindowManagerTrace {
+    /** Default number of decoded entries kept by a lazily parsed trace. */
+    public static final int DEFAULT_MAX_CACHED_ENTRIES = 16;
+
     private static final int DEFAULT_DISPLAY = 0;
+    // Field numbers of the WindowManagerTraceProto and WindowManagerServiceDumpProto fields
+    // decoded by the lazy parser.
+    private static final int ENTRY_ELAPSED_REALTIME_NANOS_FIELD = 1;
+    private static final int ENTRY_WINDOW_MANAGER_SERVICE_FIELD = 3;
+    private static final int SERVICE_ROOT_WINDOW_CONTAINER_FIELD = 2;
+
     private final List<Entry> mEntries;
+    private final TimestampIndex mTimestampIndex;
     @Nullable private final Path mSource;
 
     private WindowManagerTrace(List<Entry> entries, Path source) {
         this.mEntries = entries;
+        this.mTimestampIndex = TimestampIndex.of(entries);
         this.mSource = source;
     }
 
@@ -75,29 +94,220 @@ public class WindowManagerTrace {
         return parseFrom(data, null);
     }
 
+    /**
+     * Memory-maps the {@code WindowManagerTraceFileProto} at {@code tracePath} and indexes its
+     * entries, without decoding them. Entries are decoded when accessed.
+     *
+     * <p>The entries are read from the index written by {@link #writeIndex} if it is up to date,
+     * and otherwise found by walking the trace.
+     *
+     * @param tracePath trace file, which must not change while the trace is in use
+     * @param maxCachedEntries number of decoded entries kept in memory
+     */
+    public static WindowManagerTrace parseLazilyFrom(Path tracePath, int maxCachedEntries)
+            throws IOException {
+        if (maxCachedEntries < 1) {
+            throw new IllegalArgumentException("maxCachedEntries must be positive");
+        }
+        ByteBuffer buffer = TraceIndex.mapTrace(tracePath);
+        TraceIndex index = TraceIndex.read(tracePath);
+        if (index == null) {
+            index = TraceIndex.build(buffer);
+        }
+        EntryCache cache = new EntryCache(buffer, maxCachedEntries);
+        List<Entry> entries = new ArrayList<>(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            entries.add(
+                    new Entry(
+                            index.getTimestamp(i), index.getOffset(i), index.getLength(i),
+                            cache));
+        }
+        return new WindowManagerTrace(entries, tracePath);
+    }
+
+    /**
+     * Memory-maps the {@code WindowManagerTraceFileProto} at {@code tracePath}, keeping up to
+     * {@link #DEFAULT_MAX_CACHED_ENTRIES} decoded entries in memory.
+     */
+    public static WindowManagerTrace parseLazilyFrom(Path tracePath) throws IOException {
+        return parseLazilyFrom(tracePath, DEFAULT_MAX_CACHED_ENTRIES);
+    }
+
+    /**
+     * Writes an index of the entries of the trace at {@code tracePath} next to it, used by
+     * {@link #parseLazilyFrom} to open the trace without walking it.
+     */
+    public static void writeIndex(Path tracePath) throws IOException {
+        TraceIndex.build(TraceIndex.mapTrace(tracePath)).write(tracePath);
+    }
+
     public List<Entry> getEntries() {
         return mEntries;
     }
 
     public Entry getEntry(long timestamp) {
-        Optional<Entry> entry =
-                mEntries.stream().filter(e -> e.getTimestamp() == timestamp).findFirst();
-        if (!entry.isPresent()) {
+        int index = mTimestampIndex.indexOf(timestamp);
+        if (index < 0) {
             throw new RuntimeException("Entry does not exist for timestamp " + timestamp);
         }
-        return entry.get();
+        return mEntries.get(index);
+    }
+
+    /** Returns the timestamp index of {@link #getEntries()}. */
+    public TimestampIndex getTimestampIndex() {
+        return mTimestampIndex;
     }
 
     public Optional<Path> getSource() {
         return Optional.ofNullable(mSource);
     }
 
+    /** Bounded LRU of the decoded entries of a lazily parsed trace. */
+    private static class EntryCache {
+        private final ByteBuffer mBuffer;
+        private final Map<Entry, WindowManagerTraceProto> mProtos;
+
+        EntryCache(ByteBuffer buffer, int maxEntries) {
+            mBuffer = buffer;
+            mProtos =
+                    new LinkedHashMap<Entry, WindowManagerTraceProto>(
+                            16, 0.75f, true /* accessOrder */) {
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<Entry, WindowManagerTraceProto> eldest) {
+                            return size() > maxEntries;
+                        }
+                    };
+        }
+
+        WindowManagerTraceProto get(Entry entry) {
+            synchronized (this) {
+                WindowManagerTraceProto proto = mProtos.get(entry);
+                if (proto != null) {
+                    return proto;
+                }
+            }
+            // Decode outside of the lock so that several entries can be decoded concurrently.
+            WindowManagerTraceProto proto = decode(entry.mOffset, entry.mLength);
+            synchronized (this) {
+                WindowManagerTraceProto existing = mProtos.putIfAbsent(entry, proto);
+                return existing != null ? existing : proto;
+            }
+        }
+
+        /**
+         * Decodes the entry at {@code offset}, skipping every field but the timestamp and the
+         * root window container.
+         */
+        private WindowManagerTraceProto decode(int offset, int length) {
+            long timestamp = 0;
+            List<int[]> containers = new ArrayList<>();
+            ProtoWireReader entryReader = new ProtoWireReader(mBuffer, offset, offset + length);
+            while (entryReader.nextField()) {
+                int field = entryReader.getFieldNumber();
+                if (field == ENTRY_ELAPSED_REALTIME_NANOS_FIELD
+                        && entryReader.getWireType() == ProtoWireReader.WIRETYPE_FIXED64) {
+                    timestamp = entryReader.readFixed64();
+                } else if (field == ENTRY_WINDOW_MANAGER_SERVICE_FIELD
+                        && entryReader.getWireType() == ProtoWireReader.WIRETYPE_LENGTH_DELIMITED) {
+                    int serviceLength = entryReader.readLength();
+                    int serviceOffset = entryReader.getPosition();
+                    ProtoWireReader serviceReader =
+                            new ProtoWireReader(
+                                    mBuffer, serviceOffset, serviceOffset + serviceLength);
+                    while (serviceReader.nextField()) {
+                        if (serviceReader.getFieldNumber() == SERVICE_ROOT_WINDOW_CONTAINER_FIELD
+                                && serviceReader.getWireType()
+                                        == ProtoWireReader.WIRETYPE_LENGTH_DELIMITED) {
+                            int containerLength = serviceReader.readLength();
+                            containers.add(
+                                    new int[] {serviceReader.getPosition(), containerLength});
+                            serviceReader.skip(containerLength);
+                        } else {
+                            serviceReader.skipField();
+                        }
+                    }
+                    entryReader.skip(serviceLength);
+                } else {
+                    entryReader.skipField();
+                }
+            }
+
+            // Re-encode the selected fields as a WindowManagerTraceProto.
+            int serviceLength = 0;
+            for (int[] container : containers) {
+                serviceLength += 1 + varintSize(container[1]) + container[1];
+            }
+            ByteBuffer out =
+                    ByteBuffer.allocate(1 + 8 + 1 + varintSize(serviceLength) + serviceLength);
+            out.put((byte) (ENTRY_ELAPSED_REALTIME_NANOS_FIELD << 3
+                    | ProtoWireReader.WIRETYPE_FIXED64));
+            for (int i = 0; i < 8; i++) {
+                out.put((byte) (timestamp >>> (8 * i)));
+            }
+            out.put((byte) (ENTRY_WINDOW_MANAGER_SERVICE_FIELD << 3
+                    | ProtoWireReader.WIRETYPE_LENGTH_DELIMITED));
+            putVarint(out, serviceLength);
+            ByteBuffer source = mBuffer.duplicate();
+            for (int[] container : containers) {
+                out.put((byte) (SERVICE_ROOT_WINDOW_CONTAINER_FIELD << 3
+                        | ProtoWireReader.WIRETYPE_LENGTH_DELIMITED));
+                putVarint(out, container[1]);
+                source.limit(container[0] + container[1]).position(container[0]);
+                out.put(source);
+            }
+            try {
+                return WindowManagerTraceProto.parseFrom(out.array());
+            } catch (InvalidProtocolBufferNanoException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value & ~0x7f) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        private static void putVarint(ByteBuffer out, int value) {
+            while ((value & ~0x7f) != 0) {
+                out.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+    }
+
     /** Represents a single WindowManager trace entry. */
     public static class Entry implements ITraceEntry {
-        private final WindowManagerTraceProto mProto;
+        @Nullable private final WindowManagerTraceProto mProto;
+        private final long mTimestamp;
+        // Only set for entries of a lazily parsed trace, which are decoded on demand.
+        private final int mOffset;
+        private final int mLength;
+        @Nullable private final EntryCache mCache;
 
         public Entry(WindowManagerTraceProto proto) {
             mProto = proto;
+            mTimestamp = proto.elapsedRealtimeNanos;
+            mOffset = 0;
+            mLength = 0;
+            mCache = null;
+        }
+
+        private Entry(long timestamp, int offset, int length, EntryCache cache) {
+            mProto = null;
+            mTimestamp = timestamp;
+            mOffset = offset;
+            mLength = length;
+            mCache = cache;
+        }
+
+        private WindowManagerTraceProto getProto() {
+            return mCache != null ? mCache.get(this) : mProto;
         }
 
         private static Result isWindowVisible(
@@ -131,13 +341,13 @@ public class WindowManagerTrace {
 
         @Override
         public long getTimestamp() {
-            return mProto.elapsedRealtimeNanos;
+            return mTimestamp;
         }
 
         /** Returns window title of the top most visible app window. */
         private String getTopVisibleAppWindow() {
             TaskProto[] tasks =
-                    mProto.windowManagerService
+                    getProto().windowManagerService
                             .rootWindowContainer
                             .displays[DEFAULT_DISPLAY]
                             .tasks;
@@ -168,7 +378,7 @@ public class WindowManagerTrace {
         /** Checks if aboveAppWindow with {@code windowTitle} is visible. */
         public Result isAboveAppWindowVisible(String windowTitle) {
             WindowTokenProto[] windowTokenProtos =
-                    mProto.windowManagerService
+                    getProto().windowManagerService
                             .rootWindowContainer
                             .displays[DEFAULT_DISPLAY]
                             .aboveAppWindows;
@@ -179,7 +389,7 @@ public class WindowManagerTrace {
         /** Checks if belowAppWindow with {@code windowTitle} is visible. */
         public Result isBelowAppWindowVisible(String windowTitle) {
             WindowTokenProto[] windowTokenProtos =
-                    mProto.windowManagerService
+                    getProto().windowManagerService
                             .rootWindowContainer
                             .displays[DEFAULT_DISPLAY]
                             .belowAppWindows;
@@ -191,7 +401,7 @@ public class WindowManagerTrace {
         /** Checks if imeWindow with {@code windowTitle} is visible. */
         public Result isImeWindowVisible(String windowTitle) {
             WindowTokenProto[] windowTokenProtos =
-                    mProto.windowManagerService
+                    getProto().windowManagerService
                             .rootWindowContainer
                             .displays[DEFAULT_DISPLAY]
                             .imeWindows;
@@ -212,7 +422,7 @@ public class WindowManagerTrace {
             final String assertionName = "isAppWindowVisible";
             boolean[] titleFound = { false };
             TaskProto[] tasks =
-                    mProto.windowManagerService
+                    getProto().windowManagerService
                             .rootWindowContainer
                             .displays[DEFAULT_DISPLAY]
                             .tasks;
@@ -27,6 +27,7 @@ import com.android.server.wm.flicker.TransitionRunner.TransitionResult;
 import com.google.common.truth.FailureMetadata;
 import com.google.common.truth.Subject;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
@@ -51,9 +52,17 @@ public class WmTraceSubject extends Subject<WmTraceSubject, WindowManagerTrace>
 
     // User-defined entry point
     public static WmTraceSubject assertThat(@Nullable TransitionResult result) {
-        WindowManagerTrace entries =
-                WindowManagerTrace.parseFrom(
-                        result.getWindowManagerTrace(), result.getWindowManagerTracePath());
+        WindowManagerTrace entries;
+        if (result.getWindowManagerTracePath() == null) {
+            // The trace was kept in memory instead of being saved
+            entries = WindowManagerTrace.parseFrom(result.getWindowManagerTrace());
+        } else {
+            try {
+                entries = WindowManagerTrace.parseLazilyFrom(result.getWindowManagerTracePath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         return assertWithMessage(result.toString()).about(FACTORY).that(entries);
     }
 
@@ -93,7 +102,8 @@ public class WmTraceSubject extends Subject<WmTraceSubject, WindowManagerTrace>
     }
 
     private void test() {
-        List<Result> failures = mChecker.test(getSubject().getEntries());
+        List<Result> failures =
+                mChecker.test(getSubject().getEntries(), getSubject().getTimestampIndex());
         if (!failures.isEmpty()) {
             Optional<Path> failureTracePath = getSubject().getSource();
             String failureLogs =
@@ -20,6 +20,9 @@ import android.os.RemoteException;
 import android.view.IWindowManager;
 import android.view.WindowManagerGlobal;
 
+import com.android.server.wm.flicker.LayersTrace;
+
+import java.io.IOException;
 import java.nio.file.Path;
 
 /** Captures Layers trace from SurfaceFlinger. */
@@ -60,6 +63,11 @@ public class LayersTraceMonitor extends TraceMonitor {
         return false;
     }
 
+    @Override
+    protected void writeIndex(Path traceFile) throws IOException {
+        LayersTrace.writeIndex(traceFile);
+    }
+
     private void setEnabled(boolean isEnabled) {
         try {
             mWm.setLayerTracing(isEnabled);
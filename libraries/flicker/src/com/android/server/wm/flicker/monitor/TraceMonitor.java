@@ -18,12 +18,21 @@ package com.android.server.wm.flicker.monitor;
 
 import static com.android.compatibility.common.util.SystemUtil.runShellCommand;
 
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.util.Log;
 
 import androidx.annotation.VisibleForTesting;
+import androidx.test.InstrumentationRegistry;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 /**
  * Base class for monitors containing common logic to read the trace as a byte array and save the
@@ -31,13 +40,24 @@ import java.util.Locale;
  */
 public abstract class TraceMonitor implements ITransitionMonitor {
     public static final String TAG = "FLICKER";
+    /** Number of traces that can be staged by {@link #stage} before the first one is saved. */
+    public static final int STAGING_SLOTS = 2;
     private static final String TRACE_DIR = "/data/misc/wmtrace/";
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private Path mOutputDir;
     public String mTraceFileName;
+    private int mNextStagingSlot = 0;
+    private boolean mWriteIndex = false;
 
     public abstract boolean isEnabled() throws RemoteException;
 
+    /**
+     * Writes an index of the saved trace at {@code traceFile} next to it, so that it can be opened
+     * without parsing it.
+     */
+    protected abstract void writeIndex(Path traceFile) throws IOException;
+
     public TraceMonitor(Path outputDir, String traceFileName) {
         mOutputDir = outputDir;
         mTraceFileName = traceFileName;
@@ -47,37 +67,134 @@ public abstract class TraceMonitor implements ITransitionMonitor {
      * Saves trace file to the external storage directory suffixing the name with the testtag and
      * iteration.
      *
-     * <p>Moves the trace file from the default location via a shell command since the test app does
-     * not have security privileges to access /data/misc/wmtrace.
+     * <p>Streams the trace file from the default location through a pipe from a shell command since
+     * the test app does not have security privileges to access /data/misc/wmtrace, then removes it.
+     * Also writes an index of the saved trace next to it if enabled with {@link
+     * #setWriteIndex(boolean)}.
      *
      * @param testTag suffix added to trace name used to identify trace
      * @return Path to saved trace file
      */
     @Override
     public Path save(String testTag) {
+        return saveTraceFile(mTraceFileName, testTag);
+    }
+
+    /**
+     * Moves the trace file to a staging file in the trace directory, so that the monitor can be
+     * restarted while the trace is saved, and returns a task saving the staged trace like {@link
+     * #save(String, int)}.
+     *
+     * <p>Traces are staged in turn in one of {@link #STAGING_SLOTS} files, so a staged trace must
+     * be saved before as many other traces are staged.
+     *
+     * @param testTag suffix added to trace name used to identify trace
+     * @param iteration suffix added to trace name used to identify trace
+     * @return task saving the staged trace and returning the Path to the saved trace file
+     */
+    public Callable<Path> stage(String testTag, int iteration) {
+        String stagedTraceFileName = mTraceFileName + "." + mNextStagingSlot;
+        mNextStagingSlot = (mNextStagingSlot + 1) % STAGING_SLOTS;
+        // Renaming within the trace directory is not affected by b/141386109
+        String moveCommand =
+                String.format(
+                        Locale.getDefault(),
+                        "mv %s%s %s%s",
+                        TRACE_DIR,
+                        mTraceFileName,
+                        TRACE_DIR,
+                        stagedTraceFileName);
+        runShellCommand(moveCommand);
+        return () -> saveTraceFile(stagedTraceFileName, testTag + "_" + iteration);
+    }
+
+    /**
+     * Writes an index of each saved trace next to it, see {@link #writeIndex(Path)}. Building the
+     * index decodes the trace, so it is only worth it for traces that are opened several times.
+     */
+    public void setWriteIndex(boolean writeIndex) {
+        mWriteIndex = writeIndex;
+    }
+
+    /**
+     * Reads the trace file into memory and removes it, without saving it, for callers that only
+     * check the trace.
+     *
+     * @return the content of the trace file
+     */
+    public byte[] capture() {
+        ByteBuffer trace = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel in = openTraceFile(mTraceFileName)) {
+            while (in.read(trace) >= 0) {
+                if (!trace.hasRemaining()) {
+                    int length = trace.position();
+                    trace = ByteBuffer.wrap(Arrays.copyOf(trace.array(), length * 2));
+                    trace.position(length);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + mTraceFileName, e);
+        }
+        removeTraceFile(mTraceFileName);
+        return Arrays.copyOf(trace.array(), trace.position());
+    }
+
+    private Path saveTraceFile(String traceFileName, String testTag) {
         mOutputDir.toFile().mkdirs();
         Path traceFileCopy = getOutputTraceFilePath(testTag);
 
-        // Move the trace file to the output directory
+        // Stream the trace file to the output directory through a direct buffer, so that it is
+        // read once and never copied into the heap.
         // Note: Due to b/141386109, certain devices do not allow moving the files between
         //       directories with different encryption policies, so manually copy and then
         //       remove the original file
-        String copyCommand =
-                String.format(
-                        Locale.getDefault(),
-                        "cp %s%s %s",
-                        TRACE_DIR,
-                        mTraceFileName,
-                        traceFileCopy.toString());
-        runShellCommand(copyCommand);
+        try (FileChannel in = openTraceFile(traceFileName);
+                FileChannel out =
+                        FileChannel.open(
+                                traceFileCopy,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save " + traceFileCopy, e);
+        }
+        removeTraceFile(traceFileName);
+        if (mWriteIndex) {
+            try {
+                writeIndex(traceFileCopy);
+            } catch (IOException | RuntimeException e) {
+                // The index is optional, the trace is walked when it is opened instead.
+                Log.w(TAG, "Failed to index " + traceFileCopy, e);
+            }
+        }
+        return traceFileCopy;
+    }
+
+    /** Opens a pipe reading the trace file {@code traceFileName} from a shell command. */
+    private static FileChannel openTraceFile(String traceFileName) {
+        ParcelFileDescriptor pfd =
+                InstrumentationRegistry.getInstrumentation()
+                        .getUiAutomation()
+                        .executeShellCommand("cat " + TRACE_DIR + traceFileName);
+        return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+    }
+
+    private static void removeTraceFile(String traceFileName) {
         String removeCommand =
                 String.format(
                         Locale.getDefault(),
                         "rm %s%s",
                         TRACE_DIR,
-                        mTraceFileName);
+                        traceFileName);
         runShellCommand(removeCommand);
-        return traceFileCopy;
     }
 
     @VisibleForTesting
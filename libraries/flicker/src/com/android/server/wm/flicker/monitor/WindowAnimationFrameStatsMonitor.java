@@ -22,11 +22,20 @@ import android.app.Instrumentation;
 import android.util.Log;
 import android.view.FrameStats;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
  * Monitors {@link android.view.WindowAnimationFrameStats} to detect janky frames.
  *
  * <p>Adapted from {@link androidx.test.jank.internal.WindowAnimationFrameStatsMonitorImpl} using
  * the same threshold to determine jank.
+ *
+ * <p>Also summarizes the frame durations of each run, normalized to the refresh period, see
+ * {@link #getSummary()}. Frame durations are collected into an array reused across runs, so
+ * analyzing a run does not allocate per frame.
  */
 public class WindowAnimationFrameStatsMonitor implements ITransitionMonitor {
 
@@ -35,10 +44,17 @@ public class WindowAnimationFrameStatsMonitor implements ITransitionMonitor {
     private static final double MAX_ERROR = 0.5f;
     // Maximum normalized frame duration before the frame is considered a pause
     private static final double PAUSE_THRESHOLD = 15.0f;
+    // Number of histogram buckets, the last one counts frames lasting this many refresh periods
+    // or more
+    public static final int HISTOGRAM_SIZE = 5;
     private Instrumentation mInstrumentation;
     private FrameStats mStats;
     private int mNumJankyFrames;
     private long mLongestFrameNano = 0L;
+    // Normalized durations of the frames of the last run, sorted once the run is analyzed
+    private double[] mFrameDurations = new double[64];
+    private int mNumFrames;
+    private final int[] mHistogram = new int[HISTOGRAM_SIZE];
 
     /** Constructs a WindowAnimationFrameStatsMonitor instance. */
     public WindowAnimationFrameStatsMonitor(Instrumentation instrumentation) {
@@ -65,8 +81,31 @@ public class WindowAnimationFrameStatsMonitor implements ITransitionMonitor {
                     mNumJankyFrames++;
                 }
                 mLongestFrameNano = Math.max(mLongestFrameNano, frameDurationNano);
+                addFrameDuration(normalized);
             }
         }
+        Arrays.sort(mFrameDurations, 0, mNumFrames);
+    }
+
+    private void addFrameDuration(double normalized) {
+        if (mNumFrames == mFrameDurations.length) {
+            mFrameDurations = Arrays.copyOf(mFrameDurations, mNumFrames * 2);
+        }
+        mFrameDurations[mNumFrames++] = normalized;
+        int bucket = (int) Math.round(normalized) - 1;
+        mHistogram[Math.max(0, Math.min(bucket, HISTOGRAM_SIZE - 1))]++;
+    }
+
+    /**
+     * Returns the {@code percentile}th percentile of the normalized frame durations of the last
+     * run, using the nearest-rank method, or 0 if no frame was presented.
+     */
+    private double getPercentile(int percentile) {
+        if (mNumFrames == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * mNumFrames);
+        return mFrameDurations[Math.max(rank, 1) - 1];
     }
 
     @Override
@@ -74,6 +113,8 @@ public class WindowAnimationFrameStatsMonitor implements ITransitionMonitor {
         // Clear out any previous data
         mNumJankyFrames = 0;
         mLongestFrameNano = 0;
+        mNumFrames = 0;
+        Arrays.fill(mHistogram, 0);
         mInstrumentation.getUiAutomation().clearWindowAnimationFrameStats();
     }
 
@@ -87,6 +128,18 @@ public class WindowAnimationFrameStatsMonitor implements ITransitionMonitor {
         return mStats.getFrameCount() > 0 && mNumJankyFrames > 0;
     }
 
+    /** Returns a summary of the frame durations of the last run. */
+    public FrameStatsSummary getSummary() {
+        return new FrameStatsSummary(
+                mNumFrames,
+                mNumJankyFrames,
+                mLongestFrameNano,
+                getPercentile(50),
+                getPercentile(90),
+                getPercentile(99),
+                mHistogram.clone());
+    }
+
     @Override
     public String toString() {
         return mStats.toString()
@@ -95,6 +148,77 @@ public class WindowAnimationFrameStatsMonitor implements ITransitionMonitor {
                 + " NumJankyFrames:"
                 + mNumJankyFrames
                 + " LongestFrameNano:"
-                + mLongestFrameNano;
+                + mLongestFrameNano
+                + " "
+                + getSummary();
+    }
+
+    /**
+     * Frame durations of a run, normalized to the refresh period. Frames lasting longer than the
+     * pause threshold are left out.
+     */
+    public static class FrameStatsSummary {
+        public final int frameCount;
+        public final int jankyFrameCount;
+        public final long longestFrameNano;
+        public final double p50;
+        public final double p90;
+        public final double p99;
+        /**
+         * Number of frames lasting each number of refresh periods, rounded, starting at one. The
+         * last bucket also counts longer frames.
+         */
+        public final int[] histogram;
+
+        FrameStatsSummary(
+                int frameCount,
+                int jankyFrameCount,
+                long longestFrameNano,
+                double p50,
+                double p90,
+                double p99,
+                int[] histogram) {
+            this.frameCount = frameCount;
+            this.jankyFrameCount = jankyFrameCount;
+            this.longestFrameNano = longestFrameNano;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.histogram = histogram;
+        }
+
+        /** Returns the ratio of janky frames, or 0 if no frame was presented. */
+        public double getJankRatio() {
+            return frameCount > 0 ? (double) jankyFrameCount / frameCount : 0;
+        }
+
+        /** Returns the summary as metrics keyed by name. */
+        public Map<String, Double> getMetrics() {
+            Map<String, Double> metrics = new HashMap<>();
+            metrics.put("frame_count", (double) frameCount);
+            metrics.put("janky_frame_count", (double) jankyFrameCount);
+            metrics.put("jank_ratio", getJankRatio());
+            metrics.put("longest_frame_nanos", (double) longestFrameNano);
+            metrics.put("frame_duration_p50", p50);
+            metrics.put("frame_duration_p90", p90);
+            metrics.put("frame_duration_p99", p99);
+            for (int i = 0; i < histogram.length; i++) {
+                metrics.put("frame_duration_histogram_" + (i + 1), (double) histogram[i]);
+            }
+            return metrics;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.getDefault(),
+                    "FrameCount:%d JankRatio:%.3f P50:%.2f P90:%.2f P99:%.2f Histogram:%s",
+                    frameCount,
+                    getJankRatio(),
+                    p50,
+                    p90,
+                    p99,
+                    Arrays.toString(histogram));
+        }
     }
 }
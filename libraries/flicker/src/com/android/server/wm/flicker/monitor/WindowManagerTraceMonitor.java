@@ -20,6 +20,9 @@ import android.os.RemoteException;
 import android.view.IWindowManager;
 import android.view.WindowManagerGlobal;
 
+import com.android.server.wm.flicker.WindowManagerTrace;
+
+import java.io.IOException;
 import java.nio.file.Path;
 
 /** Captures WindowManager trace from WindowManager. */
@@ -56,4 +59,9 @@ public class WindowManagerTraceMonitor extends TraceMonitor {
     public boolean isEnabled() throws RemoteException {
         return mWm.isWindowTraceEnabled();
     }
+
+    @Override
+    protected void writeIndex(Path traceFile) throws IOException {
+        WindowManagerTrace.writeIndex(traceFile);
+    }
 }
@@ -29,6 +29,7 @@ import org.junit.runners.MethodSorters;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Contains {@link AssertionsChecker} tests. To run this test: {@code atest
@@ -95,6 +96,47 @@ public class AssertionsCheckerTest {
         assertThat(failures).hasSize(0);
     }
 
+    @Test
+    public void canCheckRangeOfEntries_withIndex() {
+        AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+        checker.filterByRange(1, 2);
+        checker.add(SimpleEntry::isData42, "isData42");
+        List<SimpleEntry> entries = getTestEntries(1, 42, 42, 1, 1);
+
+        List<Result> failures = checker.test(entries, TimestampIndex.of(entries));
+
+        assertThat(failures).hasSize(0);
+    }
+
+    @Test
+    public void canCheckRangeOfEntries_withUnsortedIndex() {
+        AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+        checker.filterByRange(1, 2);
+        checker.add(SimpleEntry::isData42, "isData42");
+        List<SimpleEntry> entries = new ArrayList<>();
+        entries.add(new SimpleEntry(2, 42));
+        entries.add(new SimpleEntry(0, 1));
+        entries.add(new SimpleEntry(1, 42));
+        entries.add(new SimpleEntry(3, 1));
+
+        List<Result> failures = checker.test(entries, TimestampIndex.of(entries));
+
+        assertThat(failures).hasSize(0);
+    }
+
+    @Test
+    public void canFailRangeOfEntries_withIndex() {
+        AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+        checker.filterByRange(1, 3);
+        checker.add(SimpleEntry::isData42, "isData42");
+        List<SimpleEntry> entries = getTestEntries(1, 42, 42, 1, 1);
+
+        List<Result> failures = checker.test(entries, TimestampIndex.of(entries));
+
+        assertThat(failures).hasSize(1);
+        assertThat(failures.get(0).timestamp).isEqualTo(3);
+    }
+
     @Test
     public void emptyRangePasses() {
         AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
@@ -163,6 +205,152 @@ public class AssertionsCheckerTest {
         assertThat(failures).hasSize(1);
     }
 
+    @Test
+    public void canCheckAllEntriesInParallel() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+            checker.add(SimpleEntry::isData42, "isData42");
+            checker.add(SimpleEntry::isData0, "isData0");
+            checker.evaluateInParallel(pool);
+            int[] data = new int[100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = i % 3 == 0 ? 42 : 0;
+            }
+
+            List<Result> failures = checker.test(getTestEntries(data));
+
+            assertThat(failures).hasSize(data.length);
+            // Failures are ordered by assertion, then by timestamp.
+            for (int i = 0; i < failures.size(); i++) {
+                boolean isData42Failure = i < 66;
+                assertThat(data[(int) failures.get(i).timestamp])
+                        .isEqualTo(isData42Failure ? 0 : 42);
+                if (i > 0 && i != 66) {
+                    assertThat(failures.get(i).timestamp)
+                            .isGreaterThan(failures.get(i - 1).timestamp);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void canCheckFirstAndLastEntryInParallel() {
+        AssertionsChecker<SimpleEntry> firstChecker = new AssertionsChecker<>();
+        firstChecker.checkFirstEntry();
+        firstChecker.add(SimpleEntry::isData42, "isData42");
+        firstChecker.add(SimpleEntry::isData0, "isData0");
+        firstChecker.evaluateInParallel();
+        AssertionsChecker<SimpleEntry> lastChecker = new AssertionsChecker<>();
+        lastChecker.checkLastEntry();
+        lastChecker.add(SimpleEntry::isData42, "isData42");
+        lastChecker.evaluateInParallel();
+
+        List<Result> firstFailures = firstChecker.test(getTestEntries(42, 1, 1, 1, 1));
+        List<Result> lastFailures = lastChecker.test(getTestEntries(42, 1, 1, 1, 1));
+
+        assertThat(firstFailures).hasSize(1);
+        assertThat(firstFailures.get(0).timestamp).isEqualTo(0);
+        assertThat(lastFailures).hasSize(1);
+        assertThat(lastFailures.get(0).timestamp).isEqualTo(4);
+    }
+
+    @Test
+    public void canCheckChangingAssertionsInParallel() {
+        AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+        checker.add(SimpleEntry::isData42, "isData42");
+        checker.add(SimpleEntry::isData0, "isData0");
+        checker.checkChangingAssertions();
+        checker.evaluateInParallel();
+
+        assertThat(checker.test(getTestEntries(42, 42, 0, 0, 0))).isEmpty();
+        assertThat(checker.test(getTestEntries(0, 0, 0, 0, 0))).hasSize(1);
+        assertThat(checker.test(getTestEntries(42, 0, 42, 0, 0))).hasSize(1);
+    }
+
+    /** Feeds {@code entries} to an incremental check of {@code checker} and finishes it. */
+    private static List<Result> testIncrementally(
+            AssertionsChecker<SimpleEntry> checker, List<SimpleEntry> entries) {
+        AssertionsChecker<SimpleEntry>.IncrementalCheck check = checker.startIncrementalCheck();
+        entries.forEach(check::add);
+        return check.finish();
+    }
+
+    private static List<Long> getTimestamps(List<Result> results) {
+        List<Long> timestamps = new ArrayList<>();
+        results.forEach(result -> timestamps.add(result.timestamp));
+        return timestamps;
+    }
+
+    @Test
+    public void canCheckAllEntriesIncrementally() {
+        AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+        checker.add(SimpleEntry::isData42, "isData42");
+        checker.add(SimpleEntry::isData0, "isData0");
+        checker.filterByRange(1, 5);
+        List<SimpleEntry> entries = getTestEntries(1, 42, 0, 42, 0, 1, 42);
+
+        AssertionsChecker<SimpleEntry>.IncrementalCheck check = checker.startIncrementalCheck();
+        assertThat(check.add(entries.get(0))).isNull();
+        assertThat(check.add(entries.get(1))).isNotNull();
+        assertThat(check.add(entries.get(2)).timestamp).isEqualTo(1);
+        assertThat(check.hasFailed()).isTrue();
+        entries.subList(3, entries.size()).forEach(check::add);
+
+        assertThat(getTimestamps(check.finish()))
+                .isEqualTo(getTimestamps(checker.test(entries)));
+    }
+
+    @Test
+    public void canCheckFirstAndLastEntryIncrementally() {
+        AssertionsChecker<SimpleEntry> firstChecker = new AssertionsChecker<>();
+        firstChecker.checkFirstEntry();
+        firstChecker.add(SimpleEntry::isData42, "isData42");
+        AssertionsChecker<SimpleEntry> lastChecker = new AssertionsChecker<>();
+        lastChecker.checkLastEntry();
+        lastChecker.add(SimpleEntry::isData42, "isData42");
+
+        AssertionsChecker<SimpleEntry>.IncrementalCheck lastCheck =
+                lastChecker.startIncrementalCheck();
+        getTestEntries(1, 1, 1, 1, 42).forEach(lastCheck::add);
+
+        assertThat(lastCheck.hasFailed()).isFalse();
+        assertThat(lastCheck.finish()).isEmpty();
+        assertThat(getTimestamps(testIncrementally(firstChecker, getTestEntries(1, 42, 42))))
+                .containsExactly(0L);
+        assertThat(getTimestamps(testIncrementally(lastChecker, getTestEntries(42, 42, 1))))
+                .containsExactly(2L);
+    }
+
+    @Test
+    public void canCheckChangingAssertionsIncrementally() {
+        AssertionsChecker<SimpleEntry> checker = new AssertionsChecker<>();
+        checker.add(SimpleEntry::isData42, "isData42");
+        checker.add(SimpleEntry::isData0, "isData0");
+        checker.checkChangingAssertions();
+
+        AssertionsChecker<SimpleEntry>.IncrementalCheck check = checker.startIncrementalCheck();
+        assertThat(check.add(new SimpleEntry(0, 42))).isNull();
+        assertThat(check.add(new SimpleEntry(1, 0))).isNull();
+        // The failure is reported as soon as the assertion that is expected to hold fails.
+        assertThat(check.add(new SimpleEntry(2, 42)).timestamp).isEqualTo(2);
+        assertThat(check.add(new SimpleEntry(3, 0)).timestamp).isEqualTo(2);
+        assertThat(getTimestamps(check.finish())).containsExactly(2L);
+
+        for (int[] data :
+                new int[][] {{42, 42, 0, 0, 0}, {0, 0, 0, 0, 0}, {42, 42, 42}, {}}) {
+            List<SimpleEntry> entries = getTestEntries(data);
+            List<Result> expected = checker.test(entries);
+            List<Result> actual = testIncrementally(checker, entries);
+            assertThat(getTimestamps(actual)).isEqualTo(getTimestamps(expected));
+            for (int i = 0; i < expected.size(); i++) {
+                assertThat(actual.get(i).reason).isEqualTo(expected.get(i).reason);
+            }
+        }
+    }
+
     static class SimpleEntry implements ITraceEntry {
         long mTimestamp;
         int mData;
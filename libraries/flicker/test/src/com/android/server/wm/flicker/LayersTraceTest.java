@@ -54,6 +54,17 @@ public class LayersTraceTest {
         }
     }
 
+    private static LayersTrace readLayerTraceLazilyFromFile(
+            String relativePath, int maxCachedEntries) {
+        try {
+            return LayersTrace.parseLazilyFrom(
+                    readTestFile(relativePath), null /* source */,
+                    null /* orphanLayerCallback */, maxCachedEntries);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static Rect getDisplayBounds() {
         Point display = new Point();
         WindowManager wm =
@@ -142,7 +153,7 @@ public class LayersTraceTest {
 
         assertThat(result.failed()).isTrue();
         assertThat(result.reason).contains("Region to test: Rect(0, 0 - 1440, 2880)");
-        assertThat(result.reason).contains("first empty point: 0, 99");
+        assertThat(result.reason).contains("first empty point: 0, 98");
         assertThat(result.reason).contains("visible regions:");
         assertWithMessage("Reason contains list of visible regions")
                 .that(result.reason)
@@ -237,4 +248,92 @@ public class LayersTraceTest {
                                 + ".testapp.SimpleActivity#0 is invisible: type != ColorLayer visible "
                                 + "region is empty");
     }
+
+    @Test
+    public void canParseLazily() {
+        LayersTrace trace = readLayerTraceFromFile("layers_trace_emptyregion.pb");
+        LayersTrace lazyTrace =
+                readLayerTraceLazilyFromFile(
+                        "layers_trace_emptyregion.pb", 2 /* maxCachedEntries */);
+
+        assertThat(lazyTrace.getEntries()).hasSize(trace.getEntries().size());
+        for (int i = 0; i < trace.getEntries().size(); i++) {
+            LayersTrace.Entry entry = trace.getEntries().get(i);
+            LayersTrace.Entry lazyEntry = lazyTrace.getEntries().get(i);
+            assertThat(lazyEntry.getTimestamp()).isEqualTo(entry.getTimestamp());
+            assertThat(lazyEntry.getRootLayers()).hasSize(entry.getRootLayers().size());
+            assertThat(
+                            lazyEntry.asFlattenedLayers()
+                                    .stream()
+                                    .map(LayersTrace.Layer::getName)
+                                    .collect(Collectors.toList()))
+                    .isEqualTo(
+                            entry.asFlattenedLayers()
+                                    .stream()
+                                    .map(LayersTrace.Layer::getName)
+                                    .collect(Collectors.toList()));
+        }
+        // The first entry was evicted from the cache and is rebuilt.
+        assertThat(lazyTrace.getEntries().get(0).asFlattenedLayers()).hasSize(47);
+    }
+
+    @Test
+    public void canDetectOrphanLayersLazily() {
+        LayersTrace trace =
+                readLayerTraceLazilyFromFile(
+                        "layers_trace_orphanlayers.pb", 1 /* maxCachedEntries */);
+        try {
+            trace.getEntries().forEach(LayersTrace.Entry::getRootLayers);
+            fail("Failed to detect orphaned layers.");
+        } catch (RuntimeException exception) {
+            assertThat(exception.getMessage())
+                    .contains("Failed to parse layers trace. Found orphan layers");
+        }
+    }
+
+    @Test
+    public void canGetEntriesByRange() {
+        LayersTrace trace = readLayerTraceFromFile("layers_trace_emptyregion.pb");
+
+        List<LayersTrace.Entry> entries = trace.getEntries(2307993020072L, 2308008331271L);
+
+        assertThat(entries).isNotEmpty();
+        assertThat(entries.get(0).getTimestamp()).isEqualTo(2307993020072L);
+        assertThat(entries.get(entries.size() - 1).getTimestamp()).isEqualTo(2308008331271L);
+        assertThat(trace.getEntries(0, 1)).isEmpty();
+        assertThat(trace.getEntries(0, Long.MAX_VALUE)).hasSize(trace.getEntries().size());
+    }
+
+    @Test
+    public void canFindLayersByName() {
+        LayersTrace trace = readLayerTraceFromFile("layers_trace_emptyregion.pb");
+        for (String layerName : new String[] {"StatusBar", "#0", "com.android.chrome", "None"}) {
+            for (LayersTrace.Entry entry : trace.getEntries()) {
+                List<LayersTrace.Layer> expected =
+                        entry.asFlattenedLayers()
+                                .stream()
+                                .filter(layer -> layer.getName().contains(layerName))
+                                .collect(Collectors.toList());
+                assertThat(entry.findLayers(layerName)).isEqualTo(expected);
+                // Repeated lookups are served from the entry.
+                assertThat(entry.findLayers(layerName)).isSameAs(entry.findLayers(layerName));
+            }
+        }
+    }
+
+    @Test
+    public void cannotModifyFoundLayers() {
+        LayersTrace trace = readLayerTraceFromFile("layers_trace_emptyregion.pb");
+        LayersTrace.Entry entry = trace.getEntries().get(0);
+        String layerName = entry.asFlattenedLayers().get(0).mProto.name;
+        List<LayersTrace.Layer> layers = entry.findLayers(layerName);
+        assertThat(layers).isNotEmpty();
+        try {
+            layers.clear();
+            fail("Found layers should not be modifiable.");
+        } catch (UnsupportedOperationException e) {
+            // The cached lookup is left untouched.
+            assertThat(entry.findLayers(layerName)).isNotEmpty();
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import static com.android.server.wm.flicker.RegionCoverageTest.DISPLAY_BOUNDS;
+import static com.android.server.wm.flicker.RegionCoverageTest.getFirstUncoveredPointPerPixel;
+import static com.android.server.wm.flicker.RegionCoverageTest.getVisibleRects;
+import static com.android.server.wm.flicker.TestFileUtils.readTestFile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the per-pixel region coverage check that {@link LayersTrace.Entry#coversRegion} used to
+ * do with {@link RegionCoverage}, over the visible layers of every entry of a recorded trace, and
+ * checks that the sweep is not the slower of the two. It is not part of FlickerLibTest.
+ *
+ * <p>To run this benchmark: {@code atest FlickerLibBenchmark}
+ */
+@RunWith(AndroidJUnit4.class)
+public class RegionCoverageBenchmark {
+    private static final int ITERATIONS = 3;
+
+    @Test
+    public void benchmarkCoversRegion() throws Exception {
+        LayersTrace trace = LayersTrace.parseFrom(readTestFile("layers_trace_emptyregion.pb"));
+        List<List<Rect>> entryRects = new ArrayList<>();
+        for (LayersTrace.Entry entry : trace.getEntries()) {
+            entryRects.add(getVisibleRects(entry));
+        }
+        // Also check a region every entry covers, so that the whole region is scanned.
+        Rect statusBar = new Rect(0, 0, DISPLAY_BOUNDS.right, 90);
+
+        long perPixelNanos = 0;
+        long sweepNanos = 0;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (List<Rect> rects : entryRects) {
+                for (Rect testRect : new Rect[] {DISPLAY_BOUNDS, statusBar}) {
+                    long start = System.nanoTime();
+                    Point expected = getFirstUncoveredPointPerPixel(rects, testRect);
+                    perPixelNanos += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    Point actual = new RegionCoverage(rects).getFirstUncoveredPoint(testRect);
+                    sweepNanos += System.nanoTime() - start;
+
+                    assertThat(actual).isEqualTo(expected);
+                }
+            }
+        }
+        assertWithMessage(
+                        String.format(
+                                "coversRegion over %d entries: per pixel %.2f ms, sweep %.2f ms",
+                                entryRects.size(),
+                                perPixelNanos / 1e6 / ITERATIONS,
+                                sweepNanos / 1e6 / ITERATIONS))
+                .that(sweepNanos)
+                .isAtMost(perPixelNanos);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import static com.android.server.wm.flicker.TestFileUtils.readTestFile;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.surfaceflinger.nano.Layers.RectProto;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Contains {@link RegionCoverage} tests. To run this test: {@code atest
+ * FlickerLibTest:RegionCoverageTest}
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RegionCoverageTest {
+    static final Rect DISPLAY_BOUNDS = new Rect(0, 0, 1440, 2880);
+
+    /**
+     * Returns the first point of {@code testRect} not covered by {@code rects} by checking every
+     * point, like {@link LayersTrace.Entry#coversRegion} used to.
+     */
+    static Point getFirstUncoveredPointPerPixel(Collection<Rect> rects, Rect testRect) {
+        for (int x = testRect.left; x < testRect.right; x++) {
+            for (int y = testRect.top; y < testRect.bottom; y++) {
+                boolean emptyRegionFound = true;
+                for (Rect r : rects) {
+                    if (r.contains(x, y)) {
+                        // Skip the rest of the rect, the loop moves on to the next row.
+                        y = r.bottom - 1;
+                        emptyRegionFound = false;
+                    }
+                }
+                if (emptyRegionFound) {
+                    return new Point(x, y);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the visible rects of {@code entry}, as used by coversRegion. */
+    static List<Rect> getVisibleRects(LayersTrace.Entry entry) {
+        List<Rect> rects = new ArrayList<>();
+        for (LayersTrace.Layer layer : entry.asFlattenedLayers()) {
+            if (layer.isInvisible() || layer.isHiddenByParent()) {
+                continue;
+            }
+            for (RectProto proto : layer.mProto.visibleRegion.rect) {
+                rects.add(new Rect(proto.left, proto.top, proto.right, proto.bottom));
+            }
+        }
+        return rects;
+    }
+
+    @Test
+    public void coversRect() {
+        RegionCoverage coverage =
+                new RegionCoverage(
+                        Arrays.asList(
+                                new Rect(0, 0, 100, 10),
+                                new Rect(0, 10, 50, 100),
+                                new Rect(40, 5, 100, 100)));
+
+        assertThat(coverage.covers(new Rect(0, 0, 100, 100))).isTrue();
+        assertThat(coverage.getFirstUncoveredPoint(new Rect(0, 0, 100, 101)))
+                .isEqualTo(new Point(0, 100));
+    }
+
+    @Test
+    public void findsFirstUncoveredPointByColumn() {
+        RegionCoverage coverage =
+                new RegionCoverage(
+                        Arrays.asList(new Rect(0, 0, 10, 98), new Rect(0, 99, 5, 200)));
+
+        assertThat(coverage.getFirstUncoveredPoint(new Rect(0, 0, 10, 200)))
+                .isEqualTo(new Point(0, 98));
+        assertThat(coverage.getFirstUncoveredPoint(new Rect(0, 99, 10, 200)))
+                .isEqualTo(new Point(5, 99));
+    }
+
+    @Test
+    public void emptyRectsAndRegions() {
+        RegionCoverage coverage =
+                new RegionCoverage(Collections.singletonList(new Rect(5, 5, 5, 10)));
+
+        assertThat(coverage.covers(new Rect(0, 0, 0, 0))).isTrue();
+        assertThat(coverage.getFirstUncoveredPoint(new Rect(0, 0, 10, 10)))
+                .isEqualTo(new Point(0, 0));
+    }
+
+    @Test
+    public void matchesPerPixelCheck_randomRects() {
+        Random random = new Random(42);
+        Rect testRect = new Rect(3, 2, 60, 50);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            List<Rect> rects = new ArrayList<>();
+            int rectCount = 1 + random.nextInt(12);
+            for (int i = 0; i < rectCount; i++) {
+                int left = random.nextInt(64);
+                int top = random.nextInt(64);
+                rects.add(
+                        new Rect(
+                                left, top, left + random.nextInt(40), top + random.nextInt(40)));
+            }
+            assertWithMessage("rects: " + rects)
+                    .that(new RegionCoverage(rects).getFirstUncoveredPoint(testRect))
+                    .isEqualTo(getFirstUncoveredPointPerPixel(rects, testRect));
+        }
+    }
+
+    @Test
+    public void matchesPerPixelCheck_layersTraces() throws Exception {
+        for (String file :
+                Arrays.asList(
+                        "layers_trace_emptyregion.pb",
+                        "layers_trace_invalid_layer_visibility.pb",
+                        "layers_trace_root.pb")) {
+            LayersTrace trace = LayersTrace.parseFrom(readTestFile(file));
+            for (LayersTrace.Entry entry : trace.getEntries()) {
+                List<Rect> rects = getVisibleRects(entry);
+                assertWithMessage(file + " entry " + entry.getTimestamp())
+                        .that(new RegionCoverage(rects).getFirstUncoveredPoint(DISPLAY_BOUNDS))
+                        .isEqualTo(getFirstUncoveredPointPerPixel(rects, DISPLAY_BOUNDS));
+            }
+        }
+    }
+}
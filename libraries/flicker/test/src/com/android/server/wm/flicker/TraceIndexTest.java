@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm.flicker;
+
+import static com.android.server.wm.flicker.TestFileUtils.readTestFile;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.server.wm.flicker.Assertions.Result;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+/**
+ * Contains {@link TraceIndex} tests. To run this test: {@code atest
+ * FlickerLibTest:TraceIndexTest}
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TraceIndexTest {
+    private Path mTraceDir;
+
+    @Before
+    public void setup() throws Exception {
+        mTraceDir = Files.createTempDirectory("flicker_traces");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        for (Path file : Files.newDirectoryStream(mTraceDir)) {
+            Files.delete(file);
+        }
+        Files.delete(mTraceDir);
+    }
+
+    private Path copyTestFile(String relativePath) throws Exception {
+        Path tracePath = mTraceDir.resolve(relativePath);
+        Files.write(tracePath, readTestFile(relativePath));
+        return tracePath;
+    }
+
+    @Test
+    public void canReadWindowManagerTraceIndex() throws Exception {
+        Path tracePath = copyTestFile("wm_trace_openchrome.pb");
+        assertThat(TraceIndex.read(tracePath)).isNull();
+
+        WindowManagerTrace.writeIndex(tracePath);
+        TraceIndex index = TraceIndex.read(tracePath);
+
+        assertThat(index).isNotNull();
+        assertThat(index.size()).isEqualTo(51);
+        assertThat(index.getTimestamp(0)).isEqualTo(241777211939236L);
+        assertThat(index.getTimestamp(50)).isEqualTo(241779809471942L);
+        assertThat(index.hasLayerVisibility()).isFalse();
+        WindowManagerTrace trace = WindowManagerTrace.parseLazilyFrom(tracePath);
+        Result result = trace.getEntry(241777211939236L).isAboveAppWindowVisible("NavigationBar");
+        assertThat(result.passed()).isTrue();
+    }
+
+    @Test
+    public void canCheckLayerVisibilityWithIndex() throws Exception {
+        LayersTrace trace = LayersTrace.parseFrom(readTestFile("layers_trace_emptyregion.pb"));
+        Path tracePath = copyTestFile("layers_trace_emptyregion.pb");
+        LayersTrace.writeIndex(tracePath);
+        assertThat(TraceIndex.read(tracePath).hasLayerVisibility()).isTrue();
+
+        LayersTrace indexedTrace = LayersTrace.parseLazilyFrom(tracePath);
+
+        assertThat(indexedTrace.getEntries()).hasSize(trace.getEntries().size());
+        for (int i = 0; i < trace.getEntries().size(); i++) {
+            LayersTrace.Entry entry = trace.getEntries().get(i);
+            LayersTrace.Entry indexedEntry = indexedTrace.getEntries().get(i);
+            assertThat(indexedEntry.getTimestamp()).isEqualTo(entry.getTimestamp());
+            for (String layerName :
+                    Arrays.asList("StatusBar", "NavigationBar", "Wallpaper", "Imaginary")) {
+                Result expected = entry.isVisible(layerName);
+                Result actual = indexedEntry.isVisible(layerName);
+                assertThat(actual.passed()).isEqualTo(expected.passed());
+                assertThat(actual.reason).isEqualTo(expected.reason);
+            }
+        }
+    }
+
+    @Test
+    public void ignoresIndexOfModifiedTrace() throws Exception {
+        Path tracePath = copyTestFile("layers_trace_emptyregion.pb");
+        LayersTrace.writeIndex(tracePath);
+        byte[] trace = Files.readAllBytes(tracePath);
+        trace[trace.length - 1] ^= 1;
+        Files.write(tracePath, trace);
+
+        assertThat(TraceIndex.read(tracePath)).isNull();
+    }
+
+    @Test
+    public void keepsIndexOfCopiedTrace() throws Exception {
+        Path tracePath = copyTestFile("layers_trace_emptyregion.pb");
+        LayersTrace.writeIndex(tracePath);
+        // A copy of the trace, such as one pulled from the device, has a new modification time.
+        Files.setLastModifiedTime(
+                tracePath,
+                FileTime.fromMillis(Files.getLastModifiedTime(tracePath).toMillis() + 1000));
+
+        assertThat(TraceIndex.read(tracePath)).isNotNull();
+        assertThat(LayersTrace.parseLazilyFrom(tracePath).getEntries()).hasSize(33);
+    }
+
+    @Test
+    public void ignoresCorruptIndex() throws Exception {
+        Path tracePath = copyTestFile("layers_trace_emptyregion.pb");
+        LayersTrace.writeIndex(tracePath);
+        Path indexPath = TraceIndex.getIndexPath(tracePath);
+        byte[] index = Files.readAllBytes(indexPath);
+        Files.write(indexPath, Arrays.copyOf(index, index.length / 2));
+
+        assertThat(TraceIndex.read(tracePath)).isNull();
+        assertThat(LayersTrace.parseLazilyFrom(tracePath).getEntries()).hasSize(33);
+    }
+}
@@ -18,12 +18,16 @@ package com.android.server.wm.flicker;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
+import android.app.Instrumentation;
+import android.os.Bundle;
 import android.os.Environment;
 
 import androidx.test.runner.AndroidJUnit4;
@@ -33,6 +37,7 @@ import com.android.server.wm.flicker.TransitionRunner.TransitionResult;
 import com.android.server.wm.flicker.monitor.LayersTraceMonitor;
 import com.android.server.wm.flicker.monitor.ScreenRecorder;
 import com.android.server.wm.flicker.monitor.WindowAnimationFrameStatsMonitor;
+import com.android.server.wm.flicker.monitor.WindowAnimationFrameStatsMonitor.FrameStatsSummary;
 import com.android.server.wm.flicker.monitor.WindowManagerTraceMonitor;
 
 import org.junit.Before;
@@ -40,14 +45,19 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Contains {@link TransitionRunner} tests. {@code atest FlickerLibTest:TransitionRunnerTest} */
 @RunWith(AndroidJUnit4.class)
@@ -58,6 +68,7 @@ public class TransitionRunnerTest {
     @Mock private WindowManagerTraceMonitor mWindowManagerTraceMonitorMock;
     @Mock private LayersTraceMonitor mLayersTraceMonitorMock;
     @Mock private WindowAnimationFrameStatsMonitor mWindowAnimationFrameStatsMonitor;
+    @Mock private Instrumentation mInstrumentationMock;
     @InjectMocks private TransitionBuilder mTransitionBuilder = TransitionRunner.newBuilder();
 
     @Before
@@ -252,6 +263,126 @@ public class TransitionRunnerTest {
         assertThat(results).hasSize(2);
     }
 
+    @Test
+    public void canReportFrameStatsOfJankyRuns() {
+        FrameStatsSummary frameStats = mock(FrameStatsSummary.class);
+        doReturn(Collections.singletonMap("frame_duration_p90", 1.5))
+                .when(frameStats)
+                .getMetrics();
+        doReturn(true).when(mWindowAnimationFrameStatsMonitor).jankyFramesDetected();
+        doReturn(frameStats).when(mWindowAnimationFrameStatsMonitor).getSummary();
+        List<TransitionResult> results =
+                mTransitionBuilder
+                        .withTag("frameStats")
+                        .run(this::emptyTask)
+                        .skipLayersTrace()
+                        .skipWindowManagerTrace()
+                        .includeJankyRuns()
+                        .reportFrameStats()
+                        .repeat(2)
+                        .build()
+                        .run()
+                        .getResults();
+        verify(mWindowAnimationFrameStatsMonitor, times(2)).start();
+        verify(mWindowAnimationFrameStatsMonitor, times(2)).stop();
+        assertThat(results).hasSize(2);
+        assertThat(results.get(0).getFrameStats()).isSameAs(frameStats);
+        assertThat(results.get(1).getFrameStats()).isSameAs(frameStats);
+        ArgumentCaptor<Bundle> metrics = ArgumentCaptor.forClass(Bundle.class);
+        verify(mInstrumentationMock, times(2))
+                .sendStatus(eq(TransitionRunner.INST_STATUS_IN_PROGRESS), metrics.capture());
+        assertThat(metrics.getAllValues().get(0).getString("frameStats_0_frame_duration_p90"))
+                .isEqualTo("1.5");
+        assertThat(metrics.getAllValues().get(1).getString("frameStats_1_frame_duration_p90"))
+                .isEqualTo("1.5");
+    }
+
+    @Test
+    public void canSaveTracesInBackground() {
+        final int iterations = 3;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            Path tracePath = Paths.get("wm_trace.pb_mSaveTracesInBackground_" + iteration);
+            doReturn((Callable<Path>) () -> tracePath)
+                    .when(mWindowManagerTraceMonitorMock)
+                    .stage("mSaveTracesInBackground", iteration);
+        }
+        List<TransitionResult> results =
+                mTransitionBuilder
+                        .run(this::emptyTask)
+                        .runAfterAll(mTransitionsMock::cleanUpTracks)
+                        .includeJankyRuns()
+                        .skipLayersTrace()
+                        .saveTracesInBackground()
+                        .withTag("mSaveTracesInBackground")
+                        .repeat(iterations)
+                        .build()
+                        .run()
+                        .getResults();
+
+        InOrder orderVerifier = inOrder(mWindowManagerTraceMonitorMock);
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            orderVerifier.verify(mWindowManagerTraceMonitorMock).start();
+            orderVerifier.verify(mWindowManagerTraceMonitorMock).stop();
+            orderVerifier
+                    .verify(mWindowManagerTraceMonitorMock)
+                    .stage("mSaveTracesInBackground", iteration);
+        }
+        verifyNoMoreInteractions(mWindowManagerTraceMonitorMock);
+        verify(mTransitionsMock).cleanUpTracks();
+        assertThat(results).hasSize(iterations);
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            assertThat(results.get(iteration).getWindowManagerTracePath())
+                    .isEqualTo(Paths.get("wm_trace.pb_mSaveTracesInBackground_" + iteration));
+        }
+    }
+
+    @Test
+    public void canKeepTracesInMemory() {
+        byte[] trace = new byte[] {1, 2, 3};
+        doReturn(trace).when(mWindowManagerTraceMonitorMock).capture();
+        List<TransitionResult> results =
+                mTransitionBuilder
+                        .run(this::emptyTask)
+                        .includeJankyRuns()
+                        .skipLayersTrace()
+                        .keepTracesInMemory()
+                        .withTag("mKeepTracesInMemory")
+                        .build()
+                        .run()
+                        .getResults();
+
+        InOrder orderVerifier = inOrder(mWindowManagerTraceMonitorMock);
+        orderVerifier.verify(mWindowManagerTraceMonitorMock).start();
+        orderVerifier.verify(mWindowManagerTraceMonitorMock).stop();
+        orderVerifier.verify(mWindowManagerTraceMonitorMock).capture();
+        verifyNoMoreInteractions(mWindowManagerTraceMonitorMock);
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).getWindowManagerTracePath()).isNull();
+        assertThat(results.get(0).windowManagerTraceExists()).isTrue();
+        assertThat(results.get(0).getWindowManagerTrace()).isEqualTo(trace);
+    }
+
+    @Test
+    public void canStopOnFailure() {
+        AtomicInteger checkedRuns = new AtomicInteger();
+        List<TransitionResult> results =
+                TransitionRunner.newBuilder()
+                        .run(mTransitionsMock::performMagic)
+                        .runAfterAll(mTransitionsMock::cleanUpTracks)
+                        .skipLayersTrace()
+                        .skipWindowManagerTrace()
+                        .includeJankyRuns()
+                        .stopOnFailure(result -> checkedRuns.incrementAndGet() == 2)
+                        .repeat(5)
+                        .build()
+                        .run()
+                        .getResults();
+
+        assertThat(results).hasSize(2);
+        verify(mTransitionsMock, times(2)).performMagic();
+        verify(mTransitionsMock).cleanUpTracks();
+    }
+
     public static class SimpleUiTransitions {
         public void turnOnDevice() {}
 
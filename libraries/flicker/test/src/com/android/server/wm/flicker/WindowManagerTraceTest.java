@@ -30,6 +30,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 /**
  * Contains {@link WindowManagerTrace} tests. To run this test: {@code atest
  * FlickerLibTest:WindowManagerTraceTest}
@@ -112,4 +115,31 @@ public class WindowManagerTraceTest {
         assertThat(result.reason)
                 .contains("found=com.android.chrome/" + "com.google.android.apps.chrome.Main");
     }
+
+    @Test
+    public void canParseLazily() throws Exception {
+        Path tracePath = Files.createTempFile("wm_trace_openchrome", ".pb");
+        try {
+            Files.write(tracePath, readTestFile("wm_trace_openchrome.pb"));
+            WindowManagerTrace trace =
+                    WindowManagerTrace.parseLazilyFrom(tracePath, 2 /* maxCachedEntries */);
+
+            assertThat(trace.getEntries()).hasSize(mTrace.getEntries().size());
+            assertThat(trace.getSource().get()).isEqualTo(tracePath);
+            for (int i = 0; i < mTrace.getEntries().size(); i++) {
+                WindowManagerTrace.Entry expected = mTrace.getEntries().get(i);
+                WindowManagerTrace.Entry actual = trace.getEntries().get(i);
+                assertThat(actual.getTimestamp()).isEqualTo(expected.getTimestamp());
+                String windowTitle = "com.google.android.apps.chrome";
+                assertThat(actual.isVisibleAppWindowOnTop(windowTitle).reason)
+                        .isEqualTo(expected.isVisibleAppWindowOnTop(windowTitle).reason);
+            }
+            // Entries evicted from the cache are decoded again.
+            Result result =
+                    trace.getEntry(241777211939236L).isAboveAppWindowVisible("NavigationBar");
+            assertThat(result.passed()).isTrue();
+        } finally {
+            Files.delete(tracePath);
+        }
+    }
 }
@@ -82,4 +82,15 @@ public class LayersTraceMonitorTest {
         assertThat(mLayerTraceFileProto.magicNumber)
                 .isEqualTo((long) MAGIC_NUMBER_H << 32 | MAGIC_NUMBER_L);
     }
+
+    @Test
+    public void captureLayersTraceInMemory() throws Exception {
+        mLayersTraceMonitor.start();
+        mLayersTraceMonitor.stop();
+        byte[] trace = mLayersTraceMonitor.capture();
+        assertThat(trace.length).isGreaterThan(0);
+        LayersTraceFileProto mLayerTraceFileProto = LayersTraceFileProto.parseFrom(trace);
+        assertThat(mLayerTraceFileProto.magicNumber)
+                .isEqualTo((long) MAGIC_NUMBER_H << 32 | MAGIC_NUMBER_L);
+    }
 }